@@ -0,0 +1,85 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javamatic.*;
+
+/**
+ * This class has JMH benchmarks for loading a large catalog into a new machine. Each fork loads the catalog
+ * once without any warmup, so the scores are cold-start times, including class loading and interpretation.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+@State(Scope.Benchmark)
+public class CatalogBenchmark
+{
+	@Param({ "50000" })
+	public int drinkCount;
+
+	@Param({ "1000" })
+	public int ingredientCount;
+
+	private Path textPath;
+	private Path binaryPath;
+
+	/**
+	 * Writes the catalog as both text and binary files.
+	 */
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		textPath = Files.createTempFile("catalog", ".csv");
+		binaryPath = Files.createTempFile("catalog", ".bin");
+		Files.write(textPath, SyntheticMenus.createCatalog(ingredientCount, drinkCount, 42).getBytes(StandardCharsets.UTF_8));
+		CatalogLoader.compile(textPath, binaryPath);
+	}
+
+	/**
+	 * Deletes the catalog files.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException
+	{
+		Files.deleteIfExists(textPath);
+		Files.deleteIfExists(binaryPath);
+	}
+
+	/**
+	 * Parses the text catalog into a new machine.
+	 */
+	@Benchmark
+	public Machine loadText() throws IOException
+	{
+		return CatalogLoader.load(textPath, new Machine());
+	}
+
+	/**
+	 * Loads the memory-mapped binary catalog into a new machine.
+	 */
+	@Benchmark
+	public Machine loadBinary() throws IOException
+	{
+		return CatalogLoader.load(binaryPath, new Machine());
+	}
+}
@@ -0,0 +1,82 @@
+package bench;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javamatic.*;
+
+/**
+ * This class has JMH benchmarks for building the drink recommender for a large catalog, and for
+ * recommending drinks when half of the catalog's drinks are out of stock.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DrinkRecommenderBenchmark
+{
+	@Param({ "50000" })
+	public int drinkCount;
+
+	@Param({ "1000" })
+	public int ingredientCount;
+
+	private Catalog catalog;
+	private DrinkRecommender recommender;
+	private Drink[] drinks;
+	private int next;
+
+	/**
+	 * Builds a machine with the synthetic catalog, puts every other drink out of stock, and builds its recommender.
+	 */
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		Machine machine = CatalogLoader.loadText(new StringReader(SyntheticMenus.createCatalog(ingredientCount, drinkCount, 42)), new Machine());
+		catalog = new Catalog(machine);
+		recommender = new DrinkRecommender(catalog);
+		drinks = new Drink[drinkCount];
+		for (int i = 0; i < drinkCount; i++)
+		{
+			drinks[i] = catalog.getDrink(i + 1);
+			drinks[i].setInStock(i % 2 == 0);
+		}
+	}
+
+	/**
+	 * Builds the recommender for the catalog.
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public DrinkRecommender build()
+	{
+		return new DrinkRecommender(catalog);
+	}
+
+	/**
+	 * Recommends three drinks for each drink in turn.
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public List<Drink> recommend()
+	{
+		next = next + 1 == drinks.length ? 0 : next + 1;
+		return recommender.recommend(drinks[next], 3);
+	}
+}
@@ -0,0 +1,86 @@
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javamatic.*;
+
+/**
+ * This class has JMH benchmarks for the fleet-wide queries over a fleet of machines with
+ * synthetic menus, where a random drink has been bought from each machine a few times.
+ * The fleet runs in a 1 GB heap: java -jar target/benchmarks.jar FleetBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx1g" })
+@State(Scope.Benchmark)
+public class FleetBenchmark
+{
+	@Param({ "100000" })
+	public int machineCount;
+
+	@Param({ "10", "100" })
+	public int menuSize;
+
+	private Fleet fleet;
+
+	/**
+	 * Builds the fleet and buys some drinks from each machine.
+	 */
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		Catalog catalog = new Catalog(SyntheticMenus.populateMachine(new Machine(), menuSize, 42));
+		fleet = new Fleet(catalog, machineCount);
+		Random random = new Random(42);
+		for (int machine = 0; machine < machineCount; machine++)
+		{
+			for (int i = 0; i < 5; i++)
+			{
+				fleet.buyDrink(machine, 1 + random.nextInt(menuSize));
+			}
+		}
+	}
+
+	/**
+	 * Adds up the stock of every ingredient across the fleet.
+	 */
+	@Benchmark
+	public long[] totalStock()
+	{
+		return fleet.getTotalStock();
+	}
+
+	/**
+	 * Counts the drinks that are out of stock in every machine.
+	 */
+	@Benchmark
+	public int[] outOfStockCounts()
+	{
+		return fleet.getOutOfStockCounts();
+	}
+
+	/**
+	 * Finds the machines that have any drink out of stock.
+	 */
+	@Benchmark
+	public int[] machinesNeedingRestock()
+	{
+		return fleet.getMachinesNeedingRestock(0);
+	}
+}
@@ -0,0 +1,84 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javamatic.*;
+
+/**
+ * This class has JMH benchmarks for the JavaMatic command loop from end to end, running a
+ * script of commands against machines with synthetic menus.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JavaMaticBenchmark
+{
+	private static final int COMMAND_COUNT = 100;
+
+	@Param({ "10", "100", "10000" })
+	public int size;
+
+	private byte[] script;
+	private Machine machine;
+	private PrintStream outputStream;
+
+	/**
+	 * Builds the command script, and an output stream that discards everything written to it.
+	 */
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		script = SyntheticMenus.createCommandScript(size, COMMAND_COUNT, 7).getBytes(StandardCharsets.UTF_8);
+		outputStream = new PrintStream(new OutputStream()
+		{
+			@Override
+			public void write(int b)
+			{
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len)
+			{
+			}
+		});
+	}
+
+	/**
+	 * Builds a new machine before every run of the script, so every run starts fully stocked.
+	 */
+	@Setup(Level.Invocation)
+	public void createMachine()
+	{
+		machine = SyntheticMenus.populateMachine(new Machine(), size, 42);
+	}
+
+	/**
+	 * Runs the whole command script through the command loop.
+	 */
+	@Benchmark
+	public Machine runMachine()
+	{
+		JavaMatic.runMachine(machine, new ByteArrayInputStream(script), outputStream);
+		return machine;
+	}
+}
@@ -0,0 +1,308 @@
+package bench;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javamatic.*;
+
+/**
+ * This class has JMH benchmarks for buying drinks, restocking, and rendering the menu and
+ * inventory of machines with synthetic menus. Run them with the gc profiler to see allocation
+ * rates: java -jar target/benchmarks.jar MachineBenchmark -prof gc
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MachineBenchmark
+{
+	/**
+	 * The machines that every benchmark thread shares.
+	 */
+	@State(Scope.Benchmark)
+	public static class Machines
+	{
+		@Param({ "10", "100", "10000" })
+		public int size;
+
+		public Machine machine;
+		public Machine lazyMachine;
+		public Machine meteredMachine;
+		public StripedMachine meteredStripedMachine;
+		public Machine publishingMachine;
+		public List<RestockItem> restockItems;
+		public ConcurrentMachine concurrentMachine;
+		public StripedMachine stripedMachine;
+		public ConcurrentMachine reservedMachine;
+		public Reservations reservations;
+
+		/**
+		 * Builds a regular, a lazy, a concurrent, and a striped machine with the same synthetic menu,
+		 * along with a regular and a striped machine that record metrics, a regular machine that
+		 * publishes its events to a consumer that ignores them, and a concurrent machine with holds.
+		 */
+		@Setup(Level.Trial)
+		public void setUp()
+		{
+			machine = SyntheticMenus.populateMachine(new Machine(), size, 42);
+			lazyMachine = SyntheticMenus.populateMachine(new Machine(), size, 42);
+			lazyMachine.setLazyStockEvaluation(true);
+			concurrentMachine = SyntheticMenus.populateMachine(new ConcurrentMachine(), size, 42);
+			stripedMachine = SyntheticMenus.populateMachine(new StripedMachine(), size, 42);
+			meteredMachine = SyntheticMenus.populateMachine(new Machine(), size, 42);
+			MachineMetrics.attach(meteredMachine);
+			meteredStripedMachine = SyntheticMenus.populateMachine(new StripedMachine(), size, 42);
+			MachineMetrics.attach(meteredStripedMachine);
+			publishingMachine = SyntheticMenus.populateMachine(new Machine(), size, 42);
+			MachineEvents.attach(publishingMachine).subscribe((event, sequence, endOfBatch) -> { });
+			reservedMachine = SyntheticMenus.populateMachine(new ConcurrentMachine(), size, 42);
+			reservations = new Reservations(reservedMachine, 1 << 22, 100, 1);
+			reservations.start();
+			restockItems = Arrays.asList(new RestockItem(machine.getDrink(1).getIngredients().iterator().next(), 1));
+		}
+
+		/**
+		 * Stops the consumer of the publishing machine's events, and the timing wheel of the holds.
+		 */
+		@TearDown(Level.Trial)
+		public void tearDown()
+		{
+			publishingMachine.getEvents().close();
+			reservations.close();
+		}
+	}
+
+	/**
+	 * The drink that each benchmark thread buys next, which cycles through the menu.
+	 */
+	@State(Scope.Thread)
+	public static class Selection
+	{
+		private int nextDrink;
+
+		/**
+		 * Starts each thread at a different drink, so threads don't all buy the same drink.
+		 */
+		@Setup(Level.Trial)
+		public void setUp()
+		{
+			nextDrink = (int) (Thread.currentThread().getId() * 7919);
+		}
+
+		/**
+		 * @param drinkCount The number of drinks in the menu.
+		 * @return The next drink number to buy.
+		 */
+		public int next(int drinkCount)
+		{
+			nextDrink = (nextDrink + 1) % drinkCount;
+			return nextDrink + 1;
+		}
+	}
+
+	/**
+	 * Buys drinks from a regular machine on a single thread, restocking it when a drink is out of stock.
+	 */
+	@Benchmark
+	public boolean buyDrink(Machines machines, Selection selection)
+	{
+		return buy(machines.machine, machines.size, selection);
+	}
+
+	/**
+	 * Buys drinks from a regular machine that records metrics on a single thread, restocking it when a drink is out of stock.
+	 */
+	@Benchmark
+	public boolean buyDrinkMetered(Machines machines, Selection selection)
+	{
+		return buy(machines.meteredMachine, machines.size, selection);
+	}
+
+	/**
+	 * Buys drinks from a concurrent machine on a single thread, restocking it when a drink is out of stock.
+	 */
+	@Benchmark
+	public boolean buyDrinkConcurrentSingleThread(Machines machines, Selection selection)
+	{
+		return buyConcurrent(machines, selection);
+	}
+
+	/**
+	 * Buys drinks from a concurrent machine on every available core at once.
+	 */
+	@Benchmark
+	@Threads(Threads.MAX)
+	public boolean buyDrinkConcurrentAllThreads(Machines machines, Selection selection)
+	{
+		return buyConcurrent(machines, selection);
+	}
+
+	/**
+	 * Buys drinks from a striped machine on every available core at once.
+	 */
+	@Benchmark
+	@Threads(Threads.MAX)
+	public boolean buyDrinkStripedAllThreads(Machines machines, Selection selection)
+	{
+		return buy(machines.stripedMachine, machines.size, selection);
+	}
+
+	/**
+	 * Buys drinks from a regular machine that publishes its events on a single thread, restocking it when a drink is out of stock.
+	 */
+	@Benchmark
+	public boolean buyDrinkPublishing(Machines machines, Selection selection)
+	{
+		return buy(machines.publishingMachine, machines.size, selection);
+	}
+
+	/**
+	 * Buys drinks from a striped machine that records metrics on every available core at once.
+	 */
+	@Benchmark
+	@Threads(Threads.MAX)
+	public boolean buyDrinkStripedMeteredAllThreads(Machines machines, Selection selection)
+	{
+		return buy(machines.meteredStripedMachine, machines.size, selection);
+	}
+
+	/**
+	 * Reserves drinks from a concurrent machine and cancels the holds on every available core at once,
+	 * while the timing wheel frees the holds' slots. Holds that can't be reserved are counted as false.
+	 */
+	@Benchmark
+	@Threads(Threads.MAX)
+	public boolean reserveAndCancelAllThreads(Machines machines, Selection selection)
+	{
+		return machines.reservations.cancel(machines.reservations.reserve(selection.next(machines.size)));
+	}
+
+	/**
+	 * Restocks a regular machine.
+	 */
+	@Benchmark
+	public void restockInventory(Machines machines)
+	{
+		machines.machine.restockInventory();
+	}
+
+	/**
+	 * Restocks one ingredient of a regular machine.
+	 */
+	@Benchmark
+	public void restockIngredients(Machines machines)
+	{
+		machines.machine.restockIngredients(machines.restockItems);
+	}
+
+	/**
+	 * Renders the inventory and menu when nothing has changed since they were last rendered.
+	 */
+	@Benchmark
+	public void outputUnchanged(Machines machines, Blackhole blackhole)
+	{
+		blackhole.consume(machines.machine.outputInventory());
+		blackhole.consume(machines.machine.outputMenu());
+	}
+
+	/**
+	 * Buys a drink and then renders the inventory and menu, the same way the command loop does.
+	 */
+	@Benchmark
+	public void outputAfterPurchase(Machines machines, Selection selection, Blackhole blackhole)
+	{
+		blackhole.consume(buyDrink(machines, selection));
+		blackhole.consume(machines.machine.outputInventory());
+		blackhole.consume(machines.machine.outputMenu());
+	}
+
+	/**
+	 * Buys a drink and then takes a snapshot of the inventory and menu, without rendering it.
+	 */
+	@Benchmark
+	public MachineSnapshot snapshotAfterPurchase(Machines machines, Selection selection, Blackhole blackhole)
+	{
+		blackhole.consume(buyDrink(machines, selection));
+		return machines.machine.getSnapshot();
+	}
+
+	/**
+	 * Buys a burst of drinks and then renders the menu once, on a machine that updates stock after every purchase.
+	 */
+	@Benchmark
+	public String purchaseBurstThenMenu(Machines machines, Selection selection)
+	{
+		return purchaseBurst(machines.machine, machines.size, selection);
+	}
+
+	/**
+	 * Buys a burst of drinks and then renders the menu once, on a machine that evaluates stock lazily.
+	 */
+	@Benchmark
+	public String purchaseBurstThenMenuLazy(Machines machines, Selection selection)
+	{
+		return purchaseBurst(machines.lazyMachine, machines.size, selection);
+	}
+
+	/**
+	 * Buys a hundred drinks from the given machine, restocking it when a drink is out of stock, and then renders the menu.
+	 * @param machine The machine to buy the drinks from.
+	 * @param drinkCount The number of drinks in the machine's menu.
+	 * @param selection The benchmark thread's drink selection.
+	 * @return The rendered menu.
+	 */
+	private static String purchaseBurst(Machine machine, int drinkCount, Selection selection)
+	{
+		for (int i = 0; i < 100; i++)
+		{
+			buy(machine, drinkCount, selection);
+		}
+		return machine.outputMenu();
+	}
+
+	/**
+	 * Buys the next drink from the concurrent machine, restocking it when the drink is out of stock.
+	 * @param machines The machines being benchmarked.
+	 * @param selection The benchmark thread's drink selection.
+	 * @return Whether the drink was bought.
+	 */
+	private static boolean buyConcurrent(Machines machines, Selection selection)
+	{
+		return buy(machines.concurrentMachine, machines.size, selection);
+	}
+
+	/**
+	 * Buys the next drink from the given machine, restocking it when the drink is out of stock.
+	 * @param machine The machine to buy the drink from.
+	 * @param drinkCount The number of drinks in the machine's menu.
+	 * @param selection The benchmark thread's drink selection.
+	 * @return Whether the drink was bought.
+	 */
+	private static boolean buy(Machine machine, int drinkCount, Selection selection)
+	{
+		boolean bought = machine.buyDrink(selection.next(drinkCount));
+		if (!bought)
+		{
+			machine.restockInventory();
+		}
+		return bought;
+	}
+}
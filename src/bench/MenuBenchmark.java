@@ -0,0 +1,85 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javamatic.*;
+
+/**
+ * This class has JMH benchmarks for building a large menu, either by adding every drink at once
+ * or by adding the drinks one at a time. The drinks are added in a random order.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MenuBenchmark
+{
+	@Param({ "100000" })
+	public int drinkCount;
+
+	private Ingredient ingredient;
+	private List<Drink> drinks;
+
+	/**
+	 * Creates the drinks, which all use the same ingredient, and shuffles them.
+	 */
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		ingredient = new Ingredient("Espresso", 1.10f);
+		drinks = new ArrayList<Drink>(drinkCount);
+		for (int i = 0; i < drinkCount; i++)
+		{
+			Drink drink = new Drink(String.format("Drink %06d", i));
+			drink.addIngredient(ingredient, 1);
+			drinks.add(drink);
+		}
+		Collections.shuffle(drinks, new Random(42));
+	}
+
+	/**
+	 * Adds every drink to a new machine at once.
+	 */
+	@Benchmark
+	public Machine addDrinks()
+	{
+		Machine machine = new Machine();
+		machine.addIngredient(ingredient);
+		machine.addDrinks(drinks);
+		return machine;
+	}
+
+	/**
+	 * Adds the drinks to a new machine one at a time.
+	 */
+	@Benchmark
+	public Machine addDrink()
+	{
+		Machine machine = new Machine();
+		machine.addIngredient(ingredient);
+		for (Drink drink : drinks)
+		{
+			machine.addDrink(drink);
+		}
+		return machine;
+	}
+}
@@ -0,0 +1,187 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javamatic.*;
+
+/**
+ * This class generates load against an OrderServer for testing. It opens many connections at once,
+ * sends drink selections and restocks on each one, and reports the throughput and latency percentiles
+ * of the responses. Usage:
+ * java -cp target/benchmarks.jar bench.OrderLoadGenerator [port] [connections] [commands per connection] [drinks]
+ */
+public class OrderLoadGenerator
+{
+	/**
+	 * The main entry point for the load generator.
+	 * @param args The port, the number of connections, the number of commands to send on each
+	 * connection, and the number of drinks on the server's menu, each of which has a default.
+	 * @throws Exception If the load generator is interrupted.
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		final int port = args.length > 0 ? Integer.parseInt(args[0]) : OrderServer.DEFAULT_PORT;
+		int connections = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		final int commandsPerConnection = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		final int drinkCount = args.length > 3 ? Integer.parseInt(args[3]) : 6;
+
+		final long[][] latencies = new long[connections][];
+		final AtomicLong failures = new AtomicLong();
+		final CountDownLatch finished = new CountDownLatch(connections);
+		ExecutorService executor = createExecutor();
+
+		long start = System.nanoTime();
+		for (int c = 0; c < connections; c++)
+		{
+			final int connection = c;
+			executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						latencies[connection] = runConnection(port, commandsPerConnection, drinkCount, connection);
+					}
+					catch (IOException e)
+					{
+						failures.incrementAndGet();
+						latencies[connection] = new long[0];
+					}
+					finally
+					{
+						finished.countDown();
+					}
+				}
+			});
+		}
+		finished.await();
+		long elapsed = System.nanoTime() - start;
+		executor.shutdown();
+
+		long[] allLatencies = merge(latencies);
+		Arrays.sort(allLatencies);
+		System.out.println(String.format("%d connections, %d failed, %d commands in %.2f s (%.0f commands/s)",
+				connections, failures.get(), allLatencies.length, elapsed / 1e9, allLatencies.length / (elapsed / 1e9)));
+		System.out.println(String.format("Latency p50 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us",
+				percentile(allLatencies, 0.5), percentile(allLatencies, 0.99), percentile(allLatencies, 0.999),
+				percentile(allLatencies, 1.0)));
+	}
+
+	/**
+	 * Sends commands on one connection, waiting for each response before sending the next command.
+	 * @param port The port of the server.
+	 * @param commandCount The number of commands to send.
+	 * @param drinkCount The number of drinks on the server's menu.
+	 * @param seed The seed for choosing the commands.
+	 * @return The latency of each command in nanoseconds.
+	 * @throws IOException If the connection fails.
+	 */
+	private static long[] runConnection(int port, int commandCount, int drinkCount, long seed) throws IOException
+	{
+		Random random = new Random(seed);
+		long[] latencies = new long[commandCount];
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port))
+		{
+			socket.setTcpNoDelay(true);
+			BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			OutputStream outputStream = socket.getOutputStream();
+			readResponse(reader);
+
+			for (int i = 0; i < commandCount; i++)
+			{
+				String command = random.nextInt(20) == 0 ? "r\n" : (1 + random.nextInt(drinkCount)) + "\n";
+				long start = System.nanoTime();
+				outputStream.write(command.getBytes(StandardCharsets.UTF_8));
+				outputStream.flush();
+				readResponse(reader);
+				latencies[i] = System.nanoTime() - start;
+			}
+			outputStream.write("q\n".getBytes(StandardCharsets.UTF_8));
+			outputStream.flush();
+		}
+		return latencies;
+	}
+
+	/**
+	 * Reads one response from the server, which ends with an empty line.
+	 * @param reader The reader for the server's responses.
+	 * @throws IOException If the server disconnects before the response is complete.
+	 */
+	private static void readResponse(BufferedReader reader) throws IOException
+	{
+		String line;
+		while ((line = reader.readLine()) != null)
+		{
+			if (line.length() == 0)
+			{
+				return;
+			}
+		}
+		throw new IOException("Server disconnected");
+	}
+
+	/**
+	 * @param latencies The latencies of each connection.
+	 * @return All of the latencies in one array.
+	 */
+	private static long[] merge(long[][] latencies)
+	{
+		int total = 0;
+		for (long[] connectionLatencies : latencies)
+		{
+			total += connectionLatencies.length;
+		}
+		long[] merged = new long[total];
+		int position = 0;
+		for (long[] connectionLatencies : latencies)
+		{
+			System.arraycopy(connectionLatencies, 0, merged, position, connectionLatencies.length);
+			position += connectionLatencies.length;
+		}
+		return merged;
+	}
+
+	/**
+	 * @param sortedLatencies The latencies in nanoseconds, sorted in ascending order.
+	 * @param fraction The fraction of latencies that the percentile is above, between 0 and 1.
+	 * @return The latency at the given percentile in microseconds.
+	 */
+	private static double percentile(long[] sortedLatencies, double fraction)
+	{
+		if (sortedLatencies.length == 0)
+		{
+			return 0;
+		}
+		int index = (int) Math.min(sortedLatencies.length - 1, Math.ceil(fraction * sortedLatencies.length) - 1);
+		return sortedLatencies[Math.max(0, index)] / 1e3;
+	}
+
+	/**
+	 * @return An executor that runs each connection on a virtual thread if the Java runtime
+	 * supports them, or otherwise on a platform thread.
+	 */
+	private static ExecutorService createExecutor()
+	{
+		try
+		{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (ReflectiveOperationException e)
+		{
+			return Executors.newCachedThreadPool();
+		}
+	}
+}
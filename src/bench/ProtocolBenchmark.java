@@ -0,0 +1,188 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javamatic.*;
+
+/**
+ * This class has JMH benchmarks that compare the text commands with the binary protocol, for the same
+ * batch of a hundred commands: ninety-nine drink purchases and a restock. Each protocol is measured
+ * handling the batch in memory, and over a loopback connection to an OrderServer, where text commands
+ * take a round trip each and binary requests are pipelined in one round trip.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProtocolBenchmark
+{
+	private static final int BATCH_SIZE = 100;
+
+	@Param({ "10", "1000" })
+	public int size;
+
+	private ConcurrentMachine machine;
+	private OrderServer textServer;
+	private OrderServer binaryServer;
+	private byte[] textBatch;
+	private String[] textCommands;
+	private ByteBuffer binaryBatch;
+	private ByteBuffer responses;
+	private PrintStream discardStream;
+	private Socket textSocket;
+	private PrintStream textOutput;
+	private BufferedReader textInput;
+	private Socket binarySocket;
+	private DataInputStream binaryInput;
+
+	/**
+	 * Builds the machine and the batches of commands, and connects to a text server and a binary server.
+	 */
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		machine = SyntheticMenus.populateMachine(new ConcurrentMachine(), size, 42);
+		textCommands = new String[BATCH_SIZE];
+		binaryBatch = ByteBuffer.allocate(BATCH_SIZE * BinaryProtocol.RECORD_SIZE);
+		responses = ByteBuffer.allocate(BATCH_SIZE * BinaryProtocol.RECORD_SIZE);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < BATCH_SIZE; i++)
+		{
+			int drinkNumber = i % size + 1;
+			boolean restock = i == BATCH_SIZE - 1;
+			textCommands[i] = restock ? "r" : Integer.toString(drinkNumber);
+			text.append(textCommands[i]).append('\n');
+			BinaryProtocol.putRequest(binaryBatch, restock ? BinaryProtocol.RESTOCK : BinaryProtocol.BUY, (short) i, drinkNumber);
+		}
+		textBatch = text.append("q\n").toString().getBytes(StandardCharsets.UTF_8);
+		discardStream = new PrintStream(new OutputStream()
+		{
+			@Override
+			public void write(int b)
+			{
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len)
+			{
+			}
+		});
+
+		textServer = new OrderServer(machine, 0);
+		textServer.start();
+		binaryServer = new OrderServer(machine, 0, true);
+		binaryServer.start();
+		textSocket = new Socket(InetAddress.getLoopbackAddress(), textServer.getPort());
+		textSocket.setTcpNoDelay(true);
+		textOutput = new PrintStream(textSocket.getOutputStream(), false, "UTF-8");
+		textInput = new BufferedReader(new InputStreamReader(textSocket.getInputStream(), StandardCharsets.UTF_8));
+		readTextResponse();
+		binarySocket = new Socket(InetAddress.getLoopbackAddress(), binaryServer.getPort());
+		binarySocket.setTcpNoDelay(true);
+		binaryInput = new DataInputStream(binarySocket.getInputStream());
+	}
+
+	/**
+	 * Disconnects from the servers and stops them.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException
+	{
+		textSocket.close();
+		binarySocket.close();
+		textServer.close();
+		binaryServer.close();
+	}
+
+	/**
+	 * Runs the batch of text commands through the interactive application, which prints the inventory
+	 * and menu after each one, as the text server does.
+	 */
+	@Benchmark
+	public Machine textInMemory()
+	{
+		JavaMatic.runMachine(machine, new ByteArrayInputStream(textBatch), discardStream);
+		return machine;
+	}
+
+	/**
+	 * Handles the batch of binary requests.
+	 */
+	@Benchmark
+	public int binaryInMemory()
+	{
+		binaryBatch.clear();
+		responses.clear();
+		return BinaryProtocol.handleRequests(machine, binaryBatch, responses);
+	}
+
+	/**
+	 * Sends the batch of text commands to the text server, waiting for each response before sending the next command.
+	 */
+	@Benchmark
+	public int textOverSocket() throws IOException
+	{
+		int length = 0;
+		for (String command : textCommands)
+		{
+			textOutput.print(command);
+			textOutput.print('\n');
+			textOutput.flush();
+			length += readTextResponse();
+		}
+		return length;
+	}
+
+	/**
+	 * Sends the batch of binary requests to the binary server in one write, and reads all of the responses.
+	 */
+	@Benchmark
+	public int binaryOverSocket() throws IOException
+	{
+		binarySocket.getOutputStream().write(binaryBatch.array());
+		binaryInput.readFully(responses.array());
+		return BinaryProtocol.getTag(responses, responses.capacity() - BinaryProtocol.RECORD_SIZE);
+	}
+
+	/**
+	 * Reads one response from the text server, which ends with an empty line.
+	 * @return The number of characters in the response.
+	 */
+	private int readTextResponse() throws IOException
+	{
+		int length = 0;
+		String line;
+		while ((line = textInput.readLine()) != null && line.length() > 0)
+		{
+			length += line.length();
+		}
+		return length;
+	}
+}
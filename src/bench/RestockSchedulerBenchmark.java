@@ -0,0 +1,81 @@
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javamatic.*;
+
+/**
+ * This class has JMH benchmarks for the restock scheduler over a fleet of machines with synthetic menus,
+ * where a random drink has been bought from each machine a few times. The horizon is 0, so every machine
+ * is evaluated each time, and only machines that already have a drink blocked get a plan.
+ * The fleet runs in a 1 GB heap: java -jar target/benchmarks.jar RestockSchedulerBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx1g" })
+@State(Scope.Benchmark)
+public class RestockSchedulerBenchmark
+{
+	@Param({ "100000" })
+	public int machineCount;
+
+	@Param({ "10", "100" })
+	public int menuSize;
+
+	private Fleet fleet;
+	private RestockScheduler scheduler;
+
+	/**
+	 * Builds the fleet with a scheduler that keeps 4 buckets of a second, and buys some drinks from each machine.
+	 */
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		Catalog catalog = new Catalog(SyntheticMenus.populateMachine(new Machine(), menuSize, 42));
+		fleet = new Fleet(catalog, machineCount);
+		scheduler = RestockScheduler.attach(fleet, 1000, 4, 0, plan -> { });
+		Random random = new Random(42);
+		for (int machine = 0; machine < machineCount; machine++)
+		{
+			for (int i = 0; i < 5; i++)
+			{
+				fleet.buyDrink(machine, 1 + random.nextInt(menuSize));
+			}
+		}
+	}
+
+	/**
+	 * Detaches the scheduler from the fleet.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		scheduler.close();
+	}
+
+	/**
+	 * Predicts when every ingredient of every machine will block a drink.
+	 */
+	@Benchmark
+	public int evaluate()
+	{
+		return scheduler.evaluate();
+	}
+}
@@ -0,0 +1,101 @@
+package bench;
+
+import java.util.Random;
+
+import javamatic.*;
+
+/**
+ * This class builds machines with synthetic menus of a given size for the benchmarks.
+ */
+public class SyntheticMenus
+{
+	/**
+	 * Adds the given number of ingredients and drinks to a machine, and then restocks it.
+	 * Each drink uses between one and four random ingredients, so drinks share ingredients
+	 * the same way that the default menu's drinks share Espresso and Sugar.
+	 * @param machine The machine to add the ingredients and drinks to.
+	 * @param size The number of ingredients, and also the number of drinks.
+	 * @param seed The seed for choosing the drinks' recipes, so that every run builds the same menu.
+	 * @return The given machine.
+	 */
+	public static <T extends Machine> T populateMachine(T machine, int size, long seed)
+	{
+		Random random = new Random(seed);
+		Ingredient[] ingredients = new Ingredient[size];
+		for (int i = 0; i < size; i++)
+		{
+			ingredients[i] = new Ingredient(String.format("Ingredient %05d", i), 0.05f * (1 + random.nextInt(40)));
+			machine.addIngredient(ingredients[i]);
+		}
+
+		for (int i = 0; i < size; i++)
+		{
+			Drink drink = new Drink(String.format("Drink %05d", i));
+			int ingredientCount = 1 + random.nextInt(4);
+			for (int j = 0; j < ingredientCount; j++)
+			{
+				drink.addIngredient(ingredients[random.nextInt(size)], 1 + random.nextInt(3));
+			}
+			machine.addDrink(drink);
+		}
+
+		machine.restockInventory();
+		return machine;
+	}
+
+	/**
+	 * Builds a script of commands for the JavaMatic application, which buys random drinks and
+	 * restocks the machine every so often, and quits at the end.
+	 * @param drinkCount The number of drinks in the machine's menu.
+	 * @param commandCount The number of commands in the script, not including the final quit.
+	 * @param seed The seed for choosing the commands, so that every run uses the same script.
+	 * @return The script of commands, with one command on each line.
+	 */
+	public static String createCommandScript(int drinkCount, int commandCount, long seed)
+	{
+		Random random = new Random(seed);
+		StringBuilder script = new StringBuilder();
+		for (int i = 0; i < commandCount; i++)
+		{
+			if (i % 10 == 9)
+			{
+				script.append("r\n");
+			}
+			else
+			{
+				script.append(1 + random.nextInt(drinkCount)).append('\n');
+			}
+		}
+		script.append("q\n");
+		return script.toString();
+	}
+
+	/**
+	 * Builds a text catalog for the catalog loader, where each drink uses between one and four random
+	 * ingredients, the same way as {@link #populateMachine(Machine, int, long)}.
+	 * @param ingredientCount The number of ingredients in the catalog.
+	 * @param drinkCount The number of drinks in the catalog.
+	 * @param seed The seed for choosing the drinks' recipes, so that every run builds the same catalog.
+	 * @return The text catalog.
+	 */
+	public static String createCatalog(int ingredientCount, int drinkCount, long seed)
+	{
+		Random random = new Random(seed);
+		StringBuilder catalog = new StringBuilder();
+		for (int i = 0; i < ingredientCount; i++)
+		{
+			catalog.append(String.format("ingredient,Ingredient %05d,%.2f\n", i, 0.05f * (1 + random.nextInt(40))));
+		}
+		for (int i = 0; i < drinkCount; i++)
+		{
+			catalog.append(String.format("drink,Drink %05d", i));
+			int recipeSize = 1 + random.nextInt(4);
+			for (int j = 0; j < recipeSize; j++)
+			{
+				catalog.append(String.format(",Ingredient %05d,%d", random.nextInt(ingredientCount), 1 + random.nextInt(3)));
+			}
+			catalog.append('\n');
+		}
+		return catalog.toString();
+	}
+}
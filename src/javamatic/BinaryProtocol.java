@@ -0,0 +1,148 @@
+package javamatic;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class handles a compact binary protocol for JavaMatic machines, for order routers and other programs
+ * rather than people. Every request and every response is an 8 byte record in network byte order, so a client
+ * can pipeline many requests in one write and read all of their responses in one read, and requests are
+ * handled straight from the buffer they were received in, without parsing any text or creating any objects.
+ * <p>
+ * A request is a 1 byte command, a byte that is ignored, a 2 byte tag that the client chooses, and a 4 byte
+ * argument. A response is a 1 byte status, the request's command, the request's tag, and a 4 byte value.
+ * Responses are sent in the same order as their requests.
+ * <ul>
+ * <li>{@link #BUY} buys the drink whose drink number is the argument. The value is 0.</li>
+ * <li>{@link #RESTOCK} restocks the machine's inventory. The argument and the value are 0.</li>
+ * <li>{@link #QUERY} looks up the drink whose drink number is the argument. The value is the number of servings
+ * of the drink that the machine has enough ingredients for, read from the drink's stock without taking a snapshot.</li>
+ * </ul>
+ */
+public final class BinaryProtocol
+{
+	public static final int RECORD_SIZE = 8;
+
+	public static final byte BUY = 1;
+	public static final byte RESTOCK = 2;
+	public static final byte QUERY = 3;
+
+	public static final byte OK = 0;
+	public static final byte OUT_OF_STOCK = 1;
+	public static final byte INVALID_SELECTION = 2;
+	public static final byte UNKNOWN_COMMAND = 3;
+
+	/**
+	 * This class only has static methods.
+	 */
+	private BinaryProtocol()
+	{
+	}
+
+	/**
+	 * Writes a request to a buffer.
+	 * @param buffer The buffer to write the request to, at its position.
+	 * @param command The request's command.
+	 * @param tag The request's tag, which is sent back with its response.
+	 * @param argument The request's argument.
+	 */
+	public static void putRequest(ByteBuffer buffer, byte command, short tag, int argument)
+	{
+		buffer.put(command).put((byte) 0).putShort(tag).putInt(argument);
+	}
+
+	/**
+	 * Handles every complete request in a buffer, writing their responses to another buffer. A request that
+	 * has only partly been received is left in the buffer, to be handled once the rest of it has arrived.
+	 * @param machine The JavaMatic machine.
+	 * @param requests The buffer to read the requests from, between its position and its limit. Its position
+	 * is moved past the requests that are handled.
+	 * @param responses The buffer to write the responses to, at its position. Requests are only handled while
+	 * there is room in it for their responses.
+	 * @return The number of requests that were handled.
+	 */
+	public static int handleRequests(Machine machine, ByteBuffer requests, ByteBuffer responses)
+	{
+		int count = 0;
+		while (requests.remaining() >= RECORD_SIZE && responses.remaining() >= RECORD_SIZE)
+		{
+			int position = requests.position();
+			byte command = requests.get(position);
+			short tag = requests.getShort(position + 2);
+			int argument = requests.getInt(position + 4);
+			requests.position(position + RECORD_SIZE);
+
+			int value = 0;
+			byte status;
+			if (command == RESTOCK)
+			{
+				machine.restockInventory();
+				status = OK;
+			}
+			else if (command != BUY && command != QUERY)
+			{
+				status = UNKNOWN_COMMAND;
+			}
+			else if (argument < 1 || argument > machine.getNumberOfDrinks())
+			{
+				MachineMetrics metrics = machine.getMetrics();
+				if (metrics != null)
+				{
+					metrics.recordInvalidSelection();
+				}
+				status = INVALID_SELECTION;
+			}
+			else if (command == BUY)
+			{
+				status = machine.buyDrink(argument) ? OK : OUT_OF_STOCK;
+			}
+			else
+			{
+				value = machine.getDrink(argument).getServingsAvailable();
+				status = value > 0 ? OK : OUT_OF_STOCK;
+			}
+			responses.put(status).put(command).putShort(tag).putInt(value);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @param responses The buffer to read the response from.
+	 * @param index The byte index of the response in the buffer.
+	 * @return The response's status.
+	 */
+	public static byte getStatus(ByteBuffer responses, int index)
+	{
+		return responses.get(index);
+	}
+
+	/**
+	 * @param responses The buffer to read the response from.
+	 * @param index The byte index of the response in the buffer.
+	 * @return The command of the request that the response is for.
+	 */
+	public static byte getCommand(ByteBuffer responses, int index)
+	{
+		return responses.get(index + 1);
+	}
+
+	/**
+	 * @param responses The buffer to read the response from.
+	 * @param index The byte index of the response in the buffer.
+	 * @return The tag of the request that the response is for.
+	 */
+	public static short getTag(ByteBuffer responses, int index)
+	{
+		return responses.getShort(index + 2);
+	}
+
+	/**
+	 * @param responses The buffer to read the response from.
+	 * @param index The byte index of the response in the buffer.
+	 * @return The response's value.
+	 */
+	public static int getValue(ByteBuffer responses, int index)
+	{
+		return responses.getInt(index + 4);
+	}
+}
@@ -0,0 +1,33 @@
+package javamatic;
+
+/**
+ * This class describes a piece of rendered output along with the key it was rendered for,
+ * such as a version number or quantity. It is immutable, so it can be shared between threads
+ * and replaced in a single write when the output is rendered again.
+ */
+class CachedOutput
+{
+	final long key;
+	final String text;
+
+	/**
+	 * Constructs a new piece of cached output.
+	 * @param key The key that the output was rendered for.
+	 * @param text The rendered output.
+	 */
+	CachedOutput(long key, String text)
+	{
+		this.key = key;
+		this.text = text;
+	}
+
+	/**
+	 * @param cachedOutput The cached output to check, which may be null.
+	 * @param key The key that the output is needed for.
+	 * @return Whether the cached output exists and was rendered for the given key.
+	 */
+	static boolean matches(CachedOutput cachedOutput, long key)
+	{
+		return cachedOutput != null && cachedOutput.key == key;
+	}
+}
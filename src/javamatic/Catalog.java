@@ -0,0 +1,113 @@
+package javamatic;
+
+import java.util.List;
+
+/**
+ * This class describes an immutable catalog of ingredients and drinks that many machines share,
+ * so that each machine only needs to store the quantity of each ingredient. The drinks' recipes
+ * are compiled once when the catalog is created, and don't change if the drinks change afterwards.
+ */
+public final class Catalog
+{
+	private final Ingredient[] ingredients;
+	private final Drink[] drinks;
+	private final Recipe[] recipes;
+	private final Ingredient[] ingredientsById;
+	private final int inventorySize;
+
+	/**
+	 * Creates a catalog with the same ingredients and drinks as the given machine.
+	 * @param template The JavaMatic machine whose ingredients and drinks are copied.
+	 * @throws IllegalArgumentException If a drink uses an ingredient that isn't in the machine.
+	 */
+	public Catalog(Machine template)
+	{
+		List<Ingredient> templateIngredients = template.getIngredients();
+		this.ingredients = templateIngredients.toArray(new Ingredient[templateIngredients.size()]);
+		this.drinks = new Drink[template.getNumberOfDrinks()];
+		this.recipes = new Recipe[drinks.length];
+		for (int i = 0; i < drinks.length; i++)
+		{
+			drinks[i] = template.getDrink(i + 1);
+			template.checkIngredients(drinks[i]);
+			recipes[i] = drinks[i].getRecipe();
+		}
+
+		int size = 0;
+		for (Ingredient ingredient : ingredients)
+		{
+			size = Math.max(size, ingredient.getId() + 1);
+		}
+		this.inventorySize = size;
+		this.ingredientsById = new Ingredient[size];
+		for (Ingredient ingredient : ingredients)
+		{
+			ingredientsById[ingredient.getId()] = ingredient;
+		}
+	}
+
+	/**
+	 * @return The number of different ingredients in the catalog.
+	 */
+	public int getNumberOfIngredients()
+	{
+		return ingredients.length;
+	}
+
+	/**
+	 * @param index The index of the ingredient, where 0 is the first ingredient when sorted by name.
+	 * @return The ingredient at the given index.
+	 */
+	public Ingredient getIngredient(int index)
+	{
+		return ingredients[index];
+	}
+
+	/**
+	 * @return The number of different drinks in the catalog.
+	 */
+	public int getNumberOfDrinks()
+	{
+		return drinks.length;
+	}
+
+	/**
+	 * @param drinkNumber The number of the drink, where 1 is the first drink that is listed.
+	 * @return The drink with the given drink number.
+	 */
+	public Drink getDrink(int drinkNumber)
+	{
+		return drinks[drinkNumber - 1];
+	}
+
+	/**
+	 * @param drinkNumber The number of the drink, where 1 is the first drink that is listed.
+	 * @return The compiled recipe of the drink with the given drink number.
+	 */
+	Recipe getRecipe(int drinkNumber)
+	{
+		return recipes[drinkNumber - 1];
+	}
+
+	/**
+	 * Checks that an ingredient is in the catalog, so that its id indexes each machine's inventory.
+	 * @param ingredient The ingredient.
+	 * @throws IllegalArgumentException If the ingredient isn't in the catalog.
+	 */
+	void checkIngredient(Ingredient ingredient)
+	{
+		int id = ingredient.getId();
+		if (id < 0 || id >= ingredientsById.length || ingredientsById[id] != ingredient)
+		{
+			throw new IllegalArgumentException(String.format("Ingredient isn't in the catalog: %s", ingredient.getName()));
+		}
+	}
+
+	/**
+	 * @return The number of ingredient ids that each machine's inventory needs room for.
+	 */
+	int getInventorySize()
+	{
+		return inventorySize;
+	}
+}
@@ -0,0 +1,557 @@
+package javamatic;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class loads a machine's ingredients and drinks from a catalog file, instead of the default ones.
+ * A text catalog has one record on each line, with its fields separated by commas, so names can't contain commas:
+ * <pre>
+ * # Comments and empty lines are ignored.
+ * ingredient,Espresso,1.10
+ * drink,Caffe Americano,Espresso,3
+ * </pre>
+ * Each drink record lists pairs of ingredient names and quantities, and every ingredient must be declared
+ * before a drink uses it. A text catalog can be compiled into a binary catalog, which stores the same records
+ * as columns of numbers and indexes instead of lines of separated names, so it is loaded from a memory-mapped
+ * file without parsing or looking up any names.
+ */
+public final class CatalogLoader
+{
+	private static final int BINARY_MAGIC = 0x4A4D4342;
+	private static final int BINARY_VERSION = 1;
+
+	/**
+	 * This class only has static methods.
+	 */
+	private CatalogLoader()
+	{
+	}
+
+	/**
+	 * Adds the ingredients and drinks in the given catalog file to the given machine, and then restocks it.
+	 * The file may be either a text or a binary catalog.
+	 * @param path The path of the catalog file.
+	 * @param machine The machine to add the ingredients and drinks to.
+	 * @return The given machine.
+	 * @throws IOException If the file can't be read or is not a valid catalog.
+	 */
+	public static <T extends Machine> T load(Path path, T machine) throws IOException
+	{
+		byte[] magic = new byte[4];
+		int magicLength;
+		try (InputStream inputStream = Files.newInputStream(path))
+		{
+			magicLength = inputStream.read(magic);
+		}
+		if (magicLength == 4 && ByteBuffer.wrap(magic).order(ByteOrder.LITTLE_ENDIAN).getInt() == BINARY_MAGIC)
+		{
+			return loadBinary(path, machine);
+		}
+		try (InputStream inputStream = Files.newInputStream(path))
+		{
+			return loadText(inputStream, machine);
+		}
+	}
+
+	/**
+	 * Adds the ingredients and drinks in a text catalog to the given machine, and then restocks it.
+	 * The catalog is parsed one line at a time, so it is never held in memory as a whole.
+	 * @param reader The reader of the text catalog.
+	 * @param machine The machine to add the ingredients and drinks to.
+	 * @return The given machine.
+	 * @throws IOException If the catalog can't be read or is not valid.
+	 */
+	public static <T extends Machine> T loadText(Reader reader, T machine) throws IOException
+	{
+		return loadText(new LineReader(reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader)), machine);
+	}
+
+	/**
+	 * Adds the ingredients and drinks in a UTF-8 text catalog to the given machine, and then restocks it.
+	 * The catalog is read in chunks of whole lines, and each chunk is decoded into one string at once,
+	 * which is much faster than decoding it one character at a time through a reader when the program has
+	 * only just started. Bytes that aren't valid UTF-8 are replaced rather than rejected.
+	 * @param inputStream The input stream of the text catalog.
+	 * @param machine The machine to add the ingredients and drinks to.
+	 * @return The given machine.
+	 * @throws IOException If the catalog can't be read or is not valid.
+	 */
+	public static <T extends Machine> T loadText(InputStream inputStream, T machine) throws IOException
+	{
+		return loadText(new LineReader(inputStream), machine);
+	}
+
+	/**
+	 * Adds the ingredients and drinks in a text catalog to the given machine, and then restocks it.
+	 * @param lines The reader of the text catalog's lines.
+	 * @param machine The machine to add the ingredients and drinks to.
+	 * @return The given machine.
+	 * @throws IOException If the catalog can't be read or is not valid.
+	 */
+	private static <T extends Machine> T loadText(LineReader lines, T machine) throws IOException
+	{
+		Map<String, Ingredient> ingredientsByName = new HashMap<String, Ingredient>();
+		List<Ingredient> ingredients = new ArrayList<Ingredient>();
+		List<Drink> drinks = new ArrayList<Drink>();
+		List<String> fields = new ArrayList<String>();
+
+		String line;
+		int lineNumber = 0;
+		while ((line = lines.readLine()) != null)
+		{
+			lineNumber++;
+			if (line.isEmpty() || line.charAt(0) == '#')
+			{
+				continue;
+			}
+			splitFields(line, fields);
+			try
+			{
+				if (fields.get(0).equals("ingredient") && fields.size() == 3)
+				{
+					Ingredient ingredient = new Ingredient(fields.get(1), Float.parseFloat(fields.get(2)));
+					if (ingredientsByName.put(ingredient.getName(), ingredient) != null)
+					{
+						throw new IOException(String.format("Duplicate ingredient on line %d: %s", lineNumber, line));
+					}
+					ingredients.add(ingredient);
+				}
+				else if (fields.get(0).equals("drink") && fields.size() % 2 == 0)
+				{
+					Ingredient[] recipeIngredients = new Ingredient[fields.size() / 2 - 1];
+					int[] recipeQuantities = new int[recipeIngredients.length];
+					int size = 0;
+					for (int i = 2; i < fields.size(); i += 2)
+					{
+						Ingredient ingredient = ingredientsByName.get(fields.get(i));
+						if (ingredient == null)
+						{
+							throw new IOException(String.format("Unknown ingredient on line %d: %s", lineNumber, fields.get(i)));
+						}
+						int j = 0;
+						while (j < size && recipeIngredients[j] != ingredient)
+						{
+							j++;
+						}
+						if (j == size)
+						{
+							recipeIngredients[size++] = ingredient;
+						}
+						recipeQuantities[j] = Integer.parseInt(fields.get(i + 1));
+					}
+					if (size < recipeIngredients.length)
+					{
+						recipeIngredients = Arrays.copyOf(recipeIngredients, size);
+						recipeQuantities = Arrays.copyOf(recipeQuantities, size);
+					}
+					drinks.add(new Drink(fields.get(1), recipeIngredients, recipeQuantities));
+				}
+				else
+				{
+					throw new IOException(String.format("Invalid catalog line %d: %s", lineNumber, line));
+				}
+			}
+			catch (NumberFormatException e)
+			{
+				throw new IOException(String.format("Invalid number on line %d: %s", lineNumber, line), e);
+			}
+		}
+
+		machine.addIngredients(ingredients);
+		machine.addDrinks(drinks);
+		machine.restockInventory();
+		return machine;
+	}
+
+	/**
+	 * Adds the ingredients and drinks in a binary catalog to the given machine, and then restocks it.
+	 * The file is mapped into memory, and each of its columns is copied out in bulk, so nothing is
+	 * parsed and no objects are created for it apart from the ingredients, drinks, and recipes themselves.
+	 * Each drink's recipe arrays are copied straight out of the recipe columns, rather than adding its ingredients one at a time.
+	 * Every name is a substring of one string that is decoded from the names column.
+	 * @param path The path of the binary catalog.
+	 * @param machine The machine to add the ingredients and drinks to.
+	 * @return The given machine.
+	 * @throws IOException If the file can't be read or is not a valid binary catalog.
+	 */
+	public static <T extends Machine> T loadBinary(Path path, T machine) throws IOException
+	{
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		long[] costs;
+		int[] recipeStarts;
+		int[] ingredientIndexes;
+		int[] quantities;
+		int[] nameStarts;
+		String names;
+		try
+		{
+			if (buffer.getInt() != BINARY_MAGIC || buffer.getInt() != BINARY_VERSION)
+			{
+				throw new IOException(String.format("Not a binary catalog: %s", path));
+			}
+			costs = new long[buffer.getInt()];
+			recipeStarts = new int[buffer.getInt() + 1];
+			ingredientIndexes = new int[buffer.getInt()];
+			quantities = new int[ingredientIndexes.length];
+			nameStarts = new int[costs.length + recipeStarts.length];
+
+			buffer.asLongBuffer().get(costs);
+			buffer.position(buffer.position() + costs.length * Long.BYTES);
+			readInts(buffer, recipeStarts);
+			readInts(buffer, ingredientIndexes);
+			readInts(buffer, quantities);
+			readInts(buffer, nameStarts);
+			byte[] nameBytes = new byte[buffer.remaining()];
+			buffer.get(nameBytes);
+			names = new String(nameBytes, StandardCharsets.UTF_8);
+		}
+		catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e)
+		{
+			throw new IOException(String.format("Invalid binary catalog: %s", path), e);
+		}
+		if (!isValidStarts(recipeStarts, ingredientIndexes.length) || !isValidStarts(nameStarts, names.length()))
+		{
+			throw new IOException(String.format("Invalid binary catalog: %s", path));
+		}
+
+		Ingredient[] ingredients = new Ingredient[costs.length];
+		for (int i = 0; i < ingredients.length; i++)
+		{
+			ingredients[i] = new Ingredient(names.substring(nameStarts[i], nameStarts[i + 1]), 0);
+			ingredients[i].setCostInCents(costs[i]);
+		}
+
+		Drink[] drinks = new Drink[recipeStarts.length - 1];
+		for (int i = 0; i < drinks.length; i++)
+		{
+			int nameIndex = ingredients.length + i;
+			drinks[i] = readDrink(names.substring(nameStarts[nameIndex], nameStarts[nameIndex + 1]),
+					ingredients, ingredientIndexes, quantities, recipeStarts[i], recipeStarts[i + 1]);
+			if (drinks[i] == null)
+			{
+				throw new IOException(String.format("Invalid binary catalog: %s", path));
+			}
+		}
+		machine.addIngredients(Arrays.asList(ingredients));
+		machine.addDrinks(Arrays.asList(drinks));
+		machine.restockInventory();
+		return machine;
+	}
+
+	/**
+	 * Writes the ingredients and drinks of the given machine to a binary catalog. All numbers are little-endian.
+	 * After a header of the magic number, the version, and the numbers of ingredients, drinks, and recipe entries,
+	 * the catalog has these columns:
+	 * <ul>
+	 * <li>The cost of each ingredient in cents, as longs.</li>
+	 * <li>The index of each drink's first recipe entry, and then the number of recipe entries, as ints.</li>
+	 * <li>The index of the ingredient in each recipe entry, as ints. A recipe never has two entries for the same ingredient.</li>
+	 * <li>The quantity in each recipe entry, as ints.</li>
+	 * <li>The index of the first character of each ingredient's name and then of each drink's name,
+	 * and then the number of characters in all the names, as ints.</li>
+	 * <li>All the names, encoded as UTF-8, up to the end of the file.</li>
+	 * </ul>
+	 * @param machine The machine whose ingredients and drinks are written.
+	 * @param path The path of the binary catalog.
+	 * @throws IOException If the file can't be written.
+	 */
+	public static void writeBinary(Machine machine, Path path) throws IOException
+	{
+		List<Ingredient> ingredients = machine.getIngredients();
+		int drinkCount = machine.getNumberOfDrinks();
+		int[] indexesById = new int[machine.getInventorySize()];
+		StringBuilder names = new StringBuilder();
+		int[] nameStarts = new int[ingredients.size() + drinkCount + 1];
+		for (int i = 0; i < ingredients.size(); i++)
+		{
+			indexesById[ingredients.get(i).getId()] = i;
+			nameStarts[i] = names.length();
+			names.append(ingredients.get(i).getName());
+		}
+		int[] recipeStarts = new int[drinkCount + 1];
+		for (int drinkNumber = 1; drinkNumber <= drinkCount; drinkNumber++)
+		{
+			Drink drink = machine.getDrink(drinkNumber);
+			machine.checkIngredients(drink);
+			recipeStarts[drinkNumber] = recipeStarts[drinkNumber - 1] + drink.getRecipe().size();
+			nameStarts[ingredients.size() + drinkNumber - 1] = names.length();
+			names.append(drink.getName());
+		}
+		nameStarts[nameStarts.length - 1] = names.length();
+		byte[] nameBytes = names.toString().getBytes(StandardCharsets.UTF_8);
+
+		int entryCount = recipeStarts[drinkCount];
+		int size = 5 * Integer.BYTES + ingredients.size() * Long.BYTES
+				+ (recipeStarts.length + 2 * entryCount + nameStarts.length) * Integer.BYTES + nameBytes.length;
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(BINARY_MAGIC).putInt(BINARY_VERSION).putInt(ingredients.size()).putInt(drinkCount).putInt(entryCount);
+		for (Ingredient ingredient : ingredients)
+		{
+			buffer.putLong(ingredient.getCostInCents());
+		}
+		for (int recipeStart : recipeStarts)
+		{
+			buffer.putInt(recipeStart);
+		}
+		for (int drinkNumber = 1; drinkNumber <= drinkCount; drinkNumber++)
+		{
+			Recipe recipe = machine.getDrink(drinkNumber).getRecipe();
+			for (int i = 0; i < recipe.size(); i++)
+			{
+				buffer.putInt(indexesById[recipe.ingredientIds[i]]);
+			}
+		}
+		for (int drinkNumber = 1; drinkNumber <= drinkCount; drinkNumber++)
+		{
+			Recipe recipe = machine.getDrink(drinkNumber).getRecipe();
+			for (int i = 0; i < recipe.size(); i++)
+			{
+				buffer.putInt(recipe.quantities[i]);
+			}
+		}
+		for (int nameStart : nameStarts)
+		{
+			buffer.putInt(nameStart);
+		}
+		buffer.put(nameBytes);
+		Files.write(path, buffer.array());
+	}
+
+	/**
+	 * Compiles a text catalog into a binary catalog.
+	 * @param textPath The path of the text catalog.
+	 * @param binaryPath The path of the binary catalog.
+	 * @throws IOException If either file can't be read or written, or the text catalog is not valid.
+	 */
+	public static void compile(Path textPath, Path binaryPath) throws IOException
+	{
+		try (Reader reader = Files.newBufferedReader(textPath, StandardCharsets.UTF_8))
+		{
+			writeBinary(loadText(reader, new Machine()), binaryPath);
+		}
+	}
+
+	/**
+	 * Creates a drink from its entries in the recipe columns of a binary catalog, copying them straight into
+	 * the arrays that the drink keeps, and checks the entries as it goes. This is a method of its own rather
+	 * than the body of a loop, so that it is compiled after the first few hundred drinks instead of being
+	 * interpreted for the whole of a large catalog.
+	 * @param name The name of the drink.
+	 * @param ingredients The catalog's ingredients.
+	 * @param ingredientIndexes The index of the ingredient in each recipe entry.
+	 * @param quantities The quantity in each recipe entry.
+	 * @param start The index of the drink's first recipe entry.
+	 * @param end The index after the drink's last recipe entry.
+	 * @return The drink, or null if an entry isn't for one of the catalog's ingredients or an ingredient has two entries.
+	 */
+	private static Drink readDrink(String name, Ingredient[] ingredients, int[] ingredientIndexes, int[] quantities, int start, int end)
+	{
+		Ingredient[] recipeIngredients = new Ingredient[end - start];
+		for (int i = 0; i < recipeIngredients.length; i++)
+		{
+			int index = ingredientIndexes[start + i];
+			if (index < 0 || index >= ingredients.length)
+			{
+				return null;
+			}
+			recipeIngredients[i] = ingredients[index];
+			for (int j = 0; j < i; j++)
+			{
+				if (recipeIngredients[j] == recipeIngredients[i])
+				{
+					return null;
+				}
+			}
+		}
+		return new Drink(name, recipeIngredients, Arrays.copyOfRange(quantities, start, end));
+	}
+
+	/**
+	 * Splits a line of a text catalog into its fields.
+	 * @param line The line to split.
+	 * @param fields The list that the fields are put in, replacing any fields that it had.
+	 */
+	private static void splitFields(String line, List<String> fields)
+	{
+		fields.clear();
+		int start = 0;
+		int end;
+		while ((end = line.indexOf(',', start)) >= 0)
+		{
+			fields.add(line.substring(start, end).trim());
+			start = end + 1;
+		}
+		fields.add(line.substring(start).trim());
+	}
+
+	/**
+	 * Copies a column of ints out of a binary catalog, and moves the catalog's position past it.
+	 * @param buffer The binary catalog, positioned at the column.
+	 * @param values The array to copy the column into, which has the column's length.
+	 */
+	private static void readInts(ByteBuffer buffer, int[] values)
+	{
+		buffer.asIntBuffer().get(values);
+		buffer.position(buffer.position() + values.length * Integer.BYTES);
+	}
+
+	/**
+	 * @param starts The start index of each item in a column, followed by the column's length.
+	 * @param length The length of the column.
+	 * @return Whether the items start at 0, never end before they start, and end at the column's length.
+	 */
+	private static boolean isValidStarts(int[] starts, int length)
+	{
+		if (starts[0] != 0 || starts[starts.length - 1] != length)
+		{
+			return false;
+		}
+		for (int i = 1; i < starts.length; i++)
+		{
+			if (starts[i] < starts[i - 1])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * This class reads the lines of a text catalog, either from a reader or straight from UTF-8 bytes.
+	 * Lines end with a line feed, or a carriage return and a line feed.
+	 */
+	private static final class LineReader
+	{
+		private static final int CHUNK_SIZE = 64 * 1024;
+
+		private final BufferedReader reader;
+		private final InputStream inputStream;
+		private byte[] bytes;
+		private int byteCount;
+		private String chunk;
+		private int chunkPosition;
+		private boolean ended;
+
+		/**
+		 * Constructs a line reader that reads from a reader.
+		 * @param reader The reader.
+		 */
+		private LineReader(BufferedReader reader)
+		{
+			this.reader = reader;
+			this.inputStream = null;
+		}
+
+		/**
+		 * Constructs a line reader that reads UTF-8 bytes from an input stream.
+		 * @param inputStream The input stream.
+		 */
+		private LineReader(InputStream inputStream)
+		{
+			this.reader = null;
+			this.inputStream = inputStream;
+			this.bytes = new byte[CHUNK_SIZE];
+		}
+
+		/**
+		 * @return The next line, without its line ending, or null if there are no more lines.
+		 * @throws IOException If the catalog can't be read.
+		 */
+		private String readLine() throws IOException
+		{
+			if (reader != null)
+			{
+				return reader.readLine();
+			}
+			while (true)
+			{
+				if (chunk != null)
+				{
+					int end = chunk.indexOf('\n', chunkPosition);
+					if (end >= 0 || chunkPosition < chunk.length())
+					{
+						if (end < 0)
+						{
+							end = chunk.length();
+						}
+						int lineEnd = end > chunkPosition && chunk.charAt(end - 1) == '\r' ? end - 1 : end;
+						String line = chunk.substring(chunkPosition, lineEnd);
+						chunkPosition = end + 1;
+						return line;
+					}
+					chunk = null;
+				}
+				if (ended)
+				{
+					return null;
+				}
+				readChunk();
+			}
+		}
+
+		/**
+		 * Reads the next chunk of whole lines and decodes it. A line that is longer than the buffer makes the
+		 * buffer grow, and the bytes after the last line feed are kept for the next chunk, or are the last
+		 * chunk at the end of the stream.
+		 * @throws IOException If the catalog can't be read.
+		 */
+		private void readChunk() throws IOException
+		{
+			int count;
+			while ((count = inputStream.read(bytes, byteCount, bytes.length - byteCount)) >= 0)
+			{
+				int end = byteCount + count;
+				int lineEnd = end;
+				while (lineEnd > byteCount && bytes[lineEnd - 1] != '\n')
+				{
+					lineEnd--;
+				}
+				byteCount = end;
+				if (lineEnd > 0 && bytes[lineEnd - 1] == '\n')
+				{
+					setChunk(lineEnd);
+					return;
+				}
+				if (byteCount == bytes.length)
+				{
+					bytes = Arrays.copyOf(bytes, bytes.length * 2);
+				}
+			}
+			ended = true;
+			setChunk(byteCount);
+		}
+
+		/**
+		 * Decodes the first bytes of the buffer into the chunk, and moves the rest to the start of the buffer.
+		 * @param length The number of bytes to decode.
+		 */
+		private void setChunk(int length)
+		{
+			chunk = new String(bytes, 0, length, StandardCharsets.UTF_8);
+			chunkPosition = 0;
+			System.arraycopy(bytes, length, bytes, 0, byteCount - length);
+			byteCount -= length;
+		}
+	}
+}
@@ -0,0 +1,301 @@
+package javamatic;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class replays a log of commands through a JavaMatic machine without any user interaction.
+ * It understands the same commands as the interactive application, but it only outputs the result
+ * of each command and a final summary, instead of the whole inventory and menu after every command.
+ * Commands are parsed straight from the input bytes, so replaying a command allocates nothing.
+ */
+public class CommandReplay
+{
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final long MAPPED_REGION_SIZE = 1 << 26;
+	private static final byte[] INVALID_SELECTION = toBytes("Invalid selection: ");
+
+	private Machine machine;
+	private OutputStream outputStream;
+	private byte[][] dispensingLines;
+	private byte[][] outOfStockLines;
+	private byte[] line;
+	private int lineLength;
+	private boolean quit;
+
+	private long commandCount;
+	private long dispensedCount;
+	private long outOfStockCount;
+	private long invalidCount;
+	private long restockCount;
+
+	/**
+	 * Constructs a new replay for the given machine. The machine's drinks should all be added
+	 * before the replay is constructed.
+	 * @param machine The JavaMatic machine to send the commands to.
+	 * @param outputStream The stream to send the results of the commands to.
+	 */
+	public CommandReplay(Machine machine, OutputStream outputStream)
+	{
+		this.machine = machine;
+		this.outputStream = new BufferedOutputStream(outputStream, BUFFER_SIZE);
+		this.line = new byte[64];
+		this.lineLength = 0;
+		this.quit = false;
+
+		int drinkCount = machine.getNumberOfDrinks();
+		this.dispensingLines = new byte[drinkCount + 1][];
+		this.outOfStockLines = new byte[drinkCount + 1][];
+		for (int drinkNumber = 1; drinkNumber <= drinkCount; drinkNumber++)
+		{
+			String drinkName = machine.getDrinkName(drinkNumber);
+			dispensingLines[drinkNumber] = toBytes(String.format("Dispensing: %s\n", drinkName));
+			outOfStockLines[drinkNumber] = toBytes(String.format("Out of stock: %s\n", drinkName));
+		}
+	}
+
+	/**
+	 * Replays the commands in the given file, mapping the file into memory a region at a time,
+	 * and then outputs the summary.
+	 * @param path The path of the file that contains the commands, one on each line.
+	 * @throws IOException If the file can't be read or the output can't be written.
+	 */
+	public void replay(Path path) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			for (long position = 0; position < size && !quit; position += MAPPED_REGION_SIZE)
+			{
+				long regionSize = Math.min(MAPPED_REGION_SIZE, size - position);
+				processCommands(channel.map(FileChannel.MapMode.READ_ONLY, position, regionSize));
+			}
+		}
+		finish();
+	}
+
+	/**
+	 * Replays the commands from the given stream, reading it through a buffer, and then outputs the summary.
+	 * @param inputStream The stream that contains the commands, one on each line.
+	 * @throws IOException If the stream can't be read or the output can't be written.
+	 */
+	public void replay(InputStream inputStream) throws IOException
+	{
+		ReadableByteChannel channel = Channels.newChannel(inputStream);
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		while (!quit && channel.read(buffer) >= 0)
+		{
+			buffer.flip();
+			processCommands(buffer);
+			buffer.clear();
+		}
+		finish();
+	}
+
+	/**
+	 * @return The number of commands that were replayed, not including the quit command.
+	 */
+	public long getCommandCount()
+	{
+		return commandCount;
+	}
+
+	/**
+	 * @return The number of drinks that were dispensed.
+	 */
+	public long getDispensedCount()
+	{
+		return dispensedCount;
+	}
+
+	/**
+	 * @return The number of drinks that could not be dispensed because they were out of stock.
+	 */
+	public long getOutOfStockCount()
+	{
+		return outOfStockCount;
+	}
+
+	/**
+	 * @return The number of commands that were not valid selections.
+	 */
+	public long getInvalidCount()
+	{
+		return invalidCount;
+	}
+
+	/**
+	 * @return The number of times the machine was restocked.
+	 */
+	public long getRestockCount()
+	{
+		return restockCount;
+	}
+
+	/**
+	 * Splits the given bytes into lines, running the command on each complete line. A line that
+	 * continues past the end of the bytes is kept until the rest of it is processed.
+	 * @param buffer The bytes to process.
+	 * @throws IOException If the output can't be written.
+	 */
+	private void processCommands(ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining() && !quit)
+		{
+			byte b = buffer.get();
+			if (b == '\n')
+			{
+				endLine();
+			}
+			else
+			{
+				if (lineLength == line.length)
+				{
+					byte[] newLine = new byte[line.length * 2];
+					System.arraycopy(line, 0, newLine, 0, lineLength);
+					line = newLine;
+				}
+				line[lineLength++] = b;
+			}
+		}
+	}
+
+	/**
+	 * Runs the command on the current line, ignoring empty lines and carriage returns.
+	 * @throws IOException If the output can't be written.
+	 */
+	private void endLine() throws IOException
+	{
+		if (lineLength > 0 && line[lineLength - 1] == '\r')
+		{
+			lineLength--;
+		}
+		if (lineLength > 0)
+		{
+			runCommand();
+		}
+		lineLength = 0;
+	}
+
+	/**
+	 * Runs the command on the current line.
+	 * The "r" command restocks the machine's inventory.
+	 * The "q" command stops the replay.
+	 * A number that corresponds to a drink buys that drink.
+	 * @throws IOException If the output can't be written.
+	 */
+	private void runCommand() throws IOException
+	{
+		if (lineLength == 1 && (line[0] | 0x20) == 'r')
+		{
+			machine.restockInventory();
+			restockCount++;
+		}
+		else if (lineLength == 1 && (line[0] | 0x20) == 'q')
+		{
+			quit = true;
+			return;
+		}
+		else
+		{
+			int drinkSelection = parseDrinkSelection();
+			if (drinkSelection < 0)
+			{
+				outputStream.write(INVALID_SELECTION);
+				outputStream.write(line, 0, lineLength);
+				outputStream.write('\n');
+				invalidCount++;
+				MachineMetrics metrics = machine.getMetrics();
+				if (metrics != null)
+				{
+					metrics.recordInvalidSelection();
+				}
+			}
+			else if (machine.buyDrink(drinkSelection))
+			{
+				outputStream.write(dispensingLines[drinkSelection]);
+				dispensedCount++;
+			}
+			else
+			{
+				outputStream.write(outOfStockLines[drinkSelection]);
+				outOfStockCount++;
+			}
+		}
+		commandCount++;
+	}
+
+	/**
+	 * Parses the current line as a drink number, accepting the same numbers as {@link Integer#parseInt(String)}.
+	 * @return The drink number, or -1 if the line is not a number between 1 and the total number of drinks.
+	 */
+	private int parseDrinkSelection()
+	{
+		int start = 0;
+		boolean negative = false;
+		if (line[0] == '+' || line[0] == '-')
+		{
+			negative = line[0] == '-';
+			start = 1;
+		}
+		if (start == lineLength)
+		{
+			return -1;
+		}
+
+		int drinkCount = machine.getNumberOfDrinks();
+		long value = 0;
+		for (int i = start; i < lineLength; i++)
+		{
+			int digit = line[i] - '0';
+			if (digit < 0 || digit > 9)
+			{
+				return -1;
+			}
+			value = Math.min(value * 10 + digit, Integer.MAX_VALUE + 1L);
+		}
+		if (negative && value > 0)
+		{
+			return -1;
+		}
+		if (value < 1 || value > drinkCount)
+		{
+			return -1;
+		}
+		return (int) value;
+	}
+
+	/**
+	 * Runs the command on the last line if it doesn't end with a newline, and then outputs the summary.
+	 * @throws IOException If the output can't be written.
+	 */
+	private void finish() throws IOException
+	{
+		if (!quit)
+		{
+			endLine();
+		}
+		String summary = String.format("Summary: %d commands, %d dispensed, %d out of stock, %d invalid, %d restocks\n",
+				commandCount, dispensedCount, outOfStockCount, invalidCount, restockCount);
+		outputStream.write(toBytes(summary));
+		outputStream.flush();
+	}
+
+	/**
+	 * @param text The text to convert.
+	 * @return The text encoded as UTF-8.
+	 */
+	private static byte[] toBytes(String text)
+	{
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+}
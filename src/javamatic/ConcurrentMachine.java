@@ -0,0 +1,337 @@
+package javamatic;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class describes a JavaMatic machine that can be shared between many threads.
+ * The inventory is held in atomic counters indexed by ingredient id, and buying a drink
+ * reserves every ingredient of the drink's recipe all-or-nothing using compare-and-set,
+ * so a drink is never dispensed without enough ingredients. Buying a drink takes no lock, except while a
+ * snapshot that couldn't be copied without one is being copied: readers usually copy the quantities
+ * optimistically and try again if a change was under way, but if changes never stop long enough for that,
+ * the reader holds new changes off until the quantities are copied, and purchases that start in that time wait
+ * for it. Ingredients and drinks should be added before the machine is shared between threads.
+ */
+public class ConcurrentMachine extends Machine
+{
+	private AtomicIntegerArray quantities;
+	private LongAdder version;
+	private LongAdder writesStarted;
+	private LongAdder writesFinished;
+	private final ReentrantLock exclusiveReadLock;
+	private volatile boolean readingExclusively;
+
+	/**
+	 * Constructs a new concurrent machine.
+	 */
+	public ConcurrentMachine()
+	{
+		this.quantities = new AtomicIntegerArray(0);
+		this.version = new LongAdder();
+		this.writesStarted = new LongAdder();
+		this.writesFinished = new LongAdder();
+		this.exclusiveReadLock = new ReentrantLock();
+		this.readingExclusively = false;
+	}
+
+	/* (non-Javadoc)
+	 * @see javamatic.Machine#dispenseDrink(int)
+	 */
+	@Override
+	protected boolean dispenseDrink(int drinkNumber)
+	{
+		Recipe recipe = getDrink(drinkNumber).getRecipe();
+		beginWrite();
+		boolean reserved;
+		try
+		{
+			reserved = reserveIngredients(recipe);
+		}
+		finally
+		{
+			endWrite();
+		}
+		if (reserved)
+		{
+			incrementVersion();
+			updateDrinkStocks(recipe);
+			return true;
+		}
+		return false;
+	}
+
+	/* (non-Javadoc)
+	 * @see javamatic.Machine#getChangeCount()
+	 */
+	@Override
+	protected long getChangeCount()
+	{
+		return version.sum();
+	}
+
+	/**
+	 * The version is striped across cells, so threads buying drinks at the same time
+	 * don't contend on a single counter.
+	 */
+	@Override
+	protected void incrementVersion()
+	{
+		version.increment();
+	}
+
+	/**
+	 * Changes are counted when they start and when they finish, each in cells that are striped
+	 * across threads, so marking them doesn't make threads buying drinks contend. A change that starts
+	 * while a read is holding changes off is counted as finished straight away, and started again once
+	 * the read is done.
+	 */
+	@Override
+	protected void beginWrite()
+	{
+		writesStarted.increment();
+		while (readingExclusively)
+		{
+			writesFinished.increment();
+			exclusiveReadLock.lock();
+			exclusiveReadLock.unlock();
+			writesStarted.increment();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see javamatic.Machine#endWrite()
+	 */
+	@Override
+	protected void endWrite()
+	{
+		writesFinished.increment();
+	}
+
+	/**
+	 * The finished changes are counted before the started ones, and both counts only grow, so if they are
+	 * the same, no change was under way at the moment the started ones were counted, and the stamp is that count.
+	 * Otherwise the stamp is -1, which never validates.
+	 */
+	@Override
+	protected long beginRead()
+	{
+		long finished = writesFinished.sum();
+		long started = writesStarted.sum();
+		return started == finished ? started : -1;
+	}
+
+	/**
+	 * The read is valid if no change has started since the stamp was taken, when none was under way.
+	 */
+	@Override
+	protected boolean validateRead(long stamp)
+	{
+		return stamp >= 0 && writesStarted.sum() == stamp;
+	}
+
+	/**
+	 * Only one exclusive read runs at a time. Once the read is marked, every change that starts sees the mark
+	 * and waits for the read's lock, so the read only waits until the started and finished changes match.
+	 */
+	@Override
+	protected void beginExclusiveRead()
+	{
+		exclusiveReadLock.lock();
+		readingExclusively = true;
+		while (writesFinished.sum() != writesStarted.sum())
+		{
+			Thread.yield();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see javamatic.Machine#endExclusiveRead()
+	 */
+	@Override
+	protected void endExclusiveRead()
+	{
+		readingExclusively = false;
+		exclusiveReadLock.unlock();
+	}
+
+	/* (non-Javadoc)
+	 * @see javamatic.Machine#getInventorySize()
+	 */
+	@Override
+	protected int getInventorySize()
+	{
+		return quantities.length();
+	}
+
+	/* (non-Javadoc)
+	 * @see javamatic.Machine#resizeInventory(int)
+	 */
+	@Override
+	protected void resizeInventory(int size)
+	{
+		AtomicIntegerArray newQuantities = new AtomicIntegerArray(size);
+		for (int id = 0; id < quantities.length(); id++)
+		{
+			newQuantities.set(id, quantities.get(id));
+		}
+		quantities = newQuantities;
+	}
+
+	/* (non-Javadoc)
+	 * @see javamatic.Machine#getQuantity(int)
+	 */
+	@Override
+	protected int getQuantity(int ingredientId)
+	{
+		return quantities.get(ingredientId);
+	}
+
+	/* (non-Javadoc)
+	 * @see javamatic.Machine#setQuantity(int, int)
+	 */
+	@Override
+	protected void setQuantity(int ingredientId, int quantity)
+	{
+		quantities.set(ingredientId, quantity);
+	}
+
+	/**
+	 * The quantity is added with compare-and-set, so drinks that are bought at the same time are never lost.
+	 */
+	@Override
+	protected void addQuantity(int ingredientId, int amount, int capacity)
+	{
+		while (true)
+		{
+			int quantity = quantities.get(ingredientId);
+			int newQuantity = Math.max(quantity, (int) Math.min(capacity, (long) quantity + amount));
+			if (newQuantity == quantity || quantities.compareAndSet(ingredientId, quantity, newQuantity))
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Atomically removes the ingredients in the given recipe from the inventory. Either every
+	 * ingredient is removed, or, if any ingredient runs out, none of them are. Every quantity is checked
+	 * before any is removed, so a drink that is out of stock never takes ingredients that other purchases
+	 * would then see as missing. If an ingredient runs out after the check, the ingredients that were removed
+	 * are returned and the quantities are checked again, so the purchase only fails on a shortage that the check
+	 * sees. The recipe's ingredients are sorted by id, so every thread reserves them in the same order.
+	 * @param recipe The recipe of the drink being bought.
+	 * @return Whether the ingredients were removed from the inventory.
+	 */
+	protected boolean reserveIngredients(Recipe recipe)
+	{
+		while (true)
+		{
+			for (int i = 0; i < recipe.size(); i++)
+			{
+				if (recipe.quantities[i] > quantities.get(recipe.ingredientIds[i]))
+				{
+					return false;
+				}
+			}
+			int reserved = 0;
+			while (reserved < recipe.size() && takeIngredient(recipe.ingredientIds[reserved], recipe.quantities[reserved]))
+			{
+				reserved++;
+			}
+			if (reserved == recipe.size())
+			{
+				return true;
+			}
+			releaseIngredients(recipe, reserved);
+		}
+	}
+
+	/**
+	 * Atomically removes the given quantity of each ingredient from the inventory, in order of
+	 * ingredient id. Either every ingredient is removed, or, if any ingredient runs out, none of them are.
+	 * As when a drink is bought, every quantity is checked before any is removed, and the check is repeated
+	 * if an ingredient runs out after it, so the order only fails on a shortage that the check sees.
+	 */
+	@Override
+	protected boolean removeIngredients(long[] demand)
+	{
+		do
+		{
+			for (int id = 0; id < demand.length; id++)
+			{
+				if (demand[id] > quantities.get(id))
+				{
+					return false;
+				}
+			}
+		}
+		while (!takeIngredients(demand));
+		for (int id = 0; id < demand.length; id++)
+		{
+			if (demand[id] > 0)
+			{
+				updateDrinkStocksAfterRemoval(id);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Removes the given quantity of each ingredient from the inventory, in order of ingredient id,
+	 * returning the ones that were removed if any ingredient runs out.
+	 * @param demand The quantity of each ingredient to remove, indexed by ingredient id.
+	 * @return Whether every ingredient was removed.
+	 */
+	private boolean takeIngredients(long[] demand)
+	{
+		for (int id = 0; id < demand.length; id++)
+		{
+			if (demand[id] > 0 && !takeIngredient(id, (int) demand[id]))
+			{
+				for (int releasedId = 0; releasedId < id; releasedId++)
+				{
+					quantities.addAndGet(releasedId, (int) demand[releasedId]);
+				}
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Removes a quantity of one ingredient from the inventory with compare-and-set.
+	 * @param ingredientId The id of the ingredient to remove.
+	 * @param quantity The quantity of the ingredient to remove.
+	 * @return Whether the ingredient was removed, which is false if there isn't enough of it.
+	 */
+	private boolean takeIngredient(int ingredientId, int quantity)
+	{
+		while (true)
+		{
+			int quantityAvailable = quantities.get(ingredientId);
+			if (quantity > quantityAvailable)
+			{
+				return false;
+			}
+			if (quantities.compareAndSet(ingredientId, quantityAvailable, quantityAvailable - quantity))
+			{
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Returns the ingredients that were already removed for a recipe back to the inventory.
+	 * @param recipe The recipe of the drink that could not be bought.
+	 * @param count The number of ingredients in the recipe that were removed.
+	 */
+	protected void releaseIngredients(Recipe recipe, int count)
+	{
+		for (int i = 0; i < count; i++)
+		{
+			quantities.addAndGet(recipe.ingredientIds[i], recipe.quantities[i]);
+		}
+	}
+}
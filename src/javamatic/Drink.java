@@ -1,10 +1,9 @@
 package javamatic;
 
-import java.text.NumberFormat;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.Set;
-import java.util.Map.Entry;
 
 /**
  * This class describes a drink that the JavaMatic can dispense.
@@ -12,8 +11,16 @@ import java.util.Map.Entry;
 public class Drink implements Comparable<Drink>
 {
 	private String name;
-	private Map<Ingredient, Integer> ingredients;
-	private boolean inStock;
+	private Ingredient[] ingredients;
+	private int[] quantities;
+	private int ingredientCount;
+	private volatile Recipe recipe;
+	private volatile boolean inStock;
+	private volatile int servingsAvailable;
+	private volatile Machine machine;
+	private volatile Stock stock;
+	private volatile Price price;
+	private volatile OutputLine outputLine;
 	
 	/**
 	 * Constructs a new drink.
@@ -22,8 +29,26 @@ public class Drink implements Comparable<Drink>
 	public Drink(String name)
 	{
 		this.name = name;
-		this.ingredients = new HashMap<Ingredient, Integer>();
+		this.ingredients = new Ingredient[4];
+		this.quantities = new int[4];
+		this.ingredientCount = 0;
 		this.inStock = false;
+		this.servingsAvailable = 0;
+	}
+	
+	/**
+	 * Constructs a new drink with a whole recipe at once, as when a catalog is loaded, so that a catalog
+	 * with many drinks doesn't add their ingredients one at a time. The arrays are kept rather than copied.
+	 * @param name The name of the drink to construct.
+	 * @param ingredients The ingredients in the drink's recipe, each of which must only appear once.
+	 * @param quantities The quantity of each ingredient that is required for the drink.
+	 */
+	Drink(String name, Ingredient[] ingredients, int[] quantities)
+	{
+		this.name = name;
+		this.ingredients = ingredients;
+		this.quantities = quantities;
+		this.ingredientCount = ingredients.length;
 	}
 	
 	/**
@@ -35,20 +60,21 @@ public class Drink implements Comparable<Drink>
 	}
 	
 	/**
-	 * @return The set of all the ingredients in the drink.
+	 * @return The set of all the ingredients in the drink, in the order they were added.
 	 */
 	public Set<Ingredient> getIngredients()
 	{
-		return ingredients.keySet();
+		return Collections.unmodifiableSet(new LinkedHashSet<Ingredient>(Arrays.asList(ingredients).subList(0, ingredientCount)));
 	}
 	
 	/**
 	 * @param ingredient The ingredient to retrieve the quantity for.
-	 * @return The quantity of the given ingredient that the drink requires.
+	 * @return The quantity of the given ingredient that the drink requires, or 0 if the drink doesn't use it.
 	 */
 	public int getIngredientQuantity(Ingredient ingredient)
 	{
-		return ingredients.get(ingredient);
+		int i = indexOf(ingredient);
+		return i < 0 ? 0 : quantities[i];
 	}
 	
 	/**
@@ -56,17 +82,51 @@ public class Drink implements Comparable<Drink>
 	 */
 	public boolean isInStock()
 	{
-		return inStock;
+		Stock currentStock = getLazyStock();
+		return currentStock == null ? inStock : currentStock.servingsAvailable > 0;
+	}
+
+	/**
+	 * @return The number of servings of the drink that the machine's inventory had enough
+	 * ingredients for when the drink's stock was last updated. If the machine evaluates stock lazily,
+	 * this is the number of servings that the machine's current inventory has enough ingredients for.
+	 */
+	public int getServingsAvailable()
+	{
+		Stock currentStock = getLazyStock();
+		return currentStock == null ? servingsAvailable : currentStock.servingsAvailable;
 	}
 
 	/**
-	 * Adds a new ingredient with the given quantity to the drink's recipe.
+	 * Adds a new ingredient with the given quantity to the drink's recipe, or changes the quantity if the
+	 * recipe already has the ingredient. A recipe only has a few ingredients, so they are kept in small
+	 * arrays, which are much cheaper to create and search than a map when a catalog has many drinks.
+	 * If the drink is on a machine's menu, the machine calculates the drink's stock again.
 	 * @param ingredient The ingredient to add to the drink's recipe.
 	 * @param quantity The quantity of the ingredient that is required for the drink.
 	 */
 	public void addIngredient(Ingredient ingredient, int quantity)
 	{
-		ingredients.put(ingredient, quantity);
+		int i = indexOf(ingredient);
+		if (i < 0)
+		{
+			if (ingredientCount == ingredients.length)
+			{
+				ingredients = Arrays.copyOf(ingredients, ingredientCount * 2);
+				quantities = Arrays.copyOf(quantities, ingredientCount * 2);
+			}
+			i = ingredientCount++;
+			ingredients[i] = ingredient;
+		}
+		quantities[i] = quantity;
+		recipe = null;
+		price = null;
+		outputLine = null;
+		Machine owner = machine;
+		if (owner != null)
+		{
+			owner.updateRecipe(this);
+		}
 	}
 	
 	/**
@@ -78,15 +138,85 @@ public class Drink implements Comparable<Drink>
 		this.inStock = inStock;
 	}
 	
+	/**
+	 * Sets the machine whose menu the drink is on, which the drink's stock is calculated from
+	 * when the machine evaluates stock lazily.
+	 * @param machine The machine whose menu the drink is on.
+	 */
+	void setMachine(Machine machine)
+	{
+		this.machine = machine;
+	}
+	
+	/**
+	 * @return The drink's recipe compiled into arrays of ingredient ids and quantities.
+	 * The recipe is compiled the first time it is needed after the drink's ingredients change.
+	 */
+	Recipe getRecipe()
+	{
+		Recipe compiledRecipe = recipe;
+		if (compiledRecipe == null)
+		{
+			int[] ingredientIds = new int[ingredientCount];
+			for (int i = 0; i < ingredientCount; i++)
+			{
+				ingredientIds[i] = ingredients[i].getId();
+				if (ingredientIds[i] < 0)
+				{
+					throw new IllegalStateException(String.format("Ingredient has not been added to a machine: %s", ingredients[i].getName()));
+				}
+			}
+			compiledRecipe = new Recipe(ingredientIds, Arrays.copyOf(quantities, ingredientCount));
+			recipe = compiledRecipe;
+		}
+		return compiledRecipe;
+	}
+	
+	/**
+	 * Sets the number of servings of the drink that are available, which also
+	 * sets whether the drink is currently in stock.
+	 * @param servingsAvailable The number of servings of the drink that are available.
+	 */
+	void setServingsAvailable(int servingsAvailable)
+	{
+		this.servingsAvailable = servingsAvailable;
+		this.inStock = servingsAvailable > 0;
+	}
+	
 	/**
 	 * @param drinkNumber The drink number, where 1 is the first drink that is listed.
 	 * @return A string that describes the drink number, name, cost, and in stock status of the drink.
+	 * The string is only rendered again when the drink number, in stock status, or cost changes.
 	 */
 	public String output(int drinkNumber)
 	{
-		float cost = getTotalCost();
-		String costString = formatDollarAmount(cost);
-		return String.format("%d,%s,%s,%b\n", drinkNumber, name, costString, inStock);
+		return output(drinkNumber, isInStock());
+	}
+	
+	/**
+	 * @param drinkNumber The drink number, where 1 is the first drink that is listed.
+	 * @param currentlyInStock Whether the drink is in stock, such as in a snapshot of its machine.
+	 * @return A string that describes the drink number, name, cost, and the given in stock status of the drink.
+	 */
+	String output(int drinkNumber, boolean currentlyInStock)
+	{
+		Price currentPrice = getPrice();
+		OutputLine line = outputLine;
+		if (line == null || line.drinkNumber != drinkNumber || line.inStock != currentlyInStock || line.price != currentPrice)
+		{
+			String text = drinkNumber + "," + name + "," + currentPrice.text + "," + currentlyInStock + "\n";
+			line = new OutputLine(drinkNumber, currentlyInStock, currentPrice, text);
+			outputLine = line;
+		}
+		return line.text;
+	}
+	
+	/**
+	 * @return The exact total cost of the drink in cents, based on the costs and quantities of the ingredients.
+	 */
+	public long getTotalCostInCents()
+	{
+		return getPrice().cents;
 	}
 	
 	/* (non-Javadoc)
@@ -99,30 +229,138 @@ public class Drink implements Comparable<Drink>
 	}
 	
 	/**
-	 * @return The total cost of the drink, based on the costs and quantities of the ingredients.
+	 * @return The drink's stock memoized against the machine's version, which is only calculated
+	 * again after the machine has changed, or null if the machine doesn't evaluate stock lazily.
 	 */
-	private float getTotalCost()
+	private Stock getLazyStock()
 	{
-		float totalCost = 0;
-		for (Entry<Ingredient, Integer> entry : ingredients.entrySet())
+		Machine owner = machine;
+		if (owner == null || !owner.isLazyStockEvaluation())
 		{
-			Ingredient ingredient = entry.getKey();
-			int amount = entry.getValue();
-			float cost = ingredient.getCost();
-
-			totalCost += cost * amount;
+			return null;
+		}
+		long changeCount = owner.getChangeCount();
+		Stock currentStock = stock;
+		if (currentStock == null || currentStock.version != changeCount)
+		{
+			currentStock = new Stock(changeCount, owner.calculateServingsAvailable(this));
+			stock = currentStock;
+		}
+		return currentStock;
+	}
+	
+	/**
+	 * @return The drink's memoized total cost, which is only calculated again after the drink's
+	 * recipe or an ingredient's price has changed.
+	 */
+	private Price getPrice()
+	{
+		long priceVersion = Pricing.getPriceVersion();
+		Price currentPrice = price;
+		if (currentPrice == null || currentPrice.version != priceVersion)
+		{
+			currentPrice = new Price(priceVersion, getTotalCost());
+			price = currentPrice;
+		}
+		return currentPrice;
+	}
+	
+	/**
+	 * @return The total cost of the drink in cents, based on the costs and quantities of the ingredients.
+	 */
+	private long getTotalCost()
+	{
+		long totalCost = 0;
+		for (int i = 0; i < ingredientCount; i++)
+		{
+			totalCost += ingredients[i].getCostInCents() * quantities[i];
 		}
 		return totalCost;
 	}
-
+	
+	/**
+	 * @param ingredient The ingredient to find.
+	 * @return The index of the ingredient in the drink's recipe, or -1 if the drink doesn't use it.
+	 */
+	private int indexOf(Ingredient ingredient)
+	{
+		for (int i = 0; i < ingredientCount; i++)
+		{
+			if (ingredients[i] == ingredient)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * This class describes a drink's total cost for a version of the prices, along with
+	 * the cost formatted as currency.
+	 */
+	private static class Price
+	{
+		private final long version;
+		private final long cents;
+		private final String text;
+		
+		/**
+		 * Constructs a new total cost.
+		 * @param version The version of the prices that the cost was calculated for.
+		 * @param cents The total cost in cents.
+		 */
+		private Price(long version, long cents)
+		{
+			this.version = version;
+			this.cents = cents;
+			this.text = Pricing.formatCents(cents);
+		}
+	}
+	
 	/**
-	 * Formats a numerical value (such as 1.2) as a dollar amount (such as $1.20).
-	 * @param amount The numerical value of the number of dollars.
-	 * @return A dollar amount formatted as currency.
+	 * This class describes the number of servings of a drink that were available at a version of the
+	 * machine. It is immutable, so a thread never sees servings paired with the wrong version.
 	 */
-	private static String formatDollarAmount(float amount)
+	private static class Stock
 	{
-		NumberFormat formatter = NumberFormat.getCurrencyInstance();
-		return formatter.format(amount);
+		private final long version;
+		private final int servingsAvailable;
+		
+		/**
+		 * Constructs a new stock.
+		 * @param version The version of the machine that the servings were calculated for.
+		 * @param servingsAvailable The number of servings that were available.
+		 */
+		private Stock(long version, int servingsAvailable)
+		{
+			this.version = version;
+			this.servingsAvailable = servingsAvailable;
+		}
+	}
+	
+	/**
+	 * This class describes a rendered line of the menu, along with the values it was rendered for.
+	 */
+	private static class OutputLine
+	{
+		private final int drinkNumber;
+		private final boolean inStock;
+		private final Price price;
+		private final String text;
+		
+		/**
+		 * Constructs a new line of the menu.
+		 * @param drinkNumber The drink number that the line was rendered for.
+		 * @param inStock The in stock status that the line was rendered for.
+		 * @param price The total cost that the line was rendered for.
+		 * @param text The rendered line.
+		 */
+		private OutputLine(int drinkNumber, boolean inStock, Price price, String text)
+		{
+			this.drinkNumber = drinkNumber;
+			this.inStock = inStock;
+			this.price = price;
+			this.text = text;
+		}
 	}
 }
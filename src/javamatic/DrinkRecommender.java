@@ -0,0 +1,189 @@
+package javamatic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class describes an index of the drinks in a catalog that are most similar to each other,
+ * so that when a drink is out of stock the closest drinks that are still in stock can be suggested instead.
+ * Drinks are compared by the cosine of their recipes, where each ingredient's quantity is weighted by how
+ * few drinks use it, so that sharing Foamed Milk counts for more than sharing Sugar. The most similar
+ * drinks of every drink are found once when the index is built, and the drinks' in stock status, which
+ * their machine updates as its inventory changes, is only checked when the similar drinks are walked.
+ */
+public final class DrinkRecommender
+{
+	/**
+	 * The number of similar drinks that are kept for each drink.
+	 */
+	public static final int NEIGHBOURS = 16;
+
+	private final Drink[] drinks;
+	private final Map<Drink, Integer> drinkIndexes;
+	private final int[] neighbours;
+	private final int[] neighbourCounts;
+
+	/**
+	 * Builds the index for the drinks in the given catalog. Each ingredient's drinks are kept in a
+	 * posting list, so each drink is only compared with the drinks that share an ingredient with it,
+	 * and ingredients that every drink uses are left out, since they don't tell any drinks apart.
+	 * @param catalog The catalog whose drinks are indexed.
+	 */
+	public DrinkRecommender(Catalog catalog)
+	{
+		int drinkCount = catalog.getNumberOfDrinks();
+		int ingredientCount = catalog.getInventorySize();
+		this.drinks = new Drink[drinkCount];
+		this.drinkIndexes = new IdentityHashMap<Drink, Integer>(drinkCount);
+		Recipe[] recipes = new Recipe[drinkCount];
+		int[] drinkCounts = new int[ingredientCount];
+		for (int i = 0; i < drinkCount; i++)
+		{
+			drinks[i] = catalog.getDrink(i + 1);
+			drinkIndexes.put(drinks[i], i);
+			recipes[i] = catalog.getRecipe(i + 1);
+			for (int id : recipes[i].ingredientIds)
+			{
+				drinkCounts[id]++;
+			}
+		}
+
+		float[] ingredientWeights = new float[ingredientCount];
+		int[] postingStarts = new int[ingredientCount + 1];
+		for (int id = 0; id < ingredientCount; id++)
+		{
+			ingredientWeights[id] = drinkCounts[id] == 0 ? 0 : (float) Math.log((double) drinkCount / drinkCounts[id]);
+			postingStarts[id + 1] = postingStarts[id] + (ingredientWeights[id] > 0 ? drinkCounts[id] : 0);
+		}
+		int[] postingDrinks = new int[postingStarts[ingredientCount]];
+		float[] postingWeights = new float[postingDrinks.length];
+		int[] postingCounts = new int[ingredientCount];
+		float[] norms = new float[drinkCount];
+		for (int i = 0; i < drinkCount; i++)
+		{
+			double squaredNorm = 0;
+			for (int j = 0; j < recipes[i].size(); j++)
+			{
+				int id = recipes[i].ingredientIds[j];
+				if (ingredientWeights[id] > 0)
+				{
+					float weight = recipes[i].quantities[j] * ingredientWeights[id];
+					int posting = postingStarts[id] + postingCounts[id]++;
+					postingDrinks[posting] = i;
+					postingWeights[posting] = weight;
+					squaredNorm += weight * weight;
+				}
+			}
+			norms[i] = (float) Math.sqrt(squaredNorm);
+		}
+
+		this.neighbours = new int[drinkCount * NEIGHBOURS];
+		this.neighbourCounts = new int[drinkCount];
+		float[] products = new float[drinkCount];
+		int[] candidates = new int[drinkCount];
+		float[] similarities = new float[NEIGHBOURS];
+		for (int i = 0; i < drinkCount; i++)
+		{
+			int candidateCount = 0;
+			for (int j = 0; j < recipes[i].size(); j++)
+			{
+				int id = recipes[i].ingredientIds[j];
+				float weight = recipes[i].quantities[j] * ingredientWeights[id];
+				for (int posting = postingStarts[id]; posting < postingStarts[id + 1]; posting++)
+				{
+					int other = postingDrinks[posting];
+					if (other != i)
+					{
+						if (products[other] == 0)
+						{
+							candidates[candidateCount++] = other;
+						}
+						products[other] += weight * postingWeights[posting];
+					}
+				}
+			}
+
+			int offset = i * NEIGHBOURS;
+			int count = 0;
+			for (int c = 0; c < candidateCount; c++)
+			{
+				int other = candidates[c];
+				float similarity = products[other] / norms[other];
+				products[other] = 0;
+				if (count == NEIGHBOURS && !isMoreSimilar(similarity, other, similarities[count - 1], neighbours[offset + count - 1]))
+				{
+					continue;
+				}
+				int k = count < NEIGHBOURS ? count++ : count - 1;
+				while (k > 0 && isMoreSimilar(similarity, other, similarities[k - 1], neighbours[offset + k - 1]))
+				{
+					similarities[k] = similarities[k - 1];
+					neighbours[offset + k] = neighbours[offset + k - 1];
+					k--;
+				}
+				similarities[k] = similarity;
+				neighbours[offset + k] = other;
+			}
+			neighbourCounts[i] = count;
+		}
+	}
+
+	/**
+	 * Builds the index for the drinks on the given machine's menu, and attaches it to the machine, so that the
+	 * JavaMatic application suggests other drinks when a drink is out of stock. Drinks that are added to the
+	 * machine afterwards are neither suggested nor given suggestions until the index is attached again.
+	 * @param machine The JavaMatic machine.
+	 * @return The recommender.
+	 */
+	public static DrinkRecommender attach(Machine machine)
+	{
+		DrinkRecommender recommender = new DrinkRecommender(new Catalog(machine));
+		machine.setRecommender(recommender);
+		return recommender;
+	}
+
+	/**
+	 * Finds the drinks that are most similar to the given drink and are currently in stock. Only the
+	 * drink's {@link #NEIGHBOURS} most similar drinks are considered, since drinks that are any less
+	 * similar wouldn't be useful suggestions, and drinks that share no ingredients are never suggested.
+	 * @param drink The drink to find alternatives for.
+	 * @param count The largest number of drinks to return.
+	 * @return The in stock drinks, most similar first, or an empty list if the drink is not in the index.
+	 */
+	public List<Drink> recommend(Drink drink, int count)
+	{
+		Integer index = drinkIndexes.get(drink);
+		if (index == null)
+		{
+			return Collections.emptyList();
+		}
+
+		List<Drink> recommendations = new ArrayList<Drink>(Math.min(count, NEIGHBOURS));
+		int offset = index * NEIGHBOURS;
+		for (int k = 0; k < neighbourCounts[index] && recommendations.size() < count; k++)
+		{
+			Drink neighbour = drinks[neighbours[offset + k]];
+			if (neighbour.isInStock())
+			{
+				recommendations.add(neighbour);
+			}
+		}
+		return recommendations;
+	}
+
+	/**
+	 * Compares two drinks' similarities, breaking ties by the drinks' order in the catalog.
+	 * @param similarity The first drink's similarity.
+	 * @param drink The index of the first drink.
+	 * @param otherSimilarity The second drink's similarity.
+	 * @param otherDrink The index of the second drink.
+	 * @return Whether the first drink comes before the second drink.
+	 */
+	private static boolean isMoreSimilar(float similarity, int drink, float otherSimilarity, int otherDrink)
+	{
+		return similarity > otherSimilarity || (similarity == otherSimilarity && drink < otherDrink);
+	}
+}
@@ -0,0 +1,183 @@
+package javamatic;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * This class describes an event consumer that coalesces a machine's events into one delta per period,
+ * for listeners that only need to know what changed, such as a display or a remote dashboard,
+ * and that shouldn't be called for every drink that is dispensed.
+ */
+public class EventCoalescer implements MachineEventConsumer
+{
+	private final long periodNanos;
+	private final Consumer<Delta> listener;
+	private Delta delta;
+	private long periodStart;
+
+	/**
+	 * Constructs a new coalescer.
+	 * @param periodMillis The number of milliseconds that each delta covers.
+	 * @param listener The listener that each delta is handed to, on the coalescer's thread.
+	 */
+	public EventCoalescer(long periodMillis, Consumer<Delta> listener)
+	{
+		this.periodNanos = TimeUnit.MILLISECONDS.toNanos(periodMillis);
+		this.listener = listener;
+		this.delta = new Delta();
+		this.periodStart = System.nanoTime();
+	}
+
+	/* (non-Javadoc)
+	 * @see javamatic.MachineEventConsumer#onEvent(javamatic.MachineEvent, long, boolean)
+	 */
+	@Override
+	public void onEvent(MachineEvent event, long sequence, boolean endOfBatch)
+	{
+		switch (event.getType())
+		{
+		case DRINK_DISPENSED:
+			delta.servingsDispensed.merge(event.getDrink().getName(), event.getQuantity(), Integer::sum);
+			break;
+		case INGREDIENT_LOW:
+			delta.lowIngredients.add(event.getIngredient().getName());
+			break;
+		case DRINK_OUT_OF_STOCK:
+			delta.outOfStockDrinks.add(event.getDrink().getName());
+			break;
+		case RESTOCKED:
+			if (event.getIngredient() == null)
+			{
+				delta.restocks++;
+				delta.lowIngredients.clear();
+				delta.outOfStockDrinks.clear();
+			}
+			else
+			{
+				delta.restockedIngredients.put(event.getIngredient().getName(), event.getQuantity());
+				delta.lowIngredients.remove(event.getIngredient().getName());
+			}
+			break;
+		}
+		if (endOfBatch)
+		{
+			flushIfDue();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see javamatic.MachineEventConsumer#onIdle()
+	 */
+	@Override
+	public void onIdle()
+	{
+		flushIfDue();
+	}
+
+	/**
+	 * Hands the current delta to the listener if its period has ended and anything has changed.
+	 */
+	private void flushIfDue()
+	{
+		long now = System.nanoTime();
+		if (now - periodStart >= periodNanos)
+		{
+			periodStart = now;
+			if (!delta.isEmpty())
+			{
+				Delta completedDelta = delta;
+				delta = new Delta();
+				listener.accept(completedDelta);
+			}
+		}
+	}
+
+	/**
+	 * This class describes what changed in a machine during one period. Drinks that went out of stock
+	 * and ingredients that became low before a restock in the same period are left out, since the restock
+	 * replaced them, though drinks that went out of stock are kept when only some ingredients were restocked.
+	 */
+	public static final class Delta
+	{
+		private final Map<String, Integer> servingsDispensed;
+		private final Set<String> outOfStockDrinks;
+		private final Set<String> lowIngredients;
+		private final Map<String, Integer> restockedIngredients;
+		private int restocks;
+
+		/**
+		 * Constructs a new, empty delta.
+		 */
+		private Delta()
+		{
+			this.servingsDispensed = new LinkedHashMap<String, Integer>();
+			this.outOfStockDrinks = new LinkedHashSet<String>();
+			this.lowIngredients = new LinkedHashSet<String>();
+			this.restockedIngredients = new LinkedHashMap<String, Integer>();
+		}
+
+		/**
+		 * @return The number of servings that were dispensed of each drink, by name.
+		 */
+		public Map<String, Integer> getServingsDispensed()
+		{
+			return Collections.unmodifiableMap(servingsDispensed);
+		}
+
+		/**
+		 * @return The names of the drinks that went out of stock.
+		 */
+		public Set<String> getOutOfStockDrinks()
+		{
+			return Collections.unmodifiableSet(outOfStockDrinks);
+		}
+
+		/**
+		 * @return The names of the ingredients that became low.
+		 */
+		public Set<String> getLowIngredients()
+		{
+			return Collections.unmodifiableSet(lowIngredients);
+		}
+
+		/**
+		 * @return The quantity that each ingredient that was restocked on its own was last restocked to, by name.
+		 */
+		public Map<String, Integer> getRestockedIngredients()
+		{
+			return Collections.unmodifiableMap(restockedIngredients);
+		}
+
+		/**
+		 * @return The number of times that the whole machine was restocked.
+		 */
+		public int getRestocks()
+		{
+			return restocks;
+		}
+
+		/**
+		 * @return Whether nothing changed.
+		 */
+		private boolean isEmpty()
+		{
+			return servingsDispensed.isEmpty() && outOfStockDrinks.isEmpty() && lowIngredients.isEmpty()
+					&& restockedIngredients.isEmpty() && restocks == 0;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString()
+		{
+			return String.format("Dispensed: %s, Out of stock: %s, Low: %s, Restocked: %s, Restocks: %d",
+					servingsDispensed, outOfStockDrinks, lowIngredients, restockedIngredients, restocks);
+		}
+	}
+}
@@ -0,0 +1,357 @@
+package javamatic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * This class describes a fleet of JavaMatic machines that share one catalog of ingredients and drinks.
+ * Each machine is identified by its index in the fleet, and only stores the quantity of each ingredient,
+ * in the machine's slot of an inventory store outside of the Java heap, so a fleet of a hundred thousand
+ * machines takes a few megabytes and adds nothing for the garbage collector to trace. Fleet-wide
+ * queries split the machines into ranges and scan the ranges in parallel on the common fork-join pool.
+ * Purchases and restocks of the same machine are atomic with respect to each other. The queries
+ * don't lock any machines, so if the fleet changes while a query runs, each machine's inventory is
+ * seen as it was at some point during the query.
+ */
+public class Fleet
+{
+	private static final int SEQUENTIAL_THRESHOLD = 4096;
+
+	private Catalog catalog;
+	private int machineCount;
+	private int stride;
+	private InventoryStore inventories;
+	private volatile RestockScheduler restockScheduler;
+
+	/**
+	 * Constructs a new fleet where every machine is fully stocked.
+	 * @param catalog The ingredients and drinks of every machine.
+	 * @param machineCount The number of machines in the fleet.
+	 */
+	public Fleet(Catalog catalog, int machineCount)
+	{
+		this(catalog, InventoryStore.allocate(machineCount, catalog.getInventorySize()));
+	}
+
+	/**
+	 * Constructs a new fleet with one machine for each slot of the given store. If the store was
+	 * restored from a file, the machines keep their quantities; otherwise every machine is fully stocked.
+	 * @param catalog The ingredients and drinks of every machine.
+	 * @param inventories The store that holds the machines' inventories.
+	 */
+	public Fleet(Catalog catalog, InventoryStore inventories)
+	{
+		if (inventories.getSlotSize() < catalog.getInventorySize())
+		{
+			throw new IllegalArgumentException(String.format("Inventory slots are too small: %d", inventories.getSlotSize()));
+		}
+		this.catalog = catalog;
+		this.machineCount = inventories.getSlotCount();
+		this.stride = inventories.getSlotSize();
+		this.inventories = inventories;
+		if (!inventories.isRestored())
+		{
+			for (int machine = 0; machine < machineCount; machine++)
+			{
+				restockMachine(machine);
+			}
+		}
+	}
+
+	/**
+	 * @return The ingredients and drinks of every machine.
+	 */
+	public Catalog getCatalog()
+	{
+		return catalog;
+	}
+
+	/**
+	 * @return The number of machines in the fleet.
+	 */
+	public int getMachineCount()
+	{
+		return machineCount;
+	}
+
+	/**
+	 * Buys a drink from one machine if the drink is in stock there.
+	 * @param machine The index of the machine.
+	 * @param drinkNumber The number of the drink to buy, where 1 is the first drink that is listed.
+	 * @return Whether the drink could be successfully dispensed.
+	 */
+	public boolean buyDrink(int machine, int drinkNumber)
+	{
+		Recipe recipe = catalog.getRecipe(drinkNumber);
+		if (!inventories.remove(machine, recipe))
+		{
+			return false;
+		}
+		RestockScheduler scheduler = restockScheduler;
+		if (scheduler != null)
+		{
+			scheduler.recordPurchase(machine, recipe, 1);
+		}
+		return true;
+	}
+
+	/**
+	 * Restocks one machine, setting every ingredient's quantity to its capacity.
+	 * @param machine The index of the machine.
+	 */
+	public void restockMachine(int machine)
+	{
+		synchronized (inventories.getLock(machine))
+		{
+			for (int i = 0; i < catalog.getNumberOfIngredients(); i++)
+			{
+				inventories.set(machine, catalog.getIngredient(i).getId(), catalog.getIngredient(i).getCapacity());
+			}
+		}
+	}
+
+	/**
+	 * Adds a batch of ingredients to one machine, capping each ingredient's quantity at its capacity.
+	 * @param machine The index of the machine.
+	 * @param items The items in the restock, whose ingredients must be in the catalog.
+	 * @throws IllegalArgumentException If an item's ingredient isn't in the catalog, in which case nothing is restocked.
+	 */
+	public void restockIngredients(int machine, List<RestockItem> items)
+	{
+		for (RestockItem item : items)
+		{
+			catalog.checkIngredient(item.getIngredient());
+		}
+		synchronized (inventories.getLock(machine))
+		{
+			for (RestockItem item : items)
+			{
+				int id = item.getIngredient().getId();
+				int quantity = inventories.get(machine, id);
+				int capacity = item.getIngredient().getCapacity();
+				inventories.set(machine, id, Math.max(quantity, (int) Math.min(capacity, (long) quantity + item.getAmount())));
+			}
+		}
+	}
+
+	/**
+	 * @param machine The index of the machine.
+	 * @param ingredient An ingredient in the catalog.
+	 * @return The quantity of the ingredient in the machine.
+	 * @throws IllegalArgumentException If the ingredient isn't in the catalog.
+	 */
+	public int getQuantity(int machine, Ingredient ingredient)
+	{
+		catalog.checkIngredient(ingredient);
+		return inventories.get(machine, ingredient.getId());
+	}
+
+	/**
+	 * @param machine The index of the machine.
+	 * @param ingredientId The id of an ingredient in the catalog.
+	 * @return The quantity of the ingredient in the machine.
+	 */
+	int getQuantity(int machine, int ingredientId)
+	{
+		return inventories.get(machine, ingredientId);
+	}
+
+	/**
+	 * @param machine The index of the machine.
+	 * @param drinkNumber The number of the drink, where 1 is the first drink that is listed.
+	 * @return Whether the machine has enough of every ingredient to make the drink.
+	 */
+	public boolean isInStock(int machine, int drinkNumber)
+	{
+		return isInStock(catalog.getRecipe(drinkNumber), machine);
+	}
+
+	/**
+	 * @param machine The index of the machine.
+	 * @return The numbers of the drinks that are out of stock in the machine.
+	 */
+	public List<Integer> getDrinksOutOfStock(int machine)
+	{
+		List<Integer> drinkNumbers = new ArrayList<Integer>();
+		for (int drinkNumber = 1; drinkNumber <= catalog.getNumberOfDrinks(); drinkNumber++)
+		{
+			if (!isInStock(machine, drinkNumber))
+			{
+				drinkNumbers.add(drinkNumber);
+			}
+		}
+		return drinkNumbers;
+	}
+
+	/**
+	 * @return The total quantity of each ingredient across the whole fleet, in the same order
+	 * as the catalog's ingredients.
+	 */
+	public long[] getTotalStock()
+	{
+		long[] totalsById = ForkJoinPool.commonPool().invoke(new TotalStockTask(0, machineCount));
+		long[] totals = new long[catalog.getNumberOfIngredients()];
+		for (int i = 0; i < totals.length; i++)
+		{
+			totals[i] = totalsById[catalog.getIngredient(i).getId()];
+		}
+		return totals;
+	}
+
+	/**
+	 * @return The number of drinks that are out of stock in each machine, indexed by machine.
+	 */
+	public int[] getOutOfStockCounts()
+	{
+		int[] counts = new int[machineCount];
+		ForkJoinPool.commonPool().invoke(new OutOfStockTask(0, machineCount, counts));
+		return counts;
+	}
+
+	/**
+	 * @param maxDrinksOutOfStock The number of drinks that a machine can have out of stock
+	 * before it needs to be restocked.
+	 * @return The indexes of the machines that have more drinks out of stock than the given number, in ascending order.
+	 */
+	public int[] getMachinesNeedingRestock(int maxDrinksOutOfStock)
+	{
+		int[] counts = getOutOfStockCounts();
+		int[] machines = new int[machineCount];
+		int found = 0;
+		for (int machine = 0; machine < machineCount; machine++)
+		{
+			if (counts[machine] > maxDrinksOutOfStock)
+			{
+				machines[found++] = machine;
+			}
+		}
+		return Arrays.copyOf(machines, found);
+	}
+
+	/**
+	 * Sets the scheduler that records every drink that is bought, or removes it.
+	 * @param restockScheduler The scheduler, or null to stop recording.
+	 */
+	void setRestockScheduler(RestockScheduler restockScheduler)
+	{
+		this.restockScheduler = restockScheduler;
+	}
+
+	/**
+	 * @param recipe The recipe of a drink.
+	 * @param machine The index of the machine.
+	 * @return Whether the machine has enough of every ingredient in the recipe.
+	 */
+	private boolean isInStock(Recipe recipe, int machine)
+	{
+		for (int i = 0; i < recipe.size(); i++)
+		{
+			if (inventories.get(machine, recipe.ingredientIds[i]) < recipe.quantities[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * This class adds up the quantity of each ingredient, indexed by ingredient id, over a range of machines.
+	 */
+	private class TotalStockTask extends RecursiveTask<long[]>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private int start;
+		private int end;
+
+		/**
+		 * @param start The index of the first machine in the range.
+		 * @param end The index after the last machine in the range.
+		 */
+		TotalStockTask(int start, int end)
+		{
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected long[] compute()
+		{
+			if (end - start > SEQUENTIAL_THRESHOLD)
+			{
+				int middle = (start + end) >>> 1;
+				TotalStockTask left = new TotalStockTask(start, middle);
+				left.fork();
+				long[] totals = new TotalStockTask(middle, end).compute();
+				long[] leftTotals = left.join();
+				for (int id = 0; id < stride; id++)
+				{
+					totals[id] += leftTotals[id];
+				}
+				return totals;
+			}
+
+			long[] totals = new long[stride];
+			for (int machine = start; machine < end; machine++)
+			{
+				for (int id = 0; id < stride; id++)
+				{
+					totals[id] += inventories.get(machine, id);
+				}
+			}
+			return totals;
+		}
+	}
+
+	/**
+	 * This class counts the drinks that are out of stock in each machine over a range of machines.
+	 */
+	private class OutOfStockTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private int start;
+		private int end;
+		private int[] counts;
+
+		/**
+		 * @param start The index of the first machine in the range.
+		 * @param end The index after the last machine in the range.
+		 * @param counts The number of drinks out of stock in each machine, which is filled in for the range.
+		 */
+		OutOfStockTask(int start, int end, int[] counts)
+		{
+			this.start = start;
+			this.end = end;
+			this.counts = counts;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (end - start > SEQUENTIAL_THRESHOLD)
+			{
+				int middle = (start + end) >>> 1;
+				invokeAll(new OutOfStockTask(start, middle, counts), new OutOfStockTask(middle, end, counts));
+				return;
+			}
+
+			for (int machine = start; machine < end; machine++)
+			{
+				int count = 0;
+				for (int drinkNumber = 1; drinkNumber <= catalog.getNumberOfDrinks(); drinkNumber++)
+				{
+					if (!isInStock(catalog.getRecipe(drinkNumber), machine))
+					{
+						count++;
+					}
+				}
+				counts[machine] = count;
+			}
+		}
+	}
+}
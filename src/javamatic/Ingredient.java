@@ -6,17 +6,36 @@ package javamatic;
 public class Ingredient implements Comparable<Ingredient>
 {
 	private String name;
-	private float cost;
+	private volatile long costInCents;
+	private int id;
+	private int capacity;
 	
 	/**
-	 * Constructs a new ingredient.
+	 * Constructs a new ingredient that a machine holds up to the default max quantity of.
 	 * @param name The name of the ingredient.
-	 * @param cost The cost of the ingredient.
+	 * @param cost The cost of the ingredient, which is rounded to the nearest cent.
 	 */
 	public Ingredient(String name, float cost)
 	{
+		this(name, cost, Machine.MAX_QUANTITY);
+	}
+	
+	/**
+	 * Constructs a new ingredient.
+	 * @param name The name of the ingredient.
+	 * @param cost The cost of the ingredient, which is rounded to the nearest cent.
+	 * @param capacity The quantity of the ingredient that a machine holds when it is full.
+	 */
+	public Ingredient(String name, float cost, int capacity)
+	{
+		if (capacity < 0)
+		{
+			throw new IllegalArgumentException(String.format("Invalid capacity: %d", capacity));
+		}
 		this.name = name;
-		this.cost = cost;
+		this.costInCents = Pricing.toCents(cost);
+		this.id = -1;
+		this.capacity = capacity;
 	}
 	
 	/**
@@ -32,7 +51,60 @@ public class Ingredient implements Comparable<Ingredient>
 	 */
 	public float getCost()
 	{
-		return cost;
+		return costInCents / 100.0f;
+	}
+	
+	/**
+	 * @return The exact cost of the ingredient in cents.
+	 */
+	public long getCostInCents()
+	{
+		return costInCents;
+	}
+	
+	/**
+	 * Sets the cost of the ingredient, which makes every drink calculate its total cost again.
+	 * @param cost The cost of the ingredient, which is rounded to the nearest cent.
+	 */
+	public void setCost(float cost)
+	{
+		setCostInCents(Pricing.toCents(cost));
+	}
+	
+	/**
+	 * Sets the exact cost of the ingredient, which makes every drink calculate its total cost again.
+	 * @param costInCents The cost of the ingredient in cents.
+	 */
+	public void setCostInCents(long costInCents)
+	{
+		this.costInCents = costInCents;
+		Pricing.priceChanged();
+	}
+
+	/**
+	 * @return The quantity of the ingredient that a machine holds when it is full.
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * @return The dense id that the ingredient was given when it was first added to a machine,
+	 * or -1 if it has not been added to a machine yet.
+	 */
+	public int getId()
+	{
+		return id;
+	}
+	
+	/**
+	 * Sets the dense id of the ingredient, which indexes the ingredient in machine inventories.
+	 * @param id The id of the ingredient.
+	 */
+	void setId(int id)
+	{
+		this.id = id;
 	}
 
 	/* (non-Javadoc)
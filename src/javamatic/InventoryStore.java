@@ -0,0 +1,289 @@
+package javamatic;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class describes a store of ingredient quantities for many machines, kept outside of the Java heap
+ * so that millions of quantities cost the garbage collector nothing. Each machine has a slot in the store,
+ * which holds a fixed number of quantities indexed by ingredient id. The store can be mapped to a file,
+ * in which case the quantities are still there when the file is mapped again after a restart.
+ * Removing ingredients from a slot is atomic, since every slot is guarded by one of a set of striped locks.
+ */
+public class InventoryStore implements Flushable
+{
+	private static final int MAGIC = 0x4A4D4953;
+	private static final int HEADER_INTS = 4;
+	private static final int LOCK_STRIPES = 64;
+
+	private ByteBuffer buffer;
+	private IntBuffer quantities;
+	private int slotCount;
+	private int slotSize;
+	private boolean restored;
+	private Object[] locks;
+
+	/**
+	 * Allocates a new store outside of the Java heap, where every quantity is zero.
+	 * @param slotCount The number of slots, which is the number of machines that the store holds.
+	 * @param slotSize The number of ingredient ids that each slot has room for.
+	 * @return The new store.
+	 */
+	public static InventoryStore allocate(int slotCount, int slotSize)
+	{
+		return new InventoryStore(ByteBuffer.allocateDirect(getByteSize(slotCount, slotSize)), slotCount, slotSize, false);
+	}
+
+	/**
+	 * Maps a store to the given file. If the file already holds a store with the same number and size
+	 * of slots, its quantities are kept; if the file doesn't exist or is empty, every quantity is zero.
+	 * @param path The path of the file.
+	 * @param slotCount The number of slots, which is the number of machines that the store holds.
+	 * @param slotSize The number of ingredient ids that each slot has room for.
+	 * @return The mapped store.
+	 * @throws IOException If the file can't be mapped, or it holds a store with a different layout.
+	 */
+	public static InventoryStore map(Path path, int slotCount, int slotSize) throws IOException
+	{
+		int byteSize = getByteSize(slotCount, slotSize);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE))
+		{
+			long fileSize = channel.size();
+			if (fileSize != 0 && fileSize != byteSize)
+			{
+				throw new IOException(String.format("Inventory file has a different layout: %s", path));
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, byteSize);
+			buffer.order(ByteOrder.nativeOrder());
+			boolean restored = fileSize != 0;
+			if (restored && (buffer.getInt(0) != MAGIC || buffer.getInt(4) != slotCount || buffer.getInt(8) != slotSize))
+			{
+				throw new IOException(String.format("Inventory file has a different layout: %s", path));
+			}
+			return new InventoryStore(buffer, slotCount, slotSize, restored);
+		}
+	}
+
+	/**
+	 * Constructs a new store over the given memory, writing its header if it is new.
+	 * @param buffer The memory that holds the header and the quantities.
+	 * @param slotCount The number of slots.
+	 * @param slotSize The number of ingredient ids that each slot has room for.
+	 * @param restored Whether the memory already holds the quantities from an earlier run.
+	 */
+	private InventoryStore(ByteBuffer buffer, int slotCount, int slotSize, boolean restored)
+	{
+		buffer.order(ByteOrder.nativeOrder());
+		if (!restored)
+		{
+			buffer.putInt(0, MAGIC).putInt(4, slotCount).putInt(8, slotSize);
+		}
+		buffer.position(HEADER_INTS * 4);
+		this.buffer = buffer;
+		this.quantities = buffer.slice().order(ByteOrder.nativeOrder()).asIntBuffer();
+		this.slotCount = slotCount;
+		this.slotSize = slotSize;
+		this.restored = restored;
+		this.locks = new Object[LOCK_STRIPES];
+		for (int i = 0; i < locks.length; i++)
+		{
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * @return The number of slots, which is the number of machines that the store holds.
+	 */
+	public int getSlotCount()
+	{
+		return slotCount;
+	}
+
+	/**
+	 * @return The number of ingredient ids that each slot has room for.
+	 */
+	public int getSlotSize()
+	{
+		return slotSize;
+	}
+
+	/**
+	 * @return Whether the store was mapped to a file that already held quantities from an earlier run.
+	 */
+	public boolean isRestored()
+	{
+		return restored;
+	}
+
+	/**
+	 * @param slot The slot of the machine.
+	 * @param ingredientId The id of the ingredient.
+	 * @return The quantity of the ingredient in the given slot.
+	 */
+	public int get(int slot, int ingredientId)
+	{
+		return quantities.get(getIndex(slot, ingredientId));
+	}
+
+	/**
+	 * Sets the quantity of an ingredient in the given slot.
+	 * @param slot The slot of the machine.
+	 * @param ingredientId The id of the ingredient.
+	 * @param quantity The quantity of the ingredient.
+	 */
+	public void set(int slot, int ingredientId, int quantity)
+	{
+		synchronized (getLock(slot))
+		{
+			quantities.put(getIndex(slot, ingredientId), quantity);
+		}
+	}
+
+	/**
+	 * Writes the quantities to the file that the store is mapped to, if any.
+	 */
+	@Override
+	public void flush()
+	{
+		if (buffer instanceof MappedByteBuffer)
+		{
+			((MappedByteBuffer) buffer).force();
+		}
+	}
+
+	/**
+	 * Atomically removes the ingredients in the given recipe from a slot. Either every ingredient
+	 * is removed, or, if there is not enough of any of them, none of them are.
+	 * @param slot The slot of the machine.
+	 * @param recipe The recipe of the drink being bought.
+	 * @return Whether the ingredients were removed.
+	 */
+	boolean remove(int slot, Recipe recipe)
+	{
+		int offset = getOffset(slot);
+		synchronized (getLock(slot))
+		{
+			for (int i = 0; i < recipe.size(); i++)
+			{
+				if (quantities.get(offset + recipe.ingredientIds[i]) < recipe.quantities[i])
+				{
+					return false;
+				}
+			}
+			for (int i = 0; i < recipe.size(); i++)
+			{
+				int index = offset + recipe.ingredientIds[i];
+				quantities.put(index, quantities.get(index) - recipe.quantities[i]);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Atomically removes the given quantity of each ingredient from a slot. Either every ingredient
+	 * is removed, or, if there is not enough of any of them, none of them are.
+	 * @param slot The slot of the machine.
+	 * @param demand The quantity to remove of each ingredient, indexed by ingredient id.
+	 * @return Whether the ingredients were removed.
+	 */
+	boolean remove(int slot, long[] demand)
+	{
+		int offset = getOffset(slot);
+		synchronized (getLock(slot))
+		{
+			for (int id = 0; id < demand.length; id++)
+			{
+				if (demand[id] > quantities.get(offset + id))
+				{
+					return false;
+				}
+			}
+			for (int id = 0; id < demand.length; id++)
+			{
+				if (demand[id] > 0)
+				{
+					quantities.put(offset + id, quantities.get(offset + id) - (int) demand[id]);
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Atomically adds the given quantity to some of the ingredients in a slot.
+	 * @param slot The slot of the machine.
+	 * @param recipe The recipe whose ingredients are added.
+	 * @param count The number of ingredients in the recipe to add.
+	 */
+	void add(int slot, Recipe recipe, int count)
+	{
+		int offset = getOffset(slot);
+		synchronized (getLock(slot))
+		{
+			for (int i = 0; i < count; i++)
+			{
+				int index = offset + recipe.ingredientIds[i];
+				quantities.put(index, quantities.get(index) + recipe.quantities[i]);
+			}
+		}
+	}
+
+	/**
+	 * @param slot The slot of the machine.
+	 * @return The lock that guards the slot, for changing several of its quantities at once.
+	 */
+	Object getLock(int slot)
+	{
+		return locks[slot & (LOCK_STRIPES - 1)];
+	}
+
+	/**
+	 * @param slot The slot of the machine.
+	 * @param ingredientId The id of the ingredient.
+	 * @return The index of the quantity in the store.
+	 */
+	private int getIndex(int slot, int ingredientId)
+	{
+		if (ingredientId < 0 || ingredientId >= slotSize)
+		{
+			throw new IndexOutOfBoundsException(String.format("Invalid ingredient id: %d", ingredientId));
+		}
+		return getOffset(slot) + ingredientId;
+	}
+
+	/**
+	 * @param slot The slot of the machine.
+	 * @return The index of the slot's first quantity in the store.
+	 */
+	private int getOffset(int slot)
+	{
+		if (slot < 0 || slot >= slotCount)
+		{
+			throw new IndexOutOfBoundsException(String.format("Invalid slot: %d", slot));
+		}
+		return slot * slotSize;
+	}
+
+	/**
+	 * @param slotCount The number of slots.
+	 * @param slotSize The number of ingredient ids that each slot has room for.
+	 * @return The number of bytes that the store takes, including its header.
+	 */
+	private static int getByteSize(int slotCount, int slotSize)
+	{
+		long byteSize = (HEADER_INTS + (long) slotCount * slotSize) * 4;
+		if (slotCount < 0 || slotSize < 0 || byteSize > Integer.MAX_VALUE)
+		{
+			throw new IllegalArgumentException(String.format("Invalid store size: %d slots of %d", slotCount, slotSize));
+		}
+		return (int) byteSize;
+	}
+}
@@ -1,22 +1,163 @@
 package javamatic;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
 
+import javax.management.JMException;
+
 /**
  * This class takes input from the user, sends it to the machine, and then
  * takes the machine's output and sends it back to the user.
  */
 public class JavaMatic
 {
+	private static final int RECOMMENDATIONS = 3;
+	
 	/**
 	 * The main entry point for the program.
-	 * @param args The command line arguments, which are not used.
+	 * @param args The command line arguments. With "--catalog" first, the machine's ingredients and drinks
+	 * are loaded from the text or binary catalog file that follows, instead of the default ones. With
+	 * "--journal" first, the machine's inventory is recovered from and recorded in the journal in the
+	 * directory that follows. Either option may be followed by the other, and the rest of the arguments are
+	 * read as usual. With "--replay", the commands are replayed without any user interaction from the file
+	 * that follows, or from the input if no file is given. With "--server", the machine is shared with
+	 * clients that connect to the port that follows, or to the default port if no port is given, and with order
+	 * routers that use the binary protocol on the next port, or on the port that follows that if one is given.
+	 * @throws IOException If the catalog, the journal, or the commands being replayed can't be read, or the server can't be started.
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		Path catalogPath = null;
+		Path journalDirectory = null;
+		while (args.length > 1 && (args[0].equals("--catalog") || args[0].equals("--journal")))
+		{
+			if (args[0].equals("--catalog"))
+			{
+				catalogPath = Paths.get(args[1]);
+			}
+			else
+			{
+				journalDirectory = Paths.get(args[1]);
+			}
+			args = Arrays.copyOfRange(args, 2, args.length);
+		}
+		
+		if (args.length > 0 && args[0].equals("--server"))
+		{
+			int port = args.length > 1 ? Integer.parseInt(args[1]) : OrderServer.DEFAULT_PORT;
+			int binaryPort = args.length > 2 ? Integer.parseInt(args[2]) : port == 0 ? 0 : port + 1;
+			ConcurrentMachine machine = stockMachine(new StripedMachine(), catalogPath);
+			MachineJournal journal = openJournal(machine, journalDirectory);
+			try
+			{
+				recordMetrics(machine);
+				OrderServer server = new OrderServer(machine, port);
+				OrderServer binaryServer = new OrderServer(machine, binaryPort, true);
+				System.out.println(String.format("Listening on port %d, and on port %d for the binary protocol", server.getPort(), binaryServer.getPort()));
+				binaryServer.start();
+				server.run();
+			}
+			finally
+			{
+				if (journal != null)
+				{
+					journal.close();
+				}
+			}
+		}
+		else if (args.length > 0 && args[0].equals("--replay"))
+		{
+			Machine machine = stockMachine(new Machine(), catalogPath);
+			MachineJournal journal = openJournal(machine, journalDirectory);
+			try
+			{
+				recordMetrics(machine);
+				CommandReplay replay = new CommandReplay(machine, System.out);
+				if (args.length > 1)
+				{
+					replay.replay(Paths.get(args[1]));
+				}
+				else
+				{
+					replay.replay(System.in);
+				}
+			}
+			finally
+			{
+				if (journal != null)
+				{
+					journal.close();
+				}
+			}
+		}
+		else
+		{
+			Machine machine = stockMachine(new Machine(), catalogPath);
+			MachineJournal journal = openJournal(machine, journalDirectory);
+			try
+			{
+				recordMetrics(machine);
+				DrinkRecommender.attach(machine);
+				runMachine(machine, System.in, System.out);
+			}
+			finally
+			{
+				if (journal != null)
+				{
+					journal.close();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Adds the ingredients and drinks to the given machine and stocks it.
+	 * @param machine The JavaMatic machine.
+	 * @param catalogPath The path of the catalog to load, or null if the machine has the default ingredients and drinks.
+	 * @return The given machine.
+	 * @throws IOException If the catalog can't be read or is not valid.
 	 */
-	public static void main(String[] args)
+	private static <T extends Machine> T stockMachine(T machine, Path catalogPath) throws IOException
 	{
-		runMachine(System.in, System.out);
+		return catalogPath == null ? JavaMaticFactory.populateMachine(machine) : CatalogLoader.load(catalogPath, machine);
+	}
+	
+	/**
+	 * Opens the journal for the given machine, recovering the machine's inventory from it.
+	 * @param machine The JavaMatic machine.
+	 * @param directory The directory that the journal's files are kept in, or null if the machine has no journal.
+	 * @return The journal, or null if the machine has no journal.
+	 * @throws IOException If the journal can't be read or written.
+	 */
+	private static MachineJournal openJournal(Machine machine, Path directory) throws IOException
+	{
+		return directory == null ? null : MachineJournal.open(machine, directory, false);
+	}
+	
+	/**
+	 * Attaches metrics to the given machine and exports them through JMX. This is done after the machine's
+	 * journal is opened, so that the purchases that are recovered from it aren't recorded.
+	 * @param machine The JavaMatic machine.
+	 * @return The machine's metrics.
+	 */
+	private static MachineMetrics recordMetrics(Machine machine)
+	{
+		MachineMetrics metrics = MachineMetrics.attach(machine);
+		try
+		{
+			metrics.register("JavaMatic");
+		}
+		catch (JMException e)
+		{
+			System.err.println(String.format("Metrics are not exported through JMX: %s", e.getMessage()));
+		}
+		return metrics;
 	}
 	
 	/**
@@ -27,7 +168,18 @@ public class JavaMatic
 	 */
 	public static void runMachine(InputStream inputStream, PrintStream outputStream)
 	{
-		Machine machine = JavaMaticFactory.createMachine();
+		runMachine(JavaMaticFactory.createMachine(), inputStream, outputStream);
+	}
+	
+	/**
+	 * Runs the given JavaMatic machine, taking input from the input stream and 
+	 * sending output to the output stream.
+	 * @param machine The JavaMatic machine.
+	 * @param inputStream The stream to take input from.
+	 * @param outputStream The stream to send output to.
+	 */
+	public static void runMachine(Machine machine, InputStream inputStream, PrintStream outputStream)
+	{
 		Scanner scanner = new Scanner(inputStream);
 
 		boolean keepRunning = true;
@@ -55,32 +207,62 @@ public class JavaMatic
 	}
 	
 	/**
-	 * Prints the machine's inventory and drinks menu to the output stream.
+	 * Prints the machine's inventory and drinks menu to the output stream, both from the same snapshot,
+	 * so the menu's stock always agrees with the inventory even while other threads are buying drinks.
 	 * @param machine The JavaMatic machine.
 	 * @param outputStream The stream to print output to.
 	 */
-	private static void printInventoryAndMenu(Machine machine, PrintStream outputStream)
+	static void printInventoryAndMenu(Machine machine, PrintStream outputStream)
 	{
-		outputStream.print(machine.outputInventory());
-		outputStream.print(machine.outputMenu());
+		MachineSnapshot snapshot = machine.getSnapshot();
+		outputStream.print(snapshot.outputInventory());
+		outputStream.print(machine.outputMenu(snapshot));
 	}
 
 	/**
 	 * Parses a line of user input.
 	 * The "r" command restocks the machine's inventory.
+	 * The "m" command prints the machine's metrics.
 	 * The "q" command quits out of the application.
 	 * Entering a number that corresponds to a drink will buy that drink.
+	 * If the machine has metrics, how long the line took and any invalid selection are recorded in them.
+	 * @param machine The JavaMatic machine.
+	 * @param outputStream The stream to print output to.
+	 * @param line The line of user input.
+	 * @return Whether to continue running the input loop.
+	 */
+	static boolean parseInput(Machine machine, PrintStream outputStream, String line)
+	{
+		MachineMetrics metrics = machine.getMetrics();
+		if (metrics == null)
+		{
+			return handleInput(machine, outputStream, line);
+		}
+		
+		long startTime = System.nanoTime();
+		boolean keepRunning = handleInput(machine, outputStream, line);
+		metrics.recordLatency(MachineMetrics.Operation.PARSE_INPUT, System.nanoTime() - startTime);
+		return keepRunning;
+	}
+	
+	/**
+	 * Carries out a line of user input.
 	 * @param machine The JavaMatic machine.
 	 * @param outputStream The stream to print output to.
 	 * @param line The line of user input.
 	 * @return Whether to continue running the input loop.
 	 */
-	private static boolean parseInput(Machine machine, PrintStream outputStream, String line)
+	private static boolean handleInput(Machine machine, PrintStream outputStream, String line)
 	{
 		if (line.toLowerCase().equals("r"))
 		{
 			machine.restockInventory();
 		}
+		else if (line.toLowerCase().equals("m"))
+		{
+			MachineMetrics metrics = machine.getMetrics();
+			outputStream.print(metrics == null ? "Metrics are not recorded\n" : metrics.dump());
+		}
 		else if (line.toLowerCase().equals("q"))
 		{
 			return false;
@@ -102,6 +284,10 @@ public class JavaMatic
 
 			if (!validSelection)
 			{
+				if (machine.getMetrics() != null)
+				{
+					machine.getMetrics().recordInvalidSelection();
+				}
 				outputStream.println(String.format("Invalid selection: %s", line));
 			}
 		}
@@ -109,7 +295,8 @@ public class JavaMatic
 	}
 	
 	/**
-	 * Buys a drink from the machine if the drink is in stock.
+	 * Buys a drink from the machine if the drink is in stock. If it isn't, and the machine has a recommender,
+	 * the most similar drinks that are in stock are suggested instead.
 	 * @param machine The JavaMatic machine.
 	 * @param outputStream The stream to print output to.
 	 * @param drinkSelection The number of the drink, which should be a valid number between 1 and the total number of drinks.
@@ -128,5 +315,20 @@ public class JavaMatic
 			outputString = String.format("Out of stock: %s", drinkName);
 		}
 		outputStream.println(outputString);
+		
+		DrinkRecommender recommender = machine.getRecommender();
+		if (!validDrink && recommender != null)
+		{
+			List<Drink> recommendations = recommender.recommend(machine.getDrink(drinkSelection), RECOMMENDATIONS);
+			if (!recommendations.isEmpty())
+			{
+				StringBuilder output = new StringBuilder("Try instead: ");
+				for (int i = 0; i < recommendations.size(); i++)
+				{
+					output.append(i == 0 ? "" : ", ").append(recommendations.get(i).getName());
+				}
+				outputStream.println(output);
+			}
+		}
 	}
 }
@@ -15,7 +15,74 @@ public class JavaMaticFactory
 	 */
 	public static Machine createMachine()
 	{
-		Machine machine = new Machine();
+		return populateMachine(new Machine());
+	}
+	
+	/**
+	 * Creates a new JavaMatic machine with the default ingredients and drinks that
+	 * can be shared between many threads.
+	 * @return The newly created machine.
+	 */
+	public static ConcurrentMachine createConcurrentMachine()
+	{
+		return populateMachine(new ConcurrentMachine());
+	}
+	
+	/**
+	 * Creates a new JavaMatic machine with the default ingredients and drinks that splits
+	 * each ingredient's stock across stripes, for sharing between threads on many cores.
+	 * @return The newly created machine.
+	 */
+	public static StripedMachine createStripedMachine()
+	{
+		return populateMachine(new StripedMachine());
+	}
+	
+	/**
+	 * Creates a new JavaMatic machine with the default ingredients and drinks whose inventory
+	 * is kept in a slot of the given store. If the store was restored from a file, the machine
+	 * keeps the quantities in its slot; otherwise it is restocked.
+	 * @param store The store that holds the machine's inventory.
+	 * @param slot The slot of the store that holds the machine's inventory.
+	 * @return The newly created machine.
+	 */
+	public static StoredMachine createStoredMachine(InventoryStore store, int slot)
+	{
+		int[] savedInventory = null;
+		if (store.isRestored())
+		{
+			savedInventory = new int[store.getSlotSize()];
+			for (int id = 0; id < savedInventory.length; id++)
+			{
+				savedInventory[id] = store.get(slot, id);
+			}
+		}
+		
+		StoredMachine machine = populateMachine(new StoredMachine(store, slot));
+		if (savedInventory != null)
+		{
+			machine.restoreInventory(savedInventory);
+		}
+		return machine;
+	}
+	
+	/**
+	 * Creates a new fleet of JavaMatic machines that share the default ingredients and drinks.
+	 * @param machineCount The number of machines in the fleet.
+	 * @return The newly created fleet, where every machine is fully stocked.
+	 */
+	public static Fleet createFleet(int machineCount)
+	{
+		return new Fleet(new Catalog(createMachine()), machineCount);
+	}
+	
+	/**
+	 * Adds the default ingredients and drinks to the given machine, and then restocks it.
+	 * @param machine The JavaMatic machine being created.
+	 * @return The given machine.
+	 */
+	public static <T extends Machine> T populateMachine(T machine)
+	{
 		Map<String, Ingredient> ingredients = new HashMap<String, Ingredient>();
 		
 		addIngredient(machine, ingredients, "Coffee", 0.75f);
@@ -0,0 +1,104 @@
+package javamatic;
+
+/**
+ * This class describes a snapshot of a histogram of latencies in nanoseconds. The buckets are log-linear,
+ * like an HDR histogram's: each power of two is split into 32 buckets of equal width, so every recorded
+ * value is kept to within about 3% with a fixed number of buckets. Latencies of a minute or more all go
+ * into the last bucket.
+ */
+public final class LatencyHistogram
+{
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final long MAX_VALUE = (1L << 36) - 1;
+
+	static final int BUCKET_COUNT = getBucketIndex(MAX_VALUE) + 1;
+
+	private final long[] counts;
+	private final long totalCount;
+
+	/**
+	 * Constructs a new snapshot of a histogram.
+	 * @param counts The number of values in each bucket, which is kept rather than copied.
+	 */
+	LatencyHistogram(long[] counts)
+	{
+		this.counts = counts;
+		long total = 0;
+		for (long count : counts)
+		{
+			total += count;
+		}
+		this.totalCount = total;
+	}
+
+	/**
+	 * @return The number of latencies that were recorded.
+	 */
+	public long getCount()
+	{
+		return totalCount;
+	}
+
+	/**
+	 * @param percentile The percentile, between 0 and 100.
+	 * @return The largest latency in nanoseconds that is counted the same as the latency at the given
+	 * percentile, or 0 if no latencies were recorded.
+	 */
+	public long getValueAtPercentile(double percentile)
+	{
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+		long count = 0;
+		for (int i = 0; i < counts.length; i++)
+		{
+			count += counts[i];
+			if (count >= rank)
+			{
+				return getBucketUpperBound(i);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return The largest latency in nanoseconds that is counted the same as the largest latency
+	 * that was recorded, or 0 if no latencies were recorded.
+	 */
+	public long getMaxValue()
+	{
+		for (int i = counts.length - 1; i >= 0; i--)
+		{
+			if (counts[i] > 0)
+			{
+				return getBucketUpperBound(i);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @param value A latency in nanoseconds.
+	 * @return The index of the bucket that counts the latency.
+	 */
+	static int getBucketIndex(long value)
+	{
+		long clampedValue = Math.max(0, Math.min(value, MAX_VALUE));
+		int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(clampedValue) - SUB_BUCKET_BITS);
+		return shift * SUB_BUCKET_COUNT + (int) (clampedValue >>> shift);
+	}
+
+	/**
+	 * @param index The index of a bucket.
+	 * @return The largest latency in nanoseconds that the bucket counts.
+	 */
+	static long getBucketUpperBound(int index)
+	{
+		if (index < 2 * SUB_BUCKET_COUNT)
+		{
+			return index;
+		}
+		int shift = index / SUB_BUCKET_COUNT - 1;
+		long subBucket = index - shift * SUB_BUCKET_COUNT;
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
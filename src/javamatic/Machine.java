@@ -1,11 +1,10 @@
 package javamatic;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.SortedMap;
-import java.util.TreeMap;
 
 /**
  * This class describes a JavaMatic machine, handling all of the internal logic
@@ -13,18 +12,37 @@ import java.util.TreeMap;
  */
 public class Machine
 {
-	private SortedMap<Ingredient, Integer> inventory;
-	private List<Drink> drinks;
+	private volatile Ingredient[] ingredients;
+	private Ingredient[] ingredientsById;
+	private int[] quantities;
+	private int nextIngredientId;
+	private volatile Drink[] drinks;
+	private volatile IngredientIndex ingredientIndex;
+	private volatile MachineJournal journal;
+	private volatile MachineMetrics metrics;
+	private volatile MachineEvents events;
+	private volatile DrinkRecommender recommender;
+	private volatile boolean lazyStockEvaluation;
+	private long version;
+	private CachedOutput[] inventoryLines;
+	private volatile MachineSnapshot snapshot;
 	
-	private final int MAX_QUANTITY = 10;
+	protected static final int MAX_QUANTITY = 10;
+	private static final int MAX_READ_ATTEMPTS = 100;
 	
 	/**
 	 * Constructs a new machine.
 	 */
 	public Machine()
 	{
-		this.inventory = new TreeMap<Ingredient, Integer>();
-		this.drinks = new ArrayList<Drink>();
+		this.ingredients = new Ingredient[0];
+		this.ingredientsById = new Ingredient[0];
+		this.quantities = new int[0];
+		this.nextIngredientId = 0;
+		this.drinks = new Drink[0];
+		this.ingredientIndex = new IngredientIndex(drinks, 0);
+		this.version = 0;
+		this.inventoryLines = new CachedOutput[0];
 	}
 	
 	/**
@@ -33,136 +51,1588 @@ public class Machine
 	 */
 	public int getNumberOfDrinks()
 	{
-		return drinks.size();
+		return drinks.length;
 	}
 	
 	/**
-	 * Adds a new ingredient to the machine's inventory.
+	 * Adds a new ingredient to the machine's inventory. An ingredient that has not been added
+	 * to any machine yet is given the next dense id, which indexes it in the inventory. An ingredient
+	 * that already has an id keeps it, so that machines sharing a catalog index it the same way.
 	 * @param ingredient The ingredient to add.
+	 * @throws IllegalArgumentException If the ingredient's id is already used by another ingredient in
+	 * the machine, which happens when the ingredient was given its id by a machine with different ingredients.
 	 */
 	public void addIngredient(Ingredient ingredient)
 	{
-		inventory.put(ingredient, MAX_QUANTITY);
+		if (ingredient.getId() < 0)
+		{
+			ingredient.setId(nextIngredientId);
+		}
+		checkIdAvailable(ingredient, ingredientsById);
+		nextIngredientId = Math.max(nextIngredientId, ingredient.getId() + 1);
+		if (nextIngredientId > getInventorySize())
+		{
+			resizeInventory(nextIngredientId);
+			inventoryLines = Arrays.copyOf(inventoryLines, nextIngredientId);
+			ingredientsById = Arrays.copyOf(ingredientsById, nextIngredientId);
+		}
+		ingredientsById[ingredient.getId()] = ingredient;
+		
+		Ingredient[] currentIngredients = ingredients;
+		int index = Arrays.binarySearch(currentIngredients, ingredient);
+		if (index < 0)
+		{
+			index = -index - 1;
+			Ingredient[] newIngredients = new Ingredient[currentIngredients.length + 1];
+			System.arraycopy(currentIngredients, 0, newIngredients, 0, index);
+			newIngredients[index] = ingredient;
+			System.arraycopy(currentIngredients, index, newIngredients, index + 1, currentIngredients.length - index);
+			ingredients = newIngredients;
+		}
+		setQuantity(ingredient.getId(), ingredient.getCapacity());
+		incrementVersion();
 	}
 	
 	/**
-	 * Adds a new drink to the machine's menu.
+	 * Adds a new drink to the machine's menu, after any drinks with the same name. The drink's place
+	 * in the sorted menu is found with a binary search, and the menu is copied with the drink inserted
+	 * rather than changed in place, so a thread that is reading the menu keeps seeing the drink numbers
+	 * it started with. The drink's stock is calculated straight away, so it can be bought as soon as it is added.
+	 * To add many drinks, {@link #addDrinks(Collection)} is much faster.
 	 * @param drink The drink to add.
 	 */
 	public void addDrink(Drink drink)
 	{
-		drinks.add(drink);
-		Collections.sort(drinks);
+		drink.setMachine(this);
+		Drink[] menu = drinks;
+		int index = Arrays.binarySearch(menu, drink);
+		if (index < 0)
+		{
+			index = -index - 1;
+		}
+		while (index < menu.length && menu[index].compareTo(drink) == 0)
+		{
+			index++;
+		}
+		
+		Drink[] newMenu = new Drink[menu.length + 1];
+		System.arraycopy(menu, 0, newMenu, 0, index);
+		newMenu[index] = drink;
+		System.arraycopy(menu, index, newMenu, index + 1, menu.length - index);
+		drinks = newMenu;
+		updateAddedDrinkStocks(new Drink[] { drink });
+		incrementVersion();
+	}
+	
+	/**
+	 * Adds many ingredients to the machine's inventory at once. The inventory is grown and the
+	 * ingredients are sorted only once, rather than once for each ingredient, which matters when
+	 * a catalog with thousands of ingredients is loaded. Ingredients that already have ids keep them,
+	 * and the others are given the ids after them, so the ids never collide within the batch.
+	 * @param newIngredients The ingredients to add.
+	 * @throws IllegalArgumentException If an ingredient's id is already used by another ingredient in the
+	 * machine or in the batch. None of the ingredients are added in that case.
+	 */
+	public void addIngredients(Collection<Ingredient> newIngredients)
+	{
+		int size = nextIngredientId;
+		for (Ingredient ingredient : newIngredients)
+		{
+			size = Math.max(size, ingredient.getId() + 1);
+		}
+		Ingredient[] claimedIds = Arrays.copyOf(ingredientsById, size);
+		for (Ingredient ingredient : newIngredients)
+		{
+			if (ingredient.getId() >= 0)
+			{
+				checkIdAvailable(ingredient, claimedIds);
+				claimedIds[ingredient.getId()] = ingredient;
+			}
+		}
+		nextIngredientId = size;
+		for (Ingredient ingredient : newIngredients)
+		{
+			if (ingredient.getId() < 0)
+			{
+				ingredient.setId(nextIngredientId++);
+			}
+		}
+		if (nextIngredientId > getInventorySize())
+		{
+			resizeInventory(nextIngredientId);
+			inventoryLines = Arrays.copyOf(inventoryLines, nextIngredientId);
+			ingredientsById = Arrays.copyOf(ingredientsById, nextIngredientId);
+		}
+		for (Ingredient ingredient : newIngredients)
+		{
+			ingredientsById[ingredient.getId()] = ingredient;
+		}
+		
+		List<Ingredient> allIngredients = new ArrayList<Ingredient>(ingredients.length + newIngredients.size());
+		allIngredients.addAll(Arrays.asList(ingredients));
+		allIngredients.addAll(newIngredients);
+		Collections.sort(allIngredients);
+		List<Ingredient> uniqueIngredients = new ArrayList<Ingredient>(allIngredients.size());
+		for (Ingredient ingredient : allIngredients)
+		{
+			if (uniqueIngredients.isEmpty() || uniqueIngredients.get(uniqueIngredients.size() - 1).compareTo(ingredient) != 0)
+			{
+				uniqueIngredients.add(ingredient);
+			}
+		}
+		ingredients = uniqueIngredients.toArray(new Ingredient[uniqueIngredients.size()]);
+		for (Ingredient ingredient : newIngredients)
+		{
+			setQuantity(ingredient.getId(), ingredient.getCapacity());
+		}
+		incrementVersion();
+	}
+	
+	/**
+	 * Adds many drinks to the machine's menu at once. The new drinks are sorted once and then merged
+	 * with the menu, after any drinks with the same names, into a new menu that replaces the old one,
+	 * so adding n drinks takes O(n log n) time rather than sorting the menu again for each drink.
+	 * When the menu is empty, as when a catalog is loaded, the sorted drinks become the menu as they are.
+	 * The new drinks' stocks are calculated straight away, so they can be bought as soon as they are added.
+	 * @param newDrinks The drinks to add.
+	 */
+	public void addDrinks(Collection<Drink> newDrinks)
+	{
+		Drink[] addedDrinks = newDrinks.toArray(new Drink[newDrinks.size()]);
+		for (Drink drink : addedDrinks)
+		{
+			drink.setMachine(this);
+		}
+		Arrays.sort(addedDrinks);
+		
+		Drink[] menu = drinks;
+		if (menu.length == 0)
+		{
+			drinks = addedDrinks;
+			updateAddedDrinkStocks(addedDrinks);
+			incrementVersion();
+			return;
+		}
+		Drink[] newMenu = new Drink[menu.length + addedDrinks.length];
+		int i = 0;
+		int j = 0;
+		for (int k = 0; k < newMenu.length; k++)
+		{
+			if (j == addedDrinks.length || (i < menu.length && menu[i].compareTo(addedDrinks[j]) <= 0))
+			{
+				newMenu[k] = menu[i++];
+			}
+			else
+			{
+				newMenu[k] = addedDrinks[j++];
+			}
+		}
+		drinks = newMenu;
+		updateAddedDrinkStocks(addedDrinks);
+		incrementVersion();
 	}
 	
 	/**
-	 * Buys the drink with the given drink number.
+	 * Buys the drink with the given drink number. If the machine has a journal, the purchase is
+	 * recorded in it before this returns. If the machine has metrics, the purchase and how long
+	 * it took are recorded in them.
 	 * @param drinkNumber The number of the drink to buy, where 1 is the first drink that is listed.
 	 * @return Whether the drink could be successfully dispensed.
 	 */
 	public boolean buyDrink(int drinkNumber)
 	{
-		Drink drink = drinks.get(drinkNumber - 1);
-		if (drink.isInStock())
+		MachineMetrics currentMetrics = metrics;
+		if (currentMetrics == null)
+		{
+			return purchaseDrink(drinkNumber);
+		}
+		
+		long startTime = System.nanoTime();
+		boolean dispensed = purchaseDrink(drinkNumber);
+		currentMetrics.recordLatency(MachineMetrics.Operation.BUY_DRINK, System.nanoTime() - startTime);
+		currentMetrics.recordPurchase(drinkNumber, 1, dispensed ? 1 : 0);
+		return dispensed;
+	}
+	
+	/**
+	 * Buys every drink in an order at once. The total quantity of each ingredient that the order
+	 * needs is calculated first, and then removed from the inventory in one step, so the drinks'
+	 * stocks are only updated once for the whole order. If the machine has metrics, each item of
+	 * the order and how long the whole order took are recorded in them.
+	 * @param order The items in the order.
+	 * @param fillPartially If false, either the whole order is dispensed or none of it is. If true,
+	 * as many servings of each item as possible are dispensed, in the order that the items are listed.
+	 * @return The number of servings that were dispensed for each item in the order.
+	 */
+	public int[] buyDrinks(List<OrderItem> order, boolean fillPartially)
+	{
+		MachineMetrics currentMetrics = metrics;
+		if (currentMetrics == null)
+		{
+			return purchaseDrinks(order, fillPartially);
+		}
+		
+		long startTime = System.nanoTime();
+		int[] servingsDispensed = purchaseDrinks(order, fillPartially);
+		currentMetrics.recordLatency(MachineMetrics.Operation.BUY_DRINKS, System.nanoTime() - startTime);
+		for (int i = 0; i < order.size(); i++)
+		{
+			currentMetrics.recordPurchase(order.get(i).getDrinkNumber(), order.get(i).getCount(), servingsDispensed[i]);
+		}
+		return servingsDispensed;
+	}
+	
+	/**
+	 * Restocks the machine's inventory, setting every ingredient's quantity to its capacity.
+	 * The index of which drinks use each ingredient is rebuilt, so any changes to the drinks'
+	 * recipes take effect from now on. If the machine has a journal, the restock is recorded
+	 * in it before this returns. If the machine has metrics, the restock and how long it took
+	 * are recorded in them.
+	 */
+	public void restockInventory()
+	{
+		MachineMetrics currentMetrics = metrics;
+		if (currentMetrics == null)
+		{
+			restock();
+			return;
+		}
+		
+		long startTime = System.nanoTime();
+		restock();
+		currentMetrics.recordLatency(MachineMetrics.Operation.RESTOCK, System.nanoTime() - startTime);
+		currentMetrics.recordRestock();
+	}
+	
+	/**
+	 * Adds a batch of ingredients to the inventory, as when a technician only refills a few of them.
+	 * Each ingredient's quantity is capped at its capacity. The whole batch is checked before any of it
+	 * is added, and it is recorded in the machine's journal as one restock, so either all of it or none
+	 * of it is recovered. Only the drinks that use the added ingredients have their stocks updated, and
+	 * drinks can be bought while the batch is being added. If the machine has metrics, the restock and
+	 * how long it took are recorded in them.
+	 * @param items The items in the restock.
+	 * @throws IllegalArgumentException If an ingredient has not been added to the machine.
+	 */
+	public void restockIngredients(List<RestockItem> items)
+	{
+		int[] ingredientIds = new int[items.size()];
+		int[] amounts = new int[items.size()];
+		for (int i = 0; i < items.size(); i++)
 		{
-			for (Ingredient ingredient : drink.getIngredients())
+			Ingredient ingredient = items.get(i).getIngredient();
+			if (!hasIngredient(ingredient))
 			{
-				int quantityAvailable = inventory.get(ingredient);
-				int quantityRequired = drink.getIngredientQuantity(ingredient);
-				int newQuantity = quantityAvailable - quantityRequired;
-				inventory.put(ingredient, newQuantity);
+				throw new IllegalArgumentException(String.format("Unknown ingredient: %s", ingredient.getName()));
 			}
-			updateDrinkStocks();
-			return true;
+			ingredientIds[i] = ingredient.getId();
+			amounts[i] = items.get(i).getAmount();
 		}
-		return false;
+		
+		MachineMetrics currentMetrics = metrics;
+		if (currentMetrics == null)
+		{
+			restock(ingredientIds, amounts);
+			return;
+		}
+		
+		long startTime = System.nanoTime();
+		restock(ingredientIds, amounts);
+		currentMetrics.recordLatency(MachineMetrics.Operation.RESTOCK, System.nanoTime() - startTime);
+		currentMetrics.recordRestock();
+	}
+	
+	/**
+	 * Buys the drink with the given drink number, recording the purchase in the machine's journal if it has one.
+	 * @param drinkNumber The number of the drink to buy, where 1 is the first drink that is listed.
+	 * @return Whether the drink could be successfully dispensed.
+	 */
+	private boolean purchaseDrink(int drinkNumber)
+	{
+		return publishPurchase(drinkNumber, takeDrink(drinkNumber));
 	}
 	
 	/**
-	 * Restocks the machine's inventory, setting every ingredient's quantity to the max quantity.
+	 * Takes the ingredients of the drink with the given drink number out of the inventory, recording them
+	 * in the machine's journal as a purchase if it has one, but without recording them in the machine's
+	 * metrics or publishing them. A purchase is a hold that is committed straight away. Any drinks that the
+	 * hold puts out of stock are published straight away, because the hold is only published if it is committed.
+	 * @param drinkNumber The number of the drink, where 1 is the first drink that is listed.
+	 * @return Whether the drink was in stock.
 	 */
-	public void restockInventory()
+	boolean holdDrink(int drinkNumber)
 	{
-		for (Ingredient ingredient : inventory.keySet())
+		boolean held = takeDrink(drinkNumber);
+		MachineEvents currentEvents = events;
+		if (currentEvents != null)
 		{
-			inventory.put(ingredient, MAX_QUANTITY);
+			currentEvents.publishOutOfStock();
 		}
-		updateDrinkStocks();
+		return held;
 	}
 	
 	/**
+	 * Takes the ingredients of the drink with the given drink number out of the inventory, recording them
+	 * in the machine's journal as a purchase if it has one.
 	 * @param drinkNumber The number of the drink, where 1 is the first drink that is listed.
-	 * @return The name of the drink with the given drink number.
+	 * @return Whether the drink was in stock.
 	 */
-	public String getDrinkName(int drinkNumber)
+	private boolean takeDrink(int drinkNumber)
 	{
-		Drink drink = drinks.get(drinkNumber - 1);
-		return drink.getName();
+		MachineJournal currentJournal = journal;
+		if (currentJournal == null)
+		{
+			return dispenseDrink(drinkNumber);
+		}
+		
+		long sequence;
+		currentJournal.lock();
+		try
+		{
+			if (!dispenseDrink(drinkNumber))
+			{
+				return false;
+			}
+			sequence = currentJournal.appendPurchase(drinkNumber, 1);
+		}
+		finally
+		{
+			currentJournal.unlock();
+		}
+		currentJournal.awaitDurable(sequence);
+		return true;
 	}
 	
 	/**
-	 * @return A string describing the machine's current inventory. Each ingredient is listed
-	 * with its name and current quantity available.
+	 * Records a drink whose ingredients were held as bought, in the machine's metrics and events.
+	 * Its ingredients were already recorded in the machine's journal when they were held. The drink
+	 * is passed rather than its drink number, since drinks may have been added to the menu while it was
+	 * held, and it is only looked up by drink number again for the metrics, which count by drink number.
+	 * @param drink The drink whose ingredients were held.
 	 */
-	public String outputInventory()
+	void commitHold(Drink drink)
 	{
-		StringBuilder output = new StringBuilder();
-		output.append("Inventory:\n");
-		for (Entry<Ingredient, Integer> entry : inventory.entrySet())
+		MachineMetrics currentMetrics = metrics;
+		if (currentMetrics != null)
 		{
-			Ingredient ingredient = entry.getKey();
-			int quantityAvailable = entry.getValue();
-			output.append(String.format("%s,%d\n", ingredient.getName(), quantityAvailable));
+			int drinkNumber = getDrinkNumber(drink);
+			if (drinkNumber > 0)
+			{
+				currentMetrics.recordPurchase(drinkNumber, 1, 1);
+			}
+		}
+		MachineEvents currentEvents = events;
+		if (currentEvents != null)
+		{
+			currentEvents.publishDispensed(drink, 1);
 		}
-		return output.toString();
 	}
 	
 	/**
-	 * @return A string describing the machine's drink menu. Each drink is listed with its
-	 * drink number, name, cost, and whether it is currently in stock.
+	 * Returns the ingredients of a drink that were held back to the inventory. They are added like a restock
+	 * of those ingredients, and recorded in the machine's journal as one, so that the purchase that the hold
+	 * was recorded as is undone. Each ingredient is capped at its capacity, in case the machine was restocked
+	 * while the drink was held. Nothing was restocked, so no restock is published, and ingredients that were
+	 * low stay low until they are really restocked.
+	 * @param drink The drink whose ingredients were held.
 	 */
-	public String outputMenu()
+	void releaseHold(Drink drink)
+	{
+		Recipe recipe = drink.getRecipe();
+		addToInventory(recipe.ingredientIds, recipe.quantities);
+	}
+	
+	/**
+	 * Buys every drink in an order at once, recording the purchases in the machine's journal if it has one.
+	 * @param order The items in the order.
+	 * @param fillPartially Whether as many servings of each item as possible are dispensed.
+	 * @return The number of servings that were dispensed for each item in the order.
+	 */
+	private int[] purchaseDrinks(List<OrderItem> order, boolean fillPartially)
 	{
-		StringBuilder output = new StringBuilder();
-		output.append("Menu:\n");
-		for (int i = 0; i < drinks.size(); i++)
+		MachineJournal currentJournal = journal;
+		if (currentJournal == null)
+		{
+			return publishPurchases(order, dispenseDrinks(order, fillPartially));
+		}
+		
+		int[] servingsDispensed;
+		long sequence = 0;
+		currentJournal.lock();
+		try
+		{
+			servingsDispensed = dispenseDrinks(order, fillPartially);
+			for (int i = 0; i < order.size(); i++)
+			{
+				if (servingsDispensed[i] > 0)
+				{
+					sequence = currentJournal.appendPurchase(order.get(i).getDrinkNumber(), servingsDispensed[i]);
+				}
+			}
+		}
+		finally
 		{
-			Drink drink = drinks.get(i);
-			int drinkId = i + 1;
-			output.append(drink.output(drinkId));
+			currentJournal.unlock();
 		}
-		return output.toString();
+		currentJournal.awaitDurable(sequence);
+		return publishPurchases(order, servingsDispensed);
 	}
 	
 	/**
-	 * Updates whether each drink is currently in stock.
+	 * Restocks the machine's inventory, recording the restock in the machine's journal if it has one.
 	 */
-	private void updateDrinkStocks()
+	private void restock()
 	{
-		for (Drink drink : drinks)
+		MachineJournal currentJournal = journal;
+		if (currentJournal == null)
+		{
+			refillInventory();
+			publishRestock();
+			return;
+		}
+		
+		long sequence;
+		currentJournal.lock();
+		try
+		{
+			refillInventory();
+			sequence = currentJournal.appendRestock();
+		}
+		finally
 		{
-			boolean shouldBeInStock = getUpdatedDrinkStock(drink);
-			drink.setInStock(shouldBeInStock);
+			currentJournal.unlock();
 		}
+		currentJournal.awaitDurable(sequence);
+		publishRestock();
 	}
 	
 	/**
-	 * Based on the machine's current inventory, calculates whether the given drink
-	 * should currently be in stock or not.
-	 * @param drink The drink for which to calculate in stock status.
-	 * @return Whether the given drink should be in stock.
+	 * Adds a batch of ingredients to the inventory, recording the restock in the machine's journal if it has one.
+	 * @param ingredientIds The ids of the ingredients to add.
+	 * @param amounts The quantity of each ingredient to add.
 	 */
-	private boolean getUpdatedDrinkStock(Drink drink)
+	private void restock(int[] ingredientIds, int[] amounts)
 	{
-		for (Ingredient ingredient : drink.getIngredients())
+		addToInventory(ingredientIds, amounts);
+		publishRestock(ingredientIds);
+	}
+	
+	/**
+	 * Adds a batch of ingredients to the inventory, recording them in the machine's journal as a restock
+	 * if it has one, but without publishing them.
+	 * @param ingredientIds The ids of the ingredients to add.
+	 * @param amounts The quantity of each ingredient to add.
+	 */
+	private void addToInventory(int[] ingredientIds, int[] amounts)
+	{
+		MachineJournal currentJournal = journal;
+		if (currentJournal == null)
+		{
+			refillIngredients(ingredientIds, amounts);
+			return;
+		}
+		
+		long sequence;
+		currentJournal.lock();
+		try
+		{
+			currentJournal.prepareRestock(ingredientIds.length);
+			refillIngredients(ingredientIds, amounts);
+			sequence = currentJournal.appendRestock(ingredientIds, amounts);
+		}
+		finally
+		{
+			currentJournal.unlock();
+		}
+		currentJournal.awaitDurable(sequence);
+	}
+	
+	/**
+	 * Publishes that a drink was dispensed, if the machine has events and it was, and then publishes
+	 * any drinks that went out of stock.
+	 * @param drinkNumber The number of the drink, where 1 is the first drink that is listed.
+	 * @param dispensed Whether the drink was dispensed.
+	 * @return Whether the drink was dispensed.
+	 */
+	private boolean publishPurchase(int drinkNumber, boolean dispensed)
+	{
+		MachineEvents currentEvents = events;
+		if (currentEvents != null)
 		{
-			int quantityAvailable = inventory.get(ingredient);
-			int quantityRequired = drink.getIngredientQuantity(ingredient);
-			if (quantityRequired > quantityAvailable)
+			if (dispensed)
 			{
-				return false;
+				currentEvents.publishDispensed(getDrink(drinkNumber), 1);
+			}
+			currentEvents.publishOutOfStock();
+		}
+		return dispensed;
+	}
+	
+	/**
+	 * Publishes the servings that were dispensed for each item of an order, if the machine has events,
+	 * and then publishes any drinks that went out of stock.
+	 * @param order The items in the order.
+	 * @param servingsDispensed The number of servings that were dispensed for each item in the order.
+	 * @return The number of servings that were dispensed for each item in the order.
+	 */
+	private int[] publishPurchases(List<OrderItem> order, int[] servingsDispensed)
+	{
+		MachineEvents currentEvents = events;
+		if (currentEvents != null)
+		{
+			for (int i = 0; i < order.size(); i++)
+			{
+				if (servingsDispensed[i] > 0)
+				{
+					currentEvents.publishDispensed(getDrink(order.get(i).getDrinkNumber()), servingsDispensed[i]);
+				}
+			}
+			currentEvents.publishOutOfStock();
+		}
+		return servingsDispensed;
+	}
+	
+	/**
+	 * Publishes that the machine was restocked, if the machine has events.
+	 */
+	private void publishRestock()
+	{
+		MachineEvents currentEvents = events;
+		if (currentEvents != null)
+		{
+			currentEvents.publishRestocked();
+			currentEvents.publishOutOfStock();
+		}
+	}
+	
+	/**
+	 * Publishes that some ingredients were restocked, if the machine has events.
+	 * @param ingredientIds The ids of the ingredients.
+	 */
+	private void publishRestock(int[] ingredientIds)
+	{
+		MachineEvents currentEvents = events;
+		if (currentEvents != null)
+		{
+			currentEvents.publishRestocked(ingredientIds);
+			currentEvents.publishOutOfStock();
+		}
+	}
+	
+	/**
+	 * Dispenses the drink with the given drink number if it is in stock, removing its ingredients
+	 * from the inventory. Whether it is in stock is checked against the quantities of its recipe's
+	 * ingredients, as snapshots and concurrent machines check it, rather than against the drink's cached
+	 * stock, so every kind of machine and every menu agrees on which drinks can be bought.
+	 * Subclasses that store the inventory differently override this.
+	 * @param drinkNumber The number of the drink to dispense, where 1 is the first drink that is listed.
+	 * @return Whether the drink could be successfully dispensed.
+	 */
+	protected boolean dispenseDrink(int drinkNumber)
+	{
+		Drink drink = getDrink(drinkNumber);
+		if (getUpdatedServingsAvailable(drink) > 0)
+		{
+			Recipe recipe = drink.getRecipe();
+			for (int i = 0; i < recipe.size(); i++)
+			{
+				int id = recipe.ingredientIds[i];
+				int quantityAvailable = quantities[id];
+				int newQuantity = quantityAvailable - recipe.quantities[i];
+				quantities[id] = newQuantity;
+				updateDrinkStocks(id, quantityAvailable, newQuantity);
+			}
+			incrementVersion();
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Dispenses every drink in an order at once.
+	 * @param order The items in the order.
+	 * @param fillPartially Whether as many servings of each item as possible are dispensed,
+	 * rather than either the whole order or none of it.
+	 * @return The number of servings that were dispensed for each item in the order.
+	 */
+	private int[] dispenseDrinks(List<OrderItem> order, boolean fillPartially)
+	{
+		int[] servingsDispensed = new int[order.size()];
+		long[] demand = new long[getInventorySize()];
+		while (true)
+		{
+			Arrays.fill(demand, 0);
+			for (int i = 0; i < order.size(); i++)
+			{
+				OrderItem item = order.get(i);
+				Recipe recipe = getDrink(item.getDrinkNumber()).getRecipe();
+				int servings = item.getCount();
+				if (fillPartially)
+				{
+					servings = Math.min(servings, getServingsAvailable(recipe, demand));
+				}
+				for (int j = 0; j < recipe.size(); j++)
+				{
+					demand[recipe.ingredientIds[j]] += (long) recipe.quantities[j] * servings;
+				}
+				servingsDispensed[i] = servings;
+			}
+			
+			beginWrite();
+			boolean removed;
+			try
+			{
+				removed = removeIngredients(demand);
+			}
+			finally
+			{
+				endWrite();
+			}
+			if (removed)
+			{
+				incrementVersion();
+				return servingsDispensed;
+			}
+			if (!fillPartially)
+			{
+				return new int[order.size()];
+			}
+		}
+	}
+	
+	/**
+	 * Sets every ingredient's quantity to its capacity, as one change that readers never see half done.
+	 * The index of which drinks use each ingredient is rebuilt here if drinks were added since it was built,
+	 * so that it is ready before the machine is shared, unless the drinks' stocks are evaluated lazily,
+	 * which doesn't use it.
+	 */
+	protected void refillInventory()
+	{
+		beginWrite();
+		try
+		{
+			for (Ingredient ingredient : ingredients)
+			{
+				setQuantity(ingredient.getId(), ingredient.getCapacity());
+			}
+		}
+		finally
+		{
+			endWrite();
+		}
+		if (!lazyStockEvaluation)
+		{
+			getIngredientIndex();
+		}
+		updateDrinkStocks();
+		incrementVersion();
+	}
+	
+	/**
+	 * Adds a batch of ingredients to the inventory, capping each ingredient's quantity at its capacity,
+	 * and then updates the stocks of only the drinks that use those ingredients. The whole batch is one change,
+	 * so readers such as snapshots see either none of it or all of it. The index of which drinks use each
+	 * ingredient is not rebuilt, so unlike a full restock, this never scans the whole menu.
+	 * @param ingredientIds The ids of the ingredients to add, which must be in the inventory.
+	 * @param amounts The quantity of each ingredient to add.
+	 */
+	protected void refillIngredients(int[] ingredientIds, int[] amounts)
+	{
+		beginWrite();
+		try
+		{
+			for (int i = 0; i < ingredientIds.length; i++)
+			{
+				addQuantity(ingredientIds[i], amounts[i], ingredientsById[ingredientIds[i]].getCapacity());
+			}
+		}
+		finally
+		{
+			endWrite();
+		}
+		for (int i = 0; i < ingredientIds.length; i++)
+		{
+			updateIngredientDrinkStocks(ingredientIds[i]);
+		}
+		incrementVersion();
+	}
+	
+	/**
+	 * @param drinkNumber The number of the drink, where 1 is the first drink that is listed.
+	 * @return The number of servings of the drink that the current inventory has enough ingredients for.
+	 * The servings are kept up to date as the inventory changes, so this doesn't look at the inventory.
+	 */
+	public int getServingsAvailable(int drinkNumber)
+	{
+		return getDrink(drinkNumber).getServingsAvailable();
+	}
+	
+	/**
+	 * @return The number of servings of each drink that the current inventory has enough ingredients for,
+	 * indexed by drink number minus one. Each drink's servings assume that no other drinks are bought.
+	 */
+	public int[] getServingsAvailable()
+	{
+		Drink[] menu = drinks;
+		int[] servingsAvailable = new int[menu.length];
+		for (int i = 0; i < servingsAvailable.length; i++)
+		{
+			servingsAvailable[i] = menu[i].getServingsAvailable();
+		}
+		return servingsAvailable;
+	}
+	
+	/**
+	 * Calculates how many times the given order can be filled in full from the current inventory, such as
+	 * how many rounds of two lattes and a mocha can be served. Drinks in the order that share ingredients
+	 * are accounted for, since the total quantity of each ingredient that one order needs is added up first,
+	 * and the answer is the fewest times that any ingredient's quantity covers its total.
+	 * @param order The items in the order.
+	 * @return The number of times the order can be filled, or {@link Integer#MAX_VALUE} if it needs no ingredients.
+	 */
+	public int getOrdersAvailable(List<OrderItem> order)
+	{
+		long[] demand = new long[getInventorySize()];
+		for (int i = 0; i < order.size(); i++)
+		{
+			OrderItem item = order.get(i);
+			Recipe recipe = getDrink(item.getDrinkNumber()).getRecipe();
+			for (int j = 0; j < recipe.size(); j++)
+			{
+				demand[recipe.ingredientIds[j]] += (long) recipe.quantities[j] * item.getCount();
+			}
+		}
+		
+		long ordersAvailable = Integer.MAX_VALUE;
+		for (int id = 0; id < demand.length; id++)
+		{
+			if (demand[id] > 0)
+			{
+				ordersAvailable = Math.min(ordersAvailable, getQuantity(id) / demand[id]);
+			}
+		}
+		return (int) ordersAvailable;
+	}
+	
+	/**
+	 * @return Whether the drinks' stocks are only calculated when they are read, rather than
+	 * after every change to the inventory.
+	 */
+	public boolean isLazyStockEvaluation()
+	{
+		return lazyStockEvaluation;
+	}
+	
+	/**
+	 * Sets whether the drinks' stocks are only calculated when they are read. When they are, buying a drink
+	 * only touches the ingredients in its recipe, no matter how many other drinks use them, and each drink's
+	 * stock is calculated again the first time it is read after the machine has changed. This suits machines
+	 * whose menus are shown much less often than drinks are bought.
+	 * @param lazyStockEvaluation Whether the drinks' stocks are only calculated when they are read.
+	 */
+	public void setLazyStockEvaluation(boolean lazyStockEvaluation)
+	{
+		this.lazyStockEvaluation = lazyStockEvaluation;
+		if (!lazyStockEvaluation)
+		{
+			indexDrinksByIngredient();
+			updateDrinkStocks();
+		}
+		incrementVersion();
+	}
+	
+	/**
+	 * @param drinkNumber The number of the drink, where 1 is the first drink that is listed.
+	 * @return The name of the drink with the given drink number.
+	 */
+	public String getDrinkName(int drinkNumber)
+	{
+		Drink drink = getDrink(drinkNumber);
+		return drink.getName();
+	}
+	
+	/**
+	 * @param drinkNumber The number of the drink, where 1 is the first drink that is listed.
+	 * @return The drink with the given drink number.
+	 */
+	public Drink getDrink(int drinkNumber)
+	{
+		return drinks[drinkNumber - 1];
+	}
+	
+	/**
+	 * Finds a drink's current drink number, which changes when drinks are added before it in the menu.
+	 * The drinks with the drink's name are found with a binary search, and then compared by identity.
+	 * @param drink The drink.
+	 * @return The drink number of the drink, where 1 is the first drink that is listed, or 0 if it isn't on the menu.
+	 */
+	int getDrinkNumber(Drink drink)
+	{
+		Drink[] menu = drinks;
+		int index = Arrays.binarySearch(menu, drink);
+		if (index < 0)
+		{
+			return 0;
+		}
+		while (index > 0 && menu[index - 1].compareTo(drink) == 0)
+		{
+			index--;
+		}
+		for (; index < menu.length && menu[index].compareTo(drink) == 0; index++)
+		{
+			if (menu[index] == drink)
+			{
+				return index + 1;
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * @return The machine's ingredients, sorted by name.
+	 */
+	List<Ingredient> getIngredients()
+	{
+		return Collections.unmodifiableList(Arrays.asList(ingredients));
+	}
+	
+	/**
+	 * @param ingredient The ingredient.
+	 * @return Whether the ingredient has been added to the machine's inventory.
+	 */
+	boolean hasIngredient(Ingredient ingredient)
+	{
+		int id = ingredient.getId();
+		Ingredient[] currentIngredientsById = ingredientsById;
+		return id >= 0 && id < currentIngredientsById.length && currentIngredientsById[id] == ingredient;
+	}
+	
+	/**
+	 * Checks that every ingredient in a drink's recipe has been added to the machine's inventory,
+	 * so that the recipe's ingredient ids index the inventory.
+	 * @param drink The drink.
+	 * @throws IllegalArgumentException If the drink uses an ingredient that isn't in the machine.
+	 */
+	void checkIngredients(Drink drink)
+	{
+		for (Ingredient ingredient : drink.getIngredients())
+		{
+			if (!hasIngredient(ingredient))
+			{
+				throw new IllegalArgumentException(String.format("%s uses an ingredient that isn't in the machine: %s", drink.getName(), ingredient.getName()));
+			}
+		}
+	}
+	
+	/**
+	 * @return The version of the machine's inventory and menu, which changes whenever the machine
+	 * changes either of them or an ingredient's price changes. Callers that display the machine's output can skip redrawing it
+	 * when the version is the same as when they last drew it.
+	 */
+	public long getVersion()
+	{
+		return getChangeCount() + Pricing.getPriceVersion();
+	}
+	
+	/**
+	 * Takes a snapshot of the machine's inventory and menu, or returns the last one if the version hasn't changed
+	 * since it was taken. The quantities are copied without taking any lock, and on a machine that is shared between
+	 * threads, they are copied again if any inventory change was under way, so the snapshot is the inventory as it
+	 * was at one moment. If changes never stop long enough for that after many tries, which only happens under a
+	 * constant stream of purchases, new changes are held off while the changes that are under way finish and the
+	 * quantities are copied once more, so a snapshot never includes part of a change. If the menu
+	 * hasn't changed since the last snapshot, only the servings of drinks that use an ingredient whose quantity
+	 * changed are calculated again.
+	 * @return The snapshot.
+	 */
+	public MachineSnapshot getSnapshot()
+	{
+		long currentVersion = getVersion();
+		MachineSnapshot currentSnapshot = snapshot;
+		if (currentSnapshot != null && currentSnapshot.getVersion() == currentVersion)
+		{
+			return currentSnapshot;
+		}
+		
+		Ingredient[] currentIngredients = ingredients;
+		Drink[] menu = drinks;
+		int[] copy = new int[getInventorySize()];
+		boolean copied = false;
+		for (int attempt = 0; attempt < MAX_READ_ATTEMPTS && !copied; attempt++)
+		{
+			long stamp = beginRead();
+			copyQuantities(copy);
+			copied = validateRead(stamp);
+			if (!copied)
+			{
+				Thread.yield();
+			}
+		}
+		if (!copied)
+		{
+			beginExclusiveRead();
+			try
+			{
+				copyQuantities(copy);
+			}
+			finally
+			{
+				endExclusiveRead();
+			}
+		}
+		IngredientIndex index = ingredientIndex;
+		if (currentSnapshot != null && index.menu == menu)
+		{
+			currentSnapshot = new MachineSnapshot(currentVersion, currentIngredients, copy, menu, inventoryLines, currentSnapshot, index.positions);
+		}
+		else
+		{
+			currentSnapshot = new MachineSnapshot(currentVersion, currentIngredients, copy, menu, inventoryLines);
+		}
+		snapshot = currentSnapshot;
+		return currentSnapshot;
+	}
+	
+	/**
+	 * Copies every ingredient's quantity.
+	 * @param copy The array to copy the quantities into, indexed by ingredient id.
+	 */
+	private void copyQuantities(int[] copy)
+	{
+		for (int id = 0; id < copy.length; id++)
+		{
+			copy[id] = getQuantity(id);
+		}
+	}
+	
+	/**
+	 * @return A string describing the machine's current inventory. Each ingredient is listed
+	 * with its name and current quantity available. The string is rendered from the machine's snapshot,
+	 * so it is only rebuilt when the version changes, and only the lines of ingredients whose quantities
+	 * changed are rendered again.
+	 */
+	public String outputInventory()
+	{
+		return getSnapshot().outputInventory();
+	}
+	
+	/**
+	 * @return A string describing the machine's drink menu. Each drink is listed with its
+	 * drink number, name, cost, and whether it is currently in stock. The string is rendered from the
+	 * machine's snapshot, so it is only rebuilt when the version changes, and each drink only renders
+	 * its line again when it changes. If the machine has metrics, how long this took is recorded in them.
+	 */
+	public String outputMenu()
+	{
+		return outputMenu(getSnapshot());
+	}
+	
+	/**
+	 * @param snapshot A snapshot of the machine, such as one whose inventory is output along with the menu.
+	 * @return A string describing the snapshot's drink menu. If the machine has metrics, how long this took is recorded in them.
+	 */
+	String outputMenu(MachineSnapshot snapshot)
+	{
+		MachineMetrics currentMetrics = metrics;
+		if (currentMetrics == null)
+		{
+			return snapshot.outputMenu();
+		}
+		
+		long startTime = System.nanoTime();
+		String text = snapshot.outputMenu();
+		currentMetrics.recordLatency(MachineMetrics.Operation.OUTPUT_MENU, System.nanoTime() - startTime);
+		return text;
+	}
+	
+	/**
+	 * @return The number of times the machine has changed its inventory or menu. Together with the
+	 * version of the prices, this makes up the version of the machine.
+	 */
+	protected long getChangeCount()
+	{
+		return version;
+	}
+	
+	/**
+	 * Changes the version of the machine's inventory and menu, after either of them has changed.
+	 */
+	protected void incrementVersion()
+	{
+		version++;
+	}
+	
+	/**
+	 * Marks the start of a change to the inventory's quantities, for machines that are shared between threads
+	 * to tell readers that a change is under way. A regular machine isn't shared, so this does nothing.
+	 */
+	protected void beginWrite()
+	{
+	}
+	
+	/**
+	 * Marks the end of a change to the inventory's quantities.
+	 */
+	protected void endWrite()
+	{
+	}
+	
+	/**
+	 * Starts reading the inventory's quantities without taking a lock.
+	 * @return A stamp to validate the read with.
+	 */
+	protected long beginRead()
+	{
+		return 0;
+	}
+	
+	/**
+	 * @param stamp The stamp that was returned when the read started.
+	 * @return Whether no change to the inventory was under way at any time during the read, which
+	 * is always true for a regular machine, since it isn't shared between threads.
+	 */
+	protected boolean validateRead(long stamp)
+	{
+		return true;
+	}
+	
+	/**
+	 * Starts reading the inventory's quantities while no change to them is under way, for when reading them
+	 * without a lock keeps failing. Changes that are under way finish first, and new ones wait until
+	 * {@link #endExclusiveRead()}. A regular machine isn't shared between threads, so this does nothing.
+	 */
+	protected void beginExclusiveRead()
+	{
+	}
+	
+	/**
+	 * Finishes a read that was started with {@link #beginExclusiveRead()}, letting changes start again.
+	 */
+	protected void endExclusiveRead()
+	{
+	}
+	
+	/**
+	 * Sets the journal that records every purchase and restock, or removes it.
+	 * @param journal The journal, or null to stop recording.
+	 */
+	void setJournal(MachineJournal journal)
+	{
+		this.journal = journal;
+	}
+	
+	/**
+	 * @return The metrics that record the machine's operations, or null if they aren't recorded.
+	 */
+	public MachineMetrics getMetrics()
+	{
+		return metrics;
+	}
+	
+	/**
+	 * Sets the metrics that record the machine's operations, or removes them.
+	 * @param metrics The metrics, or null to stop recording.
+	 */
+	void setMetrics(MachineMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * @return The events that changes to the machine's inventory are published to, or null if they aren't published.
+	 */
+	public MachineEvents getEvents()
+	{
+		return events;
+	}
+	
+	/**
+	 * Sets the events that changes to the machine's inventory are published to, or removes them.
+	 * @param events The events, or null to stop publishing.
+	 */
+	void setEvents(MachineEvents events)
+	{
+		this.events = events;
+	}
+	
+	/**
+	 * @return The recommender that suggests other drinks when a drink is out of stock, or null if there isn't one.
+	 */
+	public DrinkRecommender getRecommender()
+	{
+		return recommender;
+	}
+	
+	/**
+	 * Sets the recommender that suggests other drinks when a drink is out of stock.
+	 * @param recommender The recommender.
+	 */
+	void setRecommender(DrinkRecommender recommender)
+	{
+		this.recommender = recommender;
+	}
+	
+	/**
+	 * @return A copy of the quantity of every ingredient, indexed by ingredient id.
+	 */
+	int[] copyInventory()
+	{
+		int[] copy = new int[getInventorySize()];
+		for (int id = 0; id < copy.length; id++)
+		{
+			copy[id] = getQuantity(id);
+		}
+		return copy;
+	}
+	
+	/**
+	 * Sets the quantity of every ingredient, such as when recovering the inventory from a snapshot.
+	 * @param inventory The quantity of every ingredient, indexed by ingredient id.
+	 */
+	void restoreInventory(int[] inventory)
+	{
+		beginWrite();
+		try
+		{
+			for (int id = 0; id < Math.min(inventory.length, getInventorySize()); id++)
+			{
+				setQuantity(id, inventory[id]);
+			}
+		}
+		finally
+		{
+			endWrite();
+		}
+		indexDrinksByIngredient();
+		updateDrinkStocks();
+		incrementVersion();
+	}
+	
+	/**
+	 * @return The number of ingredient ids that the inventory has room for.
+	 */
+	protected int getInventorySize()
+	{
+		return quantities.length;
+	}
+	
+	/**
+	 * Grows the inventory so that it has room for the given number of ingredient ids.
+	 * Subclasses that store the inventory differently override this along with
+	 * {@link #getQuantity(int)} and {@link #setQuantity(int, int)}.
+	 * @param size The number of ingredient ids that the inventory needs room for.
+	 */
+	protected void resizeInventory(int size)
+	{
+		quantities = Arrays.copyOf(quantities, size);
+	}
+	
+	/**
+	 * @param ingredientId The id of the ingredient.
+	 * @return The quantity of the ingredient that is currently available.
+	 */
+	protected int getQuantity(int ingredientId)
+	{
+		return quantities[ingredientId];
+	}
+	
+	/**
+	 * Sets the quantity of an ingredient that is currently available.
+	 * @param ingredientId The id of the ingredient.
+	 * @param quantity The quantity of the ingredient.
+	 */
+	protected void setQuantity(int ingredientId, int quantity)
+	{
+		quantities[ingredientId] = quantity;
+	}
+	
+	/**
+	 * Adds a quantity of an ingredient to the inventory, without going over the ingredient's capacity.
+	 * An ingredient that already has more than its capacity keeps its quantity.
+	 * @param ingredientId The id of the ingredient.
+	 * @param amount The quantity of the ingredient to add.
+	 * @param capacity The capacity of the ingredient.
+	 */
+	protected void addQuantity(int ingredientId, int amount, int capacity)
+	{
+		int quantity = quantities[ingredientId];
+		quantities[ingredientId] = Math.max(quantity, (int) Math.min(capacity, (long) quantity + amount));
+	}
+	
+	/**
+	 * Removes the given quantity of each ingredient from the inventory, updating the drinks'
+	 * stocks afterwards. Either every ingredient is removed, or, if there is not enough of
+	 * any of them, none of them are.
+	 * @param demand The quantity to remove of each ingredient, indexed by ingredient id.
+	 * @return Whether the ingredients were removed from the inventory.
+	 */
+	protected boolean removeIngredients(long[] demand)
+	{
+		for (int id = 0; id < demand.length; id++)
+		{
+			if (demand[id] > quantities[id])
+			{
+				return false;
+			}
+		}
+		for (int id = 0; id < demand.length; id++)
+		{
+			if (demand[id] > 0)
+			{
+				int quantityAvailable = quantities[id];
+				int newQuantity = quantityAvailable - (int) demand[id];
+				quantities[id] = newQuantity;
+				updateDrinkStocks(id, quantityAvailable, newQuantity);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @param ingredient An ingredient that has an id.
+	 * @param ingredientsById The ingredients that already have ids in the machine, indexed by id.
+	 * @throws IllegalArgumentException If the ingredient's id is already used by another ingredient.
+	 */
+	private static void checkIdAvailable(Ingredient ingredient, Ingredient[] ingredientsById)
+	{
+		int id = ingredient.getId();
+		if (id < ingredientsById.length && ingredientsById[id] != null && ingredientsById[id] != ingredient)
+		{
+			throw new IllegalArgumentException(String.format("Ingredient id %d of %s is already used by %s",
+					id, ingredient.getName(), ingredientsById[id].getName()));
+		}
+	}
+	
+	/**
+	 * Calculates the stocks of drinks that were added to the menu from the current inventory, unless the drinks'
+	 * stocks are evaluated lazily. The index of which drinks use each ingredient no longer matches the menu, and
+	 * is rebuilt the next time it is needed, so adding many drinks one at a time doesn't rebuild it for each one.
+	 * @param addedDrinks The drinks that were added.
+	 */
+	private void updateAddedDrinkStocks(Drink[] addedDrinks)
+	{
+		if (lazyStockEvaluation)
+		{
+			return;
+		}
+		for (Drink drink : addedDrinks)
+		{
+			refreshServingsAvailable(drink);
+		}
+	}
+	
+	/**
+	 * Indexes the menu by ingredient again after a drink's recipe changed, and calculates the drink's stock
+	 * from the current inventory, as for a drink that was just added.
+	 * @param drink The drink whose recipe changed, which is on the machine's menu.
+	 */
+	void updateRecipe(Drink drink)
+	{
+		if (!lazyStockEvaluation)
+		{
+			indexDrinksByIngredient();
+			refreshServingsAvailable(drink);
+		}
+		incrementVersion();
+	}
+	
+	/**
+	 * Rebuilds the index from each ingredient id to the drinks whose recipes use it.
+	 */
+	private void indexDrinksByIngredient()
+	{
+		ingredientIndex = new IngredientIndex(drinks, nextIngredientId);
+	}
+	
+	/**
+	 * @return The index from each ingredient id to the drinks whose recipes use it, which is rebuilt first
+	 * if drinks were added to the menu since it was built.
+	 */
+	private IngredientIndex getIngredientIndex()
+	{
+		IngredientIndex index = ingredientIndex;
+		Drink[] menu = drinks;
+		if (index.menu != menu)
+		{
+			index = new IngredientIndex(menu, nextIngredientId);
+			ingredientIndex = index;
+		}
+		return index;
+	}
+	
+	/**
+	 * Updates the number of servings available, and therefore whether it is in stock, for every drink.
+	 * A drink's servings are only written when they change, so that threads sharing the machine
+	 * don't keep invalidating each other's caches, and the version is changed if any were written.
+	 */
+	protected void updateDrinkStocks()
+	{
+		if (lazyStockEvaluation)
+		{
+			return;
+		}
+		boolean changed = false;
+		Drink[] menu = drinks;
+		for (int i = 0; i < menu.length; i++)
+		{
+			changed |= refreshServingsAvailable(menu[i]);
+		}
+		if (changed)
+		{
+			incrementVersion();
+		}
+	}
+	
+	/**
+	 * Updates the number of servings available for the drinks that use any of the ingredients in the
+	 * given recipe, after those ingredients have been removed from the inventory for that recipe.
+	 * @param recipe The recipe whose ingredients were removed.
+	 */
+	protected void updateDrinkStocks(Recipe recipe)
+	{
+		if (lazyStockEvaluation)
+		{
+			return;
+		}
+		for (int i = 0; i < recipe.size(); i++)
+		{
+			updateDrinkStocksAfterRemoval(recipe.ingredientIds[i]);
+		}
+	}
+	
+	/**
+	 * Updates the number of servings available for the drinks that use the given ingredient, after some of it
+	 * has been removed from the inventory. Removing an ingredient can only lower a drink's servings, so only
+	 * the drinks whose servings are more than the ingredient's current quantity allows are calculated again.
+	 * Every thread that removes the ingredient checks the drinks against the quantity after its own removal,
+	 * so the last one to check sees the final quantity, and none of the drinks are left with too many servings.
+	 * @param ingredientId The id of the ingredient that was removed.
+	 */
+	protected void updateDrinkStocksAfterRemoval(int ingredientId)
+	{
+		IngredientIndex index = lazyStockEvaluation ? null : getIngredientIndex();
+		if (index == null || ingredientId >= index.drinks.length)
+		{
+			return;
+		}
+		int quantityAvailable = getQuantity(ingredientId);
+		boolean changed = false;
+		Drink[] drinksWithIngredient = index.drinks[ingredientId];
+		int[] quantitiesRequired = index.quantities[ingredientId];
+		for (int i = 0; i < drinksWithIngredient.length; i++)
+		{
+			int quantityRequired = quantitiesRequired[i];
+			if (quantityRequired > 0 && drinksWithIngredient[i].getServingsAvailable() > quantityAvailable / quantityRequired)
+			{
+				changed |= refreshServingsAvailable(drinksWithIngredient[i]);
+			}
+		}
+		if (changed)
+		{
+			incrementVersion();
+		}
+	}
+	
+	/**
+	 * Updates the number of servings available for every drink that uses the given ingredient.
+	 * A drink's servings are only written when they change, and the version is changed if any were written.
+	 * @param ingredientId The id of the ingredient whose quantity has changed.
+	 */
+	protected void updateIngredientDrinkStocks(int ingredientId)
+	{
+		IngredientIndex index = lazyStockEvaluation ? null : getIngredientIndex();
+		if (index == null || ingredientId >= index.drinks.length)
+		{
+			return;
+		}
+		boolean changed = false;
+		Drink[] drinksWithIngredient = index.drinks[ingredientId];
+		for (int i = 0; i < drinksWithIngredient.length; i++)
+		{
+			changed |= refreshServingsAvailable(drinksWithIngredient[i]);
+		}
+		if (changed)
+		{
+			incrementVersion();
+		}
+	}
+	
+	/**
+	 * Updates the number of servings available for the drinks that use the given ingredient,
+	 * after the quantity of that ingredient has changed. Only the drinks for which the number
+	 * of servings that the ingredient allows has changed are recalculated.
+	 * @param ingredientId The id of the ingredient whose quantity has changed.
+	 * @param oldQuantity The quantity of the ingredient before it changed.
+	 * @param newQuantity The quantity of the ingredient after it changed.
+	 */
+	private void updateDrinkStocks(int ingredientId, int oldQuantity, int newQuantity)
+	{
+		IngredientIndex index = lazyStockEvaluation ? null : getIngredientIndex();
+		if (index == null || ingredientId >= index.drinks.length)
+		{
+			return;
+		}
+		Drink[] drinksWithIngredient = index.drinks[ingredientId];
+		int[] quantitiesRequired = index.quantities[ingredientId];
+		for (int i = 0; i < drinksWithIngredient.length; i++)
+		{
+			int quantityRequired = quantitiesRequired[i];
+			if (quantityRequired > 0 && oldQuantity / quantityRequired != newQuantity / quantityRequired)
+			{
+				Drink drink = drinksWithIngredient[i];
+				setServingsAvailable(drink, getUpdatedServingsAvailable(drink));
+			}
+		}
+	}
+	
+	/**
+	 * Calculates the number of servings available for a drink from the current inventory, and writes them
+	 * if they changed. On a machine that is shared between threads, another thread may write servings that it
+	 * calculated from an older inventory just after this one writes its own, so the servings are calculated
+	 * again after every write, until they match what was written. Whichever thread writes last then checks
+	 * its write against an inventory that is at least as new as every write, so the servings never stay stale.
+	 * @param drink The drink.
+	 * @return Whether the servings were written.
+	 */
+	private boolean refreshServingsAvailable(Drink drink)
+	{
+		boolean changed = false;
+		int servingsAvailable = getUpdatedServingsAvailable(drink);
+		while (drink.getServingsAvailable() != servingsAvailable)
+		{
+			setServingsAvailable(drink, servingsAvailable);
+			changed = true;
+			servingsAvailable = getUpdatedServingsAvailable(drink);
+		}
+		return changed;
+	}
+	
+	/**
+	 * Sets the number of servings available for a drink, buffering that it went out of stock
+	 * if the machine has events and it did, to be published after the change that caused it.
+	 * @param drink The drink.
+	 * @param servingsAvailable The number of servings of the drink that can be made.
+	 */
+	private void setServingsAvailable(Drink drink, int servingsAvailable)
+	{
+		int oldServingsAvailable = drink.getServingsAvailable();
+		drink.setServingsAvailable(servingsAvailable);
+		MachineEvents currentEvents = events;
+		if (currentEvents != null && servingsAvailable == 0 && oldServingsAvailable > 0)
+		{
+			currentEvents.bufferOutOfStock(drink);
+		}
+	}
+	
+	/**
+	 * Based on the machine's current inventory, calculates how many servings of the given drink
+	 * can be made, for drinks whose stock is evaluated lazily.
+	 * @param drink The drink for which to calculate the number of servings.
+	 * @return The number of servings of the given drink that can be made.
+	 */
+	int calculateServingsAvailable(Drink drink)
+	{
+		return getUpdatedServingsAvailable(drink);
+	}
+	
+	/**
+	 * Calculates how many servings of a recipe can be made from the machine's current inventory,
+	 * after the given quantities of ingredients have already been set aside.
+	 * @param recipe The recipe for which to calculate the number of servings.
+	 * @param demand The quantity of each ingredient that has been set aside, indexed by ingredient id.
+	 * @return The number of servings of the recipe that can be made.
+	 */
+	private int getServingsAvailable(Recipe recipe, long[] demand)
+	{
+		long servingsAvailable = Integer.MAX_VALUE;
+		for (int i = 0; i < recipe.size(); i++)
+		{
+			int quantityRequired = recipe.quantities[i];
+			if (quantityRequired > 0)
+			{
+				int id = recipe.ingredientIds[i];
+				long quantityAvailable = Math.max(0, getQuantity(id) - demand[id]);
+				servingsAvailable = Math.min(servingsAvailable, quantityAvailable / quantityRequired);
+			}
+		}
+		return (int) servingsAvailable;
+	}
+	
+	/**
+	 * Based on the machine's current inventory, calculates how many servings of the given drink
+	 * can be made, which is zero if the drink should be out of stock.
+	 * @param drink The drink for which to calculate the number of servings.
+	 * @return The number of servings of the given drink that can be made.
+	 */
+	private int getUpdatedServingsAvailable(Drink drink)
+	{
+		Recipe recipe = drink.getRecipe();
+		int servingsAvailable = Integer.MAX_VALUE;
+		for (int i = 0; i < recipe.size(); i++)
+		{
+			int quantityRequired = recipe.quantities[i];
+			if (quantityRequired > 0)
+			{
+				int quantityAvailable = getQuantity(recipe.ingredientIds[i]);
+				servingsAvailable = Math.min(servingsAvailable, quantityAvailable / quantityRequired);
+			}
+		}
+		return servingsAvailable;
+	}
+	
+	/**
+	 * This class describes an index from each ingredient id to the drinks whose recipes use it, along
+	 * with their positions in the menu and the quantity of the ingredient that each of those drinks requires. It is immutable, so
+	 * threads sharing the machine always see a complete index.
+	 */
+	private static class IngredientIndex
+	{
+		private final Drink[] menu;
+		private final Drink[][] drinks;
+		private final int[][] positions;
+		private final int[][] quantities;
+		
+		/**
+		 * Builds the index for the given drinks.
+		 * @param menu The drinks to index.
+		 * @param ingredientCount The number of ingredient ids.
+		 */
+		private IngredientIndex(Drink[] menu, int ingredientCount)
+		{
+			int[] drinkCounts = new int[ingredientCount];
+			for (Drink drink : menu)
+			{
+				Recipe recipe = drink.getRecipe();
+				for (int i = 0; i < recipe.size(); i++)
+				{
+					drinkCounts[recipe.ingredientIds[i]]++;
+				}
+			}
+			
+			this.menu = menu;
+			this.drinks = new Drink[ingredientCount][];
+			this.positions = new int[ingredientCount][];
+			this.quantities = new int[ingredientCount][];
+			for (int id = 0; id < ingredientCount; id++)
+			{
+				drinks[id] = new Drink[drinkCounts[id]];
+				positions[id] = new int[drinkCounts[id]];
+				quantities[id] = new int[drinkCounts[id]];
+				drinkCounts[id] = 0;
+			}
+			
+			for (int position = 0; position < menu.length; position++)
+			{
+				Recipe recipe = menu[position].getRecipe();
+				for (int i = 0; i < recipe.size(); i++)
+				{
+					int id = recipe.ingredientIds[i];
+					drinks[id][drinkCounts[id]] = menu[position];
+					positions[id][drinkCounts[id]] = position;
+					quantities[id][drinkCounts[id]] = recipe.quantities[i];
+					drinkCounts[id]++;
+				}
 			}
 		}
-		return true;
 	}
 }
@@ -0,0 +1,115 @@
+package javamatic;
+
+/**
+ * This class describes a change to a JavaMatic machine's inventory that is published to the machine's
+ * event consumers. Events are preallocated in a ring buffer and reused, so an event is only valid while
+ * it is being handled, and a consumer that keeps any of it must copy what it keeps.
+ */
+public final class MachineEvent
+{
+	/**
+	 * This enum lists the types of events.
+	 */
+	public enum Type
+	{
+		/**
+		 * Servings of a drink were dispensed.
+		 */
+		DRINK_DISPENSED,
+
+		/**
+		 * An ingredient's quantity fell below the low quantity for the first time since the last restock.
+		 */
+		INGREDIENT_LOW,
+
+		/**
+		 * A drink went out of stock.
+		 */
+		DRINK_OUT_OF_STOCK,
+
+		/**
+		 * The machine was restocked, or one of its ingredients was.
+		 */
+		RESTOCKED
+	}
+
+	private Type type;
+	private Drink drink;
+	private Ingredient ingredient;
+	private int quantity;
+
+	/**
+	 * Constructs a new event for a slot of the ring buffer.
+	 */
+	MachineEvent()
+	{
+	}
+
+	/**
+	 * @return The type of the event.
+	 */
+	public Type getType()
+	{
+		return type;
+	}
+
+	/**
+	 * @return The drink that was dispensed or went out of stock, or null for other types of events.
+	 */
+	public Drink getDrink()
+	{
+		return drink;
+	}
+
+	/**
+	 * @return The ingredient that is low or was restocked, or null for other types of events
+	 * and when the whole machine was restocked.
+	 */
+	public Ingredient getIngredient()
+	{
+		return ingredient;
+	}
+
+	/**
+	 * @return The number of servings that were dispensed, the quantity of the ingredient that is left
+	 * or that it was restocked to, or 0 for other types of events.
+	 */
+	public int getQuantity()
+	{
+		return quantity;
+	}
+
+	/**
+	 * Sets every field of the event, when it is published.
+	 * @param type The type of the event.
+	 * @param drink The drink, or null.
+	 * @param ingredient The ingredient, or null.
+	 * @param quantity The number of servings or quantity of the ingredient, or 0.
+	 */
+	void set(Type type, Drink drink, Ingredient ingredient, int quantity)
+	{
+		this.type = type;
+		this.drink = drink;
+		this.ingredient = ingredient;
+		this.quantity = quantity;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		switch (type)
+		{
+		case DRINK_DISPENSED:
+			return String.format("Dispensed: %s,%d", drink.getName(), quantity);
+		case INGREDIENT_LOW:
+			return String.format("Low: %s,%d", ingredient.getName(), quantity);
+		case DRINK_OUT_OF_STOCK:
+			return String.format("Out of stock: %s", drink.getName());
+		default:
+			return ingredient == null ? "Restocked" : String.format("Restocked: %s,%d", ingredient.getName(), quantity);
+		}
+	}
+}
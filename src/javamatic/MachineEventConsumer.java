@@ -0,0 +1,23 @@
+package javamatic;
+
+/**
+ * This interface describes a consumer of a JavaMatic machine's events, which handles them on its own thread.
+ */
+public interface MachineEventConsumer
+{
+	/**
+	 * Handles an event. The events that were published since the consumer last ran are handed to it
+	 * together, so a consumer can do its expensive work once at the end of each batch.
+	 * @param event The event, which is only valid until this returns.
+	 * @param sequence The sequence number of the event, which increases by one for each event that is published.
+	 * @param endOfBatch Whether this is the last event that is available for now.
+	 */
+	void onEvent(MachineEvent event, long sequence, boolean endOfBatch);
+
+	/**
+	 * Called every so often while there are no events to handle. By default, this does nothing.
+	 */
+	default void onIdle()
+	{
+	}
+}
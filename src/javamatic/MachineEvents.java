@@ -0,0 +1,418 @@
+package javamatic;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class publishes a JavaMatic machine's events to consumers through a bounded ring buffer,
+ * in the style of the LMAX Disruptor. Threads that buy drinks or restock the machine claim a slot
+ * with a compare-and-set, fill in the slot's preallocated event, and mark the slot as published,
+ * without taking any locks or allocating. Each consumer runs on its own thread, and handles every event
+ * that has been published since it last ran as one batch. A slow consumer never makes the machine wait:
+ * if the ring is full because a consumer has fallen a whole ring behind, new events are dropped and counted
+ * until it catches up. Drinks and ingredients should all be added to the machine before the events are
+ * attached. Drinks only go out of stock when the machine doesn't evaluate stock lazily. A drink that a purchase
+ * puts out of stock is published after the purchase, and after any ingredients that the purchase made low.
+ */
+public final class MachineEvents implements Closeable
+{
+	public static final int DEFAULT_CAPACITY = 1 << 14;
+	public static final int DEFAULT_LOW_QUANTITY = 3;
+
+	private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final Machine machine;
+	private final MachineEvent[] ring;
+	private final int mask;
+	private final AtomicLongArray publishedSequences;
+	private final AtomicLong nextSequence;
+	private final AtomicLong droppedEvents;
+	private final List<Processor> processors;
+	private volatile long cachedWrapSequence;
+	private final Ingredient[] ingredientsById;
+	private final AtomicIntegerArray lowIngredients;
+	private final int lowQuantity;
+	private final ThreadLocal<DrinkBuffer> outOfStockDrinks;
+
+	/**
+	 * Constructs new events for the given machine.
+	 * @param machine The machine whose events are published.
+	 * @param capacity The number of events that the ring buffer holds, which is rounded up to a power of two.
+	 * @param lowQuantity The quantity that an ingredient is low when it falls below.
+	 */
+	private MachineEvents(Machine machine, int capacity, int lowQuantity)
+	{
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		this.machine = machine;
+		this.ring = new MachineEvent[size];
+		this.mask = size - 1;
+		this.publishedSequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+		{
+			ring[i] = new MachineEvent();
+			publishedSequences.set(i, -1);
+		}
+		this.nextSequence = new AtomicLong();
+		this.droppedEvents = new AtomicLong();
+		this.processors = new CopyOnWriteArrayList<Processor>();
+		this.cachedWrapSequence = 0;
+
+		this.ingredientsById = new Ingredient[machine.getInventorySize()];
+		for (Ingredient ingredient : machine.getIngredients())
+		{
+			ingredientsById[ingredient.getId()] = ingredient;
+		}
+		this.lowIngredients = new AtomicIntegerArray(ingredientsById.length);
+		this.lowQuantity = lowQuantity;
+		this.outOfStockDrinks = new ThreadLocal<DrinkBuffer>()
+		{
+			@Override
+			protected DrinkBuffer initialValue()
+			{
+				return new DrinkBuffer();
+			}
+		};
+	}
+
+	/**
+	 * Creates events for the given machine with the default capacity and low quantity, and attaches them to it.
+	 * @param machine The machine whose events are published.
+	 * @return The machine's events.
+	 */
+	public static MachineEvents attach(Machine machine)
+	{
+		return attach(machine, DEFAULT_CAPACITY, DEFAULT_LOW_QUANTITY);
+	}
+
+	/**
+	 * Creates events for the given machine and attaches them to it, so that changes to its inventory
+	 * are published from now on.
+	 * @param machine The machine whose events are published.
+	 * @param capacity The number of events that the ring buffer holds, which is rounded up to a power of two.
+	 * @param lowQuantity The quantity that an ingredient is low when it falls below.
+	 * @return The machine's events.
+	 */
+	public static MachineEvents attach(Machine machine, int capacity, int lowQuantity)
+	{
+		MachineEvents events = new MachineEvents(machine, capacity, lowQuantity);
+		machine.setEvents(events);
+		return events;
+	}
+
+	/**
+	 * Starts handing the events that are published from now on to the given consumer, on a new daemon thread.
+	 * @param consumer The consumer.
+	 * @return A subscription that stops the consumer's thread when it is closed.
+	 */
+	public Closeable subscribe(MachineEventConsumer consumer)
+	{
+		Processor processor = new Processor(consumer);
+		synchronized (processors)
+		{
+			processor.sequence = nextSequence.get();
+			processors.add(processor);
+		}
+		processor.thread.start();
+		return processor;
+	}
+
+	/**
+	 * @return The number of events that were dropped because a consumer had fallen a whole ring behind.
+	 */
+	public long getDroppedEventCount()
+	{
+		return droppedEvents.get();
+	}
+
+	/**
+	 * Stops publishing the machine's events, and stops every consumer's thread once it has handled
+	 * the events that were already published.
+	 */
+	@Override
+	public void close()
+	{
+		machine.setEvents(null);
+		for (Processor processor : processors)
+		{
+			processor.close();
+		}
+	}
+
+	/**
+	 * Publishes that servings of a drink were dispensed, along with any of the drink's ingredients
+	 * that are now low for the first time since the last restock.
+	 * @param drink The drink.
+	 * @param servings The number of servings that were dispensed.
+	 */
+	void publishDispensed(Drink drink, int servings)
+	{
+		if (processors.isEmpty())
+		{
+			return;
+		}
+		publish(MachineEvent.Type.DRINK_DISPENSED, drink, null, servings);
+		Recipe recipe = drink.getRecipe();
+		for (int i = 0; i < recipe.size(); i++)
+		{
+			int id = recipe.ingredientIds[i];
+			if (id < ingredientsById.length)
+			{
+				int quantity = machine.getQuantity(id);
+				if (quantity < lowQuantity && lowIngredients.get(id) == 0 && lowIngredients.compareAndSet(id, 0, 1))
+				{
+					publish(MachineEvent.Type.INGREDIENT_LOW, null, ingredientsById[id], quantity);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Buffers that a drink went out of stock, until the purchase or restock that the current thread is
+	 * making has been published, so that consumers see what put the drink out of stock before they see it.
+	 * @param drink The drink.
+	 */
+	void bufferOutOfStock(Drink drink)
+	{
+		if (!processors.isEmpty())
+		{
+			outOfStockDrinks.get().add(drink);
+		}
+	}
+
+	/**
+	 * Publishes that the drinks that the current thread has buffered went out of stock.
+	 */
+	void publishOutOfStock()
+	{
+		DrinkBuffer buffer = outOfStockDrinks.get();
+		for (int i = 0; i < buffer.size; i++)
+		{
+			publish(MachineEvent.Type.DRINK_OUT_OF_STOCK, buffer.drinks[i], null, 0);
+			buffer.drinks[i] = null;
+		}
+		buffer.size = 0;
+	}
+
+	/**
+	 * Publishes that the machine was restocked, so no ingredient is low anymore.
+	 */
+	void publishRestocked()
+	{
+		for (int id = 0; id < lowIngredients.length(); id++)
+		{
+			if (lowIngredients.get(id) != 0)
+			{
+				lowIngredients.set(id, 0);
+			}
+		}
+		if (!processors.isEmpty())
+		{
+			publish(MachineEvent.Type.RESTOCKED, null, null, 0);
+		}
+	}
+
+	/**
+	 * Publishes that some ingredients were restocked, so they aren't low anymore.
+	 * @param ingredientIds The ids of the ingredients.
+	 */
+	void publishRestocked(int[] ingredientIds)
+	{
+		for (int id : ingredientIds)
+		{
+			if (id < lowIngredients.length() && lowIngredients.get(id) != 0)
+			{
+				lowIngredients.set(id, 0);
+			}
+		}
+		if (!processors.isEmpty())
+		{
+			for (int id : ingredientIds)
+			{
+				if (id < ingredientsById.length)
+				{
+					publish(MachineEvent.Type.RESTOCKED, null, ingredientsById[id], machine.getQuantity(id));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Claims the next slot of the ring buffer, fills in its event, and marks it as published,
+	 * or drops the event if the ring is full.
+	 * @param type The type of the event.
+	 * @param drink The drink, or null.
+	 * @param ingredient The ingredient, or null.
+	 * @param quantity The number of servings or quantity of the ingredient, or 0.
+	 */
+	private void publish(MachineEvent.Type type, Drink drink, Ingredient ingredient, int quantity)
+	{
+		long sequence;
+		do
+		{
+			sequence = nextSequence.get();
+			if (sequence >= cachedWrapSequence)
+			{
+				long wrapSequence = getSlowestSequence(sequence) + ring.length;
+				cachedWrapSequence = wrapSequence;
+				if (sequence >= wrapSequence)
+				{
+					droppedEvents.incrementAndGet();
+					return;
+				}
+			}
+		}
+		while (!nextSequence.compareAndSet(sequence, sequence + 1));
+
+		int index = (int) sequence & mask;
+		ring[index].set(type, drink, ingredient, quantity);
+		publishedSequences.lazySet(index, sequence);
+	}
+
+	/**
+	 * @param nextSequence The sequence of the next event to publish.
+	 * @return The sequence of the next event that the slowest consumer will handle.
+	 */
+	private long getSlowestSequence(long nextSequence)
+	{
+		long slowestSequence = nextSequence;
+		for (Processor processor : processors)
+		{
+			slowestSequence = Math.min(slowestSequence, processor.sequence);
+		}
+		return slowestSequence;
+	}
+
+	/**
+	 * This class describes the drinks that a thread has put out of stock but not published yet.
+	 * Its array is only replaced when a thread puts more drinks out of stock at once than it has room for.
+	 */
+	private static class DrinkBuffer
+	{
+		private Drink[] drinks = new Drink[8];
+		private int size;
+
+		/**
+		 * Adds a drink to the buffer.
+		 * @param drink The drink.
+		 */
+		private void add(Drink drink)
+		{
+			if (size == drinks.length)
+			{
+				drinks = Arrays.copyOf(drinks, 2 * size);
+			}
+			drinks[size++] = drink;
+		}
+	}
+
+	/**
+	 * This class hands the published events to a consumer on the consumer's own thread.
+	 */
+	private class Processor implements Runnable, Closeable
+	{
+		private final MachineEventConsumer consumer;
+		private final Thread thread;
+		private volatile long sequence;
+		private volatile boolean running;
+
+		/**
+		 * Constructs a new processor for the given consumer.
+		 * @param consumer The consumer.
+		 */
+		private Processor(MachineEventConsumer consumer)
+		{
+			this.consumer = consumer;
+			this.thread = new Thread(this, "MachineEvents consumer");
+			this.thread.setDaemon(true);
+			this.running = true;
+		}
+
+		/**
+		 * Hands every event that has been published to the consumer in batches, backing off from
+		 * spinning to parking for up to a millisecond while there are none.
+		 */
+		@Override
+		public void run()
+		{
+			long parkNanos = 0;
+			while (true)
+			{
+				boolean stopping = !running;
+				long nextSequence = sequence;
+				long availableSequence = nextSequence;
+				while (availableSequence - nextSequence < ring.length
+						&& publishedSequences.get((int) availableSequence & mask) == availableSequence)
+				{
+					availableSequence++;
+				}
+
+				if (availableSequence > nextSequence)
+				{
+					for (long s = nextSequence; s < availableSequence; s++)
+					{
+						handle(ring[(int) s & mask], s, s == availableSequence - 1);
+					}
+					sequence = availableSequence;
+					parkNanos = 0;
+				}
+				else if (stopping)
+				{
+					return;
+				}
+				else
+				{
+					parkNanos = Math.min(MAX_PARK_NANOS, Math.max(1000, parkNanos * 2));
+					consumer.onIdle();
+					LockSupport.parkNanos(parkNanos);
+				}
+			}
+		}
+
+		/**
+		 * Stops the processor's thread once it has handled the events that were already published.
+		 */
+		@Override
+		public void close()
+		{
+			running = false;
+			LockSupport.unpark(thread);
+			if (Thread.currentThread() != thread)
+			{
+				try
+				{
+					thread.join();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+			processors.remove(this);
+		}
+
+		/**
+		 * Hands an event to the consumer, so that an exception from the consumer doesn't stop the processor.
+		 * @param event The event.
+		 * @param eventSequence The sequence number of the event.
+		 * @param endOfBatch Whether this is the last event that is available for now.
+		 */
+		private void handle(MachineEvent event, long eventSequence, boolean endOfBatch)
+		{
+			try
+			{
+				consumer.onEvent(event, eventSequence, endOfBatch);
+			}
+			catch (RuntimeException e)
+			{
+				System.err.println(String.format("Event consumer failed on %s: %s", event, e));
+			}
+		}
+	}
+}
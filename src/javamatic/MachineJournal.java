@@ -0,0 +1,644 @@
+package javamatic;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * This class describes a write-ahead log for a JavaMatic machine, so that the machine's inventory
+ * survives a restart. Every purchase and restock is appended to the log as a small fixed-size record,
+ * and a background thread writes the records to disk in batches, forcing each batch to disk once for
+ * every record in it. If purchases wait for their records to be on disk, every purchase that arrives
+ * while a batch is being written joins the next batch, so the cost of forcing the log to disk is shared
+ * between them. The inventory is snapshotted every so often, after which the log starts over in
+ * a new generation, so that recovery only needs to read the records since the last snapshot.
+ * Ingredients and drinks should all be added to the machine before the journal is opened, and
+ * shouldn't change between restarts, since the log refers to drinks by their drink number.
+ */
+public class MachineJournal implements Closeable
+{
+	private static final byte PURCHASE = 1;
+	private static final byte RESTOCK = 2;
+	private static final byte RESTOCK_ITEM = 3;
+	private static final byte RESTOCK_END = 4;
+	private static final int RECORD_SIZE = 9;
+	private static final int BUFFER_SIZE = RECORD_SIZE * 8192;
+	private static final int MAX_RESTOCK_ITEMS = BUFFER_SIZE / RECORD_SIZE - 1;
+	private static final long MAPPED_REGION_SIZE = RECORD_SIZE * (1L << 23);
+	private static final long SNAPSHOT_INTERVAL = 1L << 22;
+	private static final long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final int SNAPSHOT_MAGIC = 0x4A4D534E;
+	private static final String SNAPSHOT_FILE = "snapshot";
+
+	private Machine machine;
+	private Path directory;
+	private boolean waitForDurability;
+
+	private ReentrantLock lock;
+	private Condition recordsAppended;
+	private Condition bufferAvailable;
+	private Condition recordsDurable;
+	private ByteBuffer appendBuffer;
+	private ByteBuffer writeBuffer;
+	private long appendedSequence;
+	private long durableSequence;
+	private long recordsSinceSnapshot;
+	private IOException failure;
+	private boolean closed;
+
+	private volatile long generation;
+	private FileChannel log;
+	private Thread flusher;
+
+	/**
+	 * Recovers the given machine's inventory from the journal in the given directory, and then
+	 * records every purchase and restock of the machine in the journal from now on. If the directory
+	 * doesn't have a journal yet, the machine's current inventory is the starting point of a new one.
+	 * @param machine The JavaMatic machine, whose ingredients and drinks should already be added.
+	 * @param directory The directory that the journal's files are kept in.
+	 * @param waitForDurability If true, purchases and restocks don't return until their records are on disk.
+	 * If false, they return straight away, and their records reach the disk within about a millisecond.
+	 * @return The journal, which should be closed when the machine is no longer used.
+	 * @throws IOException If the journal can't be read or written.
+	 */
+	public static MachineJournal open(Machine machine, Path directory, boolean waitForDurability) throws IOException
+	{
+		MachineJournal journal = new MachineJournal(machine, directory, waitForDurability);
+		journal.recover();
+		journal.machine.setJournal(journal);
+		journal.flusher.start();
+		return journal;
+	}
+
+	/**
+	 * Constructs a new journal for the given machine.
+	 * @param machine The JavaMatic machine.
+	 * @param directory The directory that the journal's files are kept in.
+	 * @param waitForDurability Whether purchases and restocks wait for their records to be on disk.
+	 */
+	private MachineJournal(Machine machine, Path directory, boolean waitForDurability)
+	{
+		this.machine = machine;
+		this.directory = directory;
+		this.waitForDurability = waitForDurability;
+		this.lock = new ReentrantLock();
+		this.recordsAppended = lock.newCondition();
+		this.bufferAvailable = lock.newCondition();
+		this.recordsDurable = lock.newCondition();
+		this.appendBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		this.writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		this.flusher = new Thread(this::runFlusher, "MachineJournal flusher");
+		this.flusher.setDaemon(true);
+	}
+
+	/**
+	 * @return The generation of the current log, which increases every time the inventory is snapshotted.
+	 */
+	public long getGeneration()
+	{
+		return generation;
+	}
+
+	/**
+	 * Writes every record that was appended so far to disk, and stops recording the machine's
+	 * purchases and restocks.
+	 * @throws IOException If the records can't be written.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		lock.lock();
+		try
+		{
+			if (closed)
+			{
+				return;
+			}
+			closed = true;
+			machine.setJournal(null);
+			recordsAppended.signal();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		try
+		{
+			flusher.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		if (failure != null)
+		{
+			throw failure;
+		}
+	}
+
+	/**
+	 * Locks the journal, so that a change to the machine and its record are appended together,
+	 * and records are appended in the same order as the changes are made.
+	 */
+	void lock()
+	{
+		lock.lock();
+	}
+
+	/**
+	 * Unlocks the journal.
+	 */
+	void unlock()
+	{
+		lock.unlock();
+	}
+
+	/**
+	 * Appends a record of drinks that were bought. The journal should be locked.
+	 * @param drinkNumber The number of the drink that was bought.
+	 * @param count The number of servings of the drink that were bought.
+	 * @return The sequence number of the record.
+	 */
+	long appendPurchase(int drinkNumber, int count)
+	{
+		return append(PURCHASE, drinkNumber, count);
+	}
+
+	/**
+	 * Appends a record of the machine being restocked. The journal should be locked.
+	 * @return The sequence number of the record.
+	 */
+	long appendRestock()
+	{
+		return append(RESTOCK, 0, 0);
+	}
+
+	/**
+	 * Makes room in the buffer for the records of a restock, before the restock is made to the machine,
+	 * so that the records are all appended to the same buffer and therefore written to the same log.
+	 * The journal should be locked, and stay locked until the records are appended.
+	 * @param itemCount The number of items in the restock.
+	 * @throws IllegalArgumentException If the restock has too many items to be recorded at once.
+	 */
+	void prepareRestock(int itemCount)
+	{
+		if (itemCount > MAX_RESTOCK_ITEMS)
+		{
+			throw new IllegalArgumentException(String.format("Too many items in restock: %d", itemCount));
+		}
+		checkFailure();
+		while (appendBuffer.remaining() < RECORD_SIZE * (itemCount + 1))
+		{
+			recordsAppended.signal();
+			bufferAvailable.awaitUninterruptibly();
+			checkFailure();
+		}
+	}
+
+	/**
+	 * Appends a record of each ingredient that was added in a restock, followed by a record that ends
+	 * the restock, so a restock whose end is missing after a crash is left out when the journal is recovered.
+	 * The journal should be locked, and room for the records should have been made.
+	 * @param ingredientIds The ids of the ingredients that were added.
+	 * @param amounts The quantity of each ingredient that was added.
+	 * @return The sequence number of the last record.
+	 */
+	long appendRestock(int[] ingredientIds, int[] amounts)
+	{
+		for (int i = 0; i < ingredientIds.length; i++)
+		{
+			append(RESTOCK_ITEM, ingredientIds[i], amounts[i]);
+		}
+		return append(RESTOCK_END, ingredientIds.length, 0);
+	}
+
+	/**
+	 * Waits until the record with the given sequence number is on disk, if the journal waits for durability.
+	 * The journal should not be locked.
+	 * @param sequence The sequence number of the record.
+	 */
+	void awaitDurable(long sequence)
+	{
+		if (!waitForDurability)
+		{
+			return;
+		}
+
+		lock.lock();
+		try
+		{
+			while (durableSequence < sequence && failure == null && !closed)
+			{
+				recordsAppended.signal();
+				recordsDurable.awaitUninterruptibly();
+			}
+			checkFailure();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Appends a record to the buffer, waiting for the background thread to take the buffer if it is full.
+	 * @param type The type of the record.
+	 * @param drinkNumber The number of the drink or the id of the ingredient that the record refers to.
+	 * @param count The number of servings or the quantity of the ingredient that the record refers to.
+	 * @return The sequence number of the record.
+	 */
+	private long append(byte type, int drinkNumber, int count)
+	{
+		checkFailure();
+		while (appendBuffer.remaining() < RECORD_SIZE)
+		{
+			recordsAppended.signal();
+			bufferAvailable.awaitUninterruptibly();
+			checkFailure();
+		}
+		appendBuffer.put(type).putInt(drinkNumber).putInt(count);
+		if (appendBuffer.position() == RECORD_SIZE)
+		{
+			recordsAppended.signal();
+		}
+		return ++appendedSequence;
+	}
+
+	/**
+	 * @throws UncheckedIOException If the background thread failed to write the journal.
+	 */
+	private void checkFailure()
+	{
+		if (failure != null)
+		{
+			throw new UncheckedIOException("The journal can't be written", failure);
+		}
+	}
+
+	/**
+	 * Runs the background thread, which takes the appended records in batches and writes each batch to
+	 * the log, forcing it to disk once. While it holds the lock to take a batch, the machine can't change,
+	 * so that is also when the inventory is copied for a snapshot.
+	 */
+	private void runFlusher()
+	{
+		try
+		{
+			while (true)
+			{
+				long sequence;
+				int[] inventory = null;
+				boolean finished;
+				lock.lock();
+				try
+				{
+					while (appendBuffer.position() == 0 && !closed)
+					{
+						recordsAppended.await();
+					}
+					if (!waitForDurability && !closed)
+					{
+						recordsAppended.awaitNanos(FLUSH_INTERVAL_NANOS);
+					}
+					ByteBuffer buffer = appendBuffer;
+					appendBuffer = writeBuffer;
+					writeBuffer = buffer;
+					sequence = appendedSequence;
+					recordsSinceSnapshot += writeBuffer.position() / RECORD_SIZE;
+					if (recordsSinceSnapshot >= SNAPSHOT_INTERVAL)
+					{
+						inventory = machine.copyInventory();
+						recordsSinceSnapshot = 0;
+					}
+					finished = closed;
+					bufferAvailable.signalAll();
+				}
+				finally
+				{
+					lock.unlock();
+				}
+
+				writeBuffer.flip();
+				while (writeBuffer.hasRemaining())
+				{
+					log.write(writeBuffer);
+				}
+				writeBuffer.clear();
+				log.force(false);
+				if (inventory != null)
+				{
+					startGeneration(inventory);
+				}
+
+				lock.lock();
+				try
+				{
+					durableSequence = sequence;
+					recordsDurable.signalAll();
+				}
+				finally
+				{
+					lock.unlock();
+				}
+				if (finished)
+				{
+					log.close();
+					return;
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			lock.lock();
+			try
+			{
+				failure = e;
+				bufferAvailable.signalAll();
+				recordsDurable.signalAll();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Recovers the machine's inventory from the latest snapshot and the logs that follow it, and then
+	 * starts a new generation from the recovered inventory. Only the drinks that were bought since the
+	 * last full restock matter, and each of them was in stock when it was bought, so the number of servings
+	 * of each drink between one restock of some ingredients and the next is added up and bought as one order,
+	 * instead of replaying every record in turn.
+	 * @throws IOException If the journal can't be read or written.
+	 */
+	private void recover() throws IOException
+	{
+		Files.createDirectories(directory);
+		Path snapshotPath = directory.resolve(SNAPSHOT_FILE);
+		if (!Files.exists(snapshotPath))
+		{
+			startGeneration(machine.copyInventory());
+			return;
+		}
+
+		ByteBuffer snapshot = ByteBuffer.wrap(Files.readAllBytes(snapshotPath));
+		if (snapshot.remaining() < 16 || snapshot.getInt() != SNAPSHOT_MAGIC)
+		{
+			throw new IOException(String.format("Invalid snapshot: %s", snapshotPath));
+		}
+		long snapshotGeneration = snapshot.getLong();
+		int[] inventory = new int[snapshot.getInt()];
+		if (snapshot.remaining() != inventory.length * 4 + 8)
+		{
+			throw new IOException(String.format("Invalid snapshot: %s", snapshotPath));
+		}
+		snapshot.asIntBuffer().get(inventory);
+		CRC32 checksum = new CRC32();
+		checksum.update(snapshot.array(), 0, snapshot.capacity() - 8);
+		if (snapshot.getLong(snapshot.capacity() - 8) != checksum.getValue())
+		{
+			throw new IOException(String.format("Invalid snapshot: %s", snapshotPath));
+		}
+
+		Replay replay = new Replay(machine.getNumberOfDrinks(), machine.getInventorySize());
+		long lastGeneration = snapshotGeneration;
+		for (long g = snapshotGeneration; Files.exists(getLogPath(g)); g++)
+		{
+			readLog(getLogPath(g), replay);
+			lastGeneration = g;
+		}
+
+		if (replay.restocked)
+		{
+			machine.refillInventory();
+		}
+		else
+		{
+			machine.restoreInventory(inventory);
+		}
+		replay.apply(machine);
+
+		generation = lastGeneration;
+		startGeneration(machine.copyInventory());
+	}
+
+	/**
+	 * Reads the records in a log into a replay. The log ends at its first invalid record, which can be
+	 * left behind by a crash while the record was being written, and a restock of some ingredients
+	 * that the log ends in the middle of is left out.
+	 * @param path The path of the log.
+	 * @param replay The replay of the records since the last full restock.
+	 * @throws IOException If the log can't be read.
+	 */
+	private static void readLog(Path path, Replay replay) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			long size = channel.size() - channel.size() % RECORD_SIZE;
+			for (long position = 0; position < size; position += MAPPED_REGION_SIZE)
+			{
+				MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(MAPPED_REGION_SIZE, size - position));
+				while (region.hasRemaining())
+				{
+					if (!replay.read(region.get(), region.getInt(), region.getInt()))
+					{
+						replay.endLog();
+						return;
+					}
+				}
+			}
+		}
+		replay.endLog();
+	}
+
+	/**
+	 * Starts the next generation of the journal. The new log is created first, then the snapshot of the
+	 * inventory is written and atomically replaces the old one, and then the old logs are deleted, so
+	 * a crash at any point leaves a snapshot and the logs that follow it.
+	 * @param inventory The inventory at the end of the current log, indexed by ingredient id.
+	 * @throws IOException If the journal can't be written.
+	 */
+	private void startGeneration(int[] inventory) throws IOException
+	{
+		long newGeneration = generation + 1;
+		FileChannel newLog = FileChannel.open(getLogPath(newGeneration), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+
+		ByteBuffer snapshot = ByteBuffer.allocate(16 + inventory.length * 4 + 8);
+		snapshot.putInt(SNAPSHOT_MAGIC).putLong(newGeneration).putInt(inventory.length);
+		for (int quantity : inventory)
+		{
+			snapshot.putInt(quantity);
+		}
+		CRC32 checksum = new CRC32();
+		checksum.update(snapshot.array(), 0, snapshot.position());
+		snapshot.putLong(checksum.getValue());
+		snapshot.flip();
+
+		Path temporaryPath = directory.resolve(SNAPSHOT_FILE + ".tmp");
+		try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+		{
+			while (snapshot.hasRemaining())
+			{
+				channel.write(snapshot);
+			}
+			channel.force(true);
+		}
+		Files.move(temporaryPath, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+
+		if (log != null)
+		{
+			log.close();
+		}
+		long oldGeneration = generation;
+		while (oldGeneration >= 0 && Files.deleteIfExists(getLogPath(oldGeneration)))
+		{
+			oldGeneration--;
+		}
+		log = newLog;
+		generation = newGeneration;
+	}
+
+	/**
+	 * @param logGeneration The generation of the log.
+	 * @return The path of the log.
+	 */
+	private Path getLogPath(long logGeneration)
+	{
+		return directory.resolve(String.format("journal-%d.log", logGeneration));
+	}
+
+	/**
+	 * This class describes the records since the last full restock, as the servings of each drink that were
+	 * bought between one restock of some ingredients and the next, along with the ingredients of each restock.
+	 */
+	private static class Replay
+	{
+		private int inventorySize;
+		private boolean restocked;
+		private List<long[]> servingsBought;
+		private List<int[]> restockIngredientIds;
+		private List<int[]> restockAmounts;
+		private int[] pendingIngredientIds;
+		private int[] pendingAmounts;
+		private int pendingCount;
+
+		/**
+		 * Constructs a new, empty replay.
+		 * @param drinkCount The number of drinks in the machine's menu.
+		 * @param inventorySize The number of ingredient ids in the machine's inventory.
+		 */
+		private Replay(int drinkCount, int inventorySize)
+		{
+			this.inventorySize = inventorySize;
+			this.servingsBought = new ArrayList<long[]>();
+			this.servingsBought.add(new long[drinkCount + 1]);
+			this.restockIngredientIds = new ArrayList<int[]>();
+			this.restockAmounts = new ArrayList<int[]>();
+			this.pendingIngredientIds = new int[16];
+			this.pendingAmounts = new int[16];
+		}
+
+		/**
+		 * Adds a record to the replay. A full restock discards everything before it.
+		 * @param type The type of the record.
+		 * @param value The number of the drink, the id of the ingredient, or the number of items in a restock.
+		 * @param count The number of servings or the quantity of the ingredient.
+		 * @return Whether the record is valid.
+		 */
+		private boolean read(byte type, int value, int count)
+		{
+			long[] servings = servingsBought.get(servingsBought.size() - 1);
+			if (type == PURCHASE && pendingCount == 0 && value >= 1 && value < servings.length && count >= 0)
+			{
+				servings[value] += count;
+			}
+			else if (type == RESTOCK && pendingCount == 0)
+			{
+				servingsBought.clear();
+				servingsBought.add(new long[servings.length]);
+				restockIngredientIds.clear();
+				restockAmounts.clear();
+				restocked = true;
+			}
+			else if (type == RESTOCK_ITEM && value >= 0 && value < inventorySize && count >= 0)
+			{
+				if (pendingCount == pendingIngredientIds.length)
+				{
+					pendingIngredientIds = Arrays.copyOf(pendingIngredientIds, pendingCount * 2);
+					pendingAmounts = Arrays.copyOf(pendingAmounts, pendingCount * 2);
+				}
+				pendingIngredientIds[pendingCount] = value;
+				pendingAmounts[pendingCount] = count;
+				pendingCount++;
+			}
+			else if (type == RESTOCK_END && value == pendingCount)
+			{
+				restockIngredientIds.add(Arrays.copyOf(pendingIngredientIds, pendingCount));
+				restockAmounts.add(Arrays.copyOf(pendingAmounts, pendingCount));
+				servingsBought.add(new long[servings.length]);
+				pendingCount = 0;
+			}
+			else
+			{
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Leaves out a restock that the current log ended in the middle of.
+		 */
+		private void endLog()
+		{
+			pendingCount = 0;
+		}
+
+		/**
+		 * Buys the drinks and restocks the ingredients in the order that they were recorded.
+		 * @param machine The machine, whose inventory has been restored to where the replay starts.
+		 */
+		private void apply(Machine machine)
+		{
+			for (int i = 0; i < servingsBought.size(); i++)
+			{
+				long[] servings = servingsBought.get(i);
+				List<OrderItem> order = new ArrayList<OrderItem>();
+				for (int drinkNumber = 1; drinkNumber < servings.length; drinkNumber++)
+				{
+					if (servings[drinkNumber] > 0)
+					{
+						order.add(new OrderItem(drinkNumber, (int) Math.min(servings[drinkNumber], Integer.MAX_VALUE)));
+					}
+				}
+				machine.buyDrinks(order, true);
+				if (i < restockIngredientIds.size())
+				{
+					machine.refillIngredients(restockIngredientIds.get(i), restockAmounts.get(i));
+				}
+			}
+		}
+	}
+}
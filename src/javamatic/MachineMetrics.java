@@ -0,0 +1,462 @@
+package javamatic;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * This class records the latencies of a JavaMatic machine's operations, along with counts of its
+ * purchases, out of stock rejections, invalid selections, and restocks, for each drink and ingredient.
+ * There is a fixed number of recorders, twice as many as there are processors, and each thread records
+ * into the recorder that its thread id hashes to, so threads rarely contend for the same counters, and
+ * no memory is kept for threads that have finished however many come and go. Recording doesn't allocate
+ * once the recorders' arrays are big enough for the menu. The recorders are merged when the metrics are read. Counts are kept by drink number, so drinks should
+ * all be added to the machine before the metrics are attached.
+ */
+public final class MachineMetrics implements MachineMetricsMXBean
+{
+	/**
+	 * This enum lists the operations whose latencies are recorded.
+	 */
+	public enum Operation
+	{
+		BUY_DRINK("buyDrink"),
+		BUY_DRINKS("buyDrinks"),
+		RESTOCK("restockInventory"),
+		OUTPUT_MENU("outputMenu"),
+		PARSE_INPUT("parseInput");
+
+		private final String label;
+
+		/**
+		 * Constructs a new operation.
+		 * @param label The name of the method that performs the operation.
+		 */
+		private Operation(String label)
+		{
+			this.label = label;
+		}
+
+		/**
+		 * @return The name of the method that performs the operation.
+		 */
+		public String getLabel()
+		{
+			return label;
+		}
+	}
+
+	private static final Operation[] OPERATIONS = Operation.values();
+	private static final int PURCHASES = 0;
+	private static final int OUT_OF_STOCK_REJECTIONS = 1;
+	private static final int INVALID_SELECTIONS = 2;
+	private static final int RESTOCKS = 3;
+	private static final int COUNTER_COUNT = 4;
+	private static final int RECORDER_COUNT = Integer.highestOneBit(2 * Runtime.getRuntime().availableProcessors() - 1) << 1;
+
+	private final Machine machine;
+	private final Recorder[] recorders;
+
+	/**
+	 * Constructs new metrics for the given machine.
+	 * @param machine The machine whose operations are recorded.
+	 */
+	private MachineMetrics(Machine machine)
+	{
+		this.machine = machine;
+		this.recorders = new Recorder[RECORDER_COUNT];
+		for (int i = 0; i < recorders.length; i++)
+		{
+			recorders[i] = new Recorder();
+		}
+	}
+
+	/**
+	 * Creates metrics for the given machine and attaches them to it, so that its purchases,
+	 * restocks, and menu output are recorded from now on.
+	 * @param machine The machine whose operations are recorded.
+	 * @return The machine's metrics.
+	 */
+	public static MachineMetrics attach(Machine machine)
+	{
+		MachineMetrics metrics = new MachineMetrics(machine);
+		machine.setMetrics(metrics);
+		return metrics;
+	}
+
+	/**
+	 * Registers the metrics with the platform's MBean server, so that they can be read through JMX.
+	 * @param name The name that the metrics are registered under.
+	 * @return The object name that the metrics are registered under.
+	 * @throws JMException If the metrics can't be registered.
+	 */
+	public ObjectName register(String name) throws JMException
+	{
+		ObjectName objectName = new ObjectName("javamatic:type=MachineMetrics,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		return objectName;
+	}
+
+	/**
+	 * @param operation The operation.
+	 * @return A snapshot of the operation's latencies, merged from every recorder.
+	 */
+	public LatencyHistogram getLatency(Operation operation)
+	{
+		long[] counts = new long[LatencyHistogram.BUCKET_COUNT];
+		int offset = operation.ordinal() * LatencyHistogram.BUCKET_COUNT;
+		for (Recorder recorder : recorders)
+		{
+			for (int i = 0; i < counts.length; i++)
+			{
+				counts[i] += recorder.latencies.get(offset + i);
+			}
+		}
+		return new LatencyHistogram(counts);
+	}
+
+	/* (non-Javadoc)
+	 * @see javamatic.MachineMetricsMXBean#getPurchases()
+	 */
+	@Override
+	public long getPurchases()
+	{
+		return sumCounter(PURCHASES);
+	}
+
+	/* (non-Javadoc)
+	 * @see javamatic.MachineMetricsMXBean#getOutOfStockRejections()
+	 */
+	@Override
+	public long getOutOfStockRejections()
+	{
+		return sumCounter(OUT_OF_STOCK_REJECTIONS);
+	}
+
+	/* (non-Javadoc)
+	 * @see javamatic.MachineMetricsMXBean#getInvalidSelections()
+	 */
+	@Override
+	public long getInvalidSelections()
+	{
+		return sumCounter(INVALID_SELECTIONS);
+	}
+
+	/* (non-Javadoc)
+	 * @see javamatic.MachineMetricsMXBean#getRestocks()
+	 */
+	@Override
+	public long getRestocks()
+	{
+		return sumCounter(RESTOCKS);
+	}
+
+	/* (non-Javadoc)
+	 * @see javamatic.MachineMetricsMXBean#getPurchasesByDrink()
+	 */
+	@Override
+	public Map<String, Long> getPurchasesByDrink()
+	{
+		return countByDrink(0);
+	}
+
+	/* (non-Javadoc)
+	 * @see javamatic.MachineMetricsMXBean#getOutOfStockRejectionsByDrink()
+	 */
+	@Override
+	public Map<String, Long> getOutOfStockRejectionsByDrink()
+	{
+		return countByDrink(1);
+	}
+
+	/* (non-Javadoc)
+	 * @see javamatic.MachineMetricsMXBean#getUnitsDispensedByIngredient()
+	 */
+	@Override
+	public Map<String, Long> getUnitsDispensedByIngredient()
+	{
+		Map<String, Long> units = new LinkedHashMap<String, Long>();
+		for (Ingredient ingredient : machine.getIngredients())
+		{
+			long count = 0;
+			for (Recorder recorder : recorders)
+			{
+				count += recorder.ingredientUnits.get(ingredient.getId());
+			}
+			units.put(ingredient.getName(), count);
+		}
+		return units;
+	}
+
+	/* (non-Javadoc)
+	 * @see javamatic.MachineMetricsMXBean#getLatencyPercentiles()
+	 */
+	@Override
+	public Map<String, Long> getLatencyPercentiles()
+	{
+		Map<String, Long> percentiles = new LinkedHashMap<String, Long>();
+		for (Operation operation : OPERATIONS)
+		{
+			LatencyHistogram histogram = getLatency(operation);
+			percentiles.put(operation.getLabel() + ".count", histogram.getCount());
+			percentiles.put(operation.getLabel() + ".p50", histogram.getValueAtPercentile(50));
+			percentiles.put(operation.getLabel() + ".p90", histogram.getValueAtPercentile(90));
+			percentiles.put(operation.getLabel() + ".p99", histogram.getValueAtPercentile(99));
+			percentiles.put(operation.getLabel() + ".p999", histogram.getValueAtPercentile(99.9));
+			percentiles.put(operation.getLabel() + ".max", histogram.getMaxValue());
+		}
+		return percentiles;
+	}
+
+	/**
+	 * @return Every metric as plain text, with one comma-separated record on each line, in the
+	 * same style as the machine's inventory and menu.
+	 */
+	@Override
+	public String dump()
+	{
+		StringBuilder output = new StringBuilder();
+		output.append("Metrics:\n");
+		output.append("Purchases,").append(getPurchases()).append('\n');
+		output.append("Out of stock,").append(getOutOfStockRejections()).append('\n');
+		output.append("Invalid selections,").append(getInvalidSelections()).append('\n');
+		output.append("Restocks,").append(getRestocks()).append('\n');
+
+		output.append("Latency in ns (operation,count,p50,p90,p99,p99.9,max):\n");
+		for (Operation operation : OPERATIONS)
+		{
+			LatencyHistogram histogram = getLatency(operation);
+			output.append(operation.getLabel()).append(',').append(histogram.getCount());
+			output.append(',').append(histogram.getValueAtPercentile(50));
+			output.append(',').append(histogram.getValueAtPercentile(90));
+			output.append(',').append(histogram.getValueAtPercentile(99));
+			output.append(',').append(histogram.getValueAtPercentile(99.9));
+			output.append(',').append(histogram.getMaxValue()).append('\n');
+		}
+
+		output.append("Drinks (number,name,purchases,out of stock):\n");
+		for (int drinkNumber = 1; drinkNumber <= machine.getNumberOfDrinks(); drinkNumber++)
+		{
+			output.append(drinkNumber).append(',').append(machine.getDrinkName(drinkNumber));
+			output.append(',').append(sumDrinkCount(drinkNumber, 0));
+			output.append(',').append(sumDrinkCount(drinkNumber, 1)).append('\n');
+		}
+
+		output.append("Ingredients (name,units dispensed):\n");
+		for (Map.Entry<String, Long> entry : getUnitsDispensedByIngredient().entrySet())
+		{
+			output.append(entry.getKey()).append(',').append(entry.getValue()).append('\n');
+		}
+		return output.toString();
+	}
+
+	/**
+	 * Records the latency of an operation.
+	 * @param operation The operation.
+	 * @param nanos The latency in nanoseconds.
+	 */
+	void recordLatency(Operation operation, long nanos)
+	{
+		AtomicLongArray latencies = getRecorder().latencies;
+		increment(latencies, operation.ordinal() * LatencyHistogram.BUCKET_COUNT + LatencyHistogram.getBucketIndex(nanos), 1);
+	}
+
+	/**
+	 * Records a purchase of servings of a drink, along with the ingredients that were dispensed for it.
+	 * The purchase is rejected as out of stock if fewer servings were dispensed than were requested.
+	 * @param drinkNumber The number of the drink, where 1 is the first drink that is listed.
+	 * @param servingsRequested The number of servings that were requested.
+	 * @param servingsDispensed The number of servings that were dispensed.
+	 */
+	void recordPurchase(int drinkNumber, int servingsRequested, int servingsDispensed)
+	{
+		Recorder recorder = getRecorder();
+		if (servingsDispensed > 0)
+		{
+			increment(recorder.counters, PURCHASES, servingsDispensed);
+			recorder.drinkCounts.add(2 * (drinkNumber - 1), servingsDispensed);
+			Recipe recipe = machine.getDrink(drinkNumber).getRecipe();
+			for (int i = 0; i < recipe.size(); i++)
+			{
+				recorder.ingredientUnits.add(recipe.ingredientIds[i], (long) recipe.quantities[i] * servingsDispensed);
+			}
+		}
+		if (servingsDispensed < servingsRequested)
+		{
+			increment(recorder.counters, OUT_OF_STOCK_REJECTIONS, 1);
+			recorder.drinkCounts.add(2 * (drinkNumber - 1) + 1, 1);
+		}
+	}
+
+	/**
+	 * Records a restock of the machine's inventory.
+	 */
+	void recordRestock()
+	{
+		increment(getRecorder().counters, RESTOCKS, 1);
+	}
+
+	/**
+	 * Records a line of input that wasn't a command or a drink number.
+	 */
+	void recordInvalidSelection()
+	{
+		increment(getRecorder().counters, INVALID_SELECTIONS, 1);
+	}
+
+	/**
+	 * @return The recorder that the current thread's id hashes to. The id is multiplied by the golden ratio,
+	 * so that threads with consecutive ids, as a pool's threads usually have, are spread over the recorders.
+	 */
+	private Recorder getRecorder()
+	{
+		long hash = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+		return recorders[(int) (hash >>> 32) & (recorders.length - 1)];
+	}
+
+	/**
+	 * Adds to a count in a recorder's array. Other threads may share the recorder, so the count is added atomically.
+	 * @param counts The recorder's array.
+	 * @param index The index of the count.
+	 * @param delta The amount to add to the count.
+	 */
+	private static void increment(AtomicLongArray counts, int index, long delta)
+	{
+		counts.getAndAdd(index, delta);
+	}
+
+	/**
+	 * @param counter The index of the counter.
+	 * @return The counter summed over every recorder.
+	 */
+	private long sumCounter(int counter)
+	{
+		long count = 0;
+		for (Recorder recorder : recorders)
+		{
+			count += recorder.counters.get(counter);
+		}
+		return count;
+	}
+
+	/**
+	 * @param drinkNumber The number of the drink, where 1 is the first drink that is listed.
+	 * @param kind 0 for the drink's purchases, or 1 for its out of stock rejections.
+	 * @return The drink's count summed over every recorder.
+	 */
+	private long sumDrinkCount(int drinkNumber, int kind)
+	{
+		long count = 0;
+		int index = 2 * (drinkNumber - 1) + kind;
+		for (Recorder recorder : recorders)
+		{
+			count += recorder.drinkCounts.get(index);
+		}
+		return count;
+	}
+
+	/**
+	 * @param kind 0 for purchases, or 1 for out of stock rejections.
+	 * @return The count for each drink, by drink name. Drinks with the same name are counted together.
+	 */
+	private Map<String, Long> countByDrink(int kind)
+	{
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		for (int drinkNumber = 1; drinkNumber <= machine.getNumberOfDrinks(); drinkNumber++)
+		{
+			String name = machine.getDrinkName(drinkNumber);
+			Long previousCount = counts.get(name);
+			counts.put(name, sumDrinkCount(drinkNumber, kind) + (previousCount == null ? 0 : previousCount));
+		}
+		return counts;
+	}
+
+	/**
+	 * This class describes the counts that the threads that hash to one recorder have recorded.
+	 */
+	private static class Recorder
+	{
+		private final AtomicLongArray counters = new AtomicLongArray(COUNTER_COUNT);
+		private final AtomicLongArray latencies = new AtomicLongArray(OPERATIONS.length * LatencyHistogram.BUCKET_COUNT);
+		private final GrowableCounts drinkCounts = new GrowableCounts();
+		private final GrowableCounts ingredientUnits = new GrowableCounts();
+	}
+
+	/**
+	 * This class describes an array of counts, such as the counts for each drink, that is replaced with a bigger
+	 * copy when the menu grows. A count that is added to the old array while it is being copied is moved to the
+	 * new one, either by the copy or by the thread that added it, so no count is lost, although readers may
+	 * miss counts that are being moved while they read.
+	 */
+	private static class GrowableCounts
+	{
+		private volatile AtomicLongArray counts = new AtomicLongArray(0);
+
+		/**
+		 * @param index The index of a count.
+		 * @return The count, or 0 if nothing has been added to it yet.
+		 */
+		private long get(int index)
+		{
+			AtomicLongArray currentCounts = counts;
+			return index < currentCounts.length() ? currentCounts.get(index) : 0;
+		}
+
+		/**
+		 * Adds to a count, growing the array if it doesn't have room for it.
+		 * @param index The index of the count.
+		 * @param delta The amount to add to the count.
+		 */
+		private void add(int index, long delta)
+		{
+			AtomicLongArray addedCounts = counts;
+			if (index >= addedCounts.length())
+			{
+				addedCounts = grow(index + 1);
+			}
+			addedCounts.getAndAdd(index, delta);
+			AtomicLongArray currentCounts = counts;
+			while (currentCounts != addedCounts)
+			{
+				long missed = addedCounts.getAndSet(index, 0);
+				if (missed == 0)
+				{
+					return;
+				}
+				currentCounts.getAndAdd(index, missed);
+				addedCounts = currentCounts;
+				currentCounts = counts;
+			}
+		}
+
+		/**
+		 * Replaces the array with a bigger one that has room for the given number of counts, and then moves the
+		 * old array's counts into it.
+		 * @param length The number of counts that the array needs room for.
+		 * @return The array, which has room for the given number of counts.
+		 */
+		private synchronized AtomicLongArray grow(int length)
+		{
+			AtomicLongArray oldCounts = counts;
+			if (length <= oldCounts.length())
+			{
+				return oldCounts;
+			}
+			AtomicLongArray grownCounts = new AtomicLongArray(Math.max(length, 2 * oldCounts.length()));
+			counts = grownCounts;
+			for (int i = 0; i < oldCounts.length(); i++)
+			{
+				long count = oldCounts.getAndSet(i, 0);
+				if (count != 0)
+				{
+					grownCounts.getAndAdd(i, count);
+				}
+			}
+			return grownCounts;
+		}
+	}
+}
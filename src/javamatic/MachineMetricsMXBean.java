@@ -0,0 +1,55 @@
+package javamatic;
+
+import java.util.Map;
+
+/**
+ * This interface describes the metrics of a JavaMatic machine that are exported through JMX.
+ */
+public interface MachineMetricsMXBean
+{
+	/**
+	 * @return The number of servings that were dispensed.
+	 */
+	long getPurchases();
+
+	/**
+	 * @return The number of purchases, or items of orders, that weren't filled because drinks were out of stock.
+	 */
+	long getOutOfStockRejections();
+
+	/**
+	 * @return The number of lines of input that weren't a command or a drink number.
+	 */
+	long getInvalidSelections();
+
+	/**
+	 * @return The number of times the machine was restocked.
+	 */
+	long getRestocks();
+
+	/**
+	 * @return The number of servings of each drink that were dispensed, by drink name.
+	 */
+	Map<String, Long> getPurchasesByDrink();
+
+	/**
+	 * @return The number of out of stock rejections for each drink, by drink name.
+	 */
+	Map<String, Long> getOutOfStockRejectionsByDrink();
+
+	/**
+	 * @return The quantity of each ingredient that was dispensed, by ingredient name.
+	 */
+	Map<String, Long> getUnitsDispensedByIngredient();
+
+	/**
+	 * @return The 50th, 90th, 99th, and 99.9th percentiles and the maximum of each operation's latencies
+	 * in nanoseconds, by operation and percentile, such as "buyDrink.p99".
+	 */
+	Map<String, Long> getLatencyPercentiles();
+
+	/**
+	 * @return Every metric as plain text.
+	 */
+	String dump();
+}
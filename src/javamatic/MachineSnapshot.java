@@ -0,0 +1,228 @@
+package javamatic;
+
+/**
+ * This class describes an immutable snapshot of a machine's inventory and menu at one version. The quantity
+ * of every ingredient is copied in one pass, and each drink's servings are calculated from that copy rather
+ * than read from the drink, so a drink is only in stock in the snapshot if the snapshot's own quantities are
+ * enough for it. A machine publishes each snapshot with a single write, and hands the same snapshot to every
+ * reader until the machine changes, so taking one on every display refresh is cheap, and reading a snapshot
+ * never waits for purchases or makes purchases wait for it.
+ */
+public final class MachineSnapshot
+{
+	private final long version;
+	private final Ingredient[] ingredients;
+	private final int[] quantities;
+	private final Drink[] drinks;
+	private final int[] servingsAvailable;
+	private final CachedOutput[] inventoryLines;
+	private volatile String inventoryText;
+	private volatile String menuText;
+
+	/**
+	 * Constructs a new snapshot, calculating the servings of each drink from the given quantities.
+	 * The arrays are kept rather than copied.
+	 * @param version The version of the machine that the snapshot was taken at.
+	 * @param ingredients The machine's ingredients, sorted by name.
+	 * @param quantities The quantity of every ingredient, indexed by ingredient id.
+	 * @param drinks The machine's menu.
+	 * @param inventoryLines The machine's rendered line for each ingredient id, which the snapshot shares,
+	 * so that only the lines of ingredients whose quantities changed are rendered again.
+	 */
+	MachineSnapshot(long version, Ingredient[] ingredients, int[] quantities, Drink[] drinks, CachedOutput[] inventoryLines)
+	{
+		this.version = version;
+		this.ingredients = ingredients;
+		this.quantities = quantities;
+		this.drinks = drinks;
+		this.inventoryLines = inventoryLines;
+		this.servingsAvailable = new int[drinks.length];
+		for (int i = 0; i < drinks.length; i++)
+		{
+			servingsAvailable[i] = calculateServingsAvailable(drinks[i]);
+		}
+	}
+
+	/**
+	 * Constructs a new snapshot of the same menu as an earlier snapshot, copying the earlier snapshot's servings
+	 * and only calculating them again for drinks that use an ingredient whose quantity is different.
+	 * The arrays are kept rather than copied.
+	 * @param version The version of the machine that the snapshot was taken at.
+	 * @param ingredients The machine's ingredients, sorted by name.
+	 * @param quantities The quantity of every ingredient, indexed by ingredient id.
+	 * @param drinks The machine's menu, which must be the same menu as the earlier snapshot's.
+	 * @param inventoryLines The machine's rendered line for each ingredient id.
+	 * @param previous The earlier snapshot.
+	 * @param positions The positions in the menu of the drinks that use each ingredient, indexed by ingredient id.
+	 */
+	MachineSnapshot(long version, Ingredient[] ingredients, int[] quantities, Drink[] drinks, CachedOutput[] inventoryLines,
+		MachineSnapshot previous, int[][] positions)
+	{
+		this.version = version;
+		this.ingredients = ingredients;
+		this.quantities = quantities;
+		this.drinks = drinks;
+		this.inventoryLines = inventoryLines;
+		int[] previousQuantities = previous.quantities;
+		int[] changedIds = new int[quantities.length];
+		int changedCount = 0;
+		int recalculations = 0;
+		for (int id = 0; id < quantities.length; id++)
+		{
+			int previousQuantity = id < previousQuantities.length ? previousQuantities[id] : 0;
+			if (quantities[id] != previousQuantity && id < positions.length)
+			{
+				changedIds[changedCount++] = id;
+				recalculations += positions[id].length;
+			}
+		}
+
+		// After a restock, most drinks would be calculated again once for each of their ingredients, so it's
+		// cheaper to calculate every drink once.
+		if (recalculations > drinks.length)
+		{
+			this.servingsAvailable = new int[drinks.length];
+			for (int i = 0; i < drinks.length; i++)
+			{
+				servingsAvailable[i] = calculateServingsAvailable(drinks[i]);
+			}
+			return;
+		}
+		this.servingsAvailable = previous.servingsAvailable.clone();
+		for (int i = 0; i < changedCount; i++)
+		{
+			for (int position : positions[changedIds[i]])
+			{
+				servingsAvailable[position] = calculateServingsAvailable(drinks[position]);
+			}
+		}
+	}
+
+	/**
+	 * @param drink The drink.
+	 * @return The number of servings of the drink that the snapshot's quantities have enough ingredients for.
+	 */
+	private int calculateServingsAvailable(Drink drink)
+	{
+		Recipe recipe = drink.getRecipe();
+		int servings = Integer.MAX_VALUE;
+		for (int j = 0; j < recipe.size(); j++)
+		{
+			int id = recipe.ingredientIds[j];
+			if (recipe.quantities[j] > 0)
+			{
+				int quantityAvailable = id < quantities.length ? quantities[id] : 0;
+				servings = Math.min(servings, quantityAvailable / recipe.quantities[j]);
+			}
+		}
+		return Math.max(0, servings);
+	}
+
+	/**
+	 * @return The version of the machine that the snapshot was taken at.
+	 */
+	public long getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * @param ingredient The ingredient.
+	 * @return The quantity of the ingredient in the snapshot, or 0 if it wasn't in the machine's inventory.
+	 */
+	public int getQuantity(Ingredient ingredient)
+	{
+		int id = ingredient.getId();
+		return id >= 0 && id < quantities.length ? quantities[id] : 0;
+	}
+
+	/**
+	 * @return The number of different drinks in the snapshot's menu.
+	 */
+	public int getNumberOfDrinks()
+	{
+		return drinks.length;
+	}
+
+	/**
+	 * @param drinkNumber The number of the drink, where 1 is the first drink that is listed.
+	 * @return The drink with the given drink number.
+	 */
+	public Drink getDrink(int drinkNumber)
+	{
+		return drinks[drinkNumber - 1];
+	}
+
+	/**
+	 * @param drinkNumber The number of the drink, where 1 is the first drink that is listed.
+	 * @return The number of servings of the drink that the snapshot's quantities have enough ingredients for.
+	 */
+	public int getServingsAvailable(int drinkNumber)
+	{
+		return servingsAvailable[drinkNumber - 1];
+	}
+
+	/**
+	 * @param drinkNumber The number of the drink, where 1 is the first drink that is listed.
+	 * @return Whether the drink was in stock in the snapshot.
+	 */
+	public boolean isInStock(int drinkNumber)
+	{
+		return servingsAvailable[drinkNumber - 1] > 0;
+	}
+
+	/**
+	 * @return A string describing the snapshot's inventory, in the same format as {@link Machine#outputInventory()}.
+	 * The string is rendered the first time it is needed, and only the lines of ingredients whose quantities
+	 * changed since the machine last rendered them are rendered again.
+	 */
+	public String outputInventory()
+	{
+		String text = inventoryText;
+		if (text == null)
+		{
+			StringBuilder output = new StringBuilder();
+			output.append("Inventory:\n");
+			for (Ingredient ingredient : ingredients)
+			{
+				int id = ingredient.getId();
+				int quantityAvailable = quantities[id];
+				CachedOutput line = id < inventoryLines.length ? inventoryLines[id] : null;
+				if (!CachedOutput.matches(line, quantityAvailable))
+				{
+					line = new CachedOutput(quantityAvailable, ingredient.getName() + "," + quantityAvailable + "\n");
+					if (id < inventoryLines.length)
+					{
+						inventoryLines[id] = line;
+					}
+				}
+				output.append(line.text);
+			}
+			text = output.toString();
+			inventoryText = text;
+		}
+		return text;
+	}
+
+	/**
+	 * @return A string describing the snapshot's menu, in the same format as {@link Machine#outputMenu()}.
+	 * The string is rendered the first time it is needed, with each drink's current cost, and each drink
+	 * only renders its line again when it changes.
+	 */
+	public String outputMenu()
+	{
+		String text = menuText;
+		if (text == null)
+		{
+			StringBuilder output = new StringBuilder();
+			output.append("Menu:\n");
+			for (int i = 0; i < drinks.length; i++)
+			{
+				output.append(drinks[i].output(i + 1, servingsAvailable[i] > 0));
+			}
+			text = output.toString();
+			menuText = text;
+		}
+		return text;
+	}
+}
@@ -0,0 +1,41 @@
+package javamatic;
+
+/**
+ * This class describes one line of an order, which is a number of servings of one drink.
+ */
+public class OrderItem
+{
+	private int drinkNumber;
+	private int count;
+
+	/**
+	 * Constructs a new order item.
+	 * @param drinkNumber The number of the drink to order, where 1 is the first drink that is listed.
+	 * @param count The number of servings of the drink to order.
+	 */
+	public OrderItem(int drinkNumber, int count)
+	{
+		if (count < 0)
+		{
+			throw new IllegalArgumentException(String.format("Invalid count: %d", count));
+		}
+		this.drinkNumber = drinkNumber;
+		this.count = count;
+	}
+
+	/**
+	 * @return The number of the drink to order, where 1 is the first drink that is listed.
+	 */
+	public int getDrinkNumber()
+	{
+		return drinkNumber;
+	}
+
+	/**
+	 * @return The number of servings of the drink to order.
+	 */
+	public int getCount()
+	{
+		return count;
+	}
+}
@@ -0,0 +1,229 @@
+package javamatic;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class shares one JavaMatic machine with many clients over TCP on the local machine.
+ * Clients use the same text commands as the interactive application, and receive the same output,
+ * except that every response ends with an empty line so that clients know when it is complete.
+ * Each connection is handled on its own virtual thread when the Java runtime supports them, so that
+ * tens of thousands of connections can be held open at once. Buying drinks and restocking go through
+ * the concurrent machine's lock-free path, and the inventory and menu are read from the machine's
+ * cached output, which is only rendered again after the machine changes. A server can instead speak the
+ * {@link BinaryProtocol}, for order routers that pipeline many requests on each connection.
+ */
+public class OrderServer implements Closeable
+{
+	public static final int DEFAULT_PORT = 7070;
+	private static final int BACKLOG = 4096;
+	private static final int BINARY_BUFFER_SIZE = 4096 * BinaryProtocol.RECORD_SIZE;
+
+	private ConcurrentMachine machine;
+	private boolean binary;
+	private ServerSocket serverSocket;
+	private ExecutorService connectionExecutor;
+
+	/**
+	 * Constructs a new server, listening on the given port of the loopback address.
+	 * @param machine The JavaMatic machine that all clients share.
+	 * @param port The port to listen on, or 0 to choose any free port.
+	 * @throws IOException If the server can't listen on the port.
+	 */
+	public OrderServer(ConcurrentMachine machine, int port) throws IOException
+	{
+		this(machine, port, false);
+	}
+
+	/**
+	 * Constructs a new server, listening on the given port of the loopback address.
+	 * @param machine The JavaMatic machine that all clients share.
+	 * @param port The port to listen on, or 0 to choose any free port.
+	 * @param binary Whether clients use the binary protocol rather than the text commands.
+	 * @throws IOException If the server can't listen on the port.
+	 */
+	public OrderServer(ConcurrentMachine machine, int port, boolean binary) throws IOException
+	{
+		this.machine = machine;
+		this.binary = binary;
+		this.serverSocket = new ServerSocket(port, BACKLOG, InetAddress.getLoopbackAddress());
+		this.connectionExecutor = createConnectionExecutor();
+	}
+
+	/**
+	 * @return The port that the server is listening on.
+	 */
+	public int getPort()
+	{
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Accepts connections until the server is closed, handling each one on its own thread.
+	 */
+	public void run()
+	{
+		while (!serverSocket.isClosed())
+		{
+			try
+			{
+				final Socket socket = serverSocket.accept();
+				connectionExecutor.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						handleConnection(socket);
+					}
+				});
+			}
+			catch (IOException e)
+			{
+				if (!serverSocket.isClosed())
+				{
+					System.err.println(String.format("Could not accept connection: %s", e.getMessage()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts accepting connections on a background thread.
+	 * @return The thread that accepts connections.
+	 */
+	public Thread start()
+	{
+		Thread acceptThread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				OrderServer.this.run();
+			}
+		}, "OrderServer-accept");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+		return acceptThread;
+	}
+
+	/**
+	 * Stops accepting connections. Connections that are already open are left to finish.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		serverSocket.close();
+		connectionExecutor.shutdown();
+	}
+
+	/**
+	 * Runs the commands that a client sends until the client quits or disconnects.
+	 * @param socket The client's connection.
+	 */
+	private void handleConnection(Socket socket)
+	{
+		if (binary)
+		{
+			handleBinaryConnection(socket);
+			return;
+		}
+		try (Socket connection = socket)
+		{
+			connection.setTcpNoDelay(true);
+			BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+			PrintStream outputStream = new PrintStream(new BufferedOutputStream(connection.getOutputStream()), false, "UTF-8");
+
+			boolean keepRunning = true;
+			boolean printMenu = true;
+			while (keepRunning)
+			{
+				if (printMenu)
+				{
+					JavaMatic.printInventoryAndMenu(machine, outputStream);
+					outputStream.println();
+					outputStream.flush();
+				}
+
+				String line = reader.readLine();
+				if (line == null)
+				{
+					break;
+				}
+				printMenu = line.length() > 0;
+				if (printMenu)
+				{
+					keepRunning = JavaMatic.parseInput(machine, outputStream, line);
+				}
+			}
+			outputStream.flush();
+		}
+		catch (IOException e)
+		{
+			// The client disconnected, so there is no one left to report the error to.
+		}
+	}
+
+	/**
+	 * Handles the binary requests that a client sends until the client disconnects. Every complete request
+	 * that has arrived is handled before any of their responses are sent, so a client that pipelines many
+	 * requests gets their responses back in one write.
+	 * @param socket The client's connection.
+	 */
+	private void handleBinaryConnection(Socket socket)
+	{
+		try (Socket connection = socket)
+		{
+			connection.setTcpNoDelay(true);
+			InputStream inputStream = connection.getInputStream();
+			OutputStream outputStream = connection.getOutputStream();
+			ByteBuffer requests = ByteBuffer.allocate(BINARY_BUFFER_SIZE);
+			ByteBuffer responses = ByteBuffer.allocate(BINARY_BUFFER_SIZE);
+
+			int read;
+			while ((read = inputStream.read(requests.array(), requests.position(), requests.remaining())) > 0)
+			{
+				requests.position(requests.position() + read);
+				requests.flip();
+				responses.clear();
+				BinaryProtocol.handleRequests(machine, requests, responses);
+				outputStream.write(responses.array(), 0, responses.position());
+				requests.compact();
+			}
+		}
+		catch (IOException e)
+		{
+			// The client disconnected, so there is no one left to report the error to.
+		}
+	}
+
+	/**
+	 * @return An executor that runs each task on a new virtual thread if the Java runtime supports
+	 * them, or otherwise on a pooled platform thread.
+	 */
+	private static ExecutorService createConnectionExecutor()
+	{
+		try
+		{
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		}
+		catch (ReflectiveOperationException e)
+		{
+			return Executors.newCachedThreadPool();
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package javamatic;
+
+import java.math.BigDecimal;
+import java.text.NumberFormat;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class handles the JavaMatic's prices, which are stored exactly as whole numbers of cents.
+ * It keeps a version of the prices, which changes whenever any ingredient's price changes,
+ * so that drinks can memoize their total costs until then.
+ */
+public final class Pricing
+{
+	private static final AtomicLong priceVersion = new AtomicLong();
+	
+	private static final ThreadLocal<NumberFormat> CURRENCY_FORMAT = new ThreadLocal<NumberFormat>()
+	{
+		@Override
+		protected NumberFormat initialValue()
+		{
+			return NumberFormat.getCurrencyInstance();
+		}
+	};
+
+	/**
+	 * The pricing class only has static methods, so it is never constructed.
+	 */
+	private Pricing()
+	{
+	}
+
+	/**
+	 * Converts a numerical value of dollars (such as 1.2) into cents (such as 120),
+	 * rounding to the nearest cent.
+	 * @param amount The numerical value of the number of dollars.
+	 * @return The number of cents.
+	 */
+	public static long toCents(float amount)
+	{
+		return Math.round(amount * 100.0);
+	}
+
+	/**
+	 * Formats a number of cents (such as 120) as a dollar amount (such as $1.20). Each thread
+	 * keeps its own currency formatter, since formatters are not thread-safe.
+	 * @param cents The number of cents.
+	 * @return A dollar amount formatted as currency.
+	 */
+	public static String formatCents(long cents)
+	{
+		NumberFormat formatter = CURRENCY_FORMAT.get();
+		return formatter.format(BigDecimal.valueOf(cents, 2));
+	}
+
+	/**
+	 * @return The version of the prices, which changes whenever any ingredient's price changes.
+	 */
+	public static long getPriceVersion()
+	{
+		return priceVersion.get();
+	}
+
+	/**
+	 * Changes the version of the prices, after an ingredient's price has changed.
+	 */
+	static void priceChanged()
+	{
+		priceVersion.incrementAndGet();
+	}
+}
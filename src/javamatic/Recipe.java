@@ -0,0 +1,46 @@
+package javamatic;
+
+/**
+ * This class describes a drink's recipe compiled into parallel arrays of ingredient ids
+ * and quantities, so that the machine can dispense drinks without any map lookups or boxing.
+ * The ingredients are sorted by id.
+ */
+class Recipe
+{
+	final int[] ingredientIds;
+	final int[] quantities;
+
+	/**
+	 * Constructs a recipe from a drink's ingredient ids and quantities, sorting them by id. Recipes only
+	 * have a few ingredients, so an insertion sort is cheaper than a sorted map. The arrays are kept rather than copied.
+	 * @param ingredientIds The ids of the ingredients in the recipe, each of which must only appear once.
+	 * @param quantities The quantity of each ingredient that the recipe requires.
+	 */
+	Recipe(int[] ingredientIds, int[] quantities)
+	{
+		this.ingredientIds = ingredientIds;
+		this.quantities = quantities;
+		for (int size = 1; size < ingredientIds.length; size++)
+		{
+			int id = ingredientIds[size];
+			int quantity = quantities[size];
+			int i = size;
+			while (i > 0 && ingredientIds[i - 1] > id)
+			{
+				ingredientIds[i] = ingredientIds[i - 1];
+				quantities[i] = quantities[i - 1];
+				i--;
+			}
+			ingredientIds[i] = id;
+			quantities[i] = quantity;
+		}
+	}
+
+	/**
+	 * @return The number of different ingredients in the recipe.
+	 */
+	int size()
+	{
+		return ingredientIds.length;
+	}
+}
@@ -0,0 +1,430 @@
+package javamatic;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * This class describes holds on drinks that are paid for now and dispensed later, such as mobile orders.
+ * Reserving a drink takes its ingredients out of the machine's inventory straight away, so the drink's
+ * stock and every other drink's stock show that they are held, and committing the hold dispenses the drink
+ * without touching the inventory again. A hold that is cancelled, or that isn't committed before it times out,
+ * returns its ingredients to the inventory.
+ * <p>
+ * Each hold takes one of a fixed number of slots, which are linked into lists through a shared array rather
+ * than allocated. Reserving pops a free slot and pushes it onto a pending stack, and committing or cancelling
+ * is one compare-and-set on the slot's state, so none of them depend on how many holds are outstanding, and
+ * without a journal none of them take a lock. If the machine has a journal, reserving appends a purchase to it
+ * and cancelling or releasing a hold appends a restock, each under the journal's lock like any other purchase
+ * or restock, while committing never touches the journal. The slots are expired by a hierarchical timing wheel that only the wheel's thread touches: it
+ * moves pending slots into the wheel's buckets, and every tick it expires the slots in one bucket of the
+ * lowest level, after moving down the slots of any higher level bucket whose time has come. A slot stays in
+ * the wheel until its hold's timeout, even if the hold is committed first, so the number of slots should
+ * cover every hold that is made within one timeout.
+ */
+public final class Reservations implements Closeable
+{
+	/**
+	 * The hold that is returned when a drink can't be reserved.
+	 */
+	public static final long NO_HOLD = -1;
+
+	private static final int LEVEL_BITS = 6;
+	private static final int BUCKETS = 1 << LEVEL_BITS;
+	private static final int LEVELS = 4;
+	private static final int NONE = -1;
+	private static final long CLOSED = -1;
+
+	private final Machine machine;
+	private final long timeoutMillis;
+	private final long tickMillis;
+	private final LongSupplier clock;
+	private final long startMillis;
+	private final AtomicLongArray states;
+	private final int[] generations;
+	private final Drink[] drinks;
+	private final long[] deadlines;
+	private final int[] next;
+	private final AtomicLong freeHead;
+	private final AtomicInteger pendingHead;
+	private final int[] buckets;
+	private long currentTick;
+	private Thread thread;
+	private volatile boolean running;
+
+	/**
+	 * Constructs new holds on drinks from the given machine.
+	 * @param machine The JavaMatic machine, which should be a concurrent machine if the wheel's thread is started.
+	 * @param capacity The number of slots, which is the largest number of holds that can be made within one timeout.
+	 * @param timeoutMillis The number of milliseconds after which a hold that isn't committed is released.
+	 * @param tickMillis The number of milliseconds between the timing wheel's ticks, which is how late a hold may be released.
+	 */
+	public Reservations(Machine machine, int capacity, long timeoutMillis, long tickMillis)
+	{
+		this(machine, capacity, timeoutMillis, tickMillis, System::currentTimeMillis);
+	}
+
+	/**
+	 * Constructs new holds on drinks from the given machine with the given clock.
+	 * @param machine The JavaMatic machine, which should be a concurrent machine if the wheel's thread is started.
+	 * @param capacity The number of slots, which is the largest number of holds that can be made within one timeout.
+	 * @param timeoutMillis The number of milliseconds after which a hold that isn't committed is released.
+	 * @param tickMillis The number of milliseconds between the timing wheel's ticks, which is how late a hold may be released.
+	 * @param clock The clock that gives the current time in milliseconds.
+	 */
+	public Reservations(Machine machine, int capacity, long timeoutMillis, long tickMillis, LongSupplier clock)
+	{
+		if (capacity <= 0 || timeoutMillis <= 0 || tickMillis <= 0)
+		{
+			throw new IllegalArgumentException(String.format("Invalid holds: %d for %dms in ticks of %dms", capacity, timeoutMillis, tickMillis));
+		}
+		this.machine = machine;
+		this.timeoutMillis = timeoutMillis;
+		this.tickMillis = tickMillis;
+		this.clock = clock;
+		this.startMillis = clock.getAsLong();
+		this.states = new AtomicLongArray(capacity);
+		this.generations = new int[capacity];
+		this.drinks = new Drink[capacity];
+		this.deadlines = new long[capacity];
+		this.next = new int[capacity];
+		for (int slot = 0; slot < capacity; slot++)
+		{
+			states.set(slot, CLOSED);
+			next[slot] = slot + 1 < capacity ? slot + 1 : NONE;
+		}
+		this.freeHead = new AtomicLong(0);
+		this.pendingHead = new AtomicInteger(NONE);
+		this.buckets = new int[LEVELS * BUCKETS];
+		Arrays.fill(buckets, NONE);
+		this.currentTick = 0;
+	}
+
+	/**
+	 * Reserves the drink with the given drink number, taking its ingredients out of the inventory. If the machine
+	 * has a journal, the ingredients are recorded in it as a purchase, and a hold that is released is recorded as
+	 * a restock of them, so a hold that is lost in a crash is neither dispensed nor returned. Recording them takes
+	 * the journal's lock, so reserving only takes no lock when the machine has no journal. The slot is freed again
+	 * if the drink can't be held, including when holding it throws, such as for a drink number that isn't on the menu.
+	 * @param drinkNumber The number of the drink to reserve, where 1 is the first drink that is listed.
+	 * @return The hold, or {@link #NO_HOLD} if the drink is out of stock or every slot is taken.
+	 */
+	public long reserve(int drinkNumber)
+	{
+		int slot = popFreeSlot();
+		if (slot == NONE)
+		{
+			return NO_HOLD;
+		}
+		boolean held = false;
+		try
+		{
+			held = machine.holdDrink(drinkNumber);
+		}
+		finally
+		{
+			if (!held)
+			{
+				pushFreeSlot(slot);
+			}
+		}
+		if (!held)
+		{
+			return NO_HOLD;
+		}
+
+		int generation = (generations[slot] + 1) & Integer.MAX_VALUE;
+		generations[slot] = generation;
+		drinks[slot] = machine.getDrink(drinkNumber);
+		deadlines[slot] = (clock.getAsLong() + timeoutMillis - startMillis + tickMillis - 1) / tickMillis;
+		long hold = getHold(slot, generation);
+		states.set(slot, hold);
+		while (true)
+		{
+			int head = pendingHead.get();
+			next[slot] = head;
+			if (pendingHead.compareAndSet(head, slot))
+			{
+				return hold;
+			}
+		}
+	}
+
+	/**
+	 * Dispenses a held drink. If the machine has metrics or events, the drink is recorded in them as bought.
+	 * Its ingredients were recorded in the journal when it was reserved, so committing never takes a lock.
+	 * @param hold The hold that was returned when the drink was reserved.
+	 * @return Whether the drink was dispensed, which is false if the hold was already committed, cancelled, or released.
+	 */
+	public boolean commit(long hold)
+	{
+		if (!isOutstanding(hold))
+		{
+			return false;
+		}
+		Drink drink = drinks[(int) hold];
+		if (!states.compareAndSet((int) hold, hold, CLOSED))
+		{
+			return false;
+		}
+		machine.commitHold(drink);
+		return true;
+	}
+
+	/**
+	 * Cancels a hold, returning its ingredients to the inventory.
+	 * @param hold The hold that was returned when the drink was reserved.
+	 * @return Whether the hold was cancelled, which is false if it was already committed, cancelled, or released.
+	 */
+	public boolean cancel(long hold)
+	{
+		if (!isOutstanding(hold))
+		{
+			return false;
+		}
+		Drink drink = drinks[(int) hold];
+		if (!states.compareAndSet((int) hold, hold, CLOSED))
+		{
+			return false;
+		}
+		machine.releaseHold(drink);
+		return true;
+	}
+
+	/**
+	 * Starts advancing the timing wheel every tick on a new daemon thread.
+	 */
+	public synchronized void start()
+	{
+		if (thread != null)
+		{
+			throw new IllegalStateException("The timing wheel has already started");
+		}
+		running = true;
+		thread = new Thread(this::run, "Reservations");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops advancing the timing wheel. Holds that are still outstanding are neither committed nor released.
+	 */
+	@Override
+	public void close()
+	{
+		Thread currentThread;
+		synchronized (this)
+		{
+			running = false;
+			currentThread = thread;
+		}
+		if (currentThread != null && currentThread != Thread.currentThread())
+		{
+			currentThread.interrupt();
+			try
+			{
+				currentThread.join();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Moves the holds that were reserved since the last advance into the timing wheel, and then advances it
+	 * to the current time, releasing every hold that has timed out. Each tick that has passed costs one bucket
+	 * of the lowest level, so the wheel can fall behind by a long time without scanning every outstanding hold.
+	 * @return The number of holds that were released.
+	 */
+	public synchronized int advance()
+	{
+		long nowTick = Math.max(0, (clock.getAsLong() - startMillis) / tickMillis);
+		int released = 0;
+		int slot = pendingHead.getAndSet(NONE);
+		while (slot != NONE)
+		{
+			int nextSlot = next[slot];
+			if (deadlines[slot] <= currentTick)
+			{
+				released += expire(slot);
+			}
+			else
+			{
+				schedule(slot);
+			}
+			slot = nextSlot;
+		}
+
+		while (currentTick < nowTick)
+		{
+			currentTick++;
+			for (int level = LEVELS - 1; level > 0; level--)
+			{
+				if ((currentTick & ((1L << (level * LEVEL_BITS)) - 1)) == 0)
+				{
+					cascade(level);
+				}
+			}
+			int bucket = (int) (currentTick & (BUCKETS - 1));
+			slot = buckets[bucket];
+			buckets[bucket] = NONE;
+			while (slot != NONE)
+			{
+				int nextSlot = next[slot];
+				released += expire(slot);
+				slot = nextSlot;
+			}
+		}
+		return released;
+	}
+
+	/**
+	 * Advances the timing wheel every tick until it is closed.
+	 */
+	private void run()
+	{
+		while (running)
+		{
+			try
+			{
+				advance();
+			}
+			catch (RuntimeException e)
+			{
+				System.err.println(String.format("Timing wheel failed: %s", e));
+			}
+			try
+			{
+				Thread.sleep(tickMillis);
+			}
+			catch (InterruptedException e)
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Puts a slot in the bucket of the lowest level of the timing wheel whose span still reaches its deadline.
+	 * Level L's buckets each span 64 to the power of L ticks, and the level covers the 64 of those spans that
+	 * start with the current one. A deadline beyond the highest level is put in its last bucket, and moved
+	 * again when that bucket's time comes.
+	 * @param slot The slot, whose deadline is after the current tick.
+	 */
+	private void schedule(int slot)
+	{
+		long deadline = deadlines[slot];
+		int level = 0;
+		while (level < LEVELS - 1 && (deadline >> (level * LEVEL_BITS)) - (currentTick >> (level * LEVEL_BITS)) >= BUCKETS)
+		{
+			level++;
+		}
+		long span = Math.min(deadline >> (level * LEVEL_BITS), (currentTick >> (level * LEVEL_BITS)) + BUCKETS - 1);
+		int bucket = level * BUCKETS + (int) (span & (BUCKETS - 1));
+		next[slot] = buckets[bucket];
+		buckets[bucket] = slot;
+	}
+
+	/**
+	 * Moves the slots of the bucket of the given level whose span starts at the current tick down the wheel.
+	 * @param level The level, which is above the lowest level.
+	 */
+	private void cascade(int level)
+	{
+		int bucket = level * BUCKETS + (int) ((currentTick >> (level * LEVEL_BITS)) & (BUCKETS - 1));
+		int slot = buckets[bucket];
+		buckets[bucket] = NONE;
+		while (slot != NONE)
+		{
+			int nextSlot = next[slot];
+			schedule(slot);
+			slot = nextSlot;
+		}
+	}
+
+	/**
+	 * Releases a slot's hold if it is still outstanding, and frees the slot.
+	 * @param slot The slot, whose deadline has passed.
+	 * @return 1 if the hold was released, or 0 if it was already committed or cancelled.
+	 */
+	private int expire(int slot)
+	{
+		int released = 0;
+		if (states.compareAndSet(slot, getHold(slot, generations[slot]), CLOSED))
+		{
+			machine.releaseHold(drinks[slot]);
+			released = 1;
+		}
+		drinks[slot] = null;
+		pushFreeSlot(slot);
+		return released;
+	}
+
+	/**
+	 * Checks whether a hold is outstanding. The hold's drink should be read after this and before its slot's
+	 * state is closed with compare-and-set, since the slot can only be taken again once the state has changed,
+	 * so the drink that was read is the hold's drink whenever the compare-and-set succeeds.
+	 * @param hold The hold.
+	 * @return Whether the hold is outstanding.
+	 */
+	private boolean isOutstanding(long hold)
+	{
+		return hold >= 0 && (int) hold < states.length() && states.get((int) hold) == hold;
+	}
+
+	/**
+	 * Pops a slot off the free stack. The stack's head is tagged with a count of its changes, so a slot that
+	 * is popped and pushed again by other threads in between doesn't let a stale pop succeed.
+	 * @return The slot, or {@link #NONE} if every slot is taken.
+	 */
+	private int popFreeSlot()
+	{
+		while (true)
+		{
+			long head = freeHead.get();
+			int slot = (int) head;
+			if (slot == NONE)
+			{
+				return NONE;
+			}
+			long newHead = (head & 0xFFFFFFFF00000000L) + (1L << 32) | (next[slot] & 0xFFFFFFFFL);
+			if (freeHead.compareAndSet(head, newHead))
+			{
+				return slot;
+			}
+		}
+	}
+
+	/**
+	 * Pushes a slot onto the free stack.
+	 * @param slot The slot.
+	 */
+	private void pushFreeSlot(int slot)
+	{
+		while (true)
+		{
+			long head = freeHead.get();
+			next[slot] = (int) head;
+			long newHead = (head & 0xFFFFFFFF00000000L) + (1L << 32) | (slot & 0xFFFFFFFFL);
+			if (freeHead.compareAndSet(head, newHead))
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @param slot The slot of the hold.
+	 * @param generation The number of times that the slot has been taken.
+	 * @return The hold, which is never negative.
+	 */
+	private static long getHold(int slot, int generation)
+	{
+		return (long) generation << 32 | slot;
+	}
+}
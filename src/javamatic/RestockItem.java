@@ -0,0 +1,41 @@
+package javamatic;
+
+/**
+ * This class describes one line of a restock, which is a quantity of one ingredient to add to the inventory.
+ */
+public class RestockItem
+{
+	private Ingredient ingredient;
+	private int amount;
+
+	/**
+	 * Constructs a new restock item.
+	 * @param ingredient The ingredient to add.
+	 * @param amount The quantity of the ingredient to add, which is capped at the ingredient's capacity.
+	 */
+	public RestockItem(Ingredient ingredient, int amount)
+	{
+		if (amount < 0)
+		{
+			throw new IllegalArgumentException(String.format("Invalid amount: %d", amount));
+		}
+		this.ingredient = ingredient;
+		this.amount = amount;
+	}
+
+	/**
+	 * @return The ingredient to add.
+	 */
+	public Ingredient getIngredient()
+	{
+		return ingredient;
+	}
+
+	/**
+	 * @return The quantity of the ingredient to add.
+	 */
+	public int getAmount()
+	{
+		return amount;
+	}
+}
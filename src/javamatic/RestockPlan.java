@@ -0,0 +1,68 @@
+package javamatic;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class describes a restock that a restock scheduler plans for one machine, because at the rate
+ * that the machine's ingredients are being used, one of them will soon run too low to make a drink.
+ */
+public final class RestockPlan
+{
+	private final int machine;
+	private final List<RestockItem> items;
+	private final long millisUntilBlocked;
+
+	/**
+	 * Constructs a new restock plan.
+	 * @param machine The index of the machine in its fleet, or 0 for a single machine.
+	 * @param items The ingredients to restock, each with the quantity that fills it to its capacity.
+	 * @param millisUntilBlocked The number of milliseconds until the first ingredient is predicted to block a drink.
+	 */
+	RestockPlan(int machine, List<RestockItem> items, long millisUntilBlocked)
+	{
+		this.machine = machine;
+		this.items = Collections.unmodifiableList(items);
+		this.millisUntilBlocked = millisUntilBlocked;
+	}
+
+	/**
+	 * @return The index of the machine in its fleet, or 0 for a single machine.
+	 */
+	public int getMachine()
+	{
+		return machine;
+	}
+
+	/**
+	 * @return The ingredients to restock, each with the quantity that fills it to its capacity.
+	 */
+	public List<RestockItem> getItems()
+	{
+		return items;
+	}
+
+	/**
+	 * @return The number of milliseconds until the first ingredient is predicted to block a drink,
+	 * which is 0 if one already does.
+	 */
+	public long getMillisUntilBlocked()
+	{
+		return millisUntilBlocked;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder output = new StringBuilder();
+		output.append(String.format("Restock %d in %dms:", machine, millisUntilBlocked));
+		for (RestockItem item : items)
+		{
+			output.append(String.format(" %s,%d", item.getIngredient().getName(), item.getAmount()));
+		}
+		return output.toString();
+	}
+}
@@ -0,0 +1,433 @@
+package javamatic;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Consumer;
+import java.util.function.IntBinaryOperator;
+import java.util.function.LongSupplier;
+
+/**
+ * This class describes a scheduler that plans restocks before machines run out of ingredients. The quantity
+ * of each ingredient that each machine uses is recorded in a ring of time buckets, so the history takes
+ * a fixed amount of memory, and recording a purchase is one compare-and-set for each ingredient of the drink,
+ * without any allocation or locks. The scheduler's own thread periodically rotates the buckets and works out
+ * each ingredient's rate of use over the window of buckets. From that rate, it predicts when the ingredient
+ * will be too low to make one of the drinks that use it, and hands the listener a plan to restock each
+ * machine whose ingredients will block a drink within the horizon, at most once per horizon for each machine.
+ * Purchases that are recorded while the scheduler is behind count towards the bucket that was current at its
+ * last evaluation, so it should be evaluated at least once per bucket.
+ */
+public final class RestockScheduler implements Closeable
+{
+	private final int machineCount;
+	private final int stride;
+	private final Ingredient[] ingredientsById;
+	private final int[] largestQuantities;
+	private final IntBinaryOperator quantities;
+	private final long bucketMillis;
+	private final int windowBuckets;
+	private final int bucketCount;
+	private final long horizonMillis;
+	private final LongSupplier clock;
+	private final Consumer<RestockPlan> listener;
+	private final AtomicIntegerArray units;
+	private final long startMillis;
+	private final long[] nextPlanMillis;
+	private final long[] unitsUsed;
+	private final long[] millisUntilBlocked;
+	private volatile int currentBucket;
+	private long clearedEpoch;
+	private Closeable subscription;
+	private Thread thread;
+	private volatile boolean running;
+
+	/**
+	 * Constructs a new scheduler.
+	 * @param catalog The ingredients and drinks of every machine.
+	 * @param machineCount The number of machines.
+	 * @param quantities The quantity of an ingredient in a machine, given the machine's index and the ingredient's id.
+	 * @param bucketMillis The number of milliseconds that each bucket of the history covers.
+	 * @param windowBuckets The number of buckets that each ingredient's rate of use is worked out over.
+	 * @param horizonMillis How many milliseconds before an ingredient is predicted to block a drink that its restock is planned.
+	 * @param clock The clock that gives the current time in milliseconds.
+	 * @param listener The listener that each restock plan is handed to, on the thread that evaluates the scheduler.
+	 */
+	private RestockScheduler(Catalog catalog, int machineCount, IntBinaryOperator quantities, long bucketMillis,
+			int windowBuckets, long horizonMillis, LongSupplier clock, Consumer<RestockPlan> listener)
+	{
+		if (bucketMillis <= 0 || windowBuckets <= 0)
+		{
+			throw new IllegalArgumentException(String.format("Invalid buckets: %d of %dms", windowBuckets, bucketMillis));
+		}
+		this.machineCount = machineCount;
+		this.stride = catalog.getInventorySize();
+		this.bucketCount = windowBuckets + 1;
+		if ((long) machineCount * bucketCount * stride > Integer.MAX_VALUE)
+		{
+			throw new IllegalArgumentException(String.format("Too many machines for the history: %d", machineCount));
+		}
+
+		this.ingredientsById = new Ingredient[stride];
+		for (int i = 0; i < catalog.getNumberOfIngredients(); i++)
+		{
+			ingredientsById[catalog.getIngredient(i).getId()] = catalog.getIngredient(i);
+		}
+		this.largestQuantities = new int[stride];
+		for (int drinkNumber = 1; drinkNumber <= catalog.getNumberOfDrinks(); drinkNumber++)
+		{
+			Recipe recipe = catalog.getRecipe(drinkNumber);
+			for (int i = 0; i < recipe.size(); i++)
+			{
+				int id = recipe.ingredientIds[i];
+				largestQuantities[id] = Math.max(largestQuantities[id], recipe.quantities[i]);
+			}
+		}
+
+		this.quantities = quantities;
+		this.bucketMillis = bucketMillis;
+		this.windowBuckets = windowBuckets;
+		this.horizonMillis = horizonMillis;
+		this.clock = clock;
+		this.listener = listener;
+		this.units = new AtomicIntegerArray(machineCount * bucketCount * stride);
+		this.startMillis = clock.getAsLong();
+		this.nextPlanMillis = new long[machineCount];
+		this.unitsUsed = new long[stride];
+		this.millisUntilBlocked = new long[stride];
+		this.currentBucket = 0;
+		this.clearedEpoch = 0;
+	}
+
+	/**
+	 * Creates a scheduler for a fleet and attaches it to the fleet, so that every drink that is bought
+	 * from the fleet is recorded from now on.
+	 * @param fleet The fleet.
+	 * @param bucketMillis The number of milliseconds that each bucket of the history covers.
+	 * @param windowBuckets The number of buckets that each ingredient's rate of use is worked out over.
+	 * @param horizonMillis How many milliseconds before an ingredient is predicted to block a drink that its restock is planned.
+	 * @param listener The listener that each restock plan is handed to, on the thread that evaluates the scheduler.
+	 * @return The scheduler, which should be started to evaluate it periodically.
+	 */
+	public static RestockScheduler attach(Fleet fleet, long bucketMillis, int windowBuckets, long horizonMillis,
+			Consumer<RestockPlan> listener)
+	{
+		return attach(fleet, bucketMillis, windowBuckets, horizonMillis, listener, System::currentTimeMillis);
+	}
+
+	/**
+	 * Creates a scheduler for a fleet with the given clock, and attaches it to the fleet.
+	 * @param fleet The fleet.
+	 * @param bucketMillis The number of milliseconds that each bucket of the history covers.
+	 * @param windowBuckets The number of buckets that each ingredient's rate of use is worked out over.
+	 * @param horizonMillis How many milliseconds before an ingredient is predicted to block a drink that its restock is planned.
+	 * @param listener The listener that each restock plan is handed to, on the thread that evaluates the scheduler.
+	 * @param clock The clock that gives the current time in milliseconds.
+	 * @return The scheduler.
+	 */
+	public static RestockScheduler attach(Fleet fleet, long bucketMillis, int windowBuckets, long horizonMillis,
+			Consumer<RestockPlan> listener, LongSupplier clock)
+	{
+		RestockScheduler scheduler = new RestockScheduler(fleet.getCatalog(), fleet.getMachineCount(), fleet::getQuantity,
+				bucketMillis, windowBuckets, horizonMillis, clock, listener);
+		fleet.setRestockScheduler(scheduler);
+		scheduler.subscription = () -> fleet.setRestockScheduler(null);
+		return scheduler;
+	}
+
+	/**
+	 * Creates a scheduler for a single machine, and subscribes it to the machine's events.
+	 * @param machine The JavaMatic machine.
+	 * @param bucketMillis The number of milliseconds that each bucket of the history covers.
+	 * @param windowBuckets The number of buckets that each ingredient's rate of use is worked out over.
+	 * @param horizonMillis How many milliseconds before an ingredient is predicted to block a drink that its restock is planned.
+	 * @param listener The listener that each restock plan is handed to, on the thread that evaluates the scheduler.
+	 * @return The scheduler, which should be started to evaluate it periodically.
+	 */
+	public static RestockScheduler attach(Machine machine, long bucketMillis, int windowBuckets, long horizonMillis,
+			Consumer<RestockPlan> listener)
+	{
+		return attach(machine, bucketMillis, windowBuckets, horizonMillis, listener, System::currentTimeMillis);
+	}
+
+	/**
+	 * Creates a scheduler for a single machine and subscribes it to the machine's events, attaching events
+	 * to the machine if it doesn't have them yet, so the drinks that are bought are recorded on the events'
+	 * thread rather than the thread that buys them. The machine's ingredients and drinks should all be added first.
+	 * @param machine The JavaMatic machine.
+	 * @param bucketMillis The number of milliseconds that each bucket of the history covers.
+	 * @param windowBuckets The number of buckets that each ingredient's rate of use is worked out over.
+	 * @param horizonMillis How many milliseconds before an ingredient is predicted to block a drink that its restock is planned.
+	 * @param listener The listener that each restock plan is handed to, on the thread that evaluates the scheduler.
+	 * @param clock The clock that gives the current time in milliseconds.
+	 * @return The scheduler, which should be started to evaluate it periodically.
+	 */
+	public static RestockScheduler attach(Machine machine, long bucketMillis, int windowBuckets, long horizonMillis,
+			Consumer<RestockPlan> listener, LongSupplier clock)
+	{
+		RestockScheduler scheduler = new RestockScheduler(new Catalog(machine), 1, (m, id) -> machine.getQuantity(id),
+				bucketMillis, windowBuckets, horizonMillis, clock, listener);
+		MachineEvents events = machine.getEvents();
+		if (events == null)
+		{
+			events = MachineEvents.attach(machine);
+		}
+		scheduler.subscription = events.subscribe((event, sequence, endOfBatch) ->
+		{
+			if (event.getType() == MachineEvent.Type.DRINK_DISPENSED)
+			{
+				scheduler.recordPurchase(0, event.getDrink().getRecipe(), event.getQuantity());
+			}
+		});
+		return scheduler;
+	}
+
+	/**
+	 * Starts evaluating the scheduler periodically on a new daemon thread.
+	 * @param periodMillis The number of milliseconds between evaluations, which should be shorter than a bucket.
+	 */
+	public synchronized void start(long periodMillis)
+	{
+		if (thread != null)
+		{
+			throw new IllegalStateException("The scheduler has already started");
+		}
+		running = true;
+		thread = new Thread(() -> run(periodMillis), "RestockScheduler");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops recording purchases and evaluating the scheduler.
+	 */
+	@Override
+	public void close()
+	{
+		Thread currentThread;
+		synchronized (this)
+		{
+			running = false;
+			currentThread = thread;
+		}
+		if (currentThread != null && currentThread != Thread.currentThread())
+		{
+			currentThread.interrupt();
+			try
+			{
+				currentThread.join();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		try
+		{
+			subscription.close();
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Rotates the buckets of the history to the current time, and hands the listener a plan for each machine
+	 * that has an ingredient that is predicted to block a drink within the horizon.
+	 * @return The number of restock plans.
+	 */
+	public synchronized int evaluate()
+	{
+		long now = clock.getAsLong();
+		long epoch = Math.max(0, (now - startMillis) / bucketMillis);
+		rotate(epoch);
+		long windowStartEpoch = Math.max(0, epoch - windowBuckets + 1);
+		long windowMillis = Math.max(1, now - (startMillis + windowStartEpoch * bucketMillis));
+
+		int plans = 0;
+		for (int machine = 0; machine < machineCount; machine++)
+		{
+			if (now < nextPlanMillis[machine])
+			{
+				continue;
+			}
+			RestockPlan plan = planMachine(machine, windowStartEpoch, epoch, windowMillis);
+			if (plan != null)
+			{
+				nextPlanMillis[machine] = now + horizonMillis;
+				plans++;
+				listener.accept(plan);
+			}
+		}
+		return plans;
+	}
+
+	/**
+	 * Records the ingredients of drinks that were bought from a machine.
+	 * @param machine The index of the machine.
+	 * @param recipe The recipe of the drink.
+	 * @param servings The number of servings that were bought.
+	 */
+	void recordPurchase(int machine, Recipe recipe, int servings)
+	{
+		int offset = (machine * bucketCount + currentBucket) * stride;
+		for (int i = 0; i < recipe.size(); i++)
+		{
+			int id = recipe.ingredientIds[i];
+			if (id < stride)
+			{
+				addUnits(offset + id, (long) recipe.quantities[i] * servings);
+			}
+		}
+	}
+
+	/**
+	 * Adds units of an ingredient to a bucket, capping the bucket at the largest int rather than letting it
+	 * wrap around to a negative rate of use when huge orders are bought within one bucket.
+	 * @param index The index of the ingredient in the bucket.
+	 * @param amount The number of units to add.
+	 */
+	private void addUnits(int index, long amount)
+	{
+		while (true)
+		{
+			int current = units.get(index);
+			int updated = (int) Math.min(Integer.MAX_VALUE, current + amount);
+			if (updated == current || units.compareAndSet(index, current, updated))
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Evaluates the scheduler every period until it is closed.
+	 * @param periodMillis The number of milliseconds between evaluations.
+	 */
+	private void run(long periodMillis)
+	{
+		while (running)
+		{
+			try
+			{
+				evaluate();
+			}
+			catch (RuntimeException e)
+			{
+				System.err.println(String.format("Restock scheduler failed: %s", e));
+			}
+			try
+			{
+				Thread.sleep(periodMillis);
+			}
+			catch (InterruptedException e)
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Makes the bucket of the given epoch the current one. The buckets of the epochs that were skipped are
+	 * cleared first, along with the bucket of the next epoch, which holds the epoch that just left the window,
+	 * so that the next bucket is normally cleared before any purchase is recorded in it.
+	 * @param epoch The number of buckets since the scheduler started.
+	 */
+	private void rotate(long epoch)
+	{
+		long nextEpoch = epoch + 1;
+		if (nextEpoch <= clearedEpoch)
+		{
+			return;
+		}
+		for (long e = Math.max(clearedEpoch + 1, nextEpoch - bucketCount + 1); e <= nextEpoch; e++)
+		{
+			clearBucket((int) (e % bucketCount));
+		}
+		currentBucket = (int) (epoch % bucketCount);
+		clearedEpoch = nextEpoch;
+	}
+
+	/**
+	 * Clears a bucket of every machine's history.
+	 * @param bucket The index of the bucket.
+	 */
+	private void clearBucket(int bucket)
+	{
+		for (int machine = 0; machine < machineCount; machine++)
+		{
+			int offset = (machine * bucketCount + bucket) * stride;
+			for (int id = 0; id < stride; id++)
+			{
+				units.lazySet(offset + id, 0);
+			}
+		}
+	}
+
+	/**
+	 * Predicts when each of a machine's ingredients will block a drink, from how much of it was used in the window.
+	 * @param machine The index of the machine.
+	 * @param windowStartEpoch The epoch of the first bucket in the window.
+	 * @param epoch The epoch of the current bucket.
+	 * @param windowMillis The number of milliseconds from the start of the window until now.
+	 * @return The restock plan for the machine, or null if none of its ingredients will block a drink within the horizon.
+	 */
+	private RestockPlan planMachine(int machine, long windowStartEpoch, long epoch, long windowMillis)
+	{
+		for (int id = 0; id < stride; id++)
+		{
+			unitsUsed[id] = 0;
+		}
+		for (long e = windowStartEpoch; e <= epoch; e++)
+		{
+			int offset = (machine * bucketCount + (int) (e % bucketCount)) * stride;
+			for (int id = 0; id < stride; id++)
+			{
+				unitsUsed[id] += units.get(offset + id);
+			}
+		}
+
+		long earliestMillis = Long.MAX_VALUE;
+		for (int id = 0; id < stride; id++)
+		{
+			millisUntilBlocked[id] = Long.MAX_VALUE;
+			int largestQuantity = largestQuantities[id];
+			if (largestQuantity == 0)
+			{
+				continue;
+			}
+			int quantity = quantities.applyAsInt(machine, id);
+			if (quantity < largestQuantity)
+			{
+				millisUntilBlocked[id] = 0;
+			}
+			else if (unitsUsed[id] > 0)
+			{
+				millisUntilBlocked[id] = (quantity - largestQuantity + 1) * windowMillis / unitsUsed[id];
+			}
+			earliestMillis = Math.min(earliestMillis, millisUntilBlocked[id]);
+		}
+		if (earliestMillis > horizonMillis)
+		{
+			return null;
+		}
+
+		List<RestockItem> items = new ArrayList<RestockItem>();
+		for (int id = 0; id < stride; id++)
+		{
+			if (millisUntilBlocked[id] <= horizonMillis)
+			{
+				int amount = ingredientsById[id].getCapacity() - quantities.applyAsInt(machine, id);
+				if (amount > 0)
+				{
+					items.add(new RestockItem(ingredientsById[id], amount));
+				}
+			}
+		}
+		return items.isEmpty() ? null : new RestockPlan(machine, items, earliestMillis);
+	}
+}
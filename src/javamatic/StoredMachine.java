@@ -0,0 +1,138 @@
+package javamatic;
+
+/**
+ * This class describes a JavaMatic machine whose inventory is kept in a slot of an inventory store,
+ * outside of the Java heap, instead of in the machine itself. Buying a drink atomically removes its
+ * ingredients from the slot, so the machine can be shared between threads, and other code that
+ * reads the store, such as a fleet, sees the machine's inventory. The store's slots must have room
+ * for every ingredient id that is added to the machine.
+ */
+public class StoredMachine extends ConcurrentMachine
+{
+	private InventoryStore store;
+	private int slot;
+	private int inventorySize;
+
+	/**
+	 * Constructs a new machine over a slot of the given store.
+	 * @param store The store that holds the machine's inventory.
+	 * @param slot The slot of the store that holds the machine's inventory.
+	 */
+	public StoredMachine(InventoryStore store, int slot)
+	{
+		if (slot < 0 || slot >= store.getSlotCount())
+		{
+			throw new IndexOutOfBoundsException(String.format("Invalid slot: %d", slot));
+		}
+		this.store = store;
+		this.slot = slot;
+		this.inventorySize = 0;
+	}
+
+	/**
+	 * @return The store that holds the machine's inventory.
+	 */
+	public InventoryStore getStore()
+	{
+		return store;
+	}
+
+	/**
+	 * @return The slot of the store that holds the machine's inventory.
+	 */
+	public int getSlot()
+	{
+		return slot;
+	}
+
+	/**
+	 * Removes the ingredients in the given recipe from the machine's slot, under the slot's lock.
+	 */
+	@Override
+	protected boolean reserveIngredients(Recipe recipe)
+	{
+		return store.remove(slot, recipe);
+	}
+
+	/**
+	 * Returns the ingredients that were already removed for a recipe back to the machine's slot.
+	 */
+	@Override
+	protected void releaseIngredients(Recipe recipe, int count)
+	{
+		store.add(slot, recipe, count);
+	}
+
+	/**
+	 * Removes the given quantity of each ingredient from the machine's slot, under the slot's lock.
+	 */
+	@Override
+	protected boolean removeIngredients(long[] demand)
+	{
+		if (!store.remove(slot, demand))
+		{
+			return false;
+		}
+		for (int id = 0; id < demand.length; id++)
+		{
+			if (demand[id] > 0)
+			{
+				updateIngredientDrinkStocks(id);
+			}
+		}
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see javamatic.Machine#getInventorySize()
+	 */
+	@Override
+	protected int getInventorySize()
+	{
+		return inventorySize;
+	}
+
+	/**
+	 * The slot's size is fixed, so the inventory can only grow up to it.
+	 */
+	@Override
+	protected void resizeInventory(int size)
+	{
+		if (size > store.getSlotSize())
+		{
+			throw new IllegalStateException(String.format("Inventory slot has no room for ingredient id %d", size - 1));
+		}
+		inventorySize = size;
+	}
+
+	/* (non-Javadoc)
+	 * @see javamatic.Machine#getQuantity(int)
+	 */
+	@Override
+	protected int getQuantity(int ingredientId)
+	{
+		return store.get(slot, ingredientId);
+	}
+
+	/* (non-Javadoc)
+	 * @see javamatic.Machine#setQuantity(int, int)
+	 */
+	@Override
+	protected void setQuantity(int ingredientId, int quantity)
+	{
+		store.set(slot, ingredientId, quantity);
+	}
+
+	/**
+	 * The quantity is added under the slot's lock, so drinks that are bought at the same time are never lost.
+	 */
+	@Override
+	protected void addQuantity(int ingredientId, int amount, int capacity)
+	{
+		synchronized (store.getLock(slot))
+		{
+			int quantity = store.get(slot, ingredientId);
+			store.set(slot, ingredientId, Math.max(quantity, (int) Math.min(capacity, (long) quantity + amount)));
+		}
+	}
+}
@@ -0,0 +1,293 @@
+package javamatic;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * This class describes a JavaMatic machine for many cores, where every ingredient's stock is split
+ * across stripes. Each thread takes ingredients from its own stripe, and only borrows stock from
+ * the other stripes when its own runs dry, so threads buying drinks that share popular ingredients
+ * such as Espresso or Sugar don't keep invalidating each other's caches. Only one thread borrows at a
+ * time, so a drink is only out of stock when all of the stripes together don't have enough for it.
+ * The inventory still reports each ingredient's total quantity, which is the sum of its stripes.
+ * Ingredients and drinks should be added before the machine is shared between threads.
+ */
+public class StripedMachine extends ConcurrentMachine
+{
+	private static final int MAX_STRIPES = 64;
+	private static final int PADDING = 16;
+
+	private int stripeCount;
+	private int stripeLength;
+	private AtomicIntegerArray cells;
+	private final Object borrowLock = new Object();
+
+	/**
+	 * Constructs a new striped machine with one stripe for each available processor.
+	 */
+	public StripedMachine()
+	{
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Constructs a new striped machine.
+	 * @param stripes The number of stripes to split each ingredient's stock across, which
+	 * is rounded up to a power of two.
+	 */
+	public StripedMachine(int stripes)
+	{
+		this.stripeCount = 1;
+		while (stripeCount < Math.min(stripes, MAX_STRIPES))
+		{
+			stripeCount *= 2;
+		}
+		this.stripeLength = PADDING;
+		this.cells = new AtomicIntegerArray(stripeCount * stripeLength);
+	}
+
+	/**
+	 * Removes the ingredients in the given recipe from the current thread's stripe, borrowing
+	 * from other stripes if necessary. Either every ingredient is removed, or none of them are.
+	 */
+	@Override
+	protected boolean reserveIngredients(Recipe recipe)
+	{
+		int stripe = getStripe();
+		for (int i = 0; i < recipe.size(); i++)
+		{
+			if (!takeIngredient(recipe.ingredientIds[i], recipe.quantities[i], stripe))
+			{
+				releaseIngredients(recipe, i);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the ingredients that were already removed for a recipe back to the current thread's stripe.
+	 */
+	@Override
+	protected void releaseIngredients(Recipe recipe, int count)
+	{
+		int stripe = getStripe();
+		for (int i = 0; i < count; i++)
+		{
+			cells.addAndGet(getCell(stripe, recipe.ingredientIds[i]), recipe.quantities[i]);
+		}
+	}
+
+	/**
+	 * Removes the given quantity of each ingredient from the current thread's stripe, borrowing
+	 * from other stripes if necessary. Either every ingredient is removed, or none of them are.
+	 */
+	@Override
+	protected boolean removeIngredients(long[] demand)
+	{
+		int stripe = getStripe();
+		for (int id = 0; id < demand.length; id++)
+		{
+			if (demand[id] > 0 && (demand[id] > Integer.MAX_VALUE || !takeIngredient(id, (int) demand[id], stripe)))
+			{
+				for (int releasedId = 0; releasedId < id; releasedId++)
+				{
+					cells.addAndGet(getCell(stripe, releasedId), (int) demand[releasedId]);
+				}
+				return false;
+			}
+		}
+		for (int id = 0; id < demand.length; id++)
+		{
+			if (demand[id] > 0)
+			{
+				updateDrinkStocksAfterRemoval(id);
+			}
+		}
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see javamatic.Machine#getInventorySize()
+	 */
+	@Override
+	protected int getInventorySize()
+	{
+		return stripeLength - PADDING;
+	}
+
+	/**
+	 * Each stripe holds a quantity for every ingredient id, and is padded so that
+	 * no two stripes share a cache line.
+	 */
+	@Override
+	protected void resizeInventory(int size)
+	{
+		int newStripeLength = size + PADDING;
+		AtomicIntegerArray newCells = new AtomicIntegerArray(stripeCount * newStripeLength);
+		for (int stripe = 0; stripe < stripeCount; stripe++)
+		{
+			for (int id = 0; id < getInventorySize(); id++)
+			{
+				newCells.set(stripe * newStripeLength + id, cells.get(getCell(stripe, id)));
+			}
+		}
+		stripeLength = newStripeLength;
+		cells = newCells;
+	}
+
+	/**
+	 * The quantity is the sum of the ingredient's stripes, which is exact when no drinks are being bought.
+	 */
+	@Override
+	protected int getQuantity(int ingredientId)
+	{
+		int quantity = 0;
+		for (int stripe = 0; stripe < stripeCount; stripe++)
+		{
+			quantity += cells.get(getCell(stripe, ingredientId));
+		}
+		return quantity;
+	}
+
+	/**
+	 * The quantity is split evenly across the ingredient's stripes.
+	 */
+	@Override
+	protected void setQuantity(int ingredientId, int quantity)
+	{
+		for (int stripe = 0; stripe < stripeCount; stripe++)
+		{
+			int share = quantity / stripeCount + (stripe < quantity % stripeCount ? 1 : 0);
+			cells.set(getCell(stripe, ingredientId), share);
+		}
+	}
+
+	/**
+	 * The quantity is added evenly across the ingredient's stripes. Drinks that are bought at the same time
+	 * only lower the total, so the total never goes over the capacity, as long as restocks don't run at the same time.
+	 */
+	@Override
+	protected synchronized void addQuantity(int ingredientId, int amount, int capacity)
+	{
+		int quantity = Math.min(amount, capacity - getQuantity(ingredientId));
+		for (int stripe = 0; stripe < stripeCount && quantity > 0; stripe++)
+		{
+			int share = quantity / stripeCount + (stripe < quantity % stripeCount ? 1 : 0);
+			cells.addAndGet(getCell(stripe, ingredientId), share);
+		}
+	}
+
+	/**
+	 * Removes a quantity of an ingredient from the given stripe, borrowing from the other stripes
+	 * when the given stripe doesn't have enough.
+	 * @param ingredientId The id of the ingredient to remove.
+	 * @param quantity The quantity of the ingredient to remove.
+	 * @param stripe The stripe to remove the ingredient from.
+	 * @return Whether the ingredient was removed, which is false if all of the stripes together don't have enough.
+	 */
+	private boolean takeIngredient(int ingredientId, int quantity, int stripe)
+	{
+		int cell = getCell(stripe, ingredientId);
+		while (true)
+		{
+			int quantityAvailable = cells.get(cell);
+			if (quantity > quantityAvailable)
+			{
+				return borrowAndTakeIngredient(ingredientId, quantity, stripe);
+			}
+			if (cells.compareAndSet(cell, quantityAvailable, quantityAvailable - quantity))
+			{
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Removes a quantity of an ingredient from the given stripe, borrowing from the other stripes first.
+	 * Threads only borrow while holding the borrow lock, and threads that aren't borrowing only ever take
+	 * from their own stripes, so two threads that are each short can't keep moving the stock between their
+	 * stripes and both fail. A borrow that fails has taken all of the other stripes' stock, so the stripes
+	 * together really didn't have enough, apart from ingredients that other purchases were holding at the time.
+	 * @param ingredientId The id of the ingredient to remove.
+	 * @param quantity The quantity of the ingredient to remove.
+	 * @param stripe The stripe to remove the ingredient from.
+	 * @return Whether the ingredient was removed.
+	 */
+	private boolean borrowAndTakeIngredient(int ingredientId, int quantity, int stripe)
+	{
+		int cell = getCell(stripe, ingredientId);
+		synchronized (borrowLock)
+		{
+			while (true)
+			{
+				int quantityAvailable = cells.get(cell);
+				if (quantity <= quantityAvailable)
+				{
+					if (cells.compareAndSet(cell, quantityAvailable, quantityAvailable - quantity))
+					{
+						return true;
+					}
+				}
+				else if (!borrowIngredient(ingredientId, quantity - quantityAvailable, stripe))
+				{
+					return false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Moves stock of an ingredient from the other stripes into the given stripe. At least the needed
+	 * quantity is taken from each stripe that has it, or half of the stripe's stock if that is more,
+	 * so that a thread that keeps running dry doesn't need to borrow every time.
+	 * @param ingredientId The id of the ingredient to borrow.
+	 * @param quantityNeeded The quantity of the ingredient that the given stripe is missing.
+	 * @param stripe The stripe that is borrowing the ingredient.
+	 * @return Whether the needed quantity was borrowed. Any stock that was borrowed stays in the given stripe either way.
+	 */
+	private boolean borrowIngredient(int ingredientId, int quantityNeeded, int stripe)
+	{
+		int quantityBorrowed = 0;
+		for (int offset = 1; offset < stripeCount && quantityBorrowed < quantityNeeded; offset++)
+		{
+			int sibling = getCell((stripe + offset) & (stripeCount - 1), ingredientId);
+			while (true)
+			{
+				int quantityAvailable = cells.get(sibling);
+				if (quantityAvailable <= 0)
+				{
+					break;
+				}
+				int amount = Math.min(quantityAvailable, Math.max(quantityNeeded - quantityBorrowed, quantityAvailable / 2));
+				if (cells.compareAndSet(sibling, quantityAvailable, quantityAvailable - amount))
+				{
+					quantityBorrowed += amount;
+					break;
+				}
+			}
+		}
+		if (quantityBorrowed > 0)
+		{
+			cells.addAndGet(getCell(stripe, ingredientId), quantityBorrowed);
+		}
+		return quantityBorrowed >= quantityNeeded;
+	}
+
+	/**
+	 * @return The stripe that the current thread takes ingredients from.
+	 */
+	private int getStripe()
+	{
+		return (int) Thread.currentThread().getId() & (stripeCount - 1);
+	}
+
+	/**
+	 * @param stripe The stripe.
+	 * @param ingredientId The id of the ingredient.
+	 * @return The index of the cell that holds the ingredient's stock in the given stripe.
+	 */
+	private int getCell(int stripe, int ingredientId)
+	{
+		return stripe * stripeLength + ingredientId;
+	}
+}
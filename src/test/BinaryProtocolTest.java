@@ -0,0 +1,92 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import javamatic.*;
+
+/**
+ * This class has JUnit tests for the BinaryProtocol class.
+ */
+public class BinaryProtocolTest
+{
+	/**
+	 * Tests that each command gets the right response, with its tag, and that a request that has
+	 * only partly arrived is left in the buffer until the rest of it arrives.
+	 */
+	@Test
+	public void handleRequests()
+	{
+		Machine machine = JavaMaticFactory.createMachine();
+		ByteBuffer requests = ByteBuffer.allocate(128);
+		for (int i = 0; i < 4; i++)
+		{
+			BinaryProtocol.putRequest(requests, BinaryProtocol.BUY, (short) i, 1);
+		}
+		BinaryProtocol.putRequest(requests, BinaryProtocol.QUERY, (short) 4, 2);
+		BinaryProtocol.putRequest(requests, BinaryProtocol.BUY, (short) 5, 7);
+		BinaryProtocol.putRequest(requests, (byte) 9, (short) 6, 1);
+		BinaryProtocol.putRequest(requests, BinaryProtocol.RESTOCK, (short) 7, 0);
+		BinaryProtocol.putRequest(requests, BinaryProtocol.QUERY, (short) 8, 1);
+		requests.put(BinaryProtocol.BUY).put((byte) 0);
+		requests.flip();
+
+		ByteBuffer responses = ByteBuffer.allocate(128);
+		assertEquals(9, BinaryProtocol.handleRequests(machine, requests, responses));
+		assertEquals(2, requests.remaining());
+		assertEquals(9 * BinaryProtocol.RECORD_SIZE, responses.position());
+
+		byte[] statuses = { BinaryProtocol.OK, BinaryProtocol.OK, BinaryProtocol.OK, BinaryProtocol.OUT_OF_STOCK,
+				BinaryProtocol.OUT_OF_STOCK, BinaryProtocol.INVALID_SELECTION, BinaryProtocol.UNKNOWN_COMMAND,
+				BinaryProtocol.OK, BinaryProtocol.OK };
+		for (int i = 0; i < statuses.length; i++)
+		{
+			int index = i * BinaryProtocol.RECORD_SIZE;
+			assertEquals(statuses[i], BinaryProtocol.getStatus(responses, index));
+			assertEquals(i, BinaryProtocol.getTag(responses, index));
+		}
+		assertEquals(BinaryProtocol.QUERY, BinaryProtocol.getCommand(responses, 4 * BinaryProtocol.RECORD_SIZE));
+		assertEquals(0, BinaryProtocol.getValue(responses, 4 * BinaryProtocol.RECORD_SIZE));
+		assertEquals(3, BinaryProtocol.getValue(responses, 8 * BinaryProtocol.RECORD_SIZE));
+	}
+
+	/**
+	 * Tests that a binary server answers many pipelined requests that are sent in one write, in order.
+	 */
+	@Test
+	public void pipelinedRequests() throws IOException
+	{
+		ConcurrentMachine machine = JavaMaticFactory.createConcurrentMachine();
+		try (OrderServer server = new OrderServer(machine, 0, true))
+		{
+			server.start();
+			try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort()))
+			{
+				int count = 998;
+				ByteBuffer requests = ByteBuffer.allocate(count * BinaryProtocol.RECORD_SIZE);
+				for (int i = 0; i < count; i++)
+				{
+					BinaryProtocol.putRequest(requests, i % 4 == 3 ? BinaryProtocol.RESTOCK : BinaryProtocol.BUY, (short) i, 1);
+				}
+				socket.getOutputStream().write(requests.array());
+
+				ByteBuffer responses = ByteBuffer.allocate(count * BinaryProtocol.RECORD_SIZE);
+				new DataInputStream(socket.getInputStream()).readFully(responses.array());
+				for (int i = 0; i < count; i++)
+				{
+					int index = i * BinaryProtocol.RECORD_SIZE;
+					assertEquals(BinaryProtocol.OK, BinaryProtocol.getStatus(responses, index));
+					assertEquals((short) i, BinaryProtocol.getTag(responses, index));
+				}
+				assertEquals(true, machine.outputInventory().contains("Espresso,4\n"));
+			}
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import javamatic.*;
+
+/**
+ * This class has JUnit tests for the CatalogLoader class.
+ */
+public class CatalogLoaderTest
+{
+	private static final String DEFAULT_CATALOG = "# The default ingredients and drinks\n"
+			+ "ingredient,Coffee,0.75\n"
+			+ "ingredient,Decaf Coffee,0.75\n"
+			+ "ingredient,Sugar,0.25\n"
+			+ "ingredient,Cream,0.25\n"
+			+ "ingredient,Steamed Milk,0.35\n"
+			+ "ingredient,Foamed Milk,0.35\n"
+			+ "ingredient,Espresso,1.10\n"
+			+ "ingredient,Cocoa,0.90\n"
+			+ "ingredient,Whipped Cream,1.00\n"
+			+ "\n"
+			+ "drink,Coffee,Coffee,3,Sugar,1,Cream,1\n"
+			+ "drink,Decaf Coffee,Decaf Coffee,3,Sugar,1,Cream,1\n"
+			+ "drink,Caffe Latte,Espresso,2,Steamed Milk,1\n"
+			+ "drink,Caffe Americano,Espresso,3\n"
+			+ "drink,Caffe Mocha,Espresso,1,Cocoa,1,Steamed Milk,1,Whipped Cream,1\n"
+			+ "drink,Cappuccino,Espresso,2,Steamed Milk,1,Foamed Milk,1\n";
+
+	/**
+	 * Tests that a text catalog of the default ingredients and drinks loads the same machine as the factory,
+	 * and that compiling it into a binary catalog loads the same machine again.
+	 */
+	@Test
+	public void loadDefaultCatalog() throws IOException
+	{
+		Machine expected = JavaMaticFactory.createMachine();
+		Machine textMachine = CatalogLoader.loadText(new StringReader(DEFAULT_CATALOG), new Machine());
+		assertEquals(expected.outputInventory(), textMachine.outputInventory());
+		assertEquals(expected.outputMenu(), textMachine.outputMenu());
+
+		Path textPath = Files.createTempFile("catalog", ".csv");
+		Path binaryPath = Files.createTempFile("catalog", ".bin");
+		try
+		{
+			Files.write(textPath, DEFAULT_CATALOG.getBytes("UTF-8"));
+			CatalogLoader.compile(textPath, binaryPath);
+			Machine binaryMachine = CatalogLoader.load(binaryPath, new ConcurrentMachine());
+			assertEquals(expected.outputInventory(), binaryMachine.outputInventory());
+			assertEquals(expected.outputMenu(), binaryMachine.outputMenu());
+			assertEquals(expected.outputMenu(), CatalogLoader.load(textPath, new Machine()).outputMenu());
+
+			binaryMachine.buyDrink(4);
+			expected.buyDrink(4);
+			assertEquals(expected.outputInventory(), binaryMachine.outputInventory());
+		}
+		finally
+		{
+			Files.deleteIfExists(textPath);
+			Files.deleteIfExists(binaryPath);
+		}
+	}
+
+	/**
+	 * Tests that a text catalog that is read as bytes loads the same machine, with lines that end with a
+	 * carriage return and a line feed, and a last line that has no line ending.
+	 */
+	@Test
+	public void loadTextBytes() throws IOException
+	{
+		Machine expected = JavaMaticFactory.createMachine();
+		String catalog = DEFAULT_CATALOG.replace("\n", "\r\n").trim();
+		Machine machine = CatalogLoader.loadText(new ByteArrayInputStream(catalog.getBytes("UTF-8")), new Machine());
+		assertEquals(expected.outputInventory(), machine.outputInventory());
+		assertEquals(expected.outputMenu(), machine.outputMenu());
+	}
+
+	/**
+	 * Tests that a drink that uses an ingredient that hasn't been declared is rejected.
+	 */
+	@Test(expected = IOException.class)
+	public void unknownIngredient() throws IOException
+	{
+		CatalogLoader.loadText(new StringReader("ingredient,Coffee,0.75\ndrink,Mocha,Cocoa,1\n"), new Machine());
+	}
+
+	/**
+	 * Tests that a record with a missing quantity is rejected.
+	 */
+	@Test(expected = IOException.class)
+	public void invalidRecord() throws IOException
+	{
+		CatalogLoader.loadText(new StringReader("ingredient,Coffee,0.75\ndrink,Coffee,Coffee\n"), new Machine());
+	}
+
+	/**
+	 * Tests that a binary catalog that has been cut short is rejected without changing the machine.
+	 */
+	@Test
+	public void truncatedBinaryCatalog() throws IOException
+	{
+		Path textPath = Files.createTempFile("catalog", ".csv");
+		Path binaryPath = Files.createTempFile("catalog", ".bin");
+		try
+		{
+			Files.write(textPath, DEFAULT_CATALOG.getBytes("UTF-8"));
+			CatalogLoader.compile(textPath, binaryPath);
+			byte[] bytes = Files.readAllBytes(binaryPath);
+			Files.write(binaryPath, Arrays.copyOf(bytes, bytes.length / 2));
+			Machine machine = new Machine();
+			try
+			{
+				CatalogLoader.load(binaryPath, machine);
+				fail("A truncated binary catalog was loaded");
+			}
+			catch (IOException e)
+			{
+				assertEquals(0, machine.getNumberOfDrinks());
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists(textPath);
+			Files.deleteIfExists(binaryPath);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import javamatic.*;
+
+/**
+ * This class has JUnit tests for the CommandReplay class.
+ */
+public class CommandReplayTest
+{
+	/**
+	 * Tests that replaying commands from a stream outputs the result of each command and the summary.
+	 */
+	@Test
+	public void replayStream() throws IOException
+	{
+		String output = replay("2\r\n\n7\n-1\nfoijsf\n \n1\n1\n1\n1\nR\n1\nq\n3\n");
+		assertEquals("Dispensing: Caffe Latte\n"
+				+ "Invalid selection: 7\n"
+				+ "Invalid selection: -1\n"
+				+ "Invalid selection: foijsf\n"
+				+ "Invalid selection:  \n"
+				+ "Dispensing: Caffe Americano\n"
+				+ "Dispensing: Caffe Americano\n"
+				+ "Out of stock: Caffe Americano\n"
+				+ "Out of stock: Caffe Americano\n"
+				+ "Dispensing: Caffe Americano\n"
+				+ "Summary: 11 commands, 4 dispensed, 2 out of stock, 4 invalid, 1 restocks\n", output);
+	}
+
+	/**
+	 * Tests that replaying commands from a memory-mapped file gives the same results as a stream,
+	 * including a last line that doesn't end with a newline.
+	 */
+	@Test
+	public void replayFile() throws IOException
+	{
+		String commands = "6\n5\n+4\n3\n2\n01\n2147483648";
+		Path path = Files.createTempFile("commands", ".txt");
+		try
+		{
+			Files.write(path, commands.getBytes());
+			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+			CommandReplay replay = new CommandReplay(JavaMaticFactory.createMachine(), outputStream);
+			replay.replay(path);
+			assertEquals(replay(commands), outputStream.toString());
+			assertEquals(6, replay.getDispensedCount());
+			assertEquals(0, replay.getOutOfStockCount());
+			assertEquals(1, replay.getInvalidCount());
+		}
+		finally
+		{
+			Files.delete(path);
+		}
+	}
+
+	/**
+	 * Replays the given commands from a stream through a machine with the default drinks.
+	 * @param commands The commands to replay.
+	 * @return The output of the replay.
+	 */
+	private static String replay(String commands) throws IOException
+	{
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		CommandReplay replay = new CommandReplay(JavaMaticFactory.createMachine(), outputStream);
+		replay.replay(new ByteArrayInputStream(commands.getBytes()));
+		return outputStream.toString();
+	}
+}
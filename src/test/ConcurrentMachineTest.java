@@ -0,0 +1,397 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javamatic.*;
+
+/**
+ * This class has JUnit tests for the ConcurrentMachine class.
+ */
+public class ConcurrentMachineTest
+{
+	private static ConcurrentMachine machine;
+
+	/**
+	 * Creates a new concurrent machine with the default ingredients and drinks before every test case.
+	 */
+	@Before
+	public void setUp()
+	{
+		machine = JavaMaticFactory.createConcurrentMachine();
+	}
+
+	/**
+	 * Tests that the concurrent machine outputs the same inventory and menu as the
+	 * regular machine when drinks are bought from a single thread.
+	 */
+	@Test
+	public void matchesMachine()
+	{
+		Machine expected = JavaMaticFactory.createMachine();
+		int[] drinkNumbers = { 2, 2, 4, 1, 3, 2, 4, 5, 5, 5, 5, 6 };
+		for (int drinkNumber : drinkNumbers)
+		{
+			assertEquals(expected.buyDrink(drinkNumber), machine.buyDrink(drinkNumber));
+			assertEquals(expected.outputInventory(), machine.outputInventory());
+			assertEquals(expected.outputMenu(), machine.outputMenu());
+		}
+
+		expected.restockInventory();
+		machine.restockInventory();
+		assertEquals(expected.outputInventory(), machine.outputInventory());
+		assertEquals(expected.outputMenu(), machine.outputMenu());
+	}
+
+	/**
+	 * Tests that a regular machine and a concurrent machine both decide whether a drink can be bought
+	 * from the inventory's quantities, as a snapshot does, even if the drink's stock was set by hand.
+	 */
+	@Test
+	public void dispenseFromQuantities()
+	{
+		Machine[] machines = { JavaMaticFactory.createMachine(), machine };
+		for (Machine stocked : machines)
+		{
+			for (int i = 0; i < 3; i++)
+			{
+				assertTrue(stocked.buyDrink(1));
+			}
+			stocked.getDrink(1).setInStock(true);
+			assertFalse(stocked.getSnapshot().isInStock(1));
+			assertFalse(stocked.buyDrink(1));
+			assertTrue(stocked.outputInventory().contains("Espresso,1\n"));
+		}
+	}
+
+	/**
+	 * Tests that many threads buying drinks at the same time never dispense more drinks
+	 * than the inventory allows. Every drink except Coffee and Decaf Coffee uses Espresso,
+	 * so exactly as much Espresso must be missing as was used by the dispensed drinks.
+	 */
+	@Test
+	public void neverOversells() throws InterruptedException
+	{
+		final int[] espressoPerDrink = { 3, 2, 1, 2 };
+		final AtomicInteger espressoUsed = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++)
+		{
+			final int drinkNumber = t % espressoPerDrink.length + 1;
+			threads[t] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+					for (int i = 0; i < 10; i++)
+					{
+						if (machine.buyDrink(drinkNumber))
+						{
+							espressoUsed.addAndGet(espressoPerDrink[drinkNumber - 1]);
+						}
+					}
+				}
+			});
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		String inventory = machine.outputInventory();
+		String expectedEspresso = String.format("Espresso,%d\n", 10 - espressoUsed.get());
+		assertEquals(true, inventory.contains(expectedEspresso));
+		assertEquals(true, espressoUsed.get() <= 10);
+	}
+
+	/**
+	 * Tests that drinks that are in stock can always be bought while other threads keep trying to buy a drink
+	 * that is out of stock. The stock is exactly enough for every Caffe Latte that is bought, and Steamed Milk
+	 * comes before the Foamed Milk that has run out, so a Cappuccino that took Steamed Milk before finding
+	 * the Foamed Milk missing would make a Caffe Latte fail.
+	 */
+	@Test
+	public void noSpuriousShortages() throws InterruptedException
+	{
+		ConcurrentMachine exact = new ConcurrentMachine();
+		Ingredient espresso = new Ingredient("Espresso", 1.10f, 20000);
+		Ingredient steamedMilk = new Ingredient("Steamed Milk", 0.35f, 20000);
+		Ingredient foamedMilk = new Ingredient("Foamed Milk", 0.35f, 1);
+		exact.addIngredient(espresso);
+		exact.addIngredient(steamedMilk);
+		exact.addIngredient(foamedMilk);
+		Drink latte = new Drink("Caffe Latte");
+		latte.addIngredient(espresso, 1);
+		latte.addIngredient(steamedMilk, 1);
+		Drink cappuccino = new Drink("Cappuccino");
+		cappuccino.addIngredient(steamedMilk, 1);
+		cappuccino.addIngredient(foamedMilk, 2);
+		exact.addDrink(latte);
+		exact.addDrink(cappuccino);
+		exact.restockInventory();
+
+		AtomicInteger failures = new AtomicInteger();
+		AtomicInteger lattesLeft = new AtomicInteger(4);
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++)
+		{
+			final boolean buyLattes = t % 2 == 0;
+			final boolean buyOrders = t % 4 < 2;
+			threads[t] = new Thread(() ->
+			{
+				if (buyLattes)
+				{
+					for (int i = 0; i < 5000; i++)
+					{
+						boolean bought = buyOrders ? exact.buyDrinks(Arrays.asList(new OrderItem(1, 1)), false)[0] == 1 : exact.buyDrink(1);
+						if (!bought)
+						{
+							failures.incrementAndGet();
+						}
+					}
+					lattesLeft.decrementAndGet();
+				}
+				else
+				{
+					while (lattesLeft.get() > 0)
+					{
+						if (buyOrders ? exact.buyDrinks(Arrays.asList(new OrderItem(2, 1)), false)[0] == 1 : exact.buyDrink(2))
+						{
+							failures.incrementAndGet();
+						}
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		assertEquals(0, failures.get());
+		String inventory = exact.outputInventory();
+		assertTrue(inventory.contains("Espresso,0\n") && inventory.contains("Steamed Milk,0\n") && inventory.contains("Foamed Milk,1\n"));
+	}
+
+	/**
+	 * Tests that once many threads have stopped buying drinks and restocking, every drink's servings
+	 * match the inventory, without the menu being output to update them.
+	 */
+	@Test
+	public void servingsMatchInventory() throws InterruptedException
+	{
+		for (int round = 0; round < 20; round++)
+		{
+			ConcurrentMachine sharedMachine = JavaMaticFactory.createConcurrentMachine();
+			Thread[] threads = new Thread[4];
+			for (int t = 0; t < threads.length; t++)
+			{
+				final int firstDrink = t;
+				threads[t] = new Thread(() ->
+				{
+					for (int i = 0; i < 200; i++)
+					{
+						if (!sharedMachine.buyDrink((firstDrink + i) % 6 + 1) && firstDrink == 0)
+						{
+							sharedMachine.restockInventory();
+						}
+					}
+				});
+				threads[t].start();
+			}
+			for (Thread thread : threads)
+			{
+				thread.join();
+			}
+
+			MachineSnapshot snapshot = sharedMachine.getSnapshot();
+			for (int drinkNumber = 1; drinkNumber <= 6; drinkNumber++)
+			{
+				assertEquals(snapshot.getServingsAvailable(drinkNumber), sharedMachine.getServingsAvailable(drinkNumber));
+				assertEquals(snapshot.isInStock(drinkNumber), sharedMachine.getDrink(drinkNumber).isInStock());
+			}
+		}
+	}
+
+	/**
+	 * Tests that every snapshot taken while many threads buy drinks is the inventory as it was at one moment.
+	 * The only drink uses two Espresso for each Steamed Milk, so in every snapshot, the Espresso that is missing
+	 * must be exactly twice the Steamed Milk that is missing, and the drink must be in stock while any is left.
+	 */
+	@Test
+	public void consistentSnapshots() throws InterruptedException
+	{
+		StripedMachine striped = new StripedMachine(4);
+		Ingredient espresso = new Ingredient("Espresso", 1.10f, 20000);
+		Ingredient milk = new Ingredient("Steamed Milk", 0.35f, 10000);
+		striped.addIngredient(espresso);
+		striped.addIngredient(milk);
+		Drink latte = new Drink("Caffe Latte");
+		latte.addIngredient(espresso, 2);
+		latte.addIngredient(milk, 1);
+		striped.addDrink(latte);
+		striped.restockInventory();
+
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++)
+		{
+			threads[t] = new Thread(() ->
+			{
+				while (striped.buyDrink(1))
+				{
+				}
+			});
+			threads[t].start();
+		}
+		AtomicReference<String> torn = new AtomicReference<String>();
+		Thread reader = new Thread(() ->
+		{
+			MachineSnapshot snapshot;
+			do
+			{
+				snapshot = striped.getSnapshot();
+				int espressoUsed = 20000 - snapshot.getQuantity(espresso);
+				int milkUsed = 10000 - snapshot.getQuantity(milk);
+				if (espressoUsed != 2 * milkUsed || snapshot.isInStock(1) != (milkUsed < 10000))
+				{
+					torn.set(snapshot.outputInventory() + snapshot.outputMenu());
+				}
+			}
+			while (snapshot.getQuantity(milk) > 0);
+		});
+		reader.start();
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		reader.join();
+
+		assertEquals(null, torn.get());
+		assertTrue(striped.outputInventory().contains("Espresso,0\nSteamed Milk,0\n"));
+	}
+
+	/**
+	 * Tests that a batch of ingredients that is restocked, and a full restock, are each one change to the
+	 * inventory, so that a snapshot sees either none of the batch or all of it.
+	 */
+	@Test
+	public void atomicRestockBatches()
+	{
+		final AtomicInteger writes = new AtomicInteger();
+		ConcurrentMachine machine = new ConcurrentMachine()
+		{
+			@Override
+			protected void beginWrite()
+			{
+				writes.incrementAndGet();
+				super.beginWrite();
+			}
+		};
+		Ingredient espresso = new Ingredient("Espresso", 1.10f, 20);
+		Ingredient milk = new Ingredient("Steamed Milk", 0.35f, 10);
+		machine.addIngredient(espresso);
+		machine.addIngredient(milk);
+		Drink latte = new Drink("Caffe Latte");
+		latte.addIngredient(espresso, 2);
+		latte.addIngredient(milk, 1);
+		machine.addDrink(latte);
+
+		writes.set(0);
+		machine.restockInventory();
+		assertEquals(1, writes.get());
+		machine.buyDrink(1);
+
+		writes.set(0);
+		machine.restockIngredients(Arrays.asList(new RestockItem(espresso, 2), new RestockItem(milk, 1)));
+		assertEquals(1, writes.get());
+		MachineSnapshot snapshot = machine.getSnapshot();
+		assertEquals(20, snapshot.getQuantity(espresso));
+		assertEquals(10, snapshot.getQuantity(milk));
+	}
+
+	/**
+	 * Tests that a snapshot that can't be read without a lock, because changes never stop, is read while
+	 * changes are held off, and is still the inventory as it was at one moment. Reading without a lock is
+	 * made to always fail, so every snapshot holds changes off while threads keep buying drinks.
+	 */
+	@Test
+	public void exclusiveSnapshots() throws InterruptedException
+	{
+		final AtomicInteger exclusiveReads = new AtomicInteger();
+		ConcurrentMachine machine = new ConcurrentMachine()
+		{
+			@Override
+			protected boolean validateRead(long stamp)
+			{
+				return false;
+			}
+
+			@Override
+			protected void beginExclusiveRead()
+			{
+				exclusiveReads.incrementAndGet();
+				super.beginExclusiveRead();
+			}
+		};
+		Ingredient espresso = new Ingredient("Espresso", 1.10f, 20000);
+		Ingredient milk = new Ingredient("Steamed Milk", 0.35f, 10000);
+		machine.addIngredient(espresso);
+		machine.addIngredient(milk);
+		Drink latte = new Drink("Caffe Latte");
+		latte.addIngredient(espresso, 2);
+		latte.addIngredient(milk, 1);
+		machine.addDrink(latte);
+		machine.restockInventory();
+
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++)
+		{
+			threads[t] = new Thread(() ->
+			{
+				while (machine.buyDrink(1))
+				{
+				}
+			});
+			threads[t].start();
+		}
+		String torn = null;
+		MachineSnapshot snapshot;
+		do
+		{
+			snapshot = machine.getSnapshot();
+			if (20000 - snapshot.getQuantity(espresso) != 2 * (10000 - snapshot.getQuantity(milk)))
+			{
+				torn = snapshot.outputInventory();
+			}
+		}
+		while (snapshot.getQuantity(milk) > 0);
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		assertEquals(null, torn);
+		assertTrue(exclusiveReads.get() > 0);
+	}
+}
@@ -0,0 +1,69 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import javamatic.*;
+
+/**
+ * This class has JUnit tests for the DrinkRecommender class.
+ */
+public class DrinkRecommenderTest
+{
+	/**
+	 * Tests that the drinks most similar to an out of stock drink are recommended, and that
+	 * drinks that go out of stock are no longer recommended.
+	 */
+	@Test
+	public void recommendInStockDrinks()
+	{
+		Machine machine = JavaMaticFactory.createMachine();
+		DrinkRecommender recommender = DrinkRecommender.attach(machine);
+		Drink cappuccino = machine.getDrink(4);
+		assertEquals("[Caffe Latte, Caffe Americano, Caffe Mocha]", getNames(recommender.recommend(cappuccino, 3)));
+		assertEquals("[Caffe Latte]", getNames(recommender.recommend(cappuccino, 1)));
+		assertEquals("[Decaf Coffee]", getNames(recommender.recommend(machine.getDrink(5), 3)));
+
+		for (int i = 0; i < 3; i++)
+		{
+			assertTrue(machine.buyDrink(1));
+		}
+		assertEquals("[Caffe Mocha]", getNames(recommender.recommend(cappuccino, 3)));
+		assertEquals("[]", getNames(recommender.recommend(new Drink("Tea"), 3)));
+	}
+
+	/**
+	 * Tests that the JavaMatic application suggests other drinks when a drink is out of stock.
+	 */
+	@Test
+	public void suggestWhenOutOfStock()
+	{
+		Machine machine = JavaMaticFactory.createMachine();
+		DrinkRecommender.attach(machine);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		JavaMatic.runMachine(machine, new ByteArrayInputStream("1\n1\n1\n4\nq\n".getBytes()), new PrintStream(output));
+		assertTrue(output.toString().contains("Out of stock: Cappuccino\nTry instead: Caffe Mocha\n"));
+	}
+
+	/**
+	 * @param drinks The drinks.
+	 * @return The names of the given drinks.
+	 */
+	private static String getNames(List<Drink> drinks)
+	{
+		List<String> names = new ArrayList<String>();
+		for (Drink drink : drinks)
+		{
+			names.add(drink.getName());
+		}
+		return names.toString();
+	}
+}
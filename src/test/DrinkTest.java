@@ -74,4 +74,32 @@ public class DrinkTest
 		String output = drink.output(432);
 		assertEquals("432,Coffee,$963.96,false\n", output);
 	}
+	
+	/**
+	 * Tests that changing an ingredient's price updates the drink's memoized total cost.
+	 */
+	@Test
+	public void changeIngredientPrice()
+	{
+		Ingredient coffee = new Ingredient("Coffee", 0.75f);
+		drink.addIngredient(coffee, 3);
+		assertEquals("1,Coffee,$2.25,false\n", drink.output(1));
+		
+		coffee.setCost(1.10f);
+		assertEquals("1,Coffee,$3.30,false\n", drink.output(1));
+		assertEquals(330, drink.getTotalCostInCents());
+	}
+	
+	/**
+	 * Tests that large total costs are calculated exactly, without any floating point drift.
+	 */
+	@Test
+	public void exactLargeTotal()
+	{
+		Ingredient coffee = new Ingredient("Coffee", 0.10f);
+		coffee.setCostInCents(1234567891L);
+		drink.addIngredient(coffee, 1000);
+		assertEquals(1234567891000L, drink.getTotalCostInCents());
+		assertEquals("2,Coffee,$12,345,678,910.00,false\n", drink.output(2));
+	}
 }
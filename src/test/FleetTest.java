@@ -0,0 +1,124 @@
+package test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import javamatic.*;
+
+/**
+ * This class has JUnit tests for the Fleet class.
+ */
+public class FleetTest
+{
+	/**
+	 * Tests that each machine in a fleet dispenses the same drinks as a separate machine,
+	 * without affecting the other machines.
+	 */
+	@Test
+	public void matchesMachine()
+	{
+		Fleet fleet = JavaMaticFactory.createFleet(3);
+		Machine machine = JavaMaticFactory.createMachine();
+		for (int i = 0; i < 30; i++)
+		{
+			int drinkNumber = 1 + (i * 7) % 6;
+			assertEquals(machine.buyDrink(drinkNumber), fleet.buyDrink(1, drinkNumber));
+		}
+
+		Catalog catalog = fleet.getCatalog();
+		for (int drinkNumber = 1; drinkNumber <= catalog.getNumberOfDrinks(); drinkNumber++)
+		{
+			assertEquals(machine.getDrink(drinkNumber).isInStock(), fleet.isInStock(1, drinkNumber));
+			assertEquals(true, fleet.isInStock(0, drinkNumber));
+			assertEquals(true, fleet.isInStock(2, drinkNumber));
+		}
+	}
+
+	/**
+	 * Tests the fleet-wide stock, out of stock, and restock queries.
+	 */
+	@Test
+	public void fleetQueries()
+	{
+		Fleet fleet = JavaMaticFactory.createFleet(10000);
+		Catalog catalog = fleet.getCatalog();
+		for (int i = 0; i < 4; i++)
+		{
+			fleet.buyDrink(9999, 1);
+		}
+		fleet.buyDrink(5000, 5);
+
+		long[] totalStock = fleet.getTotalStock();
+		for (int i = 0; i < catalog.getNumberOfIngredients(); i++)
+		{
+			Ingredient ingredient = catalog.getIngredient(i);
+			long expected = 10000L * 10;
+			if (ingredient.getName().equals("Espresso"))
+			{
+				expected -= 9;
+			}
+			else if (ingredient.getName().equals("Coffee"))
+			{
+				expected -= 3;
+			}
+			else if (ingredient.getName().equals("Sugar") || ingredient.getName().equals("Cream"))
+			{
+				expected -= 1;
+			}
+			assertEquals(ingredient.getName(), expected, totalStock[i]);
+		}
+
+		assertEquals(Arrays.asList(1, 2, 4), fleet.getDrinksOutOfStock(9999));
+		assertEquals(3, fleet.getOutOfStockCounts()[9999]);
+		assertEquals(0, fleet.getOutOfStockCounts()[5000]);
+		assertArrayEquals(new int[] { 9999 }, fleet.getMachinesNeedingRestock(0));
+		assertArrayEquals(new int[0], fleet.getMachinesNeedingRestock(3));
+
+		fleet.restockMachine(9999);
+		assertArrayEquals(new int[0], fleet.getMachinesNeedingRestock(0));
+	}
+
+	/**
+	 * Tests that restocking an ingredient that isn't in the fleet's catalog is rejected, even if it has the same
+	 * id as one that is, and that nothing in the restock is added.
+	 */
+	@Test
+	public void restockUnknownIngredient()
+	{
+		Fleet fleet = JavaMaticFactory.createFleet(2);
+		Ingredient ingredient = fleet.getCatalog().getIngredient(0);
+		fleet.buyDrink(0, 1);
+		int[] quantities = new int[fleet.getCatalog().getNumberOfIngredients()];
+		for (int i = 0; i < quantities.length; i++)
+		{
+			quantities[i] = fleet.getQuantity(0, fleet.getCatalog().getIngredient(i));
+		}
+		Ingredient otherIngredient = JavaMaticFactory.createFleet(1).getCatalog().getIngredient(0);
+		try
+		{
+			fleet.restockIngredients(0, Arrays.asList(new RestockItem(ingredient, 1), new RestockItem(otherIngredient, 1)));
+			fail("An ingredient that isn't in the catalog was restocked");
+		}
+		catch (IllegalArgumentException e)
+		{
+			for (int i = 0; i < quantities.length; i++)
+			{
+				assertEquals(quantities[i], fleet.getQuantity(0, fleet.getCatalog().getIngredient(i)));
+			}
+		}
+	}
+
+	/**
+	 * Tests that the quantity of an ingredient that isn't in the fleet's catalog is rejected.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void quantityOfUnknownIngredient()
+	{
+		JavaMaticFactory.createFleet(2).getQuantity(0, new Ingredient("Matcha", 1.25f, 10));
+	}
+}
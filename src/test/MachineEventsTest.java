@@ -0,0 +1,140 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import javamatic.*;
+
+/**
+ * This class has JUnit tests for the MachineEvents and EventCoalescer classes.
+ */
+public class MachineEventsTest
+{
+	/**
+	 * Tests that a consumer is handed every event in the order that it was published.
+	 */
+	@Test
+	public void publishInOrder()
+	{
+		Machine machine = JavaMaticFactory.createMachine();
+		MachineEvents events = MachineEvents.attach(machine);
+		final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+		events.subscribe(new MachineEventConsumer()
+		{
+			@Override
+			public void onEvent(MachineEvent event, long sequence, boolean endOfBatch)
+			{
+				received.add(event.toString());
+			}
+		});
+		for (int i = 0; i < 4; i++)
+		{
+			machine.buyDrink(1);
+		}
+		machine.restockInventory();
+		machine.buyDrinks(Arrays.asList(new OrderItem(2, 2), new OrderItem(5, 1)), false);
+		events.close();
+
+		assertEquals(Arrays.asList(
+				"Dispensed: Caffe Americano,1",
+				"Dispensed: Caffe Americano,1",
+				"Dispensed: Caffe Americano,1",
+				"Low: Espresso,1",
+				"Out of stock: Caffe Americano",
+				"Out of stock: Caffe Latte",
+				"Out of stock: Cappuccino",
+				"Restocked",
+				"Dispensed: Caffe Latte,2",
+				"Dispensed: Coffee,1"), received);
+		assertEquals(0, events.getDroppedEventCount());
+		assertEquals(null, machine.getEvents());
+	}
+
+	/**
+	 * Tests that a consumer that has stopped doesn't block purchases, and that the events it misses are counted.
+	 */
+	@Test
+	public void slowConsumerDropsEvents() throws Exception
+	{
+		Machine machine = JavaMaticFactory.createMachine();
+		MachineEvents events = MachineEvents.attach(machine, 16, MachineEvents.DEFAULT_LOW_QUANTITY);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Set<Long> sequences = Collections.synchronizedSet(new HashSet<Long>());
+		Closeable subscription = events.subscribe(new MachineEventConsumer()
+		{
+			@Override
+			public void onEvent(MachineEvent event, long sequence, boolean endOfBatch)
+			{
+				sequences.add(sequence);
+				try
+				{
+					release.await();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		for (int i = 0; i < 1000; i++)
+		{
+			if (!machine.buyDrink(5))
+			{
+				machine.restockInventory();
+			}
+		}
+		assertTrue(events.getDroppedEventCount() > 0);
+
+		release.countDown();
+		subscription.close();
+		assertTrue(sequences.size() <= 16);
+		events.close();
+	}
+
+	/**
+	 * Tests that a coalescer hands its listener what changed during each period.
+	 */
+	@Test
+	public void coalesceDeltas() throws InterruptedException
+	{
+		Machine machine = JavaMaticFactory.createMachine();
+		MachineEvents events = MachineEvents.attach(machine);
+		final BlockingQueue<EventCoalescer.Delta> deltas = new LinkedBlockingQueue<EventCoalescer.Delta>();
+		events.subscribe(new EventCoalescer(50, deltas::add));
+		for (int i = 0; i < 3; i++)
+		{
+			machine.buyDrink(1);
+		}
+
+		int servings = 0;
+		Set<String> outOfStock = new HashSet<String>();
+		Set<String> low = new HashSet<String>();
+		while (servings < 3 || low.isEmpty())
+		{
+			EventCoalescer.Delta delta = deltas.poll(5, TimeUnit.SECONDS);
+			assertNotNull(delta);
+			servings += delta.getServingsDispensed().getOrDefault("Caffe Americano", 0);
+			outOfStock.addAll(delta.getOutOfStockDrinks());
+			low.addAll(delta.getLowIngredients());
+		}
+		events.close();
+
+		assertEquals(new HashSet<String>(Arrays.asList("Caffe Americano", "Caffe Latte", "Cappuccino")), outOfStock);
+		assertEquals(Collections.singleton("Espresso"), low);
+	}
+}
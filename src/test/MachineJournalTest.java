@@ -0,0 +1,155 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import javamatic.*;
+
+/**
+ * This class has JUnit tests for the MachineJournal class.
+ */
+public class MachineJournalTest
+{
+	/**
+	 * Tests that a machine recovers the inventory that it had when its journal was closed,
+	 * including purchases that were made since the last restock.
+	 */
+	@Test
+	public void recoverInventory() throws IOException
+	{
+		Path directory = Files.createTempDirectory("journal");
+		try
+		{
+			Machine machine = JavaMaticFactory.createMachine();
+			MachineJournal journal = MachineJournal.open(machine, directory, true);
+			try
+			{
+				assertTrue(machine.buyDrink(1));
+				assertTrue(machine.buyDrink(1));
+				assertTrue(machine.buyDrink(1));
+				assertFalse(machine.buyDrink(1));
+				machine.restockInventory();
+				assertTrue(machine.buyDrink(2));
+				machine.buyDrinks(Arrays.asList(new OrderItem(5, 2), new OrderItem(6, 1)), true);
+			}
+			finally
+			{
+				journal.close();
+			}
+
+			Machine recoveredMachine = JavaMaticFactory.createMachine();
+			MachineJournal recoveredJournal = MachineJournal.open(recoveredMachine, directory, false);
+			try
+			{
+				assertEquals(machine.outputInventory(), recoveredMachine.outputInventory());
+				assertEquals(machine.outputMenu(), recoveredMachine.outputMenu());
+				assertTrue(recoveredMachine.buyDrink(3));
+			}
+			finally
+			{
+				recoveredJournal.close();
+			}
+
+			Machine restartedMachine = JavaMaticFactory.createMachine();
+			MachineJournal.open(restartedMachine, directory, false).close();
+			assertEquals(recoveredMachine.outputInventory(), restartedMachine.outputInventory());
+		}
+		finally
+		{
+			deleteDirectory(directory);
+		}
+	}
+
+	/**
+	 * Tests that a record that was only partly written when the machine stopped is ignored.
+	 */
+	@Test
+	public void ignoreTornRecord() throws IOException
+	{
+		Path directory = Files.createTempDirectory("journal");
+		try
+		{
+			Machine machine = JavaMaticFactory.createMachine();
+			long generation;
+			try (MachineJournal journal = MachineJournal.open(machine, directory, true))
+			{
+				assertTrue(machine.buyDrink(4));
+				generation = journal.getGeneration();
+			}
+			Path log = directory.resolve(String.format("journal-%d.log", generation));
+			Files.write(log, new byte[] { 1, 0, 0 }, StandardOpenOption.APPEND);
+
+			Machine recoveredMachine = JavaMaticFactory.createMachine();
+			MachineJournal.open(recoveredMachine, directory, true).close();
+			assertEquals(machine.outputInventory(), recoveredMachine.outputInventory());
+		}
+		finally
+		{
+			deleteDirectory(directory);
+		}
+	}
+
+	/**
+	 * Tests that purchases and restocks of some ingredients are recovered in the order that they were made,
+	 * and that a restock whose records were only partly written when the machine stopped is ignored.
+	 */
+	@Test
+	public void recoverIngredientRestocks() throws IOException
+	{
+		Path directory = Files.createTempDirectory("journal");
+		try
+		{
+			Machine machine = JavaMaticFactory.createMachine();
+			Ingredient espresso = machine.getDrink(1).getIngredients().iterator().next();
+			long generation;
+			try (MachineJournal journal = MachineJournal.open(machine, directory, true))
+			{
+				assertTrue(machine.buyDrink(1));
+				assertTrue(machine.buyDrink(1));
+				assertTrue(machine.buyDrink(1));
+				machine.restockIngredients(Arrays.asList(new RestockItem(espresso, 6)));
+				assertTrue(machine.buyDrink(1));
+				assertTrue(machine.buyDrink(1));
+				generation = journal.getGeneration();
+			}
+			Path log = directory.resolve(String.format("journal-%d.log", generation));
+			Files.write(log, new byte[] { 3, 0, 0, 0, (byte) espresso.getId(), 0, 0, 0, 9 }, StandardOpenOption.APPEND);
+
+			Machine recoveredMachine = JavaMaticFactory.createMachine();
+			MachineJournal.open(recoveredMachine, directory, true).close();
+			assertEquals(machine.outputInventory(), recoveredMachine.outputInventory());
+			assertEquals(machine.outputMenu(), recoveredMachine.outputMenu());
+			assertTrue(recoveredMachine.outputInventory().contains("Espresso,1\n"));
+		}
+		finally
+		{
+			deleteDirectory(directory);
+		}
+	}
+
+	/**
+	 * Deletes a directory and the files in it.
+	 * @param directory The directory to delete.
+	 */
+	private static void deleteDirectory(Path directory) throws IOException
+	{
+		try (Stream<Path> files = Files.list(directory))
+		{
+			for (Path file : (Iterable<Path>) files::iterator)
+			{
+				Files.delete(file);
+			}
+		}
+		Files.delete(directory);
+	}
+}
@@ -0,0 +1,214 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import javamatic.*;
+
+/**
+ * This class has JUnit tests for the MachineMetrics and LatencyHistogram classes.
+ */
+public class MachineMetricsTest
+{
+	/**
+	 * Tests that purchases, out of stock rejections, and restocks are counted for each drink and ingredient.
+	 */
+	@Test
+	public void countPurchases()
+	{
+		Machine machine = JavaMaticFactory.createMachine();
+		MachineMetrics metrics = MachineMetrics.attach(machine);
+		for (int i = 0; i < 4; i++)
+		{
+			machine.buyDrink(1);
+		}
+		machine.restockInventory();
+		machine.buyDrinks(Arrays.asList(new OrderItem(2, 2), new OrderItem(1, 5)), true);
+
+		assertEquals(7, metrics.getPurchases());
+		assertEquals(2, metrics.getOutOfStockRejections());
+		assertEquals(1, metrics.getRestocks());
+		assertEquals(Long.valueOf(5), metrics.getPurchasesByDrink().get("Caffe Americano"));
+		assertEquals(Long.valueOf(2), metrics.getPurchasesByDrink().get("Caffe Latte"));
+		assertEquals(Long.valueOf(2), metrics.getOutOfStockRejectionsByDrink().get("Caffe Americano"));
+		assertEquals(Long.valueOf(19), metrics.getUnitsDispensedByIngredient().get("Espresso"));
+		assertEquals(Long.valueOf(2), metrics.getUnitsDispensedByIngredient().get("Steamed Milk"));
+		assertEquals(4, metrics.getLatency(MachineMetrics.Operation.BUY_DRINK).getCount());
+		assertEquals(1, metrics.getLatency(MachineMetrics.Operation.BUY_DRINKS).getCount());
+	}
+
+	/**
+	 * Tests that the counts that each thread records are merged when they are read.
+	 */
+	@Test
+	public void mergeThreads() throws InterruptedException
+	{
+		final ConcurrentMachine machine = JavaMaticFactory.createConcurrentMachine();
+		MachineMetrics metrics = MachineMetrics.attach(machine);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++)
+		{
+			threads[t] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					for (int i = 0; i < 1000; i++)
+					{
+						if (!machine.buyDrink(1 + i % machine.getNumberOfDrinks()))
+						{
+							machine.restockInventory();
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		assertEquals(4000, metrics.getPurchases() + metrics.getOutOfStockRejections());
+		assertEquals(metrics.getOutOfStockRejections(), metrics.getRestocks());
+		assertEquals(4000, metrics.getLatency(MachineMetrics.Operation.BUY_DRINK).getCount());
+	}
+
+	/**
+	 * Tests that no counts are lost when many short-lived threads share the recorders, while drinks
+	 * are added to the menu so that the recorders' arrays grow.
+	 */
+	@Test
+	public void manyShortLivedThreads() throws InterruptedException
+	{
+		final ConcurrentMachine machine = JavaMaticFactory.createConcurrentMachine();
+		MachineMetrics metrics = MachineMetrics.attach(machine);
+		for (int round = 0; round < 25; round++)
+		{
+			Thread[] threads = new Thread[8];
+			for (int t = 0; t < threads.length; t++)
+			{
+				threads[t] = new Thread()
+				{
+					@Override
+					public void run()
+					{
+						for (int i = 0; i < 100; i++)
+						{
+							if (!machine.buyDrink(machine.getNumberOfDrinks()))
+							{
+								machine.restockInventory();
+							}
+						}
+					}
+				};
+				threads[t].start();
+			}
+			Drink drink = new Drink("Zabaglione " + round);
+			drink.addIngredient(machine.getDrink(1).getIngredients().iterator().next(), 1);
+			machine.addDrinks(Arrays.asList(drink));
+			for (Thread thread : threads)
+			{
+				thread.join();
+			}
+		}
+
+		assertEquals(20000, metrics.getPurchases() + metrics.getOutOfStockRejections());
+		long drinkCounts = 0;
+		for (long count : metrics.getPurchasesByDrink().values())
+		{
+			drinkCounts += count;
+		}
+		for (long count : metrics.getOutOfStockRejectionsByDrink().values())
+		{
+			drinkCounts += count;
+		}
+		assertEquals(20000, drinkCounts);
+	}
+
+	/**
+	 * Tests that the metrics command prints the metrics, and that invalid selections are counted.
+	 */
+	@Test
+	public void dumpCommand()
+	{
+		Machine machine = JavaMaticFactory.createMachine();
+		MachineMetrics metrics = MachineMetrics.attach(machine);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		JavaMatic.runMachine(machine, new ByteArrayInputStream("1\nx\n0\nm\nq\n".getBytes()), new PrintStream(output));
+
+		assertEquals(2, metrics.getInvalidSelections());
+		assertEquals(5, metrics.getLatency(MachineMetrics.Operation.PARSE_INPUT).getCount());
+		assertTrue(output.toString().contains("Metrics:\nPurchases,1\nOut of stock,0\nInvalid selections,2\nRestocks,0\n"));
+		assertTrue(output.toString().contains("\n1,Caffe Americano,1,0\n"));
+	}
+
+	/**
+	 * Tests that invalid selections are counted when commands are replayed, as when they are entered.
+	 */
+	@Test
+	public void replayCommands() throws IOException
+	{
+		Machine machine = JavaMaticFactory.createMachine();
+		MachineMetrics metrics = MachineMetrics.attach(machine);
+		CommandReplay replay = new CommandReplay(machine, new ByteArrayOutputStream());
+		replay.replay(new ByteArrayInputStream("1\nx\n0\nq\n".getBytes()));
+
+		assertEquals(1, metrics.getPurchases());
+		assertEquals(2, metrics.getInvalidSelections());
+	}
+
+	/**
+	 * Tests that the metrics can be read through JMX.
+	 */
+	@Test
+	public void readThroughJmx() throws Exception
+	{
+		Machine machine = JavaMaticFactory.createMachine();
+		MachineMetrics metrics = MachineMetrics.attach(machine);
+		machine.buyDrink(3);
+		ObjectName name = metrics.register("MachineMetricsTest");
+		assertEquals(new ObjectName("javamatic:type=MachineMetrics,name=\"MachineMetricsTest\""), name);
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try
+		{
+			assertEquals(1L, server.getAttribute(name, "Purchases"));
+			assertEquals(metrics.dump(), server.invoke(name, "dump", new Object[0], new String[0]));
+		}
+		finally
+		{
+			server.unregisterMBean(name);
+		}
+	}
+
+	/**
+	 * Tests that the histogram's percentiles are in order, and that an empty histogram reads as 0.
+	 */
+	@Test
+	public void histogramPercentiles()
+	{
+		Machine machine = JavaMaticFactory.createMachine();
+		MachineMetrics metrics = MachineMetrics.attach(machine);
+		for (int i = 0; i < 100; i++)
+		{
+			machine.outputMenu();
+		}
+		LatencyHistogram histogram = metrics.getLatency(MachineMetrics.Operation.OUTPUT_MENU);
+		assertEquals(100, histogram.getCount());
+		assertTrue(histogram.getValueAtPercentile(50) <= histogram.getValueAtPercentile(99));
+		assertTrue(histogram.getValueAtPercentile(99) <= histogram.getMaxValue());
+		assertEquals(0, metrics.getLatency(MachineMetrics.Operation.RESTOCK).getMaxValue());
+	}
+}
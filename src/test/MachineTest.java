@@ -1,6 +1,13 @@
 package test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -175,4 +182,330 @@ public class MachineTest
 		assertEquals("Inventory:\nCoffee,10\nDecaf,10\nSugar,10\n", inventory);
 		assertEquals("Menu:\n1,Decaf Coffee,$4.50,true\n2,Normal Coffee,$5.00,true\n", menu);
 	}
+	
+	/**
+	 * Tests that every drink's number of servings available is kept up to date as drinks
+	 * are bought, including drinks that share ingredients with the drink being bought.
+	 */
+	@Test
+	public void servingsAvailable()
+	{
+		Drink decafCoffee = machine.getDrink(1);
+		Drink normalCoffee = machine.getDrink(2);
+		assertEquals(5, decafCoffee.getServingsAvailable());
+		assertEquals(3, normalCoffee.getServingsAvailable());
+		
+		machine.buyDrink(2);
+		assertEquals(3, decafCoffee.getServingsAvailable());
+		assertEquals(2, normalCoffee.getServingsAvailable());
+		
+		machine.buyDrink(1);
+		machine.buyDrink(2);
+		assertEquals(1, decafCoffee.getServingsAvailable());
+		assertEquals(0, normalCoffee.getServingsAvailable());
+		assertEquals(false, normalCoffee.isInStock());
+		
+		machine.restockInventory();
+		assertEquals(5, decafCoffee.getServingsAvailable());
+		assertEquals(3, normalCoffee.getServingsAvailable());
+	}
+	
+	/**
+	 * Tests the servings of each drink, and how many times an order that mixes drinks that
+	 * share an ingredient can be filled.
+	 */
+	@Test
+	public void ordersAvailable()
+	{
+		assertEquals("[5, 3]", Arrays.toString(machine.getServingsAvailable()));
+		assertEquals(3, machine.getServingsAvailable(2));
+		
+		List<OrderItem> mix = Arrays.asList(new OrderItem(1, 1), new OrderItem(2, 1));
+		assertEquals(2, machine.getOrdersAvailable(mix));
+		assertEquals(1, machine.getOrdersAvailable(Arrays.asList(new OrderItem(1, 3))));
+		assertEquals(Integer.MAX_VALUE, machine.getOrdersAvailable(Arrays.asList(new OrderItem(1, 0))));
+		
+		machine.buyDrinks(mix, false);
+		machine.buyDrinks(mix, false);
+		assertEquals(0, machine.getOrdersAvailable(mix));
+		assertEquals("[0, 0]", Arrays.toString(machine.getServingsAvailable()));
+	}
+	
+	/**
+	 * Tests that ingredients are given dense ids in the order they are added, while the
+	 * inventory is still output in order of ingredient name.
+	 */
+	@Test
+	public void ingredientIds()
+	{
+		Machine otherMachine = new Machine();
+		Ingredient water = new Ingredient("Water", 0.1f);
+		Ingredient tea = new Ingredient("Tea", 0.5f);
+		otherMachine.addIngredient(water);
+		otherMachine.addIngredient(tea);
+		assertEquals(0, water.getId());
+		assertEquals(1, tea.getId());
+		assertEquals("Inventory:\nTea,10\nWater,10\n", otherMachine.outputInventory());
+	}
+	
+	/**
+	 * Tests that an ingredient that was given its id by another machine is rejected if a different
+	 * ingredient already has that id in this machine, and that a batch gives new ingredients ids
+	 * after the ones that ingredients in the batch already have.
+	 */
+	@Test
+	public void collidingIngredientIds()
+	{
+		Ingredient water = new Ingredient("Water", 0.1f);
+		new Machine().addIngredient(water);
+		Machine otherMachine = new Machine();
+		Ingredient tea = new Ingredient("Tea", 0.5f);
+		otherMachine.addIngredient(tea);
+		try
+		{
+			otherMachine.addIngredient(water);
+			fail("Expected the colliding id to be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals("Ingredient id 0 of Water is already used by Tea", e.getMessage());
+		}
+		assertEquals("Inventory:\nTea,10\n", otherMachine.outputInventory());
+		
+		Machine batchMachine = new Machine();
+		Ingredient milk = new Ingredient("Milk", 0.3f);
+		batchMachine.addIngredients(Arrays.asList(milk, water));
+		assertEquals(0, water.getId());
+		assertEquals(1, milk.getId());
+		Drink drink = new Drink("Tea with Milk");
+		drink.addIngredient(tea, 1);
+		drink.addIngredient(milk, 1);
+		batchMachine.addDrink(drink);
+		try
+		{
+			new Catalog(batchMachine);
+			fail("Expected the drink with a missing ingredient to be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals("Tea with Milk uses an ingredient that isn't in the machine: Tea", e.getMessage());
+		}
+	}
+	
+	/**
+	 * Tests that the version only changes when the machine's inventory or menu changes,
+	 * and that the output is reused while the version stays the same.
+	 */
+	@Test
+	public void outputVersion()
+	{
+		long version = machine.getVersion();
+		String inventory = machine.outputInventory();
+		String menu = machine.outputMenu();
+		assertEquals(version, machine.getVersion());
+		assertSame(inventory, machine.outputInventory());
+		assertSame(menu, machine.outputMenu());
+		
+		machine.buyDrink(2);
+		machine.buyDrink(2);
+		machine.buyDrink(1);
+		assertEquals(true, machine.getVersion() != version);
+		version = machine.getVersion();
+		
+		machine.buyDrink(2);
+		assertEquals(version, machine.getVersion());
+		assertEquals("Inventory:\nCoffee,8\nDecaf,8\nSugar,2\n", machine.outputInventory());
+		assertEquals("Menu:\n1,Decaf Coffee,$4.50,true\n2,Normal Coffee,$5.00,false\n", machine.outputMenu());
+	}
+	
+	/**
+	 * Tests that a snapshot is reused while the version stays the same, and never changes
+	 * after the machine does.
+	 */
+	@Test
+	public void snapshot()
+	{
+		MachineSnapshot snapshot = machine.getSnapshot();
+		assertSame(snapshot, machine.getSnapshot());
+		assertEquals(machine.outputInventory(), snapshot.outputInventory());
+		
+		machine.buyDrink(2);
+		machine.buyDrink(2);
+		machine.buyDrink(1);
+		MachineSnapshot newSnapshot = machine.getSnapshot();
+		assertEquals("Inventory:\nCoffee,10\nDecaf,10\nSugar,10\n", snapshot.outputInventory());
+		assertEquals("Menu:\n1,Decaf Coffee,$4.50,true\n2,Normal Coffee,$5.00,true\n", snapshot.outputMenu());
+		assertEquals(true, snapshot.isInStock(2));
+		assertEquals(false, newSnapshot.isInStock(2));
+		assertEquals(1, newSnapshot.getServingsAvailable(1));
+		assertEquals(machine.getVersion(), newSnapshot.getVersion());
+		assertEquals("Menu:\n1,Decaf Coffee,$4.50,true\n2,Normal Coffee,$5.00,false\n", newSnapshot.outputMenu());
+	}
+	
+	/**
+	 * Tests that an order is either dispensed completely or not at all, and that the
+	 * inventory and menu are updated for the whole order.
+	 */
+	@Test
+	public void buyOrder()
+	{
+		List<OrderItem> order = Arrays.asList(new OrderItem(2, 2), new OrderItem(1, 3));
+		int[] servings = machine.buyDrinks(order, false);
+		assertEquals("[0, 0]", Arrays.toString(servings));
+		assertEquals("Inventory:\nCoffee,10\nDecaf,10\nSugar,10\n", machine.outputInventory());
+		
+		order = Arrays.asList(new OrderItem(2, 2), new OrderItem(1, 1));
+		servings = machine.buyDrinks(order, false);
+		assertEquals("[2, 1]", Arrays.toString(servings));
+		assertEquals("Inventory:\nCoffee,8\nDecaf,8\nSugar,2\n", machine.outputInventory());
+		assertEquals("Menu:\n1,Decaf Coffee,$4.50,true\n2,Normal Coffee,$5.00,false\n", machine.outputMenu());
+	}
+	
+	/**
+	 * Tests that an order that is filled partially dispenses as many servings of each
+	 * item as possible, in the order that the items are listed.
+	 */
+	@Test
+	public void buyPartialOrder()
+	{
+		List<OrderItem> order = Arrays.asList(new OrderItem(1, 2), new OrderItem(2, 5), new OrderItem(1, 5));
+		int[] servings = machine.buyDrinks(order, true);
+		assertEquals("[2, 2, 0]", Arrays.toString(servings));
+		assertEquals("Inventory:\nCoffee,8\nDecaf,6\nSugar,0\n", machine.outputInventory());
+		assertEquals("Menu:\n1,Decaf Coffee,$4.50,false\n2,Normal Coffee,$5.00,false\n", machine.outputMenu());
+	}
+	
+	/**
+	 * Tests that a machine that evaluates stock lazily gives the same stocks and output
+	 * as one that updates them after every change, including after switching back.
+	 */
+	@Test
+	public void lazyStockEvaluation()
+	{
+		Machine lazyMachine = JavaMaticFactory.createMachine();
+		Machine eagerMachine = JavaMaticFactory.createMachine();
+		lazyMachine.setLazyStockEvaluation(true);
+		for (int i = 0; i < 60; i++)
+		{
+			int drinkNumber = 1 + (i * 5) % 6;
+			assertEquals(eagerMachine.buyDrink(drinkNumber), lazyMachine.buyDrink(drinkNumber));
+			if (i % 25 == 24)
+			{
+				eagerMachine.restockInventory();
+				lazyMachine.restockInventory();
+			}
+			for (int j = 1; j <= eagerMachine.getNumberOfDrinks(); j++)
+			{
+				assertEquals(eagerMachine.getDrink(j).getServingsAvailable(), lazyMachine.getDrink(j).getServingsAvailable());
+			}
+			assertEquals(eagerMachine.outputMenu(), lazyMachine.outputMenu());
+		}
+		
+		lazyMachine.buyDrink(3);
+		lazyMachine.setLazyStockEvaluation(false);
+		eagerMachine.buyDrink(3);
+		assertEquals(eagerMachine.outputMenu(), lazyMachine.outputMenu());
+		assertEquals(eagerMachine.getDrink(3).isInStock(), lazyMachine.getDrink(3).isInStock());
+	}
+	
+	/**
+	 * Tests that drinks added in bulk and drinks added one at a time end up in the same sorted menu,
+	 * with drinks that have the same name kept in the order they were added.
+	 */
+	@Test
+	public void addDrinksInBulk()
+	{
+		Ingredient coffee = new Ingredient("Coffee", 0.5f);
+		List<Drink> drinks = Arrays.asList(new Drink("Mocha"), new Drink("Americano"), new Drink("Latte"),
+				new Drink("Mocha"), new Drink("Cappuccino"), new Drink("Espresso"));
+		for (Drink drink : drinks)
+		{
+			drink.addIngredient(coffee, 1);
+		}
+		
+		Machine bulkMachine = new Machine();
+		bulkMachine.addIngredients(Arrays.asList(coffee));
+		bulkMachine.addDrink(drinks.get(0));
+		bulkMachine.addDrinks(drinks.subList(1, drinks.size()));
+		Machine singleMachine = new Machine();
+		singleMachine.addIngredient(coffee);
+		for (Drink drink : drinks)
+		{
+			singleMachine.addDrink(drink);
+		}
+		
+		String[] expectedNames = { "Americano", "Cappuccino", "Espresso", "Latte", "Mocha", "Mocha" };
+		assertEquals(expectedNames.length, bulkMachine.getNumberOfDrinks());
+		for (int i = 0; i < expectedNames.length; i++)
+		{
+			assertEquals(expectedNames[i], bulkMachine.getDrink(i + 1).getName());
+			assertSame(singleMachine.getDrink(i + 1), bulkMachine.getDrink(i + 1));
+		}
+		assertSame(drinks.get(0), bulkMachine.getDrink(5));
+		assertSame(drinks.get(3), bulkMachine.getDrink(6));
+	}
+	
+	/**
+	 * Tests that restocking some ingredients adds to their quantities up to their capacities,
+	 * and puts the drinks that use them back in stock.
+	 */
+	@Test
+	public void restockIngredients()
+	{
+		Ingredient sugar = machine.getDrink(1).getIngredients().stream()
+				.filter(ingredient -> ingredient.getName().equals("Sugar")).findFirst().get();
+		Ingredient milk = new Ingredient("Milk", 0.25f, 25);
+		machine.addIngredient(milk);
+		machine.buyDrink(2);
+		machine.buyDrink(2);
+		machine.buyDrink(1);
+		assertEquals("Inventory:\nCoffee,8\nDecaf,8\nMilk,25\nSugar,2\n", machine.outputInventory());
+		assertEquals("Menu:\n1,Decaf Coffee,$4.50,true\n2,Normal Coffee,$5.00,false\n", machine.outputMenu());
+		
+		machine.restockIngredients(Arrays.asList(new RestockItem(sugar, 3)));
+		assertEquals("Inventory:\nCoffee,8\nDecaf,8\nMilk,25\nSugar,5\n", machine.outputInventory());
+		assertEquals("Menu:\n1,Decaf Coffee,$4.50,true\n2,Normal Coffee,$5.00,true\n", machine.outputMenu());
+		
+		machine.restockIngredients(Arrays.asList(new RestockItem(sugar, 100), new RestockItem(milk, 5)));
+		assertEquals("Inventory:\nCoffee,8\nDecaf,8\nMilk,25\nSugar,10\n", machine.outputInventory());
+		
+		try
+		{
+			machine.restockIngredients(Arrays.asList(new RestockItem(sugar, 1), new RestockItem(new Ingredient("Tea", 0.5f), 1)));
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals("Unknown ingredient: Tea", e.getMessage());
+		}
+		assertEquals("Inventory:\nCoffee,8\nDecaf,8\nMilk,25\nSugar,10\n", machine.outputInventory());
+	}
+	
+	/**
+	 * Tests that a drink that is added after the machine was restocked is in stock and can be bought
+	 * straight away, whether it is added on its own, in a batch, or before its recipe is filled in,
+	 * and that buying it updates the stock of the other drinks that use its ingredients.
+	 */
+	@Test
+	public void addDrinkAfterRestock()
+	{
+		Ingredient coffee = machine.getDrink(2).getIngredients().iterator().next();
+		Drink blackCoffee = new Drink("Black Coffee");
+		blackCoffee.addIngredient(coffee, 9);
+		machine.addDrink(blackCoffee);
+		assertEquals("Menu:\n1,Black Coffee,$4.50,true\n2,Decaf Coffee,$4.50,true\n3,Normal Coffee,$5.00,true\n", machine.outputMenu());
+		assertTrue(machine.buyDrink(1));
+		assertFalse(machine.getDrink(1).isInStock());
+		assertTrue(machine.getDrink(3).isInStock());
+		assertTrue(machine.buyDrink(3));
+		assertFalse(machine.getDrink(3).isInStock());
+		
+		Drink doubleCoffee = new Drink("Double Coffee");
+		machine.addDrinks(Arrays.asList(doubleCoffee));
+		doubleCoffee.addIngredient(coffee, 2);
+		assertFalse(doubleCoffee.isInStock());
+		assertFalse(machine.buyDrink(3));
+		machine.restockInventory();
+		assertTrue(machine.buyDrink(3));
+	}
 }
@@ -0,0 +1,103 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import org.junit.Test;
+
+import javamatic.*;
+
+/**
+ * This class has JUnit tests for the OrderServer class.
+ */
+public class OrderServerTest
+{
+	/**
+	 * Tests that two clients share the same machine, and that each response is the same
+	 * output as the interactive application followed by an empty line.
+	 */
+	@Test
+	public void sharedMachine() throws IOException
+	{
+		try (OrderServer server = new OrderServer(JavaMaticFactory.createConcurrentMachine(), 0))
+		{
+			server.start();
+			try (Socket first = connect(server); Socket second = connect(server))
+			{
+				BufferedReader firstReader = createReader(first);
+				BufferedReader secondReader = createReader(second);
+				String initialDisplay = readResponse(firstReader);
+				assertEquals(true, initialDisplay.startsWith("Inventory:\nCocoa,10\n"));
+				assertEquals(true, initialDisplay.contains("2,Caffe Latte,$2.55,true\n"));
+				readResponse(secondReader);
+
+				sendCommand(first, "2");
+				String response = readResponse(firstReader);
+				assertEquals(true, response.startsWith("Dispensing: Caffe Latte\nInventory:\n"));
+				assertEquals(true, response.contains("Espresso,8\n"));
+
+				sendCommand(second, "1");
+				response = readResponse(secondReader);
+				assertEquals(true, response.startsWith("Dispensing: Caffe Americano\nInventory:\n"));
+				assertEquals(true, response.contains("Espresso,5\n"));
+
+				sendCommand(second, "foo");
+				response = readResponse(secondReader);
+				assertEquals(true, response.startsWith("Invalid selection: foo\nInventory:\n"));
+			}
+		}
+	}
+
+	/**
+	 * Opens a connection to the server.
+	 * @param server The server to connect to.
+	 * @return The connection.
+	 */
+	private static Socket connect(OrderServer server) throws IOException
+	{
+		return new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+	}
+
+	/**
+	 * @param socket The connection to the server.
+	 * @return A reader for the server's responses.
+	 */
+	private static BufferedReader createReader(Socket socket) throws IOException
+	{
+		return new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+	}
+
+	/**
+	 * Sends a command to the server.
+	 * @param socket The connection to the server.
+	 * @param command The command to send.
+	 */
+	private static void sendCommand(Socket socket, String command) throws IOException
+	{
+		PrintStream outputStream = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+		outputStream.print(command + "\n");
+		outputStream.flush();
+	}
+
+	/**
+	 * Reads one response from the server, which ends with an empty line.
+	 * @param reader The reader for the server's responses.
+	 * @return The response, not including the empty line.
+	 */
+	private static String readResponse(BufferedReader reader) throws IOException
+	{
+		StringBuilder response = new StringBuilder();
+		String line;
+		while ((line = reader.readLine()) != null && line.length() > 0)
+		{
+			response.append(line).append('\n');
+		}
+		return response.toString();
+	}
+}
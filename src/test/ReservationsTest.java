@@ -0,0 +1,269 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import javamatic.*;
+
+/**
+ * This class has JUnit tests for the Reservations class.
+ */
+public class ReservationsTest
+{
+	/**
+	 * Tests that a held drink's ingredients are taken out of the inventory, so drinks that need them
+	 * go out of stock, and that committing keeps them out while cancelling returns them, only once.
+	 */
+	@Test
+	public void reserveCommitAndCancel()
+	{
+		Machine machine = JavaMaticFactory.createMachine();
+		MachineMetrics metrics = MachineMetrics.attach(machine);
+		AtomicLong clock = new AtomicLong();
+		Reservations reservations = new Reservations(machine, 16, 1000, 10, clock::get);
+		long first = reservations.reserve(1);
+		long second = reservations.reserve(1);
+		long third = reservations.reserve(1);
+		assertTrue(third >= 0);
+		assertEquals(Reservations.NO_HOLD, reservations.reserve(1));
+		assertFalse(machine.getDrink(1).isInStock());
+		assertFalse(machine.getDrink(2).isInStock());
+		assertTrue(machine.getDrink(3).isInStock());
+
+		assertTrue(reservations.commit(first));
+		assertFalse(reservations.commit(first));
+		assertFalse(reservations.cancel(first));
+		assertTrue(reservations.cancel(second));
+		assertFalse(reservations.cancel(second));
+		assertFalse(reservations.commit(Reservations.NO_HOLD));
+		assertTrue(machine.outputInventory().contains("Espresso,4\n"));
+		assertTrue(machine.getDrink(1).isInStock());
+		assertEquals(1, metrics.getPurchases());
+	}
+
+	/**
+	 * Tests that a hold is committed as a purchase of the drink that was held, even if drinks were added
+	 * to the menu while it was held, so that the drink's number changed.
+	 */
+	@Test
+	public void commitAfterMenuChanges()
+	{
+		Machine machine = JavaMaticFactory.createMachine();
+		MachineMetrics metrics = MachineMetrics.attach(machine);
+		Reservations reservations = new Reservations(machine, 16, 1000, 10, () -> 0);
+		long hold = reservations.reserve(1);
+		machine.addDrink(new Drink("Affogato"));
+
+		assertTrue(reservations.commit(hold));
+		assertEquals(Long.valueOf(1), metrics.getPurchasesByDrink().get("Caffe Americano"));
+		assertEquals(Long.valueOf(0), metrics.getPurchasesByDrink().get("Affogato"));
+	}
+
+	/**
+	 * Tests that cancelling a hold returns its ingredients without publishing a restock, so an ingredient
+	 * that went low stays low, and isn't published as low again when it goes back down.
+	 */
+	@Test
+	public void cancelWithoutRestock()
+	{
+		Machine machine = JavaMaticFactory.createMachine();
+		MachineEvents events = MachineEvents.attach(machine);
+		final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+		events.subscribe(new MachineEventConsumer()
+		{
+			@Override
+			public void onEvent(MachineEvent event, long sequence, boolean endOfBatch)
+			{
+				received.add(event.toString());
+			}
+		});
+		Reservations reservations = new Reservations(machine, 4, 1000, 10, () -> 0);
+		long hold = reservations.reserve(1);
+		assertTrue(machine.buyDrink(1));
+		assertTrue(machine.buyDrink(1));
+		assertTrue(reservations.cancel(hold));
+		assertTrue(machine.outputInventory().contains("Espresso,4\n"));
+		assertTrue(machine.buyDrink(1));
+		events.close();
+
+		assertEquals(1, Collections.frequency(received, "Low: Espresso,1"));
+		for (String event : received)
+		{
+			assertFalse(event, event.startsWith("Restocked"));
+		}
+	}
+
+	/**
+	 * Tests that reserving a drink that isn't on the menu doesn't keep the slot that it took.
+	 */
+	@Test
+	public void invalidDrinkFreesSlot()
+	{
+		Machine machine = JavaMaticFactory.createMachine();
+		Reservations reservations = new Reservations(machine, 1, 1000, 10, () -> 0);
+		try
+		{
+			reservations.reserve(machine.getNumberOfDrinks() + 1);
+			fail("A drink that isn't on the menu was reserved");
+		}
+		catch (ArrayIndexOutOfBoundsException e)
+		{
+			assertTrue(reservations.reserve(1) >= 0);
+		}
+	}
+
+	/**
+	 * Tests that holds that aren't committed are released when they time out, and not before, including
+	 * holds whose timeouts are on the higher levels of the timing wheel or beyond its highest level.
+	 */
+	@Test
+	public void expireHolds()
+	{
+		long[] timeouts = { 1000, 5000000, 20000000 };
+		for (long timeout : timeouts)
+		{
+			Machine machine = JavaMaticFactory.createMachine();
+			AtomicLong clock = new AtomicLong(7);
+			Reservations reservations = new Reservations(machine, 4, timeout, 1, clock::get);
+			long committed = reservations.reserve(1);
+			long held = reservations.reserve(1);
+			assertTrue(reservations.commit(committed));
+			assertTrue(machine.outputInventory().contains("Espresso,4\n"));
+
+			clock.addAndGet(timeout - 1);
+			assertEquals(0, reservations.advance());
+			assertTrue(machine.outputInventory().contains("Espresso,4\n"));
+			clock.incrementAndGet();
+			assertEquals(1, reservations.advance());
+			assertTrue(machine.outputInventory().contains("Espresso,7\n"));
+			assertFalse(reservations.commit(held));
+		}
+	}
+
+	/**
+	 * Tests that a slot isn't taken again until its hold's timeout, even if the hold was committed.
+	 */
+	@Test
+	public void reuseSlotsAfterTimeout()
+	{
+		Machine machine = JavaMaticFactory.createMachine();
+		AtomicLong clock = new AtomicLong();
+		Reservations reservations = new Reservations(machine, 1, 100, 10, clock::get);
+		long hold = reservations.reserve(3);
+		assertTrue(reservations.commit(hold));
+		assertEquals(Reservations.NO_HOLD, reservations.reserve(3));
+		clock.set(100);
+		assertEquals(0, reservations.advance());
+		long nextHold = reservations.reserve(3);
+		assertTrue(nextHold >= 0 && nextHold != hold);
+		assertFalse(reservations.cancel(hold));
+		assertTrue(reservations.cancel(nextHold));
+	}
+
+	/**
+	 * Tests that holds that are reserved, committed, and cancelled by many threads while the timing wheel
+	 * is running never oversell, and that every cancelled hold's ingredients are returned.
+	 */
+	@Test
+	public void neverOversells() throws InterruptedException
+	{
+		ConcurrentMachine machine = JavaMaticFactory.createConcurrentMachine();
+		Reservations reservations = new Reservations(machine, 1 << 12, 60000, 1);
+		reservations.start();
+		AtomicInteger committed = new AtomicInteger();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++)
+		{
+			final boolean cancel = t % 2 == 0;
+			threads[t] = new Thread(() ->
+			{
+				for (int i = 0; i < 500; i++)
+				{
+					long hold = reservations.reserve(2);
+					if (hold == Reservations.NO_HOLD)
+					{
+						continue;
+					}
+					if (cancel)
+					{
+						assertTrue(reservations.cancel(hold));
+					}
+					else if (committed.get() < 3 && reservations.commit(hold))
+					{
+						committed.incrementAndGet();
+					}
+					else
+					{
+						assertTrue(reservations.cancel(hold));
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		reservations.close();
+
+		String inventory = machine.outputInventory();
+		assertTrue(committed.get() <= 3);
+		assertTrue(inventory.contains(String.format("Espresso,%d\n", 10 - 2 * committed.get())));
+		assertTrue(inventory.contains(String.format("Steamed Milk,%d\n", 10 - committed.get())));
+	}
+
+	/**
+	 * Tests that a machine recovers holds from its journal as purchases, and cancelled holds as restocks.
+	 */
+	@Test
+	public void recoverHolds() throws IOException
+	{
+		Path directory = Files.createTempDirectory("journal");
+		try
+		{
+			Machine machine = JavaMaticFactory.createMachine();
+			MachineJournal journal = MachineJournal.open(machine, directory, true);
+			try
+			{
+				Reservations reservations = new Reservations(machine, 4, 1000, 10);
+				reservations.cancel(reservations.reserve(1));
+				reservations.commit(reservations.reserve(1));
+				reservations.reserve(2);
+			}
+			finally
+			{
+				journal.close();
+			}
+
+			Machine recoveredMachine = JavaMaticFactory.createMachine();
+			MachineJournal.open(recoveredMachine, directory, false).close();
+			assertEquals(machine.outputInventory(), recoveredMachine.outputInventory());
+			assertTrue(recoveredMachine.outputInventory().contains("Espresso,5\n"));
+		}
+		finally
+		{
+			try (Stream<Path> files = Files.list(directory))
+			{
+				for (Path file : (Iterable<Path>) files::iterator)
+				{
+					Files.delete(file);
+				}
+			}
+			Files.delete(directory);
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import javamatic.*;
+
+/**
+ * This class has JUnit tests for the RestockScheduler class.
+ */
+public class RestockSchedulerTest
+{
+	/**
+	 * Tests that a restock is planned for a machine in a fleet whose ingredient will soon block a drink,
+	 * and only once per horizon.
+	 */
+	@Test
+	public void planFleetRestock()
+	{
+		Fleet fleet = new Fleet(new Catalog(JavaMaticFactory.createMachine()), 4);
+		AtomicLong clock = new AtomicLong(5000);
+		List<RestockPlan> plans = new ArrayList<RestockPlan>();
+		RestockScheduler scheduler = RestockScheduler.attach(fleet, 1000, 4, 1000, plans::add, clock::get);
+		assertEquals(true, fleet.buyDrink(1, 1));
+		assertEquals(true, fleet.buyDrink(1, 1));
+		assertEquals(true, fleet.buyDrink(2, 5));
+
+		clock.addAndGet(1000);
+		assertEquals(1, scheduler.evaluate());
+		assertEquals("Restock 1 in 333ms: Espresso,6", plans.get(0).toString());
+		assertEquals(0, scheduler.evaluate());
+
+		fleet.restockIngredients(1, plans.get(0).getItems());
+		assertEquals(10, fleet.getQuantity(1, plans.get(0).getItems().get(0).getIngredient()));
+		scheduler.close();
+	}
+
+	/**
+	 * Tests that purchases that have left the window no longer count towards an ingredient's rate of use.
+	 */
+	@Test
+	public void forgetOldPurchases()
+	{
+		Fleet fleet = new Fleet(new Catalog(JavaMaticFactory.createMachine()), 1);
+		AtomicLong clock = new AtomicLong(0);
+		List<RestockPlan> plans = new ArrayList<RestockPlan>();
+		RestockScheduler scheduler = RestockScheduler.attach(fleet, 1000, 4, 2000, plans::add, clock::get);
+		assertEquals(true, fleet.buyDrink(0, 1));
+		assertEquals(true, fleet.buyDrink(0, 1));
+
+		clock.set(10000);
+		assertEquals(0, scheduler.evaluate());
+		assertEquals(Collections.emptyList(), plans);
+		scheduler.close();
+	}
+
+	/**
+	 * Tests that the purchases of a single machine are recorded from its events, and that
+	 * the planned restock can be applied to the machine.
+	 */
+	@Test
+	public void planMachineRestock() throws InterruptedException
+	{
+		Machine machine = JavaMaticFactory.createMachine();
+		AtomicLong clock = new AtomicLong(0);
+		List<RestockPlan> plans = Collections.synchronizedList(new ArrayList<RestockPlan>());
+		RestockScheduler scheduler = RestockScheduler.attach(machine, 1000, 4, 10000, plans::add, clock::get);
+		machine.buyDrink(1);
+		machine.buyDrink(1);
+
+		clock.set(1000);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (plans.isEmpty() && System.currentTimeMillis() < deadline)
+		{
+			scheduler.evaluate();
+			Thread.sleep(10);
+		}
+		scheduler.close();
+		machine.getEvents().close();
+
+		assertEquals("Restock 0 in 333ms: Espresso,6", plans.get(0).toString());
+		machine.restockIngredients(plans.get(0).getItems());
+		assertTrue(machine.outputInventory().contains("Espresso,10\n"));
+	}
+
+	/**
+	 * Tests that orders too large for a bucket's count are counted as the largest rate of use, rather than
+	 * wrapping around to a negative rate that never plans a restock.
+	 */
+	@Test
+	public void hugeOrders() throws InterruptedException
+	{
+		Machine machine = new Machine();
+		Ingredient espresso = new Ingredient("Espresso", 1.10f, Integer.MAX_VALUE);
+		machine.addIngredient(espresso);
+		Drink doppio = new Drink("Doppio");
+		doppio.addIngredient(espresso, 1 << 20);
+		machine.addDrink(doppio);
+		AtomicLong clock = new AtomicLong(0);
+		List<RestockPlan> plans = Collections.synchronizedList(new ArrayList<RestockPlan>());
+		RestockScheduler scheduler = RestockScheduler.attach(machine, 1000, 4, 1000, plans::add, clock::get);
+		assertEquals(1500, machine.buyDrinks(Arrays.asList(new OrderItem(1, 1500)), false)[0]);
+		machine.restockInventory();
+		assertEquals(1500, machine.buyDrinks(Arrays.asList(new OrderItem(1, 1500)), false)[0]);
+
+		clock.set(1000);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (plans.isEmpty() && System.currentTimeMillis() < deadline)
+		{
+			scheduler.evaluate();
+			Thread.sleep(10);
+		}
+		scheduler.close();
+		machine.getEvents().close();
+
+		assertEquals("Restock 0 in 267ms: Espresso,1572864000", plans.get(0).toString());
+	}
+}
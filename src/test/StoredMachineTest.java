@@ -0,0 +1,107 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import javamatic.*;
+
+/**
+ * This class has JUnit tests for the StoredMachine and InventoryStore classes.
+ */
+public class StoredMachineTest
+{
+	/**
+	 * Tests that a machine over a store dispenses the same drinks and outputs the same
+	 * inventory and menu as a regular machine, without affecting the other slots.
+	 */
+	@Test
+	public void matchesMachine()
+	{
+		InventoryStore store = InventoryStore.allocate(3, 16);
+		StoredMachine storedMachine = JavaMaticFactory.createStoredMachine(store, 1);
+		StoredMachine otherMachine = JavaMaticFactory.createStoredMachine(store, 2);
+		Machine machine = JavaMaticFactory.createMachine();
+		for (int i = 0; i < 30; i++)
+		{
+			int drinkNumber = 1 + (i * 5) % 6;
+			assertEquals(machine.buyDrink(drinkNumber), storedMachine.buyDrink(drinkNumber));
+			assertEquals(machine.outputInventory(), storedMachine.outputInventory());
+			assertEquals(machine.outputMenu(), storedMachine.outputMenu());
+		}
+		assertEquals(JavaMaticFactory.createMachine().outputInventory(), otherMachine.outputInventory());
+		assertEquals(0, store.get(0, 0));
+	}
+
+	/**
+	 * Tests that a machine over a store that is mapped to a file keeps its inventory when the file is mapped again.
+	 */
+	@Test
+	public void warmRestart() throws IOException
+	{
+		Path path = Files.createTempFile("inventory", ".bin");
+		try
+		{
+			Files.delete(path);
+			InventoryStore store = InventoryStore.map(path, 4, 16);
+			assertFalse(store.isRestored());
+			StoredMachine machine = JavaMaticFactory.createStoredMachine(store, 3);
+			machine.buyDrink(1);
+			machine.buyDrink(1);
+			machine.buyDrink(1);
+			assertFalse(machine.getDrink(1).isInStock());
+			store.flush();
+
+			InventoryStore restoredStore = InventoryStore.map(path, 4, 16);
+			assertTrue(restoredStore.isRestored());
+			StoredMachine restoredMachine = JavaMaticFactory.createStoredMachine(restoredStore, 3);
+			assertEquals(machine.outputInventory(), restoredMachine.outputInventory());
+			assertFalse(restoredMachine.getDrink(1).isInStock());
+
+			Fleet fleet = new Fleet(new Catalog(restoredMachine), restoredStore);
+			assertEquals(4, fleet.getMachineCount());
+			assertEquals(3, fleet.getOutOfStockCounts()[3]);
+			assertEquals(3, fleet.getMachinesNeedingRestock(5).length);
+		}
+		finally
+		{
+			Files.deleteIfExists(path);
+		}
+	}
+
+	/**
+	 * Tests that a file that holds a store with a different layout isn't mapped.
+	 */
+	@Test(expected = IOException.class)
+	public void differentLayout() throws IOException
+	{
+		Path path = Files.createTempFile("inventory", ".bin");
+		try
+		{
+			Files.delete(path);
+			InventoryStore.map(path, 4, 16);
+			InventoryStore.map(path, 8, 16);
+		}
+		finally
+		{
+			Files.deleteIfExists(path);
+		}
+	}
+
+	/**
+	 * Tests that an ingredient id past the end of a slot is rejected, rather than read from the next slot.
+	 */
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void ingredientOutsideSlot()
+	{
+		InventoryStore store = InventoryStore.allocate(3, 16);
+		store.set(1, 0, 5);
+		store.get(0, 16);
+	}
+}
@@ -0,0 +1,217 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import javamatic.*;
+
+/**
+ * This class has JUnit tests for the StripedMachine class.
+ */
+public class StripedMachineTest
+{
+	/**
+	 * Tests that the striped machine outputs the same inventory and menu as the regular machine
+	 * when drinks are bought from a single thread, even though the thread has to borrow
+	 * ingredients from the other stripes.
+	 */
+	@Test
+	public void matchesMachine()
+	{
+		Machine expected = JavaMaticFactory.createMachine();
+		StripedMachine machine = JavaMaticFactory.populateMachine(new StripedMachine(4));
+
+		int[] drinkNumbers = { 2, 2, 4, 1, 3, 2, 4, 5, 5, 5, 5, 6 };
+		for (int drinkNumber : drinkNumbers)
+		{
+			assertEquals(expected.buyDrink(drinkNumber), machine.buyDrink(drinkNumber));
+			assertEquals(expected.outputInventory(), machine.outputInventory());
+			assertEquals(expected.outputMenu(), machine.outputMenu());
+		}
+
+		expected.restockInventory();
+		machine.restockInventory();
+		assertEquals(expected.outputInventory(), machine.outputInventory());
+		assertEquals(expected.outputMenu(), machine.outputMenu());
+	}
+
+	/**
+	 * Tests that many threads buying Caffe Americanos at the same time never dispense more
+	 * than the inventory allows, and that the total inventory stays correct.
+	 */
+	@Test
+	public void neverOversells() throws InterruptedException
+	{
+		final StripedMachine machine = JavaMaticFactory.populateMachine(new StripedMachine(8));
+		final AtomicInteger dispensed = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++)
+		{
+			threads[t] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+					for (int i = 0; i < 10; i++)
+					{
+						if (machine.buyDrink(1))
+						{
+							dispensed.incrementAndGet();
+						}
+					}
+				}
+			});
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		assertEquals(3, dispensed.get());
+		assertEquals(true, machine.outputInventory().contains("Espresso,1\n"));
+		assertEquals("1,Caffe Americano,$3.30,false\n", machine.getDrink(1).output(1));
+	}
+
+	/**
+	 * Tests that threads buying drinks from their own stripes only find a drink out of stock once all of
+	 * the stripes together don't have enough for it, and that the drink's servings are kept up to date
+	 * by the purchases, without the menu being output.
+	 */
+	@Test
+	public void outOfStockOnlyWhenStripesRunOut() throws InterruptedException
+	{
+		for (int round = 0; round < 20; round++)
+		{
+			final StripedMachine machine = new StripedMachine(8);
+			Ingredient espresso = new Ingredient("Espresso", 1.10f, 3001);
+			machine.addIngredient(espresso);
+			Drink americano = new Drink("Caffe Americano");
+			americano.addIngredient(espresso, 3);
+			machine.addDrink(americano);
+			machine.restockInventory();
+
+			final AtomicInteger dispensed = new AtomicInteger();
+			Thread[] threads = new Thread[8];
+			for (int t = 0; t < threads.length; t++)
+			{
+				threads[t] = new Thread(() ->
+				{
+					while (machine.buyDrink(1))
+					{
+						dispensed.incrementAndGet();
+					}
+				});
+				threads[t].start();
+			}
+			for (Thread thread : threads)
+			{
+				thread.join();
+			}
+
+			assertEquals(1000, dispensed.get());
+			assertEquals(0, machine.getServingsAvailable(1));
+			assertEquals(false, machine.getDrink(1).isInStock());
+		}
+	}
+
+	/**
+	 * Tests that every purchase updates the drink's servings, even while the thread's own stripe still has
+	 * plenty of stock, without the menu being output.
+	 */
+	@Test
+	public void servingsWithoutMenu()
+	{
+		StripedMachine machine = new StripedMachine(4);
+		Ingredient espresso = new Ingredient("Espresso", 1.10f, 1000);
+		machine.addIngredient(espresso);
+		Drink americano = new Drink("Caffe Americano");
+		americano.addIngredient(espresso, 3);
+		machine.addDrink(americano);
+		machine.restockInventory();
+		assertEquals(333, machine.getServingsAvailable(1));
+		for (int i = 1; i <= 10; i++)
+		{
+			assertEquals(true, machine.buyDrink(1));
+			assertEquals((1000 - 3 * i) / 3, machine.getServingsAvailable(1));
+		}
+	}
+
+	/**
+	 * Tests that drinks can be bought from many threads while some of the ingredients are being restocked,
+	 * and that every restocked and dispensed quantity is accounted for.
+	 */
+	@Test
+	public void restockDuringPurchases() throws InterruptedException
+	{
+		final StripedMachine machine = new StripedMachine(8);
+		final Ingredient espresso = new Ingredient("Espresso", 1.10f, 1000);
+		machine.addIngredient(espresso);
+		Drink americano = new Drink("Caffe Americano");
+		americano.addIngredient(espresso, 3);
+		machine.addDrink(americano);
+		machine.restockInventory();
+		while (machine.buyDrink(1))
+		{
+		}
+
+		final AtomicInteger dispensed = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[9];
+		for (int t = 0; t < threads.length; t++)
+		{
+			final boolean restocking = t == 0;
+			threads[t] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+					for (int i = 0; i < 100; i++)
+					{
+						if (restocking)
+						{
+							machine.restockIngredients(Arrays.asList(new RestockItem(espresso, 6)));
+						}
+						else if (machine.buyDrink(1))
+						{
+							dispensed.incrementAndGet();
+						}
+					}
+				}
+			});
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		int espressoLeft = 1 + 600 - 3 * dispensed.get();
+		assertEquals(true, machine.outputInventory().contains(String.format("Espresso,%d\n", espressoLeft)));
+		assertEquals(espressoLeft / 3, machine.getServingsAvailable(1));
+	}
+}